@@ -0,0 +1,102 @@
+package com.redeluxe;
+
+import java.net.HttpURLConnection;
+import java.util.List;
+
+// отменяемый запрос. после cancel колбэки не вызываются и ответ не разбирается.
+// чтение к тому же обрывает соединение, а изменение доходит до сервера:
+// оборванный посреди запрос оставил бы неизвестным, применено ли оно
+public class ApiCall {
+    private boolean cancelled;
+    private HttpURLConnection connection;
+    private Runnable onCancel;
+
+    public void cancel() {
+        HttpURLConnection conn;
+        Runnable action;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            conn = connection;
+            connection = null;
+            action = onCancel;
+            onCancel = null;
+        }
+        if (conn != null) {
+            conn.disconnect();
+        }
+        if (action != null) {
+            action.run();
+        }
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    // действие при отмене, например выход из общего запроса
+    synchronized void setOnCancel(Runnable action) {
+        onCancel = action;
+    }
+
+    // воркер регистрирует соединение, чтобы отмена могла его оборвать
+    synchronized boolean attach(HttpURLConnection conn) {
+        if (cancelled) {
+            return false;
+        }
+        connection = conn;
+        return true;
+    }
+
+    // после чтения тела соединение уже в пуле, рвать его нельзя
+    synchronized void detach() {
+        connection = null;
+    }
+
+    // колбэк, который молчит после отмены. проверка идет на main потоке
+    // в момент доставки, поэтому уже отправленный в очередь результат тоже отбрасывается
+    <T> ApiService.ApiCallback<T> guard(ApiService.ApiCallback<T> callback) {
+        return new ApiService.ApiCallback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                if (!isCancelled()) {
+                    callback.onSuccess(result);
+                }
+            }
+
+            @Override
+            public void onError(String error) {
+                if (!isCancelled()) {
+                    callback.onError(error);
+                }
+            }
+        };
+    }
+
+    <T> ApiService.StreamCallback<T> guard(ApiService.StreamCallback<T> callback) {
+        return new ApiService.StreamCallback<T>() {
+            @Override
+            public void onChunk(List<T> chunk, boolean first) {
+                if (!isCancelled()) {
+                    callback.onChunk(chunk, first);
+                }
+            }
+
+            @Override
+            public void onComplete() {
+                if (!isCancelled()) {
+                    callback.onComplete();
+                }
+            }
+
+            @Override
+            public void onError(String error) {
+                if (!isCancelled()) {
+                    callback.onError(error);
+                }
+            }
+        };
+    }
+}
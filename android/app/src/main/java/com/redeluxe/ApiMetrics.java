@@ -0,0 +1,215 @@
+package com.redeluxe;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+// метрики сети по эндпоинтам: гистограммы фаз запроса, объем трафика, коды ответов.
+// отчет в тексте для экрана отладки и в json для сравнения сборок
+public class ApiMetrics {
+    // верхние границы корзин в миллисекундах, последняя корзина без границы
+    private static final long[] BUCKET_BOUNDS_MS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+
+    public enum Phase {
+        // ожидание в очереди диспетчера
+        QUEUE("queue"),
+        // установка соединения, при переиспользовании из пула близко к нулю
+        CONNECT("connect"),
+        // от отправки запроса до кода ответа
+        FIRST_BYTE("ttfb"),
+        // чтение тела, у потоковых запросов вместе с разбором
+        READ("read"),
+        // разбор тела в модели
+        DECODE("decode");
+
+        final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+    }
+
+    // измерения одной попытки, заполняются воркером и записываются разом
+    public static class Sample {
+        final long[] phaseNanos = new long[Phase.values().length];
+        long bytesSent;
+        long bytesReceived;
+        int status;
+        boolean failed;
+
+        public void add(Phase phase, long nanos) {
+            phaseNanos[phase.ordinal()] += nanos;
+        }
+    }
+
+    private static class Histogram {
+        final long[] counts = new long[BUCKET_BOUNDS_MS.length + 1];
+        long count;
+        long totalMicros;
+        long maxMicros;
+
+        void record(long nanos) {
+            long micros = nanos / 1000;
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS_MS.length && micros > BUCKET_BOUNDS_MS[bucket] * 1000) {
+                bucket++;
+            }
+            counts[bucket]++;
+            count++;
+            totalMicros += micros;
+            maxMicros = Math.max(maxMicros, micros);
+        }
+
+        // верхняя граница корзины, в которую попал перцентиль
+        long percentileMs(double percentile) {
+            long rank = (long) Math.ceil(count * percentile);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return i < BUCKET_BOUNDS_MS.length ? BUCKET_BOUNDS_MS[i] : maxMicros / 1000;
+                }
+            }
+            return maxMicros / 1000;
+        }
+
+        double meanMs() {
+            return count > 0 ? totalMicros / 1000.0 / count : 0;
+        }
+    }
+
+    private static class EndpointStats {
+        final Histogram[] phases = new Histogram[Phase.values().length];
+        final Map<Integer, Long> statuses = new TreeMap<>();
+        long requests;
+        long errors;
+        long bytesSent;
+        long bytesReceived;
+
+        EndpointStats() {
+            for (int i = 0; i < phases.length; i++) {
+                phases[i] = new Histogram();
+            }
+        }
+    }
+
+    private static ApiMetrics instance;
+
+    private final Map<String, EndpointStats> endpoints = new TreeMap<>();
+
+    public static synchronized ApiMetrics getInstance() {
+        if (instance == null) {
+            instance = new ApiMetrics();
+        }
+        return instance;
+    }
+
+    // фазы, до которых попытка не дошла, в гистограммы не попадают
+    public synchronized void record(String endpoint, Sample sample) {
+        EndpointStats stats = endpoints.get(endpoint);
+        if (stats == null) {
+            stats = new EndpointStats();
+            endpoints.put(endpoint, stats);
+        }
+        stats.requests++;
+        stats.bytesSent += sample.bytesSent;
+        stats.bytesReceived += sample.bytesReceived;
+        if (sample.failed) {
+            stats.errors++;
+        }
+        if (sample.status > 0) {
+            Long seen = stats.statuses.get(sample.status);
+            stats.statuses.put(sample.status, seen != null ? seen + 1 : 1);
+        }
+        for (Phase phase : Phase.values()) {
+            long nanos = sample.phaseNanos[phase.ordinal()];
+            if (nanos > 0) {
+                stats.phases[phase.ordinal()].record(nanos);
+            }
+        }
+    }
+
+    public synchronized void reset() {
+        endpoints.clear();
+    }
+
+    public synchronized String toText() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, EndpointStats> entry : endpoints.entrySet()) {
+            EndpointStats stats = entry.getValue();
+            text.append("◢ ").append(entry.getKey()).append('\n');
+            text.append(String.format(Locale.ROOT, "  запросов: %d, ошибок: %d\n", stats.requests, stats.errors));
+            text.append(String.format(Locale.ROOT, "  отправлено: %s, получено: %s\n",
+                formatBytes(stats.bytesSent), formatBytes(stats.bytesReceived)));
+            if (!stats.statuses.isEmpty()) {
+                text.append("  коды:");
+                for (Map.Entry<Integer, Long> status : stats.statuses.entrySet()) {
+                    text.append(' ').append(status.getKey()).append('×').append(status.getValue());
+                }
+                text.append('\n');
+            }
+            for (Phase phase : Phase.values()) {
+                Histogram histogram = stats.phases[phase.ordinal()];
+                if (histogram.count == 0) {
+                    continue;
+                }
+                text.append(String.format(Locale.ROOT, "  %-7s avg %.1f, p50 ≤%d, p95 ≤%d, max %d мс\n",
+                    phase.label, histogram.meanMs(), histogram.percentileMs(0.5),
+                    histogram.percentileMs(0.95), histogram.maxMicros / 1000));
+            }
+            text.append('\n');
+        }
+        return text.length() > 0 ? text.toString() : "запросов пока не было\n";
+    }
+
+    public synchronized String toJson() {
+        return ModelCodec.encode(writer -> {
+            writer.beginObject();
+            writer.name("bucket_bounds_ms").beginArray();
+            for (long bound : BUCKET_BOUNDS_MS) {
+                writer.value(bound);
+            }
+            writer.endArray();
+            writer.name("endpoints").beginObject();
+            for (Map.Entry<String, EndpointStats> entry : endpoints.entrySet()) {
+                EndpointStats stats = entry.getValue();
+                writer.name(entry.getKey()).beginObject();
+                writer.name("requests").value(stats.requests);
+                writer.name("errors").value(stats.errors);
+                writer.name("bytes_sent").value(stats.bytesSent);
+                writer.name("bytes_received").value(stats.bytesReceived);
+                writer.name("statuses").beginObject();
+                for (Map.Entry<Integer, Long> status : stats.statuses.entrySet()) {
+                    writer.name(String.valueOf(status.getKey())).value(status.getValue());
+                }
+                writer.endObject();
+                for (Phase phase : Phase.values()) {
+                    Histogram histogram = stats.phases[phase.ordinal()];
+                    writer.name(phase.label).beginObject();
+                    writer.name("count").value(histogram.count);
+                    writer.name("total_us").value(histogram.totalMicros);
+                    writer.name("max_us").value(histogram.maxMicros);
+                    writer.name("buckets").beginArray();
+                    for (long count : histogram.counts) {
+                        writer.value(count);
+                    }
+                    writer.endArray();
+                    writer.endObject();
+                }
+                writer.endObject();
+            }
+            writer.endObject();
+            writer.endObject();
+        });
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " Б";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format(Locale.ROOT, "%.1f КБ", bytes / 1024.0);
+        }
+        return String.format(Locale.ROOT, "%.1f МБ", bytes / 1024.0 / 1024.0);
+    }
+}
@@ -0,0 +1,47 @@
+package com.redeluxe;
+
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleEventObserver;
+import androidx.lifecycle.LifecycleOwner;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+// запросы одного экрана: при уничтожении владельца все незавершенные отменяются.
+// завершенный запрос никто не держит, поэтому из слабого набора он уходит сам
+public class ApiScope implements LifecycleEventObserver {
+    private final Set<ApiCall> calls = Collections.newSetFromMap(new WeakHashMap<ApiCall, Boolean>());
+    private boolean closed;
+
+    ApiScope(LifecycleOwner owner) {
+        owner.getLifecycle().addObserver(this);
+    }
+
+    synchronized boolean add(ApiCall call) {
+        if (closed) {
+            return false;
+        }
+        calls.add(call);
+        return true;
+    }
+
+    @Override
+    public void onStateChanged(LifecycleOwner source, Lifecycle.Event event) {
+        if (event != Lifecycle.Event.ON_DESTROY) {
+            return;
+        }
+        source.getLifecycle().removeObserver(this);
+
+        List<ApiCall> pending;
+        synchronized (this) {
+            closed = true;
+            pending = new ArrayList<>(calls);
+            calls.clear();
+        }
+        for (ApiCall call : pending) {
+            call.cancel();
+        }
+    }
+}
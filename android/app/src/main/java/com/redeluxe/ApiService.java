@@ -4,266 +4,353 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Handler;
 import android.os.Looper;
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
-import org.json.JSONArray;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+import androidx.lifecycle.LifecycleOwner;
 import org.json.JSONException;
 import org.json.JSONObject;
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.lang.reflect.Type;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
+import java.net.InetAddress;
 import java.net.URL;
+import java.net.URLEncoder;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 public class ApiService {
     private static final String BASE_URL = "http://85.234.110.4:3000/api"; // для эмулятора
-    private Context context;
-    private String token;
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 30000;
+    private static final int GZIP_MIN_BODY_BYTES = 1024;
+    private static final int FIRST_CHUNK_SIZE = 20;
+    private static final int NEXT_CHUNK_SIZE = 250;
+    private static ApiService instance;
+    // подменяется только в тестах со своим сервером
+    private static volatile String baseUrl = BASE_URL;
+
+    private final Context context;
+    private final ResponseCache responseCache;
+    // токен и политика повторов хранятся в корневом клиенте, экранные их читают
+    private final ApiService root;
+    private final ApiScope scope;
+    private volatile String token;
+    private volatile RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+
+    static {
+        // переиспользуем соединения к BASE_URL между вызовами
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", "8");
+    }
+
+    // работа GET-запросов с дисковым кэшем
+    public enum CacheMode {
+        // всегда полный ответ с сервера
+        NONE,
+        // условный запрос с валидаторами, при 304 тело берется из кэша
+        VALIDATE,
+        // сначала сохраненная копия, затем проверка на сервере.
+        // при изменениях колбэк вызывается второй раз со свежими данными
+        STALE_WHILE_REVALIDATE
+    }
 
     public interface ApiCallback<T> {
         void onSuccess(T result);
         void onError(String error);
     }
 
-    public ApiService(Context context) {
+    // порционная доставка длинных списков, все методы вызываются на main потоке
+    public interface StreamCallback<T> {
+        void onChunk(List<T> chunk, boolean first);
+        void onComplete();
+        void onError(String error);
+    }
+
+    private interface ResponseDecoder<T> {
+        T decode(String body) throws IOException;
+    }
+
+    // разбирает тело и отдает порции в переданный колбэк
+    private interface BodyConsumer<T> {
+        void consume(InputStream body, StreamCallback<T> sink) throws IOException;
+    }
+
+    // один клиент на процесс: токен, кэш и пул соединений общие для всех экранов
+    public static synchronized ApiService getInstance(Context context) {
+        if (instance == null) {
+            instance = new ApiService(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private ApiService(Context context) {
         this.context = context;
+        this.responseCache = ResponseCache.getInstance(context);
+        this.root = this;
+        this.scope = null;
         loadToken();
     }
 
+    private ApiService(ApiService root, ApiScope scope) {
+        this.context = root.context;
+        this.responseCache = root.responseCache;
+        this.root = root;
+        this.scope = scope;
+    }
+
+    // клиент экрана: запросы, не завершенные к уничтожению владельца, отменяются
+    public ApiService scopedTo(LifecycleOwner owner) {
+        return new ApiService(root, new ApiScope(owner));
+    }
+
+    // прогрев при старте процесса: адрес сервера и соединение с ним попадают
+    // в пул до первого настоящего запроса
+    public void warmUp() {
+        RequestDispatcher.getInstance().submit(RequestDispatcher.Lane.BACKGROUND, () -> {
+            ApiMetrics.Sample sample = new ApiMetrics.Sample();
+            try {
+                InetAddress.getByName(new URL(baseUrl).getHost());
+                HttpURLConnection conn = openConnection("GET", "/ping", false);
+                long connectStart = System.nanoTime();
+                conn.connect();
+                sample.add(ApiMetrics.Phase.CONNECT, System.nanoTime() - connectStart);
+                // тело дочитывается, чтобы соединение вернулось в пул
+                readBody(conn, awaitResponse(conn, sample), sample);
+            } catch (IOException e) {
+                // без прогрева первый запрос откроет соединение сам
+                sample.failed = true;
+            }
+            ApiMetrics.getInstance().record("GET /ping", sample);
+        }, null);
+    }
+
+    static void setBaseUrl(String url) {
+        baseUrl = url;
+    }
+
+    // тест со своим сервером возвращает настоящий адрес и сбрасывает общий клиент,
+    // чтобы следующий тест не получил его токен и настройки
+    static synchronized void resetForTests() {
+        baseUrl = BASE_URL;
+        instance = null;
+    }
+
+    String getToken() {
+        return root.token;
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        root.retryPolicy = retryPolicy;
+    }
+
     private void loadToken() {
         SharedPreferences prefs = context.getSharedPreferences("redeluxe", Context.MODE_PRIVATE);
         token = prefs.getString("token", "");
     }
 
     private void saveToken(String token) {
-        this.token = token;
+        root.token = token;
         SharedPreferences prefs = context.getSharedPreferences("redeluxe", Context.MODE_PRIVATE);
         prefs.edit().putString("token", token).apply();
     }
 
     // авторизация
-    public void login(String email, String password, ApiCallback<String> callback) {
-        executeRequest("POST", "/login", createAuthJson(email, password, null), callback, false);
+    public ApiCall login(String email, String password, ApiCallback<String> callback) {
+        return executeRequest("POST", "/login", createAuthJson(email, password, null), callback, false);
     }
 
-    public void register(String email, String password, String username, ApiCallback<String> callback) {
-        executeRequest("POST", "/register", createAuthJson(email, password, username), callback, false);
+    public ApiCall register(String email, String password, String username, ApiCallback<String> callback) {
+        return executeRequest("POST", "/register", createAuthJson(email, password, username), callback, false);
     }
 
     // заметки
-    public void getNotes(ApiCallback<List<Note>> callback) {
-        executeRequest("GET", "/notes", null, new ApiCallback<String>() {
-            @Override
-            public void onSuccess(String result) {
-                try {
-                    JSONObject json = new JSONObject(result);
-                    List<Note> notes = parseNotes(json.getJSONArray("notes"));
-                    callback.onSuccess(notes);
-                } catch (JSONException e) {
-                    callback.onError("ошибка парсинга");
-                }
-            }
-
-            @Override
-            public void onError(String error) {
-                callback.onError(error);
-            }
-        }, true);
+    public ApiCall getNotes(ApiCallback<List<Note>> callback) {
+        return getNotes(CacheMode.VALIDATE, callback);
     }
 
-    public void createNote(Note note, ApiCallback<Note> callback) {
-        executeRequest("POST", "/notes", noteToJson(note), new ApiCallback<String>() {
-            @Override
-            public void onSuccess(String result) {
-                try {
-                    callback.onSuccess(parseNote(new JSONObject(result)));
-                } catch (JSONException e) {
-                    callback.onError("ошибка парсинга");
-                }
-            }
+    public ApiCall getNotes(CacheMode cacheMode, ApiCallback<List<Note>> callback) {
+        return executeCached("/notes", cacheMode,
+            body -> ModelCodec.decodeList(body, "notes", ModelCodec::readNote), callback);
+    }
 
-            @Override
-            public void onError(String error) {
-                callback.onError(error);
-            }
-        }, true);
+    // заметки приходят порциями по мере чтения ответа: первая порция
+    // размером с экран, чтобы список отрисовался до конца загрузки
+    public ApiCall getNotesStreaming(StreamCallback<Note> callback) {
+        return getNotesStreaming(CacheMode.VALIDATE, callback);
     }
 
-    public void updateNote(int noteId, Note note, ApiCallback<Note> callback) {
-        executeRequest("PUT", "/notes/" + noteId, noteToJson(note), new ApiCallback<String>() {
-            @Override
-            public void onSuccess(String result) {
-                try {
-                    callback.onSuccess(parseNote(new JSONObject(result)));
-                } catch (JSONException e) {
-                    callback.onError("ошибка парсинга");
+    public ApiCall getNotesStreaming(CacheMode cacheMode, StreamCallback<Note> callback) {
+        return executeStreamingRequest("GET", "/notes", RequestDispatcher.Lane.INTERACTIVE, cacheMode,
+            (body, sink) -> {
+                JsonReader reader = new JsonReader(new InputStreamReader(body, "UTF-8"));
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (!reader.nextName().equals("notes") || reader.peek() != JsonToken.BEGIN_ARRAY) {
+                        reader.skipValue();
+                        continue;
+                    }
+
+                    reader.beginArray();
+                    List<Note> chunk = new ArrayList<>();
+                    int chunkSize = FIRST_CHUNK_SIZE;
+                    boolean first = true;
+                    while (reader.hasNext()) {
+                        chunk.add(ModelCodec.readNote(reader));
+                        if (chunk.size() >= chunkSize) {
+                            postChunk(sink, chunk, first);
+                            chunk = new ArrayList<>();
+                            chunkSize = NEXT_CHUNK_SIZE;
+                            first = false;
+                        }
+                    }
+                    reader.endArray();
+
+                    if (!chunk.isEmpty() || first) {
+                        postChunk(sink, chunk, first);
+                    }
                 }
-            }
+                reader.endObject();
+            }, callback);
+    }
 
-            @Override
-            public void onError(String error) {
-                callback.onError(error);
-            }
-        }, true);
+    private <T> void postChunk(StreamCallback<T> callback, List<T> chunk, boolean first) {
+        new Handler(Looper.getMainLooper()).post(() -> callback.onChunk(chunk, first));
     }
 
-    public void deleteNote(int noteId, ApiCallback<String> callback) {
-        executeRequest("DELETE", "/notes/" + noteId, null, callback, true);
+    public ApiCall createNote(Note note, ApiCallback<Note> callback) {
+        return executeDecoded("POST", "/notes", noteToJson(note), true,
+            body -> ModelCodec.decode(body, ModelCodec::readNote), callback);
     }
 
-    // поиск
-    public void searchNotes(String query, ApiCallback<List<Note>> callback) {
-        executeRequest("GET", "/notes/search?q=" + query, null, new ApiCallback<String>() {
-            @Override
-            public void onSuccess(String result) {
-                try {
-                    JSONObject json = new JSONObject(result);
-                    List<Note> notes = parseNotes(json.getJSONArray("notes"));
-                    callback.onSuccess(notes);
-                } catch (JSONException e) {
-                    callback.onError("ошибка парсинга");
-                }
-            }
+    public ApiCall updateNote(int noteId, Note note, ApiCallback<Note> callback) {
+        return executeDecoded("PUT", "/notes/" + noteId, noteToJson(note), true,
+            body -> ModelCodec.decode(body, ModelCodec::readNote), callback);
+    }
 
-            @Override
-            public void onError(String error) {
-                callback.onError(error);
-            }
-        }, true);
+    public ApiCall deleteNote(int noteId, ApiCallback<String> callback) {
+        return executeRequest("DELETE", "/notes/" + noteId, null, callback, true);
     }
 
-    // категории
-    public void getCategories(ApiCallback<List<Category>> callback) {
-        executeRequest("GET", "/categories", null, new ApiCallback<String>() {
-            @Override
-            public void onSuccess(String result) {
-                try {
-                    JSONObject json = new JSONObject(result);
-                    List<Category> categories = parseCategories(json.getJSONArray("categories"));
-                    callback.onSuccess(categories);
-                } catch (JSONException e) {
-                    callback.onError("ошибка парсинга");
-                }
-            }
+    // пачка изменений из офлайн-очереди, у каждой операции свой статус
+    public ApiCall batchNotes(String ops, ApiCallback<List<NoteOutbox.BatchResult>> callback) {
+        return executeDecoded("POST", "/notes/batch", ops, true, RequestDispatcher.Lane.BACKGROUND,
+            body -> ModelCodec.decodeList(body, "results", ModelCodec::readNoteBatchResult), callback);
+    }
 
-            @Override
-            public void onError(String error) {
-                callback.onError(error);
+    // синхронизация: изменения после lastSync, при watermarkOnly только отметка времени
+    public ApiCall sync(String lastSync, boolean watermarkOnly, ApiCallback<SyncEngine.SyncDelta> callback) {
+        String data = ModelCodec.encode(writer -> {
+            writer.beginObject();
+            if (lastSync != null) {
+                writer.name("last_sync").value(lastSync);
             }
-        }, true);
+            writer.name("watermark_only").value(watermarkOnly);
+            writer.endObject();
+        });
+        return executeDecoded("POST", "/sync", data, true, RequestDispatcher.Lane.INTERACTIVE,
+            body -> ModelCodec.decode(body, ModelCodec::readSyncDelta), callback);
     }
 
-    public void createCategory(Category category, ApiCallback<Category> callback) {
-        executeRequest("POST", "/categories", categoryToJson(category), new ApiCallback<String>() {
-            @Override
-            public void onSuccess(String result) {
-                try {
-                    callback.onSuccess(parseCategory(new JSONObject(result)));
-                } catch (JSONException e) {
-                    callback.onError("ошибка парсинга");
-                }
-            }
+    // поиск
+    public ApiCall searchNotes(String query, ApiCallback<List<Note>> callback) {
+        return executeDecoded("GET", "/notes/search?q=" + encodeQuery(query), null, true,
+            body -> ModelCodec.decodeList(body, "notes", ModelCodec::readNote), callback);
+    }
 
-            @Override
-            public void onError(String error) {
-                callback.onError(error);
-            }
-        }, true);
+    // категории
+    public ApiCall getCategories(ApiCallback<List<Category>> callback) {
+        return getCategories(CacheMode.VALIDATE, callback);
     }
 
-    // теги
-    public void getTags(ApiCallback<List<Tag>> callback) {
-        executeRequest("GET", "/tags", null, new ApiCallback<String>() {
-            @Override
-            public void onSuccess(String result) {
-                try {
-                    JSONObject json = new JSONObject(result);
-                    List<Tag> tags = parseTags(json.getJSONArray("tags"));
-                    callback.onSuccess(tags);
-                } catch (JSONException e) {
-                    callback.onError("ошибка парсинга");
-                }
-            }
+    public ApiCall getCategories(CacheMode cacheMode, ApiCallback<List<Category>> callback) {
+        return executeCached("/categories", cacheMode,
+            body -> ModelCodec.decodeList(body, "categories", ModelCodec::readCategory), callback);
+    }
 
-            @Override
-            public void onError(String error) {
-                callback.onError(error);
-            }
-        }, true);
+    public ApiCall createCategory(Category category, ApiCallback<Category> callback) {
+        String data = ModelCodec.encode(writer -> ModelCodec.writeCategoryBody(writer, category));
+        return executeDecoded("POST", "/categories", data, true,
+            body -> ModelCodec.decode(body, ModelCodec::readCategory), callback);
     }
 
-    public void createTag(Tag tag, ApiCallback<Tag> callback) {
-        executeRequest("POST", "/tags", tagToJson(tag), new ApiCallback<String>() {
-            @Override
-            public void onSuccess(String result) {
-                try {
-                    callback.onSuccess(parseTag(new JSONObject(result)));
-                } catch (JSONException e) {
-                    callback.onError("ошибка парсинга");
-                }
-            }
+    // теги
+    public ApiCall getTags(ApiCallback<List<Tag>> callback) {
+        return executeDecoded("GET", "/tags", null, true,
+            body -> ModelCodec.decodeList(body, "tags", ModelCodec::readTag), callback);
+    }
 
-            @Override
-            public void onError(String error) {
-                callback.onError(error);
-            }
-        }, true);
+    public ApiCall createTag(Tag tag, ApiCallback<Tag> callback) {
+        String data = ModelCodec.encode(writer -> ModelCodec.writeTagBody(writer, tag));
+        return executeDecoded("POST", "/tags", data, true,
+            body -> ModelCodec.decode(body, ModelCodec::readTag), callback);
     }
 
     // статистика
-    public void getStats(ApiCallback<String> callback) {
-        executeRequest("GET", "/stats", null, callback, true);
+    public ApiCall getStats(ApiCallback<String> callback) {
+        return executeRequest("GET", "/stats", null, callback, true);
     }
 
     // canvas
-    public void getCanvases(ApiCallback<String> callback) {
-        executeRequest("GET", "/canvases", null, callback, true);
+    public ApiCall getCanvases(ApiCallback<List<CanvasItem>> callback) {
+        return getCanvases(CacheMode.VALIDATE, callback);
     }
 
-    public void createCanvas(String name, int width, int height, ApiCallback<String> callback) {
-        try {
-            JSONObject json = new JSONObject();
-            json.put("name", name);
-            json.put("width", width);
-            json.put("height", height);
-            executeRequest("POST", "/canvases", json.toString(), callback, true);
-        } catch (JSONException e) {
-            callback.onError("ошибка создания canvas");
-        }
+    public ApiCall getCanvases(CacheMode cacheMode, ApiCallback<List<CanvasItem>> callback) {
+        return executeCached("/canvases", cacheMode,
+            body -> ModelCodec.decodeList(body, "canvases", ModelCodec::readCanvasItem), callback);
     }
 
-    public void getCanvas(int canvasId, ApiCallback<String> callback) {
-        executeRequest("GET", "/canvases/" + canvasId, null, callback, true);
+    public ApiCall createCanvas(String name, int width, int height, ApiCallback<CanvasItem> callback) {
+        String data = ModelCodec.encode(writer -> {
+            writer.beginObject();
+            writer.name("name").value(name);
+            writer.name("width").value(width);
+            writer.name("height").value(height);
+            writer.endObject();
+        });
+        return executeDecoded("POST", "/canvases", data, true,
+            body -> ModelCodec.decode(body, ModelCodec::readCanvasItem), callback);
     }
 
-    public void saveCanvasState(int canvasId, double zoom, double panX, double panY, 
-                               String viewState, String data, JSONArray nodes, JSONArray connections, ApiCallback<String> callback) {
-        try {
-            JSONObject json = new JSONObject();
-            json.put("zoom", zoom);
-            json.put("pan_x", panX);
-            json.put("pan_y", panY);
-            json.put("view_state", viewState);
-            json.put("data", data);
-            if (nodes != null) {
-                json.put("nodes", nodes);
-            }
-            if (connections != null) {
-                json.put("connections", connections);
-            }
-            executeRequest("POST", "/canvases/" + canvasId + "/save-state", json.toString(), callback, true);
-        } catch (JSONException e) {
-            callback.onError("ошибка сохранения состояния");
-        }
+    public ApiCall getCanvas(int canvasId, ApiCallback<CanvasActivity.CanvasDocument> callback) {
+        return getCanvas(canvasId, RequestDispatcher.Lane.INTERACTIVE, callback);
+    }
+
+    public ApiCall getCanvas(int canvasId, RequestDispatcher.Lane lane,
+                             ApiCallback<CanvasActivity.CanvasDocument> callback) {
+        return getCanvas(canvasId, lane, CacheMode.NONE, callback);
+    }
+
+    public ApiCall getCanvas(int canvasId, RequestDispatcher.Lane lane, CacheMode cacheMode,
+                             ApiCallback<CanvasActivity.CanvasDocument> callback) {
+        return executeDecoded("GET", "/canvases/" + canvasId, null, true, lane, cacheMode,
+            body -> ModelCodec.decode(body, ModelCodec::readCanvasDocument), callback);
     }
 
-    public void autoSaveCanvasState(int canvasId, double zoom, double panX, double panY, 
+    // snapshot - копия доски, которую больше никто не меняет: тело пишется из нее на воркере
+    public ApiCall saveCanvasState(int canvasId, CanvasActivity.CanvasView.ViewportState state, String data,
+                                   CanvasActivity.CanvasDocument snapshot,
+                                   ApiCallback<CanvasActivity.CanvasSaveResult> callback) {
+        return executeStreamed("POST", "/canvases/" + canvasId + "/save-state",
+            writer -> ModelCodec.writeCanvasSaveState(writer, state, data, snapshot),
+            body -> ModelCodec.decode(body, ModelCodec::readCanvasSaveResult), callback);
+    }
+
+    public ApiCall autoSaveCanvasState(int canvasId, double zoom, double panX, double panY, 
                                    String viewState, ApiCallback<String> callback) {
         try {
             JSONObject json = new JSONObject();
@@ -271,77 +358,132 @@ public class ApiService {
             json.put("pan_x", panX);
             json.put("pan_y", panY);
             json.put("view_state", viewState);
-            executeRequest("POST", "/canvases/" + canvasId + "/autosave", json.toString(), callback, true);
+            return executeRequest("POST", "/canvases/" + canvasId + "/autosave", json.toString(), callback, true,
+                RequestDispatcher.Lane.BACKGROUND);
         } catch (JSONException e) {
             callback.onError("ошибка автосохранения");
+            return new ApiCall();
         }
     }
 
-    public void createCanvasNode(int canvasId, String type, double x, double y, double width, 
-                                double height, String data, String style, ApiCallback<String> callback) {
-        try {
-            JSONObject json = new JSONObject();
-            json.put("type", type);
-            json.put("x", x);
-            json.put("y", y);
-            json.put("width", width);
-            json.put("height", height);
-            json.put("data", data);
-            json.put("style", style);
-            executeRequest("POST", "/canvases/" + canvasId + "/nodes", json.toString(), callback, true);
-        } catch (JSONException e) {
-            callback.onError("ошибка создания узла");
-        }
+    // колбэк получает id узла на сервере
+    public ApiCall createCanvasNode(int canvasId, CanvasActivity.CanvasNode node, ApiCallback<Integer> callback) {
+        String json = ModelCodec.encode(writer -> ModelCodec.writeCanvasNode(writer, node));
+        return executeDecoded("POST", "/canvases/" + canvasId + "/nodes", json, true,
+            body -> ModelCodec.decode(body, ModelCodec::readObjectId), callback);
+    }
+
+    public ApiCall updateCanvasNode(int canvasId, int nodeId, String updateData, ApiCallback<String> callback) {
+        return executeRequest("PUT", "/canvases/" + canvasId + "/nodes/" + nodeId, updateData, callback, true);
     }
 
-    public void updateCanvasNode(int canvasId, int nodeId, String updateData, ApiCallback<String> callback) {
-        executeRequest("PUT", "/canvases/" + canvasId + "/nodes/" + nodeId, updateData, callback, true);
+    // сервер удаляет узел вместе с его связями
+    public ApiCall deleteCanvasNode(int canvasId, int nodeId, ApiCallback<String> callback) {
+        return executeRequest("DELETE", "/canvases/" + canvasId + "/nodes/" + nodeId, null, callback, true);
     }
 
-    public void deleteCanvasNode(int canvasId, int nodeId, ApiCallback<String> callback) {
-        executeRequest("DELETE", "/canvases/" + canvasId + "/nodes/" + nodeId, null, callback, true);
+    // концы связи - id узлов на сервере, колбэк получает id связи
+    public ApiCall createCanvasConnection(int canvasId, int fromNodeId, int toNodeId, String type,
+                                          ApiCallback<Integer> callback) {
+        String json = ModelCodec.encode(writer -> {
+            writer.beginObject();
+            writer.name("from_node_id").value(fromNodeId);
+            writer.name("to_node_id").value(toNodeId);
+            writer.name("type").value(type);
+            writer.endObject();
+        });
+        return executeDecoded("POST", "/canvases/" + canvasId + "/connections", json, true,
+            body -> ModelCodec.decode(body, ModelCodec::readObjectId), callback);
     }
 
-    public void deleteCanvas(int canvasId, ApiCallback<String> callback) {
-        executeRequest("DELETE", "/canvases/" + canvasId, null, callback, true);
+    public ApiCall deleteCanvas(int canvasId, ApiCallback<String> callback) {
+        return executeRequest("DELETE", "/canvases/" + canvasId, null, callback, true);
     }
 
     // graph
-    public void getGraph(String filters, ApiCallback<String> callback) {
+    public ApiCall getGraph(String filters, ApiCallback<GraphActivity.GraphDocument> callback) {
         String url = "/graph";
         if (filters != null && !filters.isEmpty()) {
             url += "?" + filters;
         }
-        executeRequest("GET", url, null, callback, true);
+        return executeDecoded("GET", url, null, true,
+            body -> ModelCodec.decode(body, ModelCodec::readGraphDocument), callback);
     }
 
-    public void saveGraphState(String name, String data, String layout, double zoom, 
-                              double panX, double panY, String filter, ApiCallback<String> callback) {
-        try {
-            JSONObject json = new JSONObject();
-            json.put("name", name);
-            json.put("data", data);
-            json.put("layout", layout);
-            json.put("zoom", zoom);
-            json.put("pan_x", panX);
-            json.put("pan_y", panY);
-            json.put("filter", filter);
-            executeRequest("POST", "/graph/save-state", json.toString(), callback, true);
-        } catch (JSONException e) {
-            callback.onError("ошибка сохранения состояния графа");
-        }
+    public ApiCall saveGraphState(String name, String data, String layout, double zoom, 
+                              double panX, double panY, String filter, ApiCallback<GraphItem> callback) {
+        String json = ModelCodec.encode(writer -> {
+            writer.beginObject();
+            writer.name("name").value(name);
+            writer.name("data").value(data);
+            writer.name("layout").value(layout);
+            writer.name("zoom").value(zoom);
+            writer.name("pan_x").value(panX);
+            writer.name("pan_y").value(panY);
+            writer.name("filter").value(filter);
+            writer.endObject();
+        });
+        return executeDecoded("POST", "/graph/save-state", json, true,
+            body -> ModelCodec.decode(body, ModelCodec::readGraphItem), callback);
     }
 
-    public void getGraphStates(ApiCallback<String> callback) {
-        executeRequest("GET", "/graph/states", null, callback, true);
+    public ApiCall getGraphStates(ApiCallback<List<GraphItem>> callback) {
+        return getGraphStates(CacheMode.VALIDATE, callback);
     }
 
-    public void getGraphState(int stateId, ApiCallback<String> callback) {
-        executeRequest("GET", "/graph/states/" + stateId, null, callback, true);
+    public ApiCall getGraphStates(CacheMode cacheMode, ApiCallback<List<GraphItem>> callback) {
+        return executeCached("/graph/states", cacheMode,
+            body -> ModelCodec.decodeList(body, "states", ModelCodec::readGraphItem), callback);
     }
 
-    public void deleteGraphState(int stateId, ApiCallback<String> callback) {
-        executeRequest("DELETE", "/graph/states/" + stateId, null, callback, true);
+    public ApiCall getGraphState(int stateId, ApiCallback<GraphActivity.GraphDocument> callback) {
+        return getGraphState(stateId, RequestDispatcher.Lane.INTERACTIVE, callback);
+    }
+
+    public ApiCall getGraphState(int stateId, RequestDispatcher.Lane lane,
+                                 ApiCallback<GraphActivity.GraphDocument> callback) {
+        return getGraphState(stateId, lane, CacheMode.NONE, callback);
+    }
+
+    public ApiCall getGraphState(int stateId, RequestDispatcher.Lane lane, CacheMode cacheMode,
+                                 ApiCallback<GraphActivity.GraphDocument> callback) {
+        return executeDecoded("GET", "/graph/states/" + stateId, null, true, lane, cacheMode,
+            body -> ModelCodec.decode(body, ModelCodec::readGraphStateDocument), callback);
+    }
+
+    // прогрев кэша ответов: тело не разбирается, в колбэк приходит его размер в байтах
+    public ApiCall prefetch(String endpoint, ApiCallback<Integer> callback) {
+        return executeDecoded("GET", endpoint, null, true, RequestDispatcher.Lane.BACKGROUND,
+            CacheMode.VALIDATE, body -> body.getBytes("UTF-8").length, callback);
+    }
+
+    public ApiCall deleteGraphState(int stateId, ApiCallback<String> callback) {
+        return executeRequest("DELETE", "/graph/states/" + stateId, null, callback, true);
+    }
+
+    // сколько GET-запросов не ушло в сеть, потому что такой же уже выполнялся
+    public static long getCoalescedCallCount() {
+        return SingleFlight.getInstance().getSavedCalls();
+    }
+
+    // отчет для экрана отладки: метрики эндпоинтов и состояние клиента
+    public String getMetricsReport() {
+        RequestDispatcher dispatcher = RequestDispatcher.getInstance();
+        StringBuilder report = new StringBuilder();
+        for (RequestDispatcher.Lane lane : RequestDispatcher.Lane.values()) {
+            report.append(String.format(Locale.ROOT, "%s: в работе %d, в очереди %d\n",
+                lane.name().toLowerCase(Locale.ROOT), dispatcher.getRunningCount(lane),
+                dispatcher.getQueueDepth(lane)));
+        }
+        report.append("объединено запросов: ").append(getCoalescedCallCount()).append('\n');
+        long cacheSize = responseCache.getKnownSize();
+        if (cacheSize >= 0) {
+            report.append("дисковый кэш: ").append(cacheSize / 1024).append(" КБ\n\n");
+        } else {
+            report.append("дисковый кэш: еще не прочитан\n\n");
+        }
+        report.append(ApiMetrics.getInstance().toText());
+        return report.toString();
     }
 
     // утилиты
@@ -359,175 +501,736 @@ public class ApiService {
         }
     }
 
+    private static String encodeQuery(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return value;
+        }
+    }
+
     private String noteToJson(Note note) {
+        return ModelCodec.encode(writer -> ModelCodec.writeNoteBody(writer, note));
+    }
+
+    public ApiCall executeRequest(String method, String endpoint, String data, ApiCallback<String> callback,
+                                  boolean needAuth) {
+        // чтение ждет пользователь, изменения идут отдельной полосой
+        RequestDispatcher.Lane lane = method.equals("GET") ?
+            RequestDispatcher.Lane.INTERACTIVE : RequestDispatcher.Lane.WRITE;
+        return executeRequest(method, endpoint, data, callback, needAuth, lane);
+    }
+
+    public ApiCall executeRequest(String method, String endpoint, String data, ApiCallback<String> callback,
+                                  boolean needAuth, RequestDispatcher.Lane lane) {
+        return executeDecoded(method, endpoint, data, needAuth, lane, body -> {
+            // сохраняем токен из ответа
+            if (!needAuth) {
+                try {
+                    JSONObject json = new JSONObject(body);
+                    if (json.has("token")) {
+                        saveToken(json.getString("token"));
+                        return json.getString("token");
+                    }
+                } catch (JSONException e) {
+                    // игнорируем
+                }
+            }
+            return body;
+        }, callback);
+    }
+
+    private <T> ApiCall executeDecoded(String method, String endpoint, String data, boolean needAuth,
+                                       ResponseDecoder<T> decoder, ApiCallback<T> callback) {
+        RequestDispatcher.Lane lane = method.equals("GET") ?
+            RequestDispatcher.Lane.INTERACTIVE : RequestDispatcher.Lane.WRITE;
+        return executeDecoded(method, endpoint, data, needAuth, lane, decoder, callback);
+    }
+
+    // запрос и разбор ответа выполняются на воркере, на main поток уходит готовый объект
+    private <T> ApiCall executeDecoded(String method, String endpoint, String data, boolean needAuth,
+                                       RequestDispatcher.Lane lane, ResponseDecoder<T> decoder,
+                                       ApiCallback<T> callback) {
+        return executeDecoded(method, endpoint, data, needAuth, lane, CacheMode.NONE, decoder, callback);
+    }
+
+    private <T> ApiCall executeCached(String endpoint, CacheMode cacheMode, ResponseDecoder<T> decoder,
+                                      ApiCallback<T> callback) {
+        return executeDecoded("GET", endpoint, null, true, RequestDispatcher.Lane.INTERACTIVE, cacheMode,
+            decoder, callback);
+    }
+
+    private <T> ApiCall executeDecoded(String method, String endpoint, String data, boolean needAuth,
+                                       RequestDispatcher.Lane lane, CacheMode cacheMode,
+                                       ResponseDecoder<T> decoder, ApiCallback<T> callback) {
+        ApiCall handle = newCall();
+        ApiCallback<T> guarded = handle.guard(callback);
+        if (!method.equals("GET")) {
+            PendingCall call = new PendingCall(method, endpoint, data, needAuth, lane, cacheMode, handle, null);
+            submitDecoded(call, 0, decoder, guarded);
+            return handle;
+        }
+
+        // одинаковый GET, который уже выполняется, не отправляется повторно.
+        // класс декодера в ключе гарантирует одинаковый тип результата
+        String flightKey = method + " " + endpoint + " " + root.token + " " + cacheMode + " " +
+            decoder.getClass().getName();
+        handle.setOnCancel(() -> SingleFlight.getInstance().leave(flightKey, guarded));
+        SingleFlight.SharedCallback<T> flight = SingleFlight.getInstance().join(flightKey, guarded);
+        if (flight == null) {
+            return handle;
+        }
+        // у общего запроса своя отмена: он обрывается, только когда отменены все подписчики
+        PendingCall call = new PendingCall(method, endpoint, data, needAuth, lane, cacheMode, new ApiCall(),
+            () -> SingleFlight.getInstance().finish(flightKey, flight));
+        flight.setNetworkCall(call.network);
+        submitDecoded(call, 0, decoder, flight);
+        return handle;
+    }
+
+    // большое тело не собирается строкой: кодировщик пишет его прямо в соединение.
+    // на каждой попытке кодировщик вызывается заново, данные для него не должны меняться
+    private <T> ApiCall executeStreamed(String method, String endpoint, ModelCodec.Encoder body,
+                                        ResponseDecoder<T> decoder, ApiCallback<T> callback) {
+        ApiCall handle = newCall();
+        PendingCall call = new PendingCall(method, endpoint, null, body, true, RequestDispatcher.Lane.WRITE,
+            CacheMode.NONE, handle, null);
+        submitDecoded(call, 0, decoder, handle.guard(callback));
+        return handle;
+    }
+
+    private ApiCall newCall() {
+        ApiCall call = new ApiCall();
+        if (scope != null && !scope.add(call)) {
+            call.cancel();
+        }
+        return call;
+    }
+
+    private <T> void submitDecoded(PendingCall call, long delayMs, ResponseDecoder<T> decoder,
+                                   ApiCallback<T> callback) {
+        call.markQueued(delayMs);
+        Runnable work = () -> {
+            boolean retrying = false;
+            ApiMetrics.Sample sample = call.startSample();
+            try {
+                retrying = runDecoded(call, sample, decoder, callback);
+            } finally {
+                ApiMetrics.getInstance().record(call.breaker.getEndpoint(), sample);
+                if (!retrying) {
+                    call.finish();
+                }
+            }
+        };
+        Runnable rejected = () -> {
+            call.finish();
+            postError(callback, "очередь запросов переполнена");
+        };
+
+        if (delayMs > 0) {
+            RequestDispatcher.getInstance().submitDelayed(call.lane, delayMs, work, rejected);
+        } else {
+            RequestDispatcher.getInstance().submit(call.lane, work, rejected);
+        }
+    }
+
+    // одна попытка запроса. возвращает true, если поставлен повтор
+    private <T> boolean runDecoded(PendingCall call, ApiMetrics.Sample sample, ResponseDecoder<T> decoder,
+                                   ApiCallback<T> callback) {
+        if (call.abandoned()) {
+            return false;
+        }
+        String cacheKey = call.cacheMode != CacheMode.NONE ? ResponseCache.key(root.token, call.endpoint) : null;
+        ResponseCache.Entry cached = cacheKey != null ? responseCache.get(cacheKey) : null;
+
+        // экран рисуется из кэша, не дожидаясь сети
+        if (call.attempt == 0 && cached != null && call.cacheMode == CacheMode.STALE_WHILE_REVALIDATE) {
+            try {
+                T stale = decoder.decode(cached.bodyString());
+                new Handler(Looper.getMainLooper()).post(() -> callback.onSuccess(stale));
+                call.staleShown = true;
+            } catch (IOException | RuntimeException e) {
+                responseCache.remove(cacheKey);
+                cached = null;
+            }
+        }
+
+        if (!call.breaker.allowRequest()) {
+            sample.failed = true;
+            if (!call.staleShown) {
+                postError(callback, "сервер недоступен, повторите позже");
+            }
+            return false;
+        }
+
+        int responseCode;
+        String response;
+        long retryAfterMs;
         try {
-                JSONObject json = new JSONObject();
-                json.put("title", note.getTitle());
-                json.put("content", note.getContent());
-                json.put("color", note.getColor());
-            json.put("is_pinned", note.isPinned());
-            json.put("is_archived", note.isArchived());
-            if (note.getCategoryId() != null) {
-                json.put("category_id", note.getCategoryId());
+            HttpURLConnection conn = send(call, cached, sample);
+            responseCode = awaitResponse(conn, sample);
+            long readStart = System.nanoTime();
+            response = readBody(conn, responseCode, sample);
+            sample.add(ApiMetrics.Phase.READ, System.nanoTime() - readStart);
+            call.network.detach();
+            retryAfterMs = retryAfterMs(conn);
+
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                call.breaker.onSuccess();
+                if (call.staleShown) {
+                    // сохраненная копия актуальна и уже показана
+                    return false;
+                }
+                responseCode = HttpURLConnection.HTTP_OK;
+                response = cached.bodyString();
+            } else if (cacheKey != null && responseCode == HttpURLConnection.HTTP_OK) {
+                responseCache.put(cacheKey, conn.getHeaderField("ETag"),
+                    conn.getHeaderField("Last-Modified"), response.getBytes("UTF-8"));
             }
-            return json.toString();
-        } catch (JSONException e) {
-            return "{}";
+        } catch (IOException e) {
+            if (call.abandoned()) {
+                // соединение оборвала отмена, сервер тут ни при чем
+                return false;
+            }
+            sample.failed = true;
+            call.breaker.onFailure();
+            if (root.retryPolicy.canRetry(call.method, call.attempt, e) &&
+                    retryLater(call, root.retryPolicy.delayMs(call.attempt, -1),
+                        delayMs -> submitDecoded(call, delayMs, decoder, callback))) {
+                return true;
+            }
+            if (!call.staleShown) {
+                postError(callback, "ошибка сети: " + e.getMessage());
+            }
+            return false;
+        } catch (Exception e) {
+            sample.failed = true;
+            if (!call.staleShown) {
+                postError(callback, "ошибка кодировки: " + e.getMessage());
+            }
+            return false;
+        }
+
+        recordOutcome(call.breaker, responseCode);
+        if (root.retryPolicy.canRetry(call.method, call.attempt, responseCode) &&
+                retryLater(call, root.retryPolicy.delayMs(call.attempt, retryAfterMs),
+                    delayMs -> submitDecoded(call, delayMs, decoder, callback))) {
+            return true;
+        }
+
+        if (responseCode < 200 || responseCode >= 300) {
+            postError(callback, errorMessage(response));
+            return false;
+        }
+
+        // ответ уже никому не нужен, разбор пропускается. у изменений разбор
+        // может сохранять состояние, например токен при входе, поэтому он остается
+        if (call.abandoned()) {
+            return false;
         }
+
+        T result;
+        long decodeStart = System.nanoTime();
+        try {
+            result = decoder.decode(response);
+        } catch (IOException | RuntimeException e) {
+            sample.failed = true;
+            postError(callback, "ошибка парсинга");
+            return false;
+        } finally {
+            sample.add(ApiMetrics.Phase.DECODE, System.nanoTime() - decodeStart);
+        }
+        new Handler(Looper.getMainLooper()).post(() -> callback.onSuccess(result));
+        return false;
+    }
+
+    private void postError(ApiCallback<?> callback, String error) {
+        new Handler(Looper.getMainLooper()).post(() -> callback.onError(error));
     }
 
-    private String categoryToJson(Category category) {
+    // тело ответа разбирается на воркере прямо из потока, без промежуточной строки.
+    // при кэшировании поток параллельно копируется в память для записи на диск
+    private <T> ApiCall executeStreamingRequest(String method, String endpoint, RequestDispatcher.Lane lane,
+                                                CacheMode cacheMode, BodyConsumer<T> consumer,
+                                                StreamCallback<T> callback) {
+        ApiCall handle = newCall();
+        StreamCallback<T> guarded = handle.guard(callback);
+        String flightKey = "stream " + method + " " + endpoint + " " + root.token + " " + cacheMode;
+        handle.setOnCancel(() -> SingleFlight.getInstance().leave(flightKey, guarded));
+        SingleFlight.SharedStream<T> flight = SingleFlight.getInstance().joinStream(flightKey, guarded);
+        if (flight == null) {
+            return handle;
+        }
+        PendingCall call = new PendingCall(method, endpoint, null, true, lane, cacheMode, new ApiCall(),
+            () -> SingleFlight.getInstance().finish(flightKey, flight));
+        flight.setNetworkCall(call.network);
+        submitStreaming(call, 0, consumer, flight);
+        return handle;
+    }
+
+    private <T> void submitStreaming(PendingCall call, long delayMs, BodyConsumer<T> consumer,
+                                     StreamCallback<T> callback) {
+        call.markQueued(delayMs);
+        Runnable work = () -> {
+            boolean retrying = false;
+            ApiMetrics.Sample sample = call.startSample();
+            try {
+                retrying = runStreaming(call, sample, consumer, callback);
+            } finally {
+                ApiMetrics.getInstance().record(call.breaker.getEndpoint(), sample);
+                if (!retrying) {
+                    call.finish();
+                }
+            }
+        };
+        Runnable rejected = () -> {
+            call.finish();
+            new Handler(Looper.getMainLooper()).post(() -> callback.onError("очередь запросов переполнена"));
+        };
+
+        if (delayMs > 0) {
+            RequestDispatcher.getInstance().submitDelayed(call.lane, delayMs, work, rejected);
+        } else {
+            RequestDispatcher.getInstance().submit(call.lane, work, rejected);
+        }
+    }
+
+    private <T> boolean runStreaming(PendingCall call, ApiMetrics.Sample sample, BodyConsumer<T> consumer,
+                                     StreamCallback<T> callback) {
+        if (call.abandoned()) {
+            return false;
+        }
+        String cacheKey = call.cacheMode != CacheMode.NONE ? ResponseCache.key(root.token, call.endpoint) : null;
+        ResponseCache.Entry cached = cacheKey != null ? responseCache.get(cacheKey) : null;
+
+        if (call.attempt == 0 && cached != null && call.cacheMode == CacheMode.STALE_WHILE_REVALIDATE) {
+            try {
+                consumer.consume(new ByteArrayInputStream(cached.body), callback);
+                call.staleShown = true;
+            } catch (IOException | RuntimeException e) {
+                responseCache.remove(cacheKey);
+                cached = null;
+            }
+        }
+
+        if (!call.breaker.allowRequest()) {
+            sample.failed = true;
+            postStreamFailure(call, callback, "сервер недоступен, повторите позже");
+            return false;
+        }
+
         try {
-            JSONObject json = new JSONObject();
-            json.put("name", category.getName());
-            json.put("color", category.getColor());
-            json.put("icon", category.getIcon());
-            return json.toString();
-        } catch (JSONException e) {
-            return "{}";
+            HttpURLConnection conn = send(call, cached, sample);
+            int responseCode = awaitResponse(conn, sample);
+            recordOutcome(call.breaker, responseCode);
+
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                readBody(conn, responseCode, sample);
+                if (!call.staleShown) {
+                    consumer.consume(new ByteArrayInputStream(cached.body), callback);
+                }
+                new Handler(Looper.getMainLooper()).post(callback::onComplete);
+                return false;
+            }
+
+            if (responseCode < 200 || responseCode >= 300) {
+                String response = readBody(conn, responseCode, sample);
+                if (root.retryPolicy.canRetry(call.method, call.attempt, responseCode) &&
+                        retryLater(call, root.retryPolicy.delayMs(call.attempt, retryAfterMs(conn)),
+                            delayMs -> submitStreaming(call, delayMs, consumer, callback))) {
+                    return true;
+                }
+                new Handler(Looper.getMainLooper()).post(() -> callback.onError(errorMessage(response)));
+                return false;
+            }
+
+            // разбор идет по мере чтения, поэтому фаза чтения включает разбор
+            long readStart = System.nanoTime();
+            InputStream body = openBody(conn, responseCode, sample);
+            CopyingInputStream copy = null;
+            if (cacheKey != null) {
+                copy = new CopyingInputStream(body);
+                body = copy;
+            }
+            try {
+                consumer.consume(body, callback);
+                // дочитываем хвост, чтобы соединение вернулось в пул
+                byte[] buffer = new byte[1024];
+                while (body.read(buffer) != -1) {
+                    // пропускаем
+                }
+            } finally {
+                body.close();
+                sample.add(ApiMetrics.Phase.READ, System.nanoTime() - readStart);
+            }
+            if (copy != null) {
+                responseCache.put(cacheKey, conn.getHeaderField("ETag"),
+                    conn.getHeaderField("Last-Modified"), copy.toByteArray());
+            }
+            new Handler(Looper.getMainLooper()).post(callback::onComplete);
+        } catch (IOException e) {
+            if (call.abandoned()) {
+                return false;
+            }
+            sample.failed = true;
+            call.breaker.onFailure();
+            // повтор начнется с первой порции и заменит уже показанные
+            if (root.retryPolicy.canRetry(call.method, call.attempt, e) &&
+                    retryLater(call, root.retryPolicy.delayMs(call.attempt, -1),
+                        delayMs -> submitStreaming(call, delayMs, consumer, callback))) {
+                return true;
+            }
+            postStreamFailure(call, callback, "ошибка сети: " + e.getMessage());
+        } catch (Exception e) {
+            sample.failed = true;
+            new Handler(Looper.getMainLooper()).post(() ->
+                callback.onError("ошибка парсинга: " + e.getMessage())
+            );
+        } finally {
+            // тело дочитано, соединение в пуле и рвать его отменой нельзя
+            call.network.detach();
+        }
+        return false;
+    }
+
+    private void postStreamFailure(PendingCall call, StreamCallback<?> callback, String error) {
+        if (call.staleShown) {
+            // остаемся на сохраненной копии
+            new Handler(Looper.getMainLooper()).post(callback::onComplete);
+            return;
+        }
+        new Handler(Looper.getMainLooper()).post(() -> callback.onError(error));
+    }
+
+    // логический запрос: общие для всех попыток параметры и состояние
+    private static class PendingCall {
+        final String method;
+        final String endpoint;
+        final String data;
+        // тело, которое пишется потоком вместо data
+        final ModelCodec.Encoder streamedBody;
+        final boolean needAuth;
+        final RequestDispatcher.Lane lane;
+        final CacheMode cacheMode;
+        final CircuitBreaker breaker;
+        final ApiCall network;
+        final Runnable onFinished;
+        // меняются только воркером, попытки идут строго по очереди
+        int attempt;
+        boolean staleShown;
+        // когда попытка должна была попасть в очередь, без учета паузы перед повтором
+        volatile long queuedAt;
+
+        PendingCall(String method, String endpoint, String data, boolean needAuth,
+                    RequestDispatcher.Lane lane, CacheMode cacheMode, ApiCall network, Runnable onFinished) {
+            this(method, endpoint, data, null, needAuth, lane, cacheMode, network, onFinished);
+        }
+
+        PendingCall(String method, String endpoint, String data, ModelCodec.Encoder streamedBody, boolean needAuth,
+                    RequestDispatcher.Lane lane, CacheMode cacheMode, ApiCall network, Runnable onFinished) {
+            this.method = method;
+            this.endpoint = endpoint;
+            this.data = data;
+            this.streamedBody = streamedBody;
+            this.needAuth = needAuth;
+            this.lane = lane;
+            this.cacheMode = cacheMode;
+            this.breaker = CircuitBreaker.forEndpoint(method, endpoint);
+            this.network = network;
+            this.onFinished = onFinished;
+        }
+
+        // отмененное чтение не выполняется, изменение отправляется в любом случае
+        boolean abandoned() {
+            return method.equals("GET") && network.isCancelled();
+        }
+
+        void markQueued(long delayMs) {
+            queuedAt = System.nanoTime() + Math.max(delayMs, 0) * 1000000L;
+        }
+
+        ApiMetrics.Sample startSample() {
+            ApiMetrics.Sample sample = new ApiMetrics.Sample();
+            sample.add(ApiMetrics.Phase.QUEUE, Math.max(System.nanoTime() - queuedAt, 0));
+            return sample;
+        }
+
+        void finish() {
+            if (onFinished != null) {
+                onFinished.run();
+            }
         }
     }
 
-    private String tagToJson(Tag tag) {
+    private interface RetryScheduler {
+        void schedule(long delayMs);
+    }
+
+    // отрицательная задержка значит, что сервер просит ждать дольше допустимого
+    private boolean retryLater(PendingCall call, long delayMs, RetryScheduler scheduler) {
+        if (delayMs < 0 || call.abandoned()) {
+            return false;
+        }
+        call.attempt++;
+        scheduler.schedule(Math.max(delayMs, 1));
+        return true;
+    }
+
+    // сбоем сервера для предохранителя считаются только 5xx и 429, 4xx значат, что сервер жив
+    private void recordOutcome(CircuitBreaker breaker, int responseCode) {
+        if (responseCode >= 500 || RetryPolicy.isRetryableStatus(responseCode)) {
+            breaker.onFailure();
+        } else {
+            breaker.onSuccess();
+        }
+    }
+
+    private long retryAfterMs(HttpURLConnection conn) {
+        String value = conn.getHeaderField("Retry-After");
+        if (value == null) {
+            return -1;
+        }
         try {
-            JSONObject json = new JSONObject();
-            json.put("name", tag.getName());
-            json.put("color", tag.getColor());
-            return json.toString();
-        } catch (JSONException e) {
-            return "{}";
+            return Long.parseLong(value.trim()) * 1000;
+        } catch (NumberFormatException e) {
+            long date = conn.getHeaderFieldDate("Retry-After", -1);
+            return date > 0 ? Math.max(date - System.currentTimeMillis(), 0) : -1;
         }
     }
 
-    private List<Note> parseNotes(JSONArray array) throws JSONException {
-        List<Note> notes = new ArrayList<>();
-        for (int i = 0; i < array.length(); i++) {
-            notes.add(parseNote(array.getJSONObject(i)));
+    private static class CountingInputStream extends FilterInputStream {
+        private final ApiMetrics.Sample sample;
+
+        CountingInputStream(InputStream in, ApiMetrics.Sample sample) {
+            super(in);
+            this.sample = sample;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                sample.bytesReceived++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                sample.bytesReceived += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = super.skip(count);
+            sample.bytesReceived += Math.max(skipped, 0);
+            return skipped;
         }
-        return notes;
     }
 
-    private Note parseNote(JSONObject json) throws JSONException {
-        Note note = new Note();
-        note.setId(json.getInt("id"));
-        note.setTitle(json.getString("title"));
-        note.setContent(json.getString("content"));
-        note.setColor(json.getString("color"));
-        note.setPinned(json.optBoolean("is_pinned", false));
-        note.setArchived(json.optBoolean("is_archived", false));
-        note.setCreatedAt(json.getString("created_at"));
-        note.setUpdatedAt(json.getString("updated_at"));
-        
-        if (json.has("category") && !json.isNull("category")) {
-            note.setCategory(parseCategory(json.getJSONObject("category")));
+    // отправленный трафик считается по сжатым байтам
+    private static class CountingOutputStream extends FilterOutputStream {
+        private final ApiMetrics.Sample sample;
+
+        CountingOutputStream(OutputStream out, ApiMetrics.Sample sample) {
+            super(out);
+            this.sample = sample;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            sample.bytesSent++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            out.write(buffer, offset, count);
+            sample.bytesSent += count;
         }
-        
-        return note;
     }
 
-    private List<Category> parseCategories(JSONArray array) throws JSONException {
-        List<Category> categories = new ArrayList<>();
-        for (int i = 0; i < array.length(); i++) {
-            categories.add(parseCategory(array.getJSONObject(i)));
+    private static class CopyingInputStream extends FilterInputStream {
+        private final ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        CopyingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                copy.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                copy.write(buffer, offset, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            // пропуск без копирования испортил бы сохраненное тело
+            byte[] buffer = new byte[(int) Math.min(count, 1024)];
+            int read = read(buffer, 0, buffer.length);
+            return Math.max(read, 0);
+        }
+
+        byte[] toByteArray() {
+            return copy.toByteArray();
         }
-        return categories;
     }
 
-    private Category parseCategory(JSONObject json) throws JSONException {
-        Category category = new Category();
-        category.setId(json.getInt("id"));
-        category.setName(json.getString("name"));
-        category.setColor(json.getString("color"));
-        category.setIcon(json.getString("icon"));
-        return category;
+    private String errorMessage(String response) {
+        try {
+            JSONObject errorJson = new JSONObject(response);
+            return errorJson.optString("error", "неизвестная ошибка");
+        } catch (JSONException e) {
+            return "ошибка сети";
+        }
     }
 
-    private List<Tag> parseTags(JSONArray array) throws JSONException {
-        List<Tag> tags = new ArrayList<>();
-        for (int i = 0; i < array.length(); i++) {
-            tags.add(parseTag(array.getJSONObject(i)));
+    private HttpURLConnection openConnection(String method, String endpoint, boolean needAuth) throws IOException {
+        URL url = new URL(baseUrl + endpoint);
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+
+        conn.setRequestMethod(method);
+        conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        conn.setReadTimeout(READ_TIMEOUT_MS);
+        conn.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+        conn.setRequestProperty("Accept-Charset", "utf-8");
+        conn.setRequestProperty("Connection", "keep-alive");
+        // заголовок выставлен явно, поэтому распаковку делаем сами в readBody
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+
+        String token = root.token;
+        if (needAuth && !token.isEmpty()) {
+            conn.setRequestProperty("Authorization", "Bearer " + token);
         }
-        return tags;
+        return conn;
     }
 
-    private Tag parseTag(JSONObject json) throws JSONException {
-        Tag tag = new Tag();
-        tag.setId(json.getInt("id"));
-        tag.setName(json.getString("name"));
-        tag.setColor(json.getString("color"));
-        return tag;
+    private void addValidators(HttpURLConnection conn, ResponseCache.Entry cached) {
+        if (cached.etag != null) {
+            conn.setRequestProperty("If-None-Match", cached.etag);
+        }
+        if (cached.lastModified != null) {
+            conn.setRequestProperty("If-Modified-Since", cached.lastModified);
+        }
     }
 
-    public void executeRequest(String method, String endpoint, String data, ApiCallback<String> callback, boolean needAuth) {
-        new Thread(() -> {
-            try {
-                URL url = new URL(BASE_URL + endpoint);
-                HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                
-                conn.setRequestMethod(method);
-                conn.setRequestProperty("Content-Type", "application/json; charset=utf-8");
-                conn.setRequestProperty("Accept-Charset", "utf-8");
-                
-                if (needAuth && !token.isEmpty()) {
-                    conn.setRequestProperty("Authorization", "Bearer " + token);
-                }
+    // заголовки и тело готовятся до соединения, после connect их уже не поменять
+    private HttpURLConnection send(PendingCall call, ResponseCache.Entry cached, ApiMetrics.Sample sample)
+            throws IOException {
+        HttpURLConnection conn = openConnection(call.method, call.endpoint, call.needAuth);
+        if (call.method.equals("GET") && !call.network.attach(conn)) {
+            throw new InterruptedIOException("запрос отменен");
+        }
+        if (cached != null) {
+            addValidators(conn, cached);
+        }
+        byte[] body = null;
+        if (call.data != null && (call.method.equals("POST") || call.method.equals("PUT"))) {
+            body = prepareBody(conn, call.data);
+        } else if (call.streamedBody != null) {
+            // длина заранее неизвестна, тело уходит кусками и всегда сжатым
+            conn.setDoOutput(true);
+            conn.setChunkedStreamingMode(0);
+            conn.setRequestProperty("Content-Encoding", "gzip");
+        }
 
-                if (data != null && (method.equals("POST") || method.equals("PUT"))) {
-                    conn.setDoOutput(true);
-                    DataOutputStream out = new DataOutputStream(conn.getOutputStream());
-                    out.write(data.getBytes("UTF-8"));
-                    out.flush();
-                    out.close();
-                }
+        long connectStart = System.nanoTime();
+        conn.connect();
+        sample.add(ApiMetrics.Phase.CONNECT, System.nanoTime() - connectStart);
 
-                int responseCode = conn.getResponseCode();
-                BufferedReader reader = new BufferedReader(new InputStreamReader(
-                    responseCode >= 200 && responseCode < 300 ? 
-                    conn.getInputStream() : conn.getErrorStream(), "UTF-8"
-                ));
+        if (body != null) {
+            OutputStream out = conn.getOutputStream();
+            out.write(body);
+            out.close();
+            sample.bytesSent += body.length;
+        } else if (call.streamedBody != null) {
+            writeStreamedBody(conn, call.streamedBody, sample);
+        }
+        return conn;
+    }
 
-                StringBuilder response = new StringBuilder();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    response.append(line);
-                }
-                reader.close();
-
-                new Handler(Looper.getMainLooper()).post(() -> {
-                    if (responseCode >= 200 && responseCode < 300) {
-                        // сохраняем токен из ответа
-                        if (!needAuth) {
-                            try {
-                                JSONObject json = new JSONObject(response.toString());
-                                if (json.has("token")) {
-                                    saveToken(json.getString("token"));
-                                    callback.onSuccess(json.getString("token"));
-                                    return;
-                                }
-                            } catch (JSONException e) {
-                                // игнорируем
-                            }
-                        }
-                        callback.onSuccess(response.toString());
-                    } else {
-                        try {
-                            JSONObject errorJson = new JSONObject(response.toString());
-                            callback.onError(errorJson.optString("error", "неизвестная ошибка"));
-                        } catch (JSONException e) {
-                            callback.onError("ошибка сети");
-                        }
-                    }
-                });
+    private void writeStreamedBody(HttpURLConnection conn, ModelCodec.Encoder body, ApiMetrics.Sample sample)
+            throws IOException {
+        OutputStream out = new GZIPOutputStream(new CountingOutputStream(conn.getOutputStream(), sample), 8192);
+        JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 8192));
+        try {
+            body.encode(writer);
+        } finally {
+            writer.close();
+        }
+    }
 
-            } catch (IOException e) {
-                new Handler(Looper.getMainLooper()).post(() -> 
-                    callback.onError("ошибка сети: " + e.getMessage())
-                );
-            } catch (Exception e) {
-                new Handler(Looper.getMainLooper()).post(() -> 
-                    callback.onError("ошибка кодировки: " + e.getMessage())
-                );
+    private int awaitResponse(HttpURLConnection conn, ApiMetrics.Sample sample) throws IOException {
+        long sentAt = System.nanoTime();
+        int responseCode = conn.getResponseCode();
+        sample.add(ApiMetrics.Phase.FIRST_BYTE, System.nanoTime() - sentAt);
+        sample.status = responseCode;
+        return responseCode;
+    }
+
+    private byte[] prepareBody(HttpURLConnection conn, String data) throws IOException {
+        byte[] body = data.getBytes("UTF-8");
+        if (body.length >= GZIP_MIN_BODY_BYTES) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4);
+            GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+            gzip.write(body);
+            gzip.close();
+            body = compressed.toByteArray();
+            conn.setRequestProperty("Content-Encoding", "gzip");
+        }
+
+        conn.setDoOutput(true);
+        conn.setFixedLengthStreamingMode(body.length);
+        return body;
+    }
+
+    // тело читается до конца и закрывается, иначе соединение не вернется в пул
+    private String readBody(HttpURLConnection conn, int responseCode, ApiMetrics.Sample sample) throws IOException {
+        InputStream in = openBody(conn, responseCode, sample);
+        if (in == null) {
+            return "";
+        }
+
+        try {
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                response.write(buffer, 0, read);
             }
-        }).start();
+            return response.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    // трафик считается по сжатым байтам, до распаковки
+    private InputStream openBody(HttpURLConnection conn, int responseCode, ApiMetrics.Sample sample)
+            throws IOException {
+        InputStream in = responseCode >= 200 && responseCode < 300 ?
+            conn.getInputStream() : conn.getErrorStream();
+        if (in != null) {
+            in = new CountingInputStream(in, sample);
+        }
+        if (in != null && "gzip".equalsIgnoreCase(conn.getContentEncoding())) {
+            in = new GZIPInputStream(in);
+        }
+        return in;
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,450 @@
+package com.redeluxe;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+// индекс текста внутри canvas и сохраненных графов: заголовки и текст узлов
+// canvas, подписи узлов графа. доска перечитывается с сервера, только если ее
+// updated_at в списке сменился, остальные остаются как есть.
+// состояние меняется только на main потоке, файл пишется отдельным потоком
+public class BoardIndex {
+    public static final String KIND_CANVAS = "canvas";
+    public static final String KIND_GRAPH = "graph";
+
+    private static final String FILE_NAME = "board_index.json";
+    private static final long PERSIST_DELAY_MS = 2000;
+    private static final int MAX_HITS = 50;
+
+    // найденный узел: для canvas ключ - позиция узла в документе, для графа - id узла
+    public static class Hit {
+        public String kind;
+        public int boardId;
+        public String boardName;
+        public String nodeKey;
+        public String text;
+    }
+
+    private static class Entry {
+        final String nodeKey;
+        final String text;
+        final String folded;
+
+        Entry(String nodeKey, String text) {
+            this.nodeKey = nodeKey;
+            this.text = text;
+            this.folded = text.toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private static class Board {
+        String kind;
+        int id;
+        String name;
+        // updated_at доски на момент индексации, null - перечитать при следующей сверке
+        String version;
+        List<Entry> entries = new ArrayList<>();
+    }
+
+    private static BoardIndex instance;
+
+    private final Context context;
+    private final File file;
+    private final File tempFile;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Handler diskHandler;
+    private final Runnable persistTask = this::persist;
+    private final Map<String, Board> boards = new LinkedHashMap<>();
+    // доски, ждущие перечитывания, по одной за раз в фоновой полосе
+    private final ArrayDeque<Board> stale = new ArrayDeque<>();
+    // версия из списка, которую получит доска после перечитывания
+    private final Map<Board, String> pendingVersions = new LinkedHashMap<>();
+    private ApiCall fetching;
+    private boolean loaded;
+    // списки, пришедшие до загрузки файла, сверяются после нее
+    private List<CanvasItem> pendingCanvases;
+    private List<GraphItem> pendingGraphs;
+
+    public static synchronized BoardIndex getInstance(Context context) {
+        if (instance == null) {
+            instance = new BoardIndex(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private BoardIndex(Context context) {
+        this.context = context;
+        file = new File(context.getFilesDir(), FILE_NAME);
+        tempFile = new File(context.getFilesDir(), FILE_NAME + ".tmp");
+
+        HandlerThread diskThread = new HandlerThread("redeluxe-boards");
+        diskThread.start();
+        diskHandler = new Handler(diskThread.getLooper());
+
+        diskHandler.post(() -> {
+            List<Board> stored = readFile();
+            mainHandler.post(() -> onLoaded(stored));
+        });
+    }
+
+    private void onLoaded(List<Board> stored) {
+        // доски, проиндексированные до загрузки, новее сохраненных
+        for (Board board : stored) {
+            String key = key(board.kind, board.id);
+            if (!boards.containsKey(key)) {
+                boards.put(key, board);
+            }
+        }
+        loaded = true;
+        if (pendingCanvases != null) {
+            syncCanvases(pendingCanvases);
+            pendingCanvases = null;
+        }
+        if (pendingGraphs != null) {
+            syncGraphs(pendingGraphs);
+            pendingGraphs = null;
+        }
+    }
+
+    // сверка со списком canvas: удаленные выбрасываются, измененные перечитываются
+    public void syncCanvases(List<CanvasItem> canvases) {
+        if (!loaded) {
+            pendingCanvases = new ArrayList<>(canvases);
+            return;
+        }
+        Set<String> listed = new HashSet<>();
+        for (CanvasItem canvas : canvases) {
+            listed.add(key(KIND_CANVAS, canvas.getId()));
+            refresh(KIND_CANVAS, canvas.getId(), canvas.getName(), canvas.getUpdatedAt());
+        }
+        dropMissing(KIND_CANVAS, listed);
+        fetchNext();
+    }
+
+    public void syncGraphs(List<GraphItem> graphs) {
+        if (!loaded) {
+            pendingGraphs = new ArrayList<>(graphs);
+            return;
+        }
+        Set<String> listed = new HashSet<>();
+        for (GraphItem graph : graphs) {
+            listed.add(key(KIND_GRAPH, graph.getId()));
+            refresh(KIND_GRAPH, graph.getId(), graph.getName(), graph.getUpdatedAt());
+        }
+        dropMissing(KIND_GRAPH, listed);
+        fetchNext();
+    }
+
+    // открытый или сохраненный canvas индексируется из памяти без запроса.
+    // версия сбрасывается: сохранение сменит updated_at, и доска перечитается один раз
+    public void updateCanvas(int canvasId, String name, List<CanvasActivity.CanvasNode> nodes) {
+        Board board = board(KIND_CANVAS, canvasId, name);
+        board.entries = canvasEntries(nodes);
+        board.version = null;
+        schedulePersist();
+    }
+
+    public void updateGraph(int graphId, String name, List<GraphActivity.GraphNode> nodes) {
+        Board board = board(KIND_GRAPH, graphId, name);
+        board.entries = graphEntries(nodes);
+        board.version = null;
+        schedulePersist();
+    }
+
+    public void remove(String kind, int boardId) {
+        Board board = boards.remove(key(kind, boardId));
+        if (board != null) {
+            stale.remove(board);
+            pendingVersions.remove(board);
+            schedulePersist();
+        }
+    }
+
+    public List<Hit> search(String query) {
+        String needle = query.trim().toLowerCase(Locale.ROOT);
+        List<Hit> hits = new ArrayList<>();
+        if (needle.isEmpty()) {
+            return hits;
+        }
+        for (Board board : boards.values()) {
+            for (Entry entry : board.entries) {
+                if (!entry.folded.contains(needle)) {
+                    continue;
+                }
+                Hit hit = new Hit();
+                hit.kind = board.kind;
+                hit.boardId = board.id;
+                hit.boardName = board.name;
+                hit.nodeKey = entry.nodeKey;
+                hit.text = entry.text;
+                hits.add(hit);
+                if (hits.size() >= MAX_HITS) {
+                    return hits;
+                }
+            }
+        }
+        return hits;
+    }
+
+    // пока доска перечитывается, поиск идет по старому содержимому
+    private void refresh(String kind, int boardId, String name, String version) {
+        Board board = board(kind, boardId, name);
+        if (version != null && version.equals(board.version)) {
+            return;
+        }
+        pendingVersions.put(board, version);
+        if (!stale.contains(board)) {
+            stale.add(board);
+        }
+    }
+
+    private void dropMissing(String kind, Set<String> listed) {
+        Iterator<Map.Entry<String, Board>> iterator = boards.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Board> entry = iterator.next();
+            if (entry.getValue().kind.equals(kind) && !listed.contains(entry.getKey())) {
+                stale.remove(entry.getValue());
+                pendingVersions.remove(entry.getValue());
+                iterator.remove();
+                schedulePersist();
+            }
+        }
+    }
+
+    private void fetchNext() {
+        if (fetching != null || stale.isEmpty()) {
+            return;
+        }
+        Board board = stale.poll();
+        String version = pendingVersions.remove(board);
+        ApiService apiService = ApiService.getInstance(context);
+        if (board.kind.equals(KIND_CANVAS)) {
+            fetching = apiService.getCanvas(board.id, RequestDispatcher.Lane.BACKGROUND,
+                new ApiService.ApiCallback<CanvasActivity.CanvasDocument>() {
+                    @Override
+                    public void onSuccess(CanvasActivity.CanvasDocument document) {
+                        onFetched(board, version, canvasEntries(document.nodes));
+                    }
+
+                    @Override
+                    public void onError(String error) {
+                        onFetchFailed();
+                    }
+                });
+        } else {
+            fetching = apiService.getGraphState(board.id, RequestDispatcher.Lane.BACKGROUND,
+                new ApiService.ApiCallback<GraphActivity.GraphDocument>() {
+                    @Override
+                    public void onSuccess(GraphActivity.GraphDocument document) {
+                        onFetched(board, version, graphEntries(document.nodes));
+                    }
+
+                    @Override
+                    public void onError(String error) {
+                        onFetchFailed();
+                    }
+                });
+        }
+    }
+
+    private void onFetched(Board board, String version, List<Entry> entries) {
+        fetching = null;
+        // доску могли удалить, пока шел запрос
+        if (boards.get(key(board.kind, board.id)) == board) {
+            board.entries = entries;
+            board.version = version;
+            schedulePersist();
+        }
+        fetchNext();
+    }
+
+    // остальные доски перечитаются при следующей сверке списков
+    private void onFetchFailed() {
+        fetching = null;
+        stale.clear();
+        pendingVersions.clear();
+    }
+
+    private Board board(String kind, int boardId, String name) {
+        String key = key(kind, boardId);
+        Board board = boards.get(key);
+        if (board == null) {
+            board = new Board();
+            board.kind = kind;
+            board.id = boardId;
+            boards.put(key, board);
+        }
+        if (name != null) {
+            board.name = name;
+        }
+        return board;
+    }
+
+    private static String key(String kind, int boardId) {
+        return kind + ":" + boardId;
+    }
+
+    private static List<Entry> canvasEntries(List<CanvasActivity.CanvasNode> nodes) {
+        List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            CanvasActivity.CanvasNode node = nodes.get(i);
+            String text = join(node.title, node.content);
+            if (!text.isEmpty()) {
+                entries.add(new Entry(String.valueOf(i), text));
+            }
+        }
+        return entries;
+    }
+
+    private static List<Entry> graphEntries(List<GraphActivity.GraphNode> nodes) {
+        List<Entry> entries = new ArrayList<>();
+        for (GraphActivity.GraphNode node : nodes) {
+            if (node.id != null && node.label != null && !node.label.isEmpty()) {
+                entries.add(new Entry(node.id, node.label));
+            }
+        }
+        return entries;
+    }
+
+    private static String join(String title, String content) {
+        boolean hasTitle = title != null && !title.isEmpty();
+        boolean hasContent = content != null && !content.isEmpty();
+        if (hasTitle && hasContent) {
+            return title + "\n" + content;
+        }
+        return hasTitle ? title : hasContent ? content : "";
+    }
+
+    private void schedulePersist() {
+        if (!loaded) {
+            return;
+        }
+        mainHandler.removeCallbacks(persistTask);
+        mainHandler.postDelayed(persistTask, PERSIST_DELAY_MS);
+    }
+
+    private void persist() {
+        List<Board> snapshot = new ArrayList<>(boards.values());
+        String json = ModelCodec.encode(writer -> {
+            writer.beginArray();
+            for (Board board : snapshot) {
+                writer.beginObject();
+                writer.name("kind").value(board.kind);
+                writer.name("id").value(board.id);
+                writer.name("name").value(board.name);
+                writer.name("version").value(board.version);
+                writer.name("nodes").beginArray();
+                for (Entry entry : board.entries) {
+                    writer.beginObject();
+                    writer.name("key").value(entry.nodeKey);
+                    writer.name("text").value(entry.text);
+                    writer.endObject();
+                }
+                writer.endArray();
+                writer.endObject();
+            }
+            writer.endArray();
+        });
+
+        diskHandler.post(() -> {
+            try {
+                FileOutputStream out = new FileOutputStream(tempFile);
+                try {
+                    out.write(json.getBytes("UTF-8"));
+                    out.getFD().sync();
+                } finally {
+                    out.close();
+                }
+                if (!tempFile.renameTo(file)) {
+                    tempFile.delete();
+                }
+            } catch (IOException e) {
+                tempFile.delete();
+            }
+        });
+    }
+
+    private List<Board> readFile() {
+        List<Board> stored = new ArrayList<>();
+        if (!file.exists()) {
+            return stored;
+        }
+        try {
+            JsonReader reader = new JsonReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    stored.add(readBoard(reader));
+                }
+                reader.endArray();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            // файл заменяется атомарно, ошибка значит порчу - доски перечитаются
+            stored.clear();
+        }
+        return stored;
+    }
+
+    private static Board readBoard(JsonReader reader) throws IOException {
+        Board board = new Board();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "kind": board.kind = reader.nextString(); break;
+                case "id": board.id = reader.nextInt(); break;
+                case "name": board.name = reader.nextString(); break;
+                case "version": board.version = reader.nextString(); break;
+                case "nodes":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        String key = null;
+                        String text = null;
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            switch (reader.nextName()) {
+                                case "key": key = reader.nextString(); break;
+                                case "text": text = reader.nextString(); break;
+                                default: reader.skipValue(); break;
+                            }
+                        }
+                        reader.endObject();
+                        if (key != null && text != null) {
+                            board.entries.add(new Entry(key, text));
+                        }
+                    }
+                    reader.endArray();
+                    break;
+                default: reader.skipValue(); break;
+            }
+        }
+        reader.endObject();
+        if (board.kind == null) {
+            throw new IOException("неполная запись индекса");
+        }
+        return board;
+    }
+}
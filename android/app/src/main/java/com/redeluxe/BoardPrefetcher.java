@@ -0,0 +1,161 @@
+package com.redeluxe;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// заранее кладет в кэш ответов документы canvas и графов, которые видны в списке
+// или недавно открывались, чтобы экран доски открывался из кэша.
+// загрузка ограничена бюджетом байт на запуск. на лимитной сети бюджет меньше,
+// и грузятся только недавно открытые доски.
+// все методы вызываются на main потоке
+public class BoardPrefetcher {
+    private static final String PREFS_NAME = "redeluxe";
+    private static final String KEY_RECENT = "prefetch_recent_boards";
+    private static final int MAX_RECENT = 8;
+    private static final long BUDGET_UNMETERED_BYTES = 4L * 1024 * 1024;
+    private static final long BUDGET_METERED_BYTES = 512L * 1024;
+
+    private static BoardPrefetcher instance;
+
+    private final Context context;
+    private final NetworkMonitor networkMonitor;
+    // ключ доски -> updated_at, с которым она уже в кэше
+    private final Map<String, String> warmed = new HashMap<>();
+    // очередь на загрузку: ключ доски -> updated_at
+    private final LinkedHashMap<String, String> queue = new LinkedHashMap<>();
+    private final List<String> recent = new ArrayList<>();
+    private ApiCall inFlight;
+    private long spentBytes;
+
+    public static synchronized BoardPrefetcher getInstance(Context context) {
+        if (instance == null) {
+            instance = new BoardPrefetcher(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private BoardPrefetcher(Context context) {
+        this.context = context;
+        networkMonitor = NetworkMonitor.getInstance(context);
+        String stored = prefs().getString(KEY_RECENT, "");
+        for (String key : stored.split(",")) {
+            if (!key.isEmpty()) {
+                recent.add(key);
+            }
+        }
+    }
+
+    // доска открыта: она становится первой в списке недавних
+    public void recordOpened(String kind, int boardId) {
+        String key = key(kind, boardId);
+        recent.remove(key);
+        recent.add(0, key);
+        while (recent.size() > MAX_RECENT) {
+            recent.remove(recent.size() - 1);
+        }
+        StringBuilder stored = new StringBuilder();
+        for (String item : recent) {
+            if (stored.length() > 0) {
+                stored.append(',');
+            }
+            stored.append(item);
+        }
+        prefs().edit().putString(KEY_RECENT, stored.toString()).apply();
+    }
+
+    // недавно открытые доски из свежего списка
+    public void prefetchRecent(List<CanvasItem> canvases, List<GraphItem> graphs) {
+        Map<String, String> versions = new HashMap<>();
+        for (CanvasItem canvas : canvases) {
+            versions.put(key(BoardIndex.KIND_CANVAS, canvas.getId()), canvas.getUpdatedAt());
+        }
+        for (GraphItem graph : graphs) {
+            versions.put(key(BoardIndex.KIND_GRAPH, graph.getId()), graph.getUpdatedAt());
+        }
+        for (String key : recent) {
+            if (versions.containsKey(key)) {
+                enqueue(key, versions.get(key));
+            }
+        }
+        next();
+    }
+
+    // доски, попавшие на экран. на лимитной сети только недавние
+    public void prefetchVisible(List<CanvasItem> canvases, List<GraphItem> graphs) {
+        boolean recentOnly = networkMonitor.isMetered();
+        for (CanvasItem canvas : canvases) {
+            String key = key(BoardIndex.KIND_CANVAS, canvas.getId());
+            if (!recentOnly || recent.contains(key)) {
+                enqueue(key, canvas.getUpdatedAt());
+            }
+        }
+        for (GraphItem graph : graphs) {
+            String key = key(BoardIndex.KIND_GRAPH, graph.getId());
+            if (!recentOnly || recent.contains(key)) {
+                enqueue(key, graph.getUpdatedAt());
+            }
+        }
+        next();
+    }
+
+    private void enqueue(String key, String version) {
+        String cached = warmed.get(key);
+        if (cached != null && cached.equals(version)) {
+            return;
+        }
+        queue.put(key, version);
+    }
+
+    private void next() {
+        if (inFlight != null || queue.isEmpty() || !networkMonitor.isOnline()) {
+            return;
+        }
+        long budget = networkMonitor.isMetered() ? BUDGET_METERED_BYTES : BUDGET_UNMETERED_BYTES;
+        if (spentBytes >= budget) {
+            queue.clear();
+            return;
+        }
+
+        Map.Entry<String, String> task = queue.entrySet().iterator().next();
+        String key = task.getKey();
+        String version = task.getValue();
+        queue.remove(key);
+
+        // условный запрос: неизмененный документ придет как 304 из кэша
+        inFlight = ApiService.getInstance(context).prefetch(endpoint(key), new ApiService.ApiCallback<Integer>() {
+            @Override
+            public void onSuccess(Integer bytes) {
+                // считается размер документа, 304 тоже засчитывается - бюджет с запасом
+                inFlight = null;
+                spentBytes += bytes;
+                warmed.put(key, version);
+                next();
+            }
+
+            @Override
+            public void onError(String error) {
+                // без сети остальное тоже не загрузится, ждем следующего показа списка
+                inFlight = null;
+                queue.clear();
+            }
+        });
+    }
+
+    private static String endpoint(String key) {
+        String[] parts = key.split(":");
+        return parts[0].equals(BoardIndex.KIND_CANVAS) ? "/canvases/" + parts[1] : "/graph/states/" + parts[1];
+    }
+
+    private static String key(String kind, int boardId) {
+        return kind + ":" + boardId;
+    }
+
+    private SharedPreferences prefs() {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
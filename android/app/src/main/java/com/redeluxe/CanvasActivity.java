@@ -20,16 +20,25 @@ import android.widget.EditText;
 import android.widget.LinearLayout;
 import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class CanvasActivity extends AppCompatActivity {
     private CanvasView canvasView;
     private ApiService apiService;
     private int currentCanvasId = 0;
+    private String currentCanvasName;
+    // узел, найденный поиском: после загрузки встает в центр экрана
+    private String focusNode;
+    // показан ли уже документ: первая доставка заменяет демо-контент всегда
+    private boolean documentShown;
+    private CanvasJournal journal;
+    private CanvasAutosave autosave;
     
 
     @Override
@@ -38,11 +47,32 @@ public class CanvasActivity extends AppCompatActivity {
         setContentView(R.layout.activity_canvas);
 
         canvasView = findViewById(R.id.canvasView);
-        apiService = new ApiService(this);
+        apiService = ApiService.getInstance(this).scopedTo(this);
+        autosave = new CanvasAutosave(new CanvasAutosave.Sender() {
+            @Override
+            public void saveViewport(ApiService.ApiCallback<String> callback) {
+                CanvasView.ViewportState state = canvasView.getViewportState();
+                ApiService.getInstance(CanvasActivity.this).autoSaveCanvasState(currentCanvasId,
+                    state.zoom, state.panX, state.panY, state.viewState, callback);
+            }
+
+            @Override
+            public void saveFull(ApiService.ApiCallback<String> callback) {
+                saveFullState(callback);
+            }
+
+            @Override
+            public void saveChanges(CanvasAutosave.Changes changes, ApiService.ApiCallback<String> callback) {
+                saveNodeChanges(changes, callback);
+            }
+        });
 
         // получаем ID canvas из intent
         currentCanvasId = getIntent().getIntExtra("canvas_id", 0);
+        BoardPrefetcher.getInstance(this).recordOpened(BoardIndex.KIND_CANVAS, currentCanvasId);
         String canvasName = getIntent().getStringExtra("canvas_name");
+        currentCanvasName = canvasName;
+        focusNode = getIntent().getStringExtra("focus_node");
         
         if (canvasName != null) {
             setTitle(canvasName);
@@ -51,7 +81,7 @@ public class CanvasActivity extends AppCompatActivity {
         setupButtons();
         
         if (currentCanvasId > 0) {
-            loadCanvas();
+            openJournal();
         } else {
             // если ID не передан, используем демо контент
             canvasView.createDemoContent();
@@ -118,36 +148,93 @@ public class CanvasActivity extends AppCompatActivity {
             .show();
     }
 
+    @Override
+    protected void onPause() {
+        super.onPause();
+        autosave.flush();
+    }
+
+    @Override
+    protected void onDestroy() {
+        // подтверждение сохранения из onPause еще должно попасть в журнал
+        CanvasJournal closingJournal = journal;
+        autosave.close(() -> {
+            if (closingJournal != null) {
+                closingJournal.close();
+            }
+        });
+        super.onDestroy();
+    }
+
+    // доска из журнала рисуется сразу. несохраненные правки важнее копии с сервера,
+    // без них журнал лишь первый кадр до ответа сервера
+    private void openJournal() {
+        journal = CanvasJournal.open(this, currentCanvasId, canvasView, (document, dirty) -> {
+            canvasView.setJournal(journal);
+            if (document != null) {
+                showDocument(document);
+            }
+            if (dirty) {
+                // хвост журнала уйдет на сервер ближайшим автосохранением
+                autosave.structureChanged();
+                Toast.makeText(this, "восстановлены несохраненные изменения", Toast.LENGTH_SHORT).show();
+            } else {
+                loadCanvas();
+            }
+        });
+    }
+
+    private void showDocument(CanvasDocument document) {
+        canvasView.loadDocument(document);
+        // автосохранение следит за доской только после того, как на экране настоящий документ
+        autosave.reset();
+        canvasView.setAutosave(autosave);
+        documentShown = true;
+        if (focusNode != null) {
+            canvasView.focusNode(Integer.parseInt(focusNode));
+            focusNode = null;
+        }
+    }
+
+    // документ обычно уже в кэше после предзагрузки из списка: показываем копию,
+    // свежая версия с сервера подменяет ее, только пока пользователь ничего не трогал
     private void loadCanvas() {
-        apiService.getCanvas(currentCanvasId, new ApiService.ApiCallback<String>() {
+        apiService.getCanvas(currentCanvasId, RequestDispatcher.Lane.INTERACTIVE,
+                ApiService.CacheMode.STALE_WHILE_REVALIDATE, new ApiService.ApiCallback<CanvasDocument>() {
             @Override
-            public void onSuccess(String result) {
-                try {
-                    canvasView.loadCanvasFromJson(result);
-                } catch (Exception e) {
-                    // если canvas не найден, создаем новый
-                    createNewCanvas();
+            public void onSuccess(CanvasDocument document) {
+                if (documentShown && canvasView.isInteracted()) {
+                    Toast.makeText(CanvasActivity.this, "на сервере есть более новая версия", Toast.LENGTH_SHORT).show();
+                    return;
                 }
+                showDocument(document);
+                // узлы документа теперь на экране и меняются, журналу нужна копия
+                journal.setBase(canvasView.currentDocument());
             }
 
             @Override
             public void onError(String error) {
+                // если canvas не найден, создаем новый
                 createNewCanvas();
             }
         });
     }
 
     private void createNewCanvas() {
-        apiService.createCanvas("новый canvas", 1920, 1080, new ApiService.ApiCallback<String>() {
+        apiService.createCanvas("новый canvas", 1920, 1080, new ApiService.ApiCallback<CanvasItem>() {
             @Override
-            public void onSuccess(String result) {
-                try {
-                    JSONObject json = new JSONObject(result);
-                    currentCanvasId = json.getInt("id");
-                    Toast.makeText(CanvasActivity.this, "canvas создан", Toast.LENGTH_SHORT).show();
-                } catch (JSONException e) {
-                    Toast.makeText(CanvasActivity.this, "ошибка создания canvas", Toast.LENGTH_SHORT).show();
+            public void onSuccess(CanvasItem canvas) {
+                currentCanvasId = canvas.getId();
+                if (journal != null) {
+                    journal.close();
                 }
+                // новая доска начинается с того, что уже на экране
+                journal = CanvasJournal.open(CanvasActivity.this, currentCanvasId, canvasView, (document, dirty) -> {
+                    canvasView.setJournal(journal);
+                    journal.setBase(canvasView.currentDocument());
+                });
+                canvasView.setAutosave(autosave);
+                Toast.makeText(CanvasActivity.this, "canvas создан", Toast.LENGTH_SHORT).show();
             }
 
             @Override
@@ -159,13 +246,9 @@ public class CanvasActivity extends AppCompatActivity {
 
     private void saveCanvas() {
         if (canvasView != null) {
-            CanvasView.ViewportState state = canvasView.getViewportState();
-            JSONArray nodesJsonArray = canvasView.getNodesAsJsonArray();
-            JSONArray connectionsJsonArray = canvasView.getConnectionsAsJsonArray();
-            String canvasData = canvasView.getCanvasData();
-            
-            apiService.saveCanvasState(currentCanvasId, state.zoom, state.panX, state.panY, 
-                state.viewState, canvasData, nodesJsonArray, connectionsJsonArray, new ApiService.ApiCallback<String>() {
+            // полное сохранение покрывает все накопленные правки
+            autosave.reset();
+            saveFullState(new ApiService.ApiCallback<String>() {
                 @Override
                 public void onSuccess(String result) {
                     Toast.makeText(CanvasActivity.this, "canvas сохранен", Toast.LENGTH_SHORT).show();
@@ -173,15 +256,150 @@ public class CanvasActivity extends AppCompatActivity {
 
                 @Override
                 public void onError(String error) {
+                    autosave.structureChanged();
                     Toast.makeText(CanvasActivity.this, "ошибка сохранения: " + error, Toast.LENGTH_SHORT).show();
                 }
             });
         }
     }
 
+    // запрос не привязан к экрану: сохранение из onPause должно дойти и после закрытия
+    private void saveFullState(ApiService.ApiCallback<String> callback) {
+        CanvasView.ViewportState state = canvasView.getViewportState();
+        List<CanvasNode> sentNodes = new ArrayList<>(canvasView.getNodes());
+        List<CanvasConnection> sentConnections = new ArrayList<>();
+        // на main потоке только копия полей, JSON пишется на воркере прямо в запрос
+        CanvasDocument snapshot = canvasView.snapshot(sentConnections);
+        String canvasData = canvasView.getCanvasData();
+        // сервер получит все до этой операции журнала
+        long savedSeq = journal != null ? journal.lastSeq() : 0;
+        CanvasJournal savedJournal = journal;
+
+        ApiService.getInstance(this).saveCanvasState(currentCanvasId, state, canvasData, snapshot,
+            new ApiService.ApiCallback<CanvasSaveResult>() {
+            @Override
+            public void onSuccess(CanvasSaveResult result) {
+                // сервер пересоздал узлы и связи, дальше правки ссылаются на новые id
+                if (result.nodeIds.size() == sentNodes.size()) {
+                    for (int i = 0; i < sentNodes.size(); i++) {
+                        sentNodes.get(i).id = result.nodeIds.get(i);
+                    }
+                }
+                if (result.connectionIds.size() == sentConnections.size()) {
+                    for (int i = 0; i < sentConnections.size(); i++) {
+                        sentConnections.get(i).id = result.connectionIds.get(i);
+                    }
+                }
+                onStateSaved(savedJournal, savedSeq);
+                callback.onSuccess(null);
+            }
+
+            @Override
+            public void onError(String error) {
+                callback.onError(error);
+            }
+        });
+    }
+
+    // дельта уходит по одному запросу на узел или связь. запросы идут по очереди:
+    // связь с новым узлом можно создать только после того, как у него появится id
+    private void saveNodeChanges(CanvasAutosave.Changes changes, ApiService.ApiCallback<String> callback) {
+        ApiService api = ApiService.getInstance(this);
+        int canvasId = currentCanvasId;
+        long savedSeq = journal != null ? journal.lastSeq() : 0;
+        CanvasJournal savedJournal = journal;
+
+        List<SaveStep> steps = new ArrayList<>();
+        for (CanvasNode node : changes.deletedNodes) {
+            steps.add(done -> api.deleteCanvasNode(canvasId, node.id, done));
+        }
+        for (CanvasNode node : changes.createdNodes) {
+            steps.add(done -> api.createCanvasNode(canvasId, node, new ApiService.ApiCallback<Integer>() {
+                @Override
+                public void onSuccess(Integer id) {
+                    node.id = id;
+                    done.onSuccess(null);
+                }
+
+                @Override
+                public void onError(String error) {
+                    done.onError(error);
+                }
+            }));
+        }
+        for (Map.Entry<CanvasNode, Integer> entry : changes.changedNodes.entrySet()) {
+            CanvasNode node = entry.getKey();
+            int fields = entry.getValue();
+            steps.add(done -> api.updateCanvasNode(canvasId, node.id,
+                ModelCodec.encode(writer -> ModelCodec.writeCanvasNodeFields(writer, node, fields)), done));
+        }
+        for (CanvasConnection connection : changes.createdConnections) {
+            steps.add(done -> api.createCanvasConnection(canvasId, connection.from.id, connection.to.id,
+                    connection.type, new ApiService.ApiCallback<Integer>() {
+                @Override
+                public void onSuccess(Integer id) {
+                    connection.id = id;
+                    done.onSuccess(null);
+                }
+
+                @Override
+                public void onError(String error) {
+                    done.onError(error);
+                }
+            }));
+        }
+        if (changes.viewport) {
+            CanvasView.ViewportState state = canvasView.getViewportState();
+            steps.add(done -> api.autoSaveCanvasState(canvasId, state.zoom, state.panX, state.panY,
+                state.viewState, done));
+        }
+
+        runSaveSteps(steps, 0, new ApiService.ApiCallback<String>() {
+            @Override
+            public void onSuccess(String result) {
+                onStateSaved(savedJournal, savedSeq);
+                callback.onSuccess(null);
+            }
+
+            @Override
+            public void onError(String error) {
+                callback.onError(error);
+            }
+        });
+    }
+
+    private interface SaveStep {
+        void run(ApiService.ApiCallback<String> done);
+    }
+
+    private void runSaveSteps(List<SaveStep> steps, int index, ApiService.ApiCallback<String> callback) {
+        if (index == steps.size()) {
+            callback.onSuccess(null);
+            return;
+        }
+        steps.get(index).run(new ApiService.ApiCallback<String>() {
+            @Override
+            public void onSuccess(String result) {
+                runSaveSteps(steps, index + 1, callback);
+            }
+
+            @Override
+            public void onError(String error) {
+                callback.onError(error);
+            }
+        });
+    }
+
+    private void onStateSaved(CanvasJournal savedJournal, long savedSeq) {
+        if (savedJournal != null) {
+            savedJournal.ack(savedSeq);
+        }
+        BoardIndex.getInstance(this).updateCanvas(currentCanvasId, currentCanvasName, canvasView.getNodes());
+    }
+
     
 
-    public static class CanvasView extends View {
+    public static class CanvasView extends View implements CanvasJournal.Source {
         private List<CanvasNode> nodes = new ArrayList<>();
         private List<CanvasConnection> connections = new ArrayList<>();
         private Paint nodePaint, textPaint, borderPaint, linePaint, backgroundPaint;
@@ -210,6 +428,46 @@ public class CanvasActivity extends AppCompatActivity {
         private static final int ZOOM = 2;
         
         private float lastTouchX, lastTouchY;
+        // пользователь уже менял доску или вид, свежая копия с сервера ее не перезапишет
+        private boolean interacted;
+        // правки пишутся в журнал сразу, до сохранения на сервер
+        private CanvasJournal journal;
+        private CanvasAutosave autosave;
+        private boolean dragMoved;
+
+        // узлы и связи в квадродереве: кадр рисует, а касание ищет только то, что рядом
+        private final SpatialIndex<CanvasNode> nodeIndex = new SpatialIndex<>((node, out) ->
+            out.set(node.x, node.y, node.x + node.width, node.y + node.height));
+        private final SpatialIndex<CanvasConnection> connectionIndex =
+            new SpatialIndex<>(CanvasView::connectionBounds);
+        private final List<CanvasNode> visibleNodes = new ArrayList<>();
+        private final List<CanvasConnection> visibleConnections = new ArrayList<>();
+        // связи перетаскиваемого узла двигаются в индексе вместе с ним
+        private final List<CanvasConnection> draggedConnections = new ArrayList<>();
+        private final Matrix inverseMatrix = new Matrix();
+        private final RectF viewport = new RectF();
+        // точка касания в координатах доски, без выделения памяти на событие
+        private final Matrix touchInverse = new Matrix();
+        private final float[] touchPoint = new float[2];
+        // стрелка и толщина линий выходят за концы связи
+        private static final float CONNECTION_PAD = 24;
+        // рамка выделенного узла шире его границ
+        private static final float VIEWPORT_PAD = 8;
+
+        // уровни детализации по меньшей стороне узла на экране, в пикселях:
+        // весь текст, только заголовок, цветной прямоугольник, общее пятно на клетку экрана
+        private static final float LOD_FULL_PX = 64;
+        private static final float LOD_TITLE_PX = 32;
+        private static final float LOD_BLOB_PX = 6;
+        private static final float ARROW_LENGTH = 20;
+        private static final int LINE_COLOR = 0xFF666666;
+        // мелкие узлы, попавшие в одну клетку экрана, рисуются одним пятном
+        private int[] blobCounts = new int[0];
+        private int[] blobColors = new int[0];
+        private int[] blobCells = new int[0];
+        private int blobCellCount;
+        private int blobColumns;
+        private float blobCellSize;
 
         public CanvasView(Context context, AttributeSet attrs) {
             super(context, attrs);
@@ -283,9 +541,30 @@ public class CanvasActivity extends AppCompatActivity {
             // связи
             connections.add(new CanvasConnection(main, sub, "relates"));
             connections.add(new CanvasConnection(main, text, "note"));
+            reindex();
+        }
+
+        private void reindex() {
+            for (int i = 0; i < nodes.size(); i++) {
+                nodes.get(i).position = i;
+            }
+            nodeIndex.rebuild(nodes);
+            connectionIndex.rebuild(connections);
+        }
+
+        // кривая не выходит за треугольник из концов и контрольной точки
+        private static void connectionBounds(CanvasConnection conn, RectF out) {
+            float startX = conn.from.x + conn.from.width / 2;
+            float startY = conn.from.y + conn.from.height / 2;
+            float endX = conn.to.x + conn.to.width / 2;
+            float endY = conn.to.y + conn.to.height / 2;
+            float ctrlY = Math.min(startY, endY) - 50;
+            out.set(Math.min(startX, endX) - CONNECTION_PAD, ctrlY - CONNECTION_PAD,
+                Math.max(startX, endX) + CONNECTION_PAD, Math.max(startY, endY) + CONNECTION_PAD);
         }
 
         public void addNote(String title, String content) {
+            interacted = true;
             CanvasNode node = new CanvasNode();
             node.type = "note";
             node.x = 150 + (float)(Math.random() * 400);
@@ -295,11 +574,12 @@ public class CanvasActivity extends AppCompatActivity {
             node.title = title;
             node.content = content;
             node.color = getRandomColor();
-            nodes.add(node);
+            nodeAdded(node);
             invalidate();
         }
 
         public void addText(String text) {
+            interacted = true;
             CanvasNode node = new CanvasNode();
             node.type = "text";
             node.x = 150 + (float)(Math.random() * 400);
@@ -309,11 +589,12 @@ public class CanvasActivity extends AppCompatActivity {
             node.title = "";
             node.content = text;
             node.color = getRandomColor();
-            nodes.add(node);
+            nodeAdded(node);
             invalidate();
         }
 
         public void addGroup() {
+            interacted = true;
             CanvasNode node = new CanvasNode();
             node.type = "group";
             node.x = 100 + (float)(Math.random() * 300);
@@ -323,7 +604,7 @@ public class CanvasActivity extends AppCompatActivity {
             node.title = "группа";
             node.content = "";
             node.color = "#333333";
-            nodes.add(node);
+            nodeAdded(node);
             invalidate();
         }
 
@@ -335,21 +616,61 @@ public class CanvasActivity extends AppCompatActivity {
         public void zoomIn() {
             scaleFactor *= 1.2f;
             matrix.setScale(scaleFactor, scaleFactor);
+            viewChanged();
             invalidate();
         }
 
         public void zoomOut() {
             scaleFactor /= 1.2f;
             matrix.setScale(scaleFactor, scaleFactor);
+            viewChanged();
             invalidate();
         }
 
         public void fitToScreen() {
             scaleFactor = 1.0f;
             matrix.reset();
+            viewChanged();
             invalidate();
         }
 
+        public void setJournal(CanvasJournal journal) {
+            this.journal = journal;
+        }
+
+        public void setAutosave(CanvasAutosave autosave) {
+            this.autosave = autosave;
+        }
+
+        private void viewChanged() {
+            if (journal != null) {
+                ViewportState state = getViewportState();
+                journal.view(scaleFactor, (float) state.panX / scaleFactor, (float) state.panY / scaleFactor);
+            }
+            if (autosave != null) {
+                autosave.viewportChanged();
+            }
+        }
+
+        // новый узел встает в конец списка, его позиция известна без поиска
+        private void nodeAdded(CanvasNode node) {
+            node.position = nodes.size();
+            nodes.add(node);
+            nodeIndex.insert(node);
+            if (journal != null) {
+                journal.addNode(node);
+            }
+            if (autosave != null) {
+                autosave.nodeAdded(node);
+            }
+        }
+
+        private void nodeChanged(CanvasNode node, int fields) {
+            if (autosave != null) {
+                autosave.nodeChanged(node, fields);
+            }
+        }
+
         @Override
         protected void onDraw(Canvas canvas) {
             super.onDraw(canvas);
@@ -360,15 +681,33 @@ public class CanvasActivity extends AppCompatActivity {
             canvas.save();
             canvas.concat(matrix);
 
+            // видимая часть доски в ее координатах
+            matrix.invert(inverseMatrix);
+            viewport.set(0, 0, getWidth(), getHeight());
+            inverseMatrix.mapRect(viewport);
+            viewport.inset(-VIEWPORT_PAD, -VIEWPORT_PAD);
+
             // рисуем связи
-            for (CanvasConnection conn : connections) {
-                drawConnection(canvas, conn);
+            visibleConnections.clear();
+            connectionIndex.query(viewport.left, viewport.top, viewport.right, viewport.bottom, visibleConnections);
+            for (int i = 0; i < visibleConnections.size(); i++) {
+                drawConnection(canvas, visibleConnections.get(i));
             }
 
-            // рисуем узлы
-            for (CanvasNode node : nodes) {
-                drawNode(canvas, node);
+            // рисуем узлы: совсем мелкие копятся в пятна, остальные по своему уровню
+            visibleNodes.clear();
+            nodeIndex.query(viewport.left, viewport.top, viewport.right, viewport.bottom, visibleNodes);
+            beginBlobs();
+            for (int i = 0; i < visibleNodes.size(); i++) {
+                CanvasNode node = visibleNodes.get(i);
+                float screenSize = Math.min(node.width, node.height) * scaleFactor;
+                if (screenSize < LOD_BLOB_PX && node != selectedNode) {
+                    addBlob(node);
+                } else {
+                    drawNode(canvas, node, screenSize);
+                }
             }
+            drawBlobs(canvas);
 
             canvas.restore();
         }
@@ -381,60 +720,86 @@ public class CanvasActivity extends AppCompatActivity {
             float startY = from.y + from.height / 2;
             float endX = to.x + to.width / 2;
             float endY = to.y + to.height / 2;
+
+            // связь короче пятна на экране не видна
+            if (Math.max(Math.abs(endX - startX), Math.abs(endY - startY)) * scaleFactor < LOD_BLOB_PX) {
+                return;
+            }
             
-            // curved line
-            Path path = new Path();
-            path.moveTo(startX, startY);
+            // пути строятся заново, только когда сдвинулся один из концов
+            if (conn.curve == null || startX != conn.startX || startY != conn.startY ||
+                    endX != conn.endX || endY != conn.endY) {
+                buildConnectionPaths(conn, startX, startY, endX, endY);
+            }
+
+            linePaint.setColor(LINE_COLOR);
+            canvas.drawPath(conn.curve, linePaint);
             
+            // arrow head, пока она различима
+            if (ARROW_LENGTH * scaleFactor >= LOD_BLOB_PX) {
+                linePaint.setStyle(Paint.Style.FILL);
+                canvas.drawPath(conn.arrow, linePaint);
+                linePaint.setStyle(Paint.Style.STROKE);
+            }
+        }
+
+        private static void buildConnectionPaths(CanvasConnection conn, float startX, float startY,
+                                                 float endX, float endY) {
+            if (conn.curve == null) {
+                conn.curve = new Path();
+                conn.arrow = new Path();
+            }
+            conn.startX = startX;
+            conn.startY = startY;
+            conn.endX = endX;
+            conn.endY = endY;
+
+            // curved line
             float ctrlX = (startX + endX) / 2;
             float ctrlY = Math.min(startY, endY) - 50;
-            
-            path.quadTo(ctrlX, ctrlY, endX, endY);
-            
-            linePaint.setColor(Color.parseColor("#666666"));
-            canvas.drawPath(path, linePaint);
-            
-            // arrow head
-            drawArrowHead(canvas, endX, endY, startX, startY);
-        }
+            conn.curve.rewind();
+            conn.curve.moveTo(startX, startY);
+            conn.curve.quadTo(ctrlX, ctrlY, endX, endY);
 
-        private void drawArrowHead(Canvas canvas, float x, float y, float fromX, float fromY) {
-            float angle = (float) Math.atan2(y - fromY, x - fromX);
-            float arrowLength = 20;
+            float angle = (float) Math.atan2(endY - startY, endX - startX);
             float arrowAngle = 0.5f;
             
-            float x1 = x - arrowLength * (float) Math.cos(angle - arrowAngle);
-            float y1 = y - arrowLength * (float) Math.sin(angle - arrowAngle);
-            float x2 = x - arrowLength * (float) Math.cos(angle + arrowAngle);
-            float y2 = y - arrowLength * (float) Math.sin(angle + arrowAngle);
-            
-            Path arrow = new Path();
-            arrow.moveTo(x, y);
-            arrow.lineTo(x1, y1);
-            arrow.lineTo(x2, y2);
-            arrow.close();
+            float x1 = endX - ARROW_LENGTH * (float) Math.cos(angle - arrowAngle);
+            float y1 = endY - ARROW_LENGTH * (float) Math.sin(angle - arrowAngle);
+            float x2 = endX - ARROW_LENGTH * (float) Math.cos(angle + arrowAngle);
+            float y2 = endY - ARROW_LENGTH * (float) Math.sin(angle + arrowAngle);
             
-            linePaint.setStyle(Paint.Style.FILL);
-            canvas.drawPath(arrow, linePaint);
-            linePaint.setStyle(Paint.Style.STROKE);
+            conn.arrow.rewind();
+            conn.arrow.moveTo(endX, endY);
+            conn.arrow.lineTo(x1, y1);
+            conn.arrow.lineTo(x2, y2);
+            conn.arrow.close();
         }
 
-        private void drawNode(Canvas canvas, CanvasNode node) {
-            RectF rect = new RectF(node.x, node.y, node.x + node.width, node.y + node.height);
+        private void drawNode(Canvas canvas, CanvasNode node, float screenSize) {
+            RectF rect = node.bounds();
 
-            try {
-                nodePaint.setColor(Color.parseColor(node.color));
-            } catch (Exception e) {
-                nodePaint.setColor(Color.parseColor("#00ffff"));
-            }
+            int color = node.parsedColor();
+            nodePaint.setColor(color);
 
             // фон с альфой
             int alpha = node.type.equals("group") ? 80 : 220;
             nodePaint.setAlpha(alpha);
+
+            // мелкий узел - просто цветной прямоугольник, скругления и рамка не видны
+            if (screenSize < LOD_TITLE_PX) {
+                canvas.drawRect(rect, nodePaint);
+                if (node == selectedNode) {
+                    borderPaint.setColor(Color.WHITE);
+                    borderPaint.setStrokeWidth(5 / scaleFactor);
+                    canvas.drawRect(rect, borderPaint);
+                }
+                return;
+            }
             canvas.drawRoundRect(rect, 16, 16, nodePaint);
 
             // border
-            borderPaint.setColor(node == selectedNode ? Color.WHITE : Color.parseColor(node.color));
+            borderPaint.setColor(node == selectedNode ? Color.WHITE : color);
             borderPaint.setStrokeWidth(node == selectedNode ? 5 : 3);
             canvas.drawRoundRect(rect, 16, 16, borderPaint);
 
@@ -449,18 +814,17 @@ public class CanvasActivity extends AppCompatActivity {
                 textPaint.setFakeBoldText(false);
             }
 
-            // содержание
+            // содержание и значок только на крупном узле
+            if (screenSize < LOD_FULL_PX) {
+                return;
+            }
             if (!node.content.isEmpty()) {
                 textPaint.setTextSize(24);
-                String[] lines = node.content.split("\\n");
+                String[] lines = node.contentLines();
                 float startY = node.title.isEmpty() ? node.y + 35 : node.y + 75;
                 
-                for (int i = 0; i < Math.min(lines.length, 4); i++) {
-                    String line = lines[i];
-                    if (line.length() > 22) {
-                        line = line.substring(0, 22) + "...";
-                    }
-                    canvas.drawText(line, node.x + 16, startY + i * 28, textPaint);
+                for (int i = 0; i < lines.length; i++) {
+                    canvas.drawText(lines[i], node.x + 16, startY + i * 28, textPaint);
                 }
             }
 
@@ -470,6 +834,51 @@ public class CanvasActivity extends AppCompatActivity {
             canvas.drawText(icon, node.x + node.width - 35, node.y + 30, textPaint);
         }
 
+        // пятна считаются в клетках экрана, переведенных в координаты доски
+        private void beginBlobs() {
+            blobCellSize = LOD_BLOB_PX / scaleFactor;
+            blobColumns = (int) Math.ceil(viewport.width() / blobCellSize) + 1;
+            int rows = (int) Math.ceil(viewport.height() / blobCellSize) + 1;
+            int cells = blobColumns * rows;
+            if (blobCounts.length < cells) {
+                blobCounts = new int[cells];
+                blobColors = new int[cells];
+            }
+            blobCellCount = 0;
+        }
+
+        private void addBlob(CanvasNode node) {
+            int column = (int) ((node.x + node.width / 2 - viewport.left) / blobCellSize);
+            int row = (int) ((node.y + node.height / 2 - viewport.top) / blobCellSize);
+            int cell = row * blobColumns + column;
+            if (column < 0 || column >= blobColumns || row < 0 || cell >= blobCounts.length) {
+                return;
+            }
+            if (blobCounts[cell] == 0) {
+                if (blobCellCount == blobCells.length) {
+                    blobCells = Arrays.copyOf(blobCells, Math.max(64, blobCells.length * 2));
+                }
+                blobCells[blobCellCount++] = cell;
+                // пятно берет цвет первого узла в клетке
+                blobColors[cell] = node.parsedColor();
+            }
+            blobCounts[cell]++;
+        }
+
+        // чем больше узлов в клетке, тем плотнее пятно
+        private void drawBlobs(Canvas canvas) {
+            for (int i = 0; i < blobCellCount; i++) {
+                int cell = blobCells[i];
+                float left = viewport.left + (cell % blobColumns) * blobCellSize;
+                float top = viewport.top + (cell / blobColumns) * blobCellSize;
+                nodePaint.setColor(blobColors[cell]);
+                nodePaint.setAlpha(Math.min(255, 120 + 45 * blobCounts[cell]));
+                canvas.drawRect(left, top, left + blobCellSize, top + blobCellSize, nodePaint);
+                blobCounts[cell] = 0;
+            }
+            blobCellCount = 0;
+        }
+
         private String getNodeIcon(String type) {
             switch (type) {
                 case "note": return "📝";
@@ -482,18 +891,27 @@ public class CanvasActivity extends AppCompatActivity {
 
         @Override
         public boolean onTouchEvent(MotionEvent event) {
+            interacted = true;
             scaleDetector.onTouchEvent(event);
+            if (autosave != null) {
+                int action = event.getActionMasked();
+                if (action == MotionEvent.ACTION_DOWN) {
+                    autosave.gestureStarted();
+                } else if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
+                    autosave.gestureEnded();
+                }
+            }
             
             float x = event.getX();
             float y = event.getY();
             
             // transform touch coordinates
-            float[] coords = {x, y};
-            Matrix inverse = new Matrix();
-            matrix.invert(inverse);
-            inverse.mapPoints(coords);
-            x = coords[0];
-            y = coords[1];
+            touchPoint[0] = x;
+            touchPoint[1] = y;
+            matrix.invert(touchInverse);
+            touchInverse.mapPoints(touchPoint);
+            x = touchPoint[0];
+            y = touchPoint[1];
 
             switch (event.getAction() & MotionEvent.ACTION_MASK) {
                 case MotionEvent.ACTION_DOWN:
@@ -501,6 +919,7 @@ public class CanvasActivity extends AppCompatActivity {
                     start.set(event.getX(), event.getY());
                     mode = DRAG;
                     isLongPress = false;
+                    dragMoved = false;
                     
                     draggedNode = findNodeAtPosition(x, y);
                     if (draggedNode != null) {
@@ -543,8 +962,21 @@ public class CanvasActivity extends AppCompatActivity {
                             float deltaX = x - lastTouchX;
                             float deltaY = y - lastTouchY;
                             
+                            if (!dragMoved) {
+                                draggedConnections.clear();
+                                for (CanvasConnection conn : connections) {
+                                    if (conn.from == draggedNode || conn.to == draggedNode) {
+                                        draggedConnections.add(conn);
+                                    }
+                                }
+                            }
                             draggedNode.x += deltaX;
                             draggedNode.y += deltaY;
+                            dragMoved = true;
+                            nodeIndex.update(draggedNode);
+                            for (int i = 0; i < draggedConnections.size(); i++) {
+                                connectionIndex.update(draggedConnections.get(i));
+                            }
                             
                             lastTouchX = x;
                             lastTouchY = y;
@@ -566,6 +998,18 @@ public class CanvasActivity extends AppCompatActivity {
                         longPressHandler.removeCallbacks(longPressRunnable);
                     }
                     
+                    // в журнал попадает конец жеста, а не каждое движение
+                    if (draggedNode != null && dragMoved) {
+                        if (journal != null) {
+                            journal.moveNode(draggedNode.position, draggedNode.x, draggedNode.y);
+                        }
+                        nodeChanged(draggedNode, CanvasAutosave.FIELD_POSITION);
+                    } else if (draggedNode == null && !matrix.equals(savedMatrix)) {
+                        viewChanged();
+                        savedMatrix.set(matrix);
+                    }
+                    dragMoved = false;
+
                     mode = NONE;
                     draggedNode = null;
                     isLongPress = false;
@@ -581,15 +1025,9 @@ public class CanvasActivity extends AppCompatActivity {
             point.set(x / 2, y / 2);
         }
 
+        // верхний узел в точке, как при отрисовке
         private CanvasNode findNodeAtPosition(float x, float y) {
-            for (int i = nodes.size() - 1; i >= 0; i--) {
-                CanvasNode node = nodes.get(i);
-                if (x >= node.x && x <= node.x + node.width &&
-                    y >= node.y && y <= node.y + node.height) {
-                    return node;
-                }
-            }
-            return null;
+            return nodeIndex.hit(x, y);
         }
 
         public void showNodeEditDialog(CanvasNode node) {
@@ -639,6 +1077,10 @@ public class CanvasActivity extends AppCompatActivity {
                 .setPositiveButton("сохранить", (dialog, which) -> {
                     node.title = titleInput.getText().toString().trim();
                     node.content = contentInput.getText().toString().trim();
+                    if (journal != null) {
+                        journal.editNode(node.position, node.title, node.content);
+                    }
+                    nodeChanged(node, CanvasAutosave.FIELD_TEXT);
                     invalidate();
                 })
                 .setNegativeButton("отмена", null)
@@ -653,6 +1095,10 @@ public class CanvasActivity extends AppCompatActivity {
                 .setTitle("выбрать цвет")
                 .setItems(colorNames, (dialog, which) -> {
                     node.color = colors[which];
+                    if (journal != null) {
+                        journal.colorNode(node.position, node.color);
+                    }
+                    nodeChanged(node, CanvasAutosave.FIELD_COLOR);
                     invalidate();
                 })
                 .setNegativeButton("отмена", null)
@@ -666,7 +1112,15 @@ public class CanvasActivity extends AppCompatActivity {
                 Toast.makeText(getContext(), "выберите целевой узел", Toast.LENGTH_SHORT).show();
             } else {
                 if (connectStart != node) {
-                    connections.add(new CanvasConnection(connectStart, node, "связь"));
+                    CanvasConnection connection = new CanvasConnection(connectStart, node, "связь");
+                    connections.add(connection);
+                    connectionIndex.insert(connection);
+                    if (journal != null) {
+                        journal.link(connectStart.position, node.position, "связь");
+                    }
+                    if (autosave != null) {
+                        autosave.connectionAdded(connection);
+                    }
                     Toast.makeText(getContext(), "связь создана", Toast.LENGTH_SHORT).show();
                 }
                 isConnecting = false;
@@ -685,7 +1139,7 @@ public class CanvasActivity extends AppCompatActivity {
             copy.title = original.title + " (копия)";
             copy.content = original.content;
             copy.color = original.color;
-            nodes.add(copy);
+            nodeAdded(copy);
             invalidate();
         }
         
@@ -694,9 +1148,29 @@ public class CanvasActivity extends AppCompatActivity {
                 .setTitle("удалить узел?")
                 .setMessage(node.title.isEmpty() ? "узел будет удален" : "\"" + node.title + "\" будет удален")
                 .setPositiveButton("удалить", (dialog, which) -> {
-                    nodes.remove(node);
+                    if (journal != null) {
+                        journal.deleteNode(node.position);
+                    }
+                    // узлы за удаленным сдвигаются на одну позицию
+                    nodes.remove(node.position);
+                    for (int i = node.position; i < nodes.size(); i++) {
+                        nodes.get(i).position = i;
+                    }
+                    nodeIndex.remove(node);
                     // удаляем связи с этим узлом
-                    connections.removeIf(conn -> conn.from == node || conn.to == node);
+                    List<CanvasConnection> removed = new ArrayList<>();
+                    for (CanvasConnection conn : connections) {
+                        if (conn.from == node || conn.to == node) {
+                            removed.add(conn);
+                        }
+                    }
+                    connections.removeAll(removed);
+                    for (CanvasConnection conn : removed) {
+                        connectionIndex.remove(conn);
+                    }
+                    if (autosave != null) {
+                        autosave.nodeDeleted(node, removed);
+                    }
                     if (selectedNode == node) selectedNode = null;
                     invalidate();
                 })
@@ -716,59 +1190,6 @@ public class CanvasActivity extends AppCompatActivity {
             return state;
         }
 
-        public JSONArray getNodesAsJsonArray() {
-            JSONArray jsonArray = new JSONArray();
-            for (CanvasNode node : nodes) {
-                try {
-                    JSONObject jsonNode = new JSONObject();
-                    jsonNode.put("type", node.type);
-                    jsonNode.put("x", (double)node.x);
-                    jsonNode.put("y", (double)node.y);
-                    jsonNode.put("width", (double)node.width);
-                    jsonNode.put("height", (double)node.height);
-                    jsonNode.put("rotation", 0.0);
-                    jsonNode.put("scale", 1.0);
-                    jsonNode.put("z_index", 0);
-                    
-                    // простые поля вместо JSON объектов
-                    jsonNode.put("title", node.title);
-                    jsonNode.put("content", node.content);
-                    jsonNode.put("color", node.color);
-                    
-                    if (node.noteId > 0) {
-                        jsonNode.put("note_id", node.noteId);
-                    }
-                    
-                    jsonArray.put(jsonNode);
-                } catch (JSONException e) {
-                    // пропустить узел при ошибке
-                }
-            }
-            return jsonArray;
-        }
-
-        public JSONArray getConnectionsAsJsonArray() {
-            JSONArray jsonArray = new JSONArray();
-            for (CanvasConnection conn : connections) {
-                try {
-                    JSONObject jsonConn = new JSONObject();
-                    // ищем индексы узлов
-                    int fromIndex = nodes.indexOf(conn.from);
-                    int toIndex = nodes.indexOf(conn.to);
-                    
-                    if (fromIndex >= 0 && toIndex >= 0) {
-                        jsonConn.put("from_node_id", fromIndex); // временно используем индекс
-                        jsonConn.put("to_node_id", toIndex);
-                        jsonConn.put("type", conn.type);
-                        jsonArray.put(jsonConn);
-                    }
-                } catch (JSONException e) {
-                    // пропустить связь при ошибке
-                }
-            }
-            return jsonArray;
-        }
-
         public String getCanvasData() {
             try {
                 JSONObject data = new JSONObject();
@@ -782,75 +1203,91 @@ public class CanvasActivity extends AppCompatActivity {
             }
         }
 
-        public void loadCanvasFromJson(String jsonString) {
-            try {
-                JSONObject canvas = new JSONObject(jsonString);
-                
-                // загружаем viewport состояние
-                if (canvas.has("zoom")) {
-                    scaleFactor = (float) canvas.getDouble("zoom");
-                }
-                if (canvas.has("pan_x") && canvas.has("pan_y")) {
-                    float panX = (float) canvas.getDouble("pan_x");
-                    float panY = (float) canvas.getDouble("pan_y");
-                    matrix.setTranslate(panX, panY);
-                    matrix.postScale(scaleFactor, scaleFactor);
-                }
+        // документ уже разобран на воркере, здесь только подмена содержимого за один кадр
+        public void loadDocument(CanvasDocument document) {
+            interacted = false;
+            if (document.hasZoom) {
+                scaleFactor = document.zoom;
+            }
+            if (document.hasPanX && document.hasPanY) {
+                matrix.setTranslate(document.panX, document.panY);
+                matrix.postScale(scaleFactor, scaleFactor);
+            }
 
-                // загружаем узлы
-                nodes.clear();
-                if (canvas.has("nodes")) {
-                    JSONArray nodesArray = canvas.getJSONArray("nodes");
-                    for (int i = 0; i < nodesArray.length(); i++) {
-                        JSONObject nodeJson = nodesArray.getJSONObject(i);
-                        CanvasNode node = new CanvasNode();
-                        node.type = nodeJson.optString("type", "note");
-                        node.x = (float) nodeJson.optDouble("x", 100);
-                        node.y = (float) nodeJson.optDouble("y", 100);
-                        node.width = (float) nodeJson.optDouble("width", 200);
-                        node.height = (float) nodeJson.optDouble("height", 140);
-                        
-                        // новый формат - простые поля
-                        node.title = nodeJson.optString("title", "");
-                        node.content = nodeJson.optString("content", "");
-                        node.color = nodeJson.optString("color", "#00ffff");
-                        node.noteId = nodeJson.optInt("note_id", 0);
-                        
-                        nodes.add(node);
-                    }
-                }
+            nodes.clear();
+            nodes.addAll(document.nodes);
+            connections.clear();
+            connections.addAll(document.connections);
+            reindex();
+            // ссылки на узлы старой доски больше ничего не значат
+            selectedNode = null;
+            draggedNode = null;
+            isConnecting = false;
+            connectStart = null;
+            invalidate();
+        }
 
-                // загружаем связи
-                connections.clear();
-                if (canvas.has("connections")) {
-                    JSONArray connectionsArray = canvas.getJSONArray("connections");
-                    for (int i = 0; i < connectionsArray.length(); i++) {
-                        JSONObject connJson = connectionsArray.getJSONObject(i);
-                        int fromIndex = connJson.optInt("from_node_id", -1);
-                        int toIndex = connJson.optInt("to_node_id", -1);
-                        String type = connJson.optString("type", "connection");
-                        
-                        if (fromIndex >= 0 && toIndex >= 0 && 
-                            fromIndex < nodes.size() && toIndex < nodes.size()) {
-                            CanvasConnection connection = new CanvasConnection(
-                                nodes.get(fromIndex), 
-                                nodes.get(toIndex), 
-                                type
-                            );
-                            connections.add(connection);
-                        }
-                    }
-                }
+        public List<CanvasNode> getNodes() {
+            return nodes;
+        }
 
-                invalidate();
-            } catch (JSONException e) {
-                // ошибка парсинга - используем демо контент
-                createDemoContent();
+        // текущая доска в виде документа, pan в координатах до масштабирования
+        @Override
+        public CanvasDocument currentDocument() {
+            return snapshot(new ArrayList<>());
+        }
+
+        // копия доски для записи на воркере: узлы и связи копируются по значению,
+        // правки на main потоке ее уже не меняют. sent получает исходные связи в порядке копий
+        public CanvasDocument snapshot(List<CanvasConnection> sent) {
+            ViewportState state = getViewportState();
+            CanvasDocument document = new CanvasDocument();
+            document.zoom = scaleFactor;
+            document.panX = (float) state.panX / scaleFactor;
+            document.panY = (float) state.panY / scaleFactor;
+            document.hasZoom = true;
+            document.hasPanX = true;
+            document.hasPanY = true;
+            document.nodes = new ArrayList<>(nodes.size());
+            Map<CanvasNode, CanvasNode> copies = new IdentityHashMap<>(nodes.size() * 2);
+            for (CanvasNode node : nodes) {
+                CanvasNode copy = node.copy();
+                document.nodes.add(copy);
+                copies.put(node, copy);
+            }
+            document.connections = new ArrayList<>(connections.size());
+            for (CanvasConnection connection : connections) {
+                CanvasNode from = copies.get(connection.from);
+                CanvasNode to = copies.get(connection.to);
+                if (from != null && to != null) {
+                    CanvasConnection copy = new CanvasConnection(from, to, connection.type);
+                    copy.id = connection.id;
+                    document.connections.add(copy);
+                    sent.add(connection);
+                }
             }
+            return document;
         }
 
-        public List<CanvasNode> getNodes() {
-            return nodes;
+        public boolean isInteracted() {
+            return interacted;
+        }
+
+        // узел выделяется и встает в центр экрана, масштаб не меняется
+        public void focusNode(int index) {
+            if (index < 0 || index >= nodes.size()) {
+                return;
+            }
+            if (getWidth() == 0) {
+                post(() -> focusNode(index));
+                return;
+            }
+            CanvasNode node = nodes.get(index);
+            selectedNode = node;
+            matrix.setScale(scaleFactor, scaleFactor);
+            matrix.postTranslate(getWidth() / 2f - scaleFactor * (node.x + node.width / 2),
+                getHeight() / 2f - scaleFactor * (node.y + node.height / 2));
+            invalidate();
         }
 
         private class ScaleListener extends ScaleGestureDetector.SimpleOnScaleGestureListener {
@@ -873,18 +1310,92 @@ public class CanvasActivity extends AppCompatActivity {
     }
 
     public static class CanvasNode {
+        // id на сервере, 0 - узел еще не сохранен
+        public int id;
         public String type = "note";
         public float x, y, width, height;
         public String title = "";
         public String content = "";
         public String color = "#00ffff";
         public int noteId = 0;
+
+        // готовые данные для отрисовки. поля узла меняются присваиванием,
+        // поэтому кэш сверяет ссылку на исходную строку и пересчитывается после замены
+        private String colorSource;
+        private int colorValue;
+        private String linesSource;
+        private String[] lines;
+        private final RectF bounds = new RectF();
+        // место узла в списке CanvasView, журнал ссылается на узлы по нему.
+        // ведется самим видом при загрузке, добавлении и удалении
+        private int position;
+
+        public int parsedColor() {
+            if (color != colorSource) {
+                colorSource = color;
+                try {
+                    colorValue = Color.parseColor(color);
+                } catch (Exception e) {
+                    colorValue = 0xFF00FFFF;
+                }
+            }
+            return colorValue;
+        }
+
+        // до четырех строк содержимого, длинные уже обрезаны
+        public String[] contentLines() {
+            if (content != linesSource) {
+                linesSource = content;
+                String[] split = content.split("\\n");
+                lines = new String[Math.min(split.length, 4)];
+                for (int i = 0; i < lines.length; i++) {
+                    lines[i] = split[i].length() > 22 ? split[i].substring(0, 22) + "..." : split[i];
+                }
+            }
+            return lines;
+        }
+
+        // один прямоугольник на узел, обновляется на месте
+        public RectF bounds() {
+            bounds.set(x, y, x + width, y + height);
+            return bounds;
+        }
+
+        public CanvasNode copy() {
+            CanvasNode copy = new CanvasNode();
+            copy.id = id;
+            copy.type = type;
+            copy.x = x;
+            copy.y = y;
+            copy.width = width;
+            copy.height = height;
+            copy.title = title;
+            copy.content = content;
+            copy.color = color;
+            copy.noteId = noteId;
+            return copy;
+        }
+    }
+
+    // разобранный ответ GET /canvases/:id
+    public static class CanvasDocument {
+        public float zoom = 1.0f;
+        public float panX, panY;
+        public boolean hasZoom, hasPanX, hasPanY;
+        public List<CanvasNode> nodes = new ArrayList<>();
+        public List<CanvasConnection> connections = new ArrayList<>();
     }
 
     public static class CanvasConnection {
+        // id на сервере, 0 - связь еще не сохранена
+        public int id;
         public CanvasNode from;
         public CanvasNode to;
         public String type;
+        // пути кривой и стрелки и концы, по которым они построены
+        private Path curve;
+        private Path arrow;
+        private float startX, startY, endX, endY;
 
         public CanvasConnection(CanvasNode from, CanvasNode to, String type) {
             this.from = from;
@@ -892,4 +1403,10 @@ public class CanvasActivity extends AppCompatActivity {
             this.type = type;
         }
     }
-} 
\ No newline at end of file
+
+    // ответ полного сохранения
+    public static class CanvasSaveResult {
+        public List<Integer> nodeIds = new ArrayList<>();
+        public List<Integer> connectionIds = new ArrayList<>();
+    }
+}
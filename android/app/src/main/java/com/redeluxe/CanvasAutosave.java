@@ -0,0 +1,279 @@
+package com.redeluxe;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// автосохранение canvas. помнит, что изменилось: вид, отдельные узлы и связи.
+// правки копятся, пока идет жест и пока не пройдет пауза, потом уходят на сервер.
+// если менялся только вид, хватает легкого /autosave. созданные, измененные и
+// удаленные узлы уходят по одному через эндпоинты узлов, целиком доска
+// сохраняется, только когда дельту собрать нельзя или она слишком большая.
+// все методы вызываются на main потоке
+public class CanvasAutosave {
+    private static final long DEBOUNCE_MS = 1500;
+    // при непрерывных правках сохраняем не реже
+    private static final long MAX_DELAY_MS = 10000;
+    private static final long RETRY_MIN_MS = 5000;
+    private static final long RETRY_MAX_MS = 60000;
+    // больше запросов в дельте - дешевле одно полное сохранение
+    private static final int MAX_DELTA_REQUESTS = 50;
+
+    // какие поля узла изменились, уходят в PUT только они
+    public static final int FIELD_POSITION = 1;
+    public static final int FIELD_TEXT = 2;
+    public static final int FIELD_COLOR = 4;
+
+    public interface Sender {
+        void saveViewport(ApiService.ApiCallback<String> callback);
+        void saveFull(ApiService.ApiCallback<String> callback);
+        void saveChanges(Changes changes, ApiService.ApiCallback<String> callback);
+    }
+
+    // дельта для отправки. узлы и связи без equals, сравниваются по ссылке
+    public static class Changes {
+        public final List<CanvasActivity.CanvasNode> deletedNodes = new ArrayList<>();
+        public final List<CanvasActivity.CanvasNode> createdNodes = new ArrayList<>();
+        public final Map<CanvasActivity.CanvasNode, Integer> changedNodes = new LinkedHashMap<>();
+        public final List<CanvasActivity.CanvasConnection> createdConnections = new ArrayList<>();
+        public boolean viewport;
+
+        int requestCount() {
+            return deletedNodes.size() + createdNodes.size() + changedNodes.size() + createdConnections.size() +
+                (viewport ? 1 : 0);
+        }
+    }
+
+    private final Sender sender;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable sendTask = () -> send(false);
+    private boolean viewportDirty;
+    private final Set<CanvasActivity.CanvasNode> createdNodes = new LinkedHashSet<>();
+    // узел -> маска измененных полей
+    private final Map<CanvasActivity.CanvasNode, Integer> changedNodes = new LinkedHashMap<>();
+    // id узла берется в момент отправки: полное сохранение могло его поменять
+    private final List<CanvasActivity.CanvasNode> deletedNodes = new ArrayList<>();
+    private final Set<CanvasActivity.CanvasConnection> createdConnections = new LinkedHashSet<>();
+    // что именно изменилось, неизвестно: доска уходит целиком
+    private boolean fullSaveNeeded;
+    private boolean gesture;
+    // когда появилась первая несохраненная правка, 0 - правок нет
+    private long dirtySince;
+    private boolean sending;
+    private boolean closed;
+    // ждет окончания последнего запроса после close
+    private Runnable onIdle;
+    private long retryDelay = RETRY_MIN_MS;
+
+    public CanvasAutosave(Sender sender) {
+        this.sender = sender;
+    }
+
+    public void viewportChanged() {
+        viewportDirty = true;
+        schedule();
+    }
+
+    public void nodeAdded(CanvasActivity.CanvasNode node) {
+        createdNodes.add(node);
+        schedule();
+    }
+
+    public void nodeChanged(CanvasActivity.CanvasNode node, int fields) {
+        // создание еще не ушло и отправит текущие значения
+        if (!createdNodes.contains(node)) {
+            Integer previous = changedNodes.get(node);
+            changedNodes.put(node, previous != null ? previous | fields : fields);
+        }
+        schedule();
+    }
+
+    // связи узла сервер удаляет вместе с ним
+    public void nodeDeleted(CanvasActivity.CanvasNode node, List<CanvasActivity.CanvasConnection> removedConnections) {
+        changedNodes.remove(node);
+        createdConnections.removeAll(removedConnections);
+        if (!createdNodes.remove(node)) {
+            deletedNodes.add(node);
+        }
+        schedule();
+    }
+
+    public void connectionAdded(CanvasActivity.CanvasConnection connection) {
+        createdConnections.add(connection);
+        schedule();
+    }
+
+    public void structureChanged() {
+        fullSaveNeeded = true;
+        schedule();
+    }
+
+    // пока палец на экране, сохранение откладывается до конца жеста
+    public void gestureStarted() {
+        gesture = true;
+        handler.removeCallbacks(sendTask);
+    }
+
+    public void gestureEnded() {
+        gesture = false;
+        schedule();
+    }
+
+    public boolean isDirty() {
+        return viewportDirty || fullSaveNeeded || hasNodeChanges();
+    }
+
+    private boolean hasNodeChanges() {
+        return !createdNodes.isEmpty() || !changedNodes.isEmpty() || !deletedNodes.isEmpty() ||
+            !createdConnections.isEmpty();
+    }
+
+    // на экране новый документ или его только что сохранили целиком
+    public void reset() {
+        handler.removeCallbacks(sendTask);
+        viewportDirty = false;
+        fullSaveNeeded = false;
+        clearNodeChanges();
+        dirtySince = 0;
+    }
+
+    private void clearNodeChanges() {
+        createdNodes.clear();
+        changedNodes.clear();
+        deletedNodes.clear();
+        createdConnections.clear();
+    }
+
+    // экран уходит: отправляем сразу, не дожидаясь паузы
+    public void flush() {
+        handler.removeCallbacks(sendTask);
+        send(true);
+    }
+
+    // экран закрыт: новых запросов и повторов нет, onIdle - когда дойдет текущий
+    public void close(Runnable onIdle) {
+        closed = true;
+        handler.removeCallbacks(sendTask);
+        if (sending) {
+            this.onIdle = onIdle;
+        } else {
+            onIdle.run();
+        }
+    }
+
+    private void schedule() {
+        if (closed || !isDirty()) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (dirtySince == 0) {
+            dirtySince = now;
+        }
+        if (gesture || sending) {
+            // после жеста или ответа на текущий запрос schedule вызовется снова
+            return;
+        }
+        handler.removeCallbacks(sendTask);
+        handler.postDelayed(sendTask, Math.max(0, Math.min(DEBOUNCE_MS, dirtySince + MAX_DELAY_MS - now)));
+    }
+
+    // дельта ссылается на id узлов. узел без id, которого нет среди созданных,
+    // значит, доска еще ни разу не сохранялась целиком после появления на экране
+    private Changes takeChanges() {
+        Changes changes = new Changes();
+        changes.viewport = viewportDirty;
+        changes.createdNodes.addAll(createdNodes);
+        for (Map.Entry<CanvasActivity.CanvasNode, Integer> entry : changedNodes.entrySet()) {
+            if (entry.getKey().id <= 0) {
+                return null;
+            }
+            changes.changedNodes.put(entry.getKey(), entry.getValue());
+        }
+        for (CanvasActivity.CanvasNode node : deletedNodes) {
+            if (node.id <= 0) {
+                return null;
+            }
+            changes.deletedNodes.add(node);
+        }
+        for (CanvasActivity.CanvasConnection connection : createdConnections) {
+            if (!hasServerId(connection.from) || !hasServerId(connection.to)) {
+                return null;
+            }
+            changes.createdConnections.add(connection);
+        }
+        return changes.requestCount() <= MAX_DELTA_REQUESTS ? changes : null;
+    }
+
+    private boolean hasServerId(CanvasActivity.CanvasNode node) {
+        return node.id > 0 || createdNodes.contains(node);
+    }
+
+    private void send(boolean now) {
+        if (closed || sending || !isDirty() || (gesture && !now)) {
+            return;
+        }
+        Changes changes = !fullSaveNeeded && hasNodeChanges() ? takeChanges() : null;
+        boolean full = fullSaveNeeded || (hasNodeChanges() && changes == null);
+        boolean sentViewport = viewportDirty;
+        // флаги снимаются до ответа: правки во время запроса пометят их заново
+        viewportDirty = false;
+        fullSaveNeeded = false;
+        clearNodeChanges();
+        dirtySince = 0;
+
+        ApiService.ApiCallback<String> callback = new ApiService.ApiCallback<String>() {
+            @Override
+            public void onSuccess(String result) {
+                sending = false;
+                retryDelay = RETRY_MIN_MS;
+                if (finishIfClosed()) {
+                    return;
+                }
+                schedule();
+            }
+
+            @Override
+            public void onError(String error) {
+                sending = false;
+                viewportDirty |= sentViewport;
+                // часть дельты могла уже примениться, повтор сохраняет доску целиком
+                fullSaveNeeded |= full || changes != null;
+                // правки остались в журнале, при следующем открытии уйдут снова
+                if (finishIfClosed()) {
+                    return;
+                }
+                if (dirtySince == 0) {
+                    dirtySince = SystemClock.uptimeMillis();
+                }
+                handler.removeCallbacks(sendTask);
+                handler.postDelayed(sendTask, retryDelay);
+                retryDelay = Math.min(retryDelay * 2, RETRY_MAX_MS);
+            }
+        };
+        sending = true;
+        if (full) {
+            sender.saveFull(callback);
+        } else if (changes != null) {
+            sender.saveChanges(changes, callback);
+        } else {
+            sender.saveViewport(callback);
+        }
+    }
+
+    private boolean finishIfClosed() {
+        if (!closed) {
+            return false;
+        }
+        if (onIdle != null) {
+            onIdle.run();
+            onIdle = null;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,639 @@
+package com.redeluxe;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.JsonReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// журнал правок canvas. каждая операция дописывается в файл, отображенный в память:
+// запись - это копирование в память без системных вызовов, а после убийства процесса
+// страницы остаются в кэше ядра. при открытии доска собирается из снимка и хвоста журнала.
+// журнал периодически сворачивается в снимок. файлов журнала два: при свертке запись
+// переходит во второй, а первый очищается только следующей сверткой, когда снимок уже на диске.
+// операции ссылаются на узлы по позиции в списке, как связи в документе.
+// все методы вызываются на main потоке, снимки кодируются, пишутся и читаются
+// отдельным потоком. документы, отданные журналу, не должны меняться после вызова
+public class CanvasJournal {
+    private static final String DIR_NAME = "canvas_journal";
+    private static final String SNAPSHOT_NAME = "snapshot.json";
+    private static final String[] JOURNAL_NAMES = {"journal-0.log", "journal-1.log"};
+    private static final int INITIAL_CAPACITY = 256 * 1024;
+    // длина тела, номер операции, crc
+    private static final int RECORD_HEADER = 4 + 8 + 4;
+    // после стольких операций журнал сворачивается в снимок
+    private static final int COMPACT_AFTER_OPS = 500;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public interface Source {
+        // неизменяемая копия: кодируется она на потоке диска
+        CanvasActivity.CanvasDocument currentDocument();
+    }
+
+    public interface RecoveryCallback {
+        // document - null, если доска еще ни разу не попадала в журнал.
+        // dirty - есть правки, которые не дошли до сервера
+        void onRecovered(CanvasActivity.CanvasDocument document, boolean dirty);
+    }
+
+    private static class Record {
+        final long seq;
+        final byte[] payload;
+
+        Record(long seq, byte[] payload) {
+            this.seq = seq;
+            this.payload = payload;
+        }
+    }
+
+    // состояние, собранное из снимка и журнала
+    private static class Replay {
+        CanvasActivity.CanvasDocument document;
+        long seq;
+        // последняя правка и последняя правка, дошедшая до сервера
+        long editSeq;
+        long ackedSeq;
+
+        boolean isDirty() {
+            return document != null && editSeq > ackedSeq;
+        }
+    }
+
+    private static Handler diskHandler;
+
+    private final File dir;
+    private final Source source;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final FileChannel[] channels = new FileChannel[2];
+    private final MappedByteBuffer[] buffers = new MappedByteBuffer[2];
+    private int active;
+    private boolean opened;
+    // в журнале есть документ, к которому относятся операции
+    private boolean hasBase;
+    private long lastSeq;
+    private long editSeq;
+    private long ackedSeq;
+    private int opsSinceSnapshot;
+    private boolean compacting;
+    private boolean compactionFailed;
+    // новая основа пишется снимком, до его записи операции ждут в памяти:
+    // без основы на диске их не к чему применить. 0 - основа уже на диске
+    private long pendingBaseSeq;
+    private final List<Record> held = new ArrayList<>();
+
+    private static synchronized Handler diskHandler() {
+        if (diskHandler == null) {
+            HandlerThread diskThread = new HandlerThread("redeluxe-journal");
+            diskThread.start();
+            diskHandler = new Handler(diskThread.getLooper());
+        }
+        return diskHandler;
+    }
+
+    public static CanvasJournal open(Context context, int canvasId, Source source, RecoveryCallback callback) {
+        CanvasJournal journal = new CanvasJournal(dirFor(context, canvasId), source);
+        diskHandler().post(() -> {
+            Replay replay = journal.recover();
+            journal.mainHandler.post(() -> {
+                journal.hasBase = replay.document != null;
+                callback.onRecovered(replay.document, replay.isDirty());
+            });
+        });
+        return journal;
+    }
+
+    // доска удалена: журнал больше не нужен
+    public static void delete(Context context, int canvasId) {
+        File dir = dirFor(context, canvasId);
+        diskHandler().post(() -> {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        });
+    }
+
+    private CanvasJournal(File dir, Source source) {
+        this.dir = dir;
+        this.source = source;
+    }
+
+    // операции
+
+    // документ с сервера становится новой основой, все до него уже на сервере.
+    // документ кодируется на потоке диска, поэтому нужен неизменяемый снимок доски
+    public void setBase(CanvasActivity.CanvasDocument document) {
+        hasBase = true;
+        if (!opened) {
+            return;
+        }
+        long seq = ++lastSeq;
+        editSeq = seq;
+        ackedSeq = seq;
+        opsSinceSnapshot = 0;
+        pendingBaseSeq = seq;
+        Replay state = new Replay();
+        state.document = document;
+        state.seq = seq;
+        state.editSeq = seq;
+        state.ackedSeq = seq;
+        diskHandler().post(() -> {
+            boolean written = writeSnapshot(encodeSnapshot(state));
+            mainHandler.post(() -> onBaseWritten(seq, written));
+        });
+    }
+
+    private void onBaseWritten(long seq, boolean written) {
+        if (seq != pendingBaseSeq) {
+            // следом ушла более новая основа, операции ждут ее
+            return;
+        }
+        pendingBaseSeq = 0;
+        if (!written) {
+            // основы на диске нет, журнал выключается, остается сохранение на сервер
+            opened = false;
+            held.clear();
+            return;
+        }
+        for (Record record : held) {
+            if (record.seq > seq && !write(record.seq, record.payload)) {
+                break;
+            }
+        }
+        held.clear();
+    }
+
+    public void addNode(CanvasActivity.CanvasNode node) {
+        append(true, writer -> {
+            writer.beginObject();
+            writer.name("op").value("add");
+            writer.name("node");
+            ModelCodec.writeCanvasNode(writer, node);
+            writer.endObject();
+        });
+    }
+
+    public void moveNode(int index, float x, float y) {
+        append(true, writer -> {
+            writer.beginObject();
+            writer.name("op").value("move");
+            writer.name("i").value(index);
+            writer.name("x").value(x);
+            writer.name("y").value(y);
+            writer.endObject();
+        });
+    }
+
+    public void editNode(int index, String title, String content) {
+        append(true, writer -> {
+            writer.beginObject();
+            writer.name("op").value("edit");
+            writer.name("i").value(index);
+            writer.name("title").value(title);
+            writer.name("content").value(content);
+            writer.endObject();
+        });
+    }
+
+    public void colorNode(int index, String color) {
+        append(true, writer -> {
+            writer.beginObject();
+            writer.name("op").value("color");
+            writer.name("i").value(index);
+            writer.name("color").value(color);
+            writer.endObject();
+        });
+    }
+
+    public void deleteNode(int index) {
+        append(true, writer -> {
+            writer.beginObject();
+            writer.name("op").value("delete");
+            writer.name("i").value(index);
+            writer.endObject();
+        });
+    }
+
+    public void link(int from, int to, String type) {
+        append(true, writer -> {
+            writer.beginObject();
+            writer.name("op").value("link");
+            writer.name("from").value(from);
+            writer.name("to").value(to);
+            writer.name("type").value(type);
+            writer.endObject();
+        });
+    }
+
+    // вид в координатах документа: pan до масштабирования, как отдает сервер.
+    // сдвиг вида не считается правкой и не мешает свежей копии с сервера
+    public void view(float zoom, float panX, float panY) {
+        append(false, writer -> {
+            writer.beginObject();
+            writer.name("op").value("view");
+            writer.name("zoom").value(zoom);
+            writer.name("pan_x").value(panX);
+            writer.name("pan_y").value(panY);
+            writer.endObject();
+        });
+    }
+
+    // номер последней операции: сохранение запоминает его перед отправкой
+    public long lastSeq() {
+        return lastSeq;
+    }
+
+    // сервер принял состояние на момент операции seq
+    public void ack(long seq) {
+        if (seq <= ackedSeq) {
+            return;
+        }
+        append(false, writer -> {
+            writer.beginObject();
+            writer.name("op").value("ack");
+            writer.name("seq").value(seq);
+            writer.endObject();
+        });
+        ackedSeq = seq;
+    }
+
+    public boolean isDirty() {
+        return hasBase && editSeq > ackedSeq;
+    }
+
+    // экран закрыт. записанное остается в кэше ядра и дойдет до файла само
+    public void close() {
+        opened = false;
+        // после восстановления, если оно еще идет
+        diskHandler().post(() -> {
+            for (FileChannel channel : channels) {
+                if (channel == null) {
+                    continue;
+                }
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // отображение живет независимо от канала
+                }
+            }
+        });
+    }
+
+    private void append(boolean edit, ModelCodec.Encoder op) {
+        if (!opened || !hasBase) {
+            return;
+        }
+        byte[] payload = ModelCodec.encode(op).getBytes(UTF_8);
+        long seq = lastSeq + 1;
+        if (pendingBaseSeq != 0) {
+            held.add(new Record(seq, payload));
+        } else if (!write(seq, payload)) {
+            return;
+        }
+
+        lastSeq = seq;
+        if (edit) {
+            editSeq = seq;
+        }
+        if (++opsSinceSnapshot >= COMPACT_AFTER_OPS) {
+            compact();
+        }
+    }
+
+    private boolean write(long seq, byte[] payload) {
+        MappedByteBuffer buffer = ensureRoom(RECORD_HEADER + payload.length + 4);
+        if (buffer == null) {
+            return false;
+        }
+        int position = buffer.position();
+        // за записью всегда стоит нулевая длина, чтение останавливается на ней.
+        // длина пишется последней: оборванная запись не пройдет проверку crc
+        buffer.putInt(position + RECORD_HEADER + payload.length, 0);
+        buffer.position(position + 4);
+        buffer.putLong(seq);
+        buffer.putInt(checksum(seq, payload));
+        buffer.put(payload);
+        buffer.putInt(position, payload.length);
+        return true;
+    }
+
+    // файл растет вдвое, если запись не помещается
+    private MappedByteBuffer ensureRoom(int bytes) {
+        MappedByteBuffer buffer = buffers[active];
+        if (buffer.capacity() - buffer.position() >= bytes) {
+            return buffer;
+        }
+        int capacity = buffer.capacity();
+        while (capacity - buffer.position() < bytes) {
+            capacity *= 2;
+        }
+        try {
+            MappedByteBuffer grown = channels[active].map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            grown.position(buffer.position());
+            buffers[active] = grown;
+            return grown;
+        } catch (IOException e) {
+            // без места на диске журнал выключается, остается сохранение на сервер
+            opened = false;
+            return null;
+        }
+    }
+
+    // снимок текущей доски. запись переходит во второй файл: первый хранит
+    // операции до снимка, пока тот не ляжет на диск
+    private void compact() {
+        if (compacting || compactionFailed || pendingBaseSeq != 0) {
+            return;
+        }
+        compacting = true;
+        opsSinceSnapshot = 0;
+        // на main только копия доски, кодируется она на потоке диска
+        Replay state = new Replay();
+        state.document = source.currentDocument();
+        state.seq = lastSeq;
+        state.editSeq = editSeq;
+        state.ackedSeq = ackedSeq;
+
+        active = 1 - active;
+        buffers[active].putInt(0, 0);
+        buffers[active].position(0);
+
+        diskHandler().post(() -> {
+            boolean written = writeSnapshot(encodeSnapshot(state));
+            mainHandler.post(() -> {
+                compacting = false;
+                // без снимка второй файл нельзя очищать, журнал просто растет
+                compactionFailed = !written;
+            });
+        });
+    }
+
+    // восстановление, на потоке диска
+
+    private Replay recover() {
+        Replay replay = readSnapshot();
+        try {
+            dir.mkdirs();
+            for (int i = 0; i < 2; i++) {
+                RandomAccessFile file = new RandomAccessFile(new File(dir, JOURNAL_NAMES[i]), "rw");
+                channels[i] = file.getChannel();
+                int capacity = (int) Math.max(INITIAL_CAPACITY, file.length());
+                buffers[i] = channels[i].map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            }
+        } catch (IOException e) {
+            return replay;
+        }
+
+        List<Record> records = new ArrayList<>();
+        scan(buffers[0], records);
+        scan(buffers[1], records);
+        // после убийства во время свертки хвост лежит в обоих файлах
+        Collections.sort(records, (a, b) -> Long.compare(a.seq, b.seq));
+        boolean replayed = false;
+        for (Record record : records) {
+            if (record.seq > replay.seq) {
+                apply(replay, record);
+                replayed = true;
+            }
+        }
+
+        // все собрано в новый снимок, оба файла начинаются с нуля
+        if (replayed && !writeSnapshot(encodeSnapshot(replay))) {
+            return replay;
+        }
+        for (MappedByteBuffer buffer : buffers) {
+            buffer.putInt(0, 0);
+            buffer.position(0);
+        }
+        active = 0;
+        lastSeq = replay.seq;
+        editSeq = replay.editSeq;
+        ackedSeq = replay.ackedSeq;
+        opened = true;
+        return replay;
+    }
+
+    private static void scan(MappedByteBuffer buffer, List<Record> records) {
+        int position = 0;
+        long previous = 0;
+        while (position + RECORD_HEADER <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || length > buffer.capacity() - position - RECORD_HEADER) {
+                break;
+            }
+            long seq = buffer.getLong(position + 4);
+            int checksum = buffer.getInt(position + 12);
+            byte[] payload = new byte[length];
+            buffer.position(position + RECORD_HEADER);
+            buffer.get(payload);
+            // оборванная запись или остаток прошлого поколения файла
+            if (seq <= previous || checksum(seq, payload) != checksum) {
+                break;
+            }
+            records.add(new Record(seq, payload));
+            previous = seq;
+            position += RECORD_HEADER + length;
+        }
+    }
+
+    private static void apply(Replay replay, Record record) {
+        String op = null;
+        int index = -1;
+        int to = -1;
+        float x = 0;
+        float y = 0;
+        float zoom = 1;
+        String title = "";
+        String content = "";
+        String color = null;
+        String type = "связь";
+        long ackSeq = 0;
+        CanvasActivity.CanvasNode node = null;
+        try {
+            JsonReader reader = new JsonReader(new StringReader(new String(record.payload, UTF_8)));
+            try {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    switch (reader.nextName()) {
+                        case "op": op = reader.nextString(); break;
+                        case "i": index = reader.nextInt(); break;
+                        case "from": index = reader.nextInt(); break;
+                        case "to": to = reader.nextInt(); break;
+                        case "x": case "pan_x": x = (float) reader.nextDouble(); break;
+                        case "y": case "pan_y": y = (float) reader.nextDouble(); break;
+                        case "zoom": zoom = (float) reader.nextDouble(); break;
+                        case "title": title = reader.nextString(); break;
+                        case "content": content = reader.nextString(); break;
+                        case "color": color = reader.nextString(); break;
+                        case "type": type = reader.nextString(); break;
+                        case "seq": ackSeq = reader.nextLong(); break;
+                        case "node": node = ModelCodec.readCanvasNode(reader); break;
+                        default: reader.skipValue(); break;
+                    }
+                }
+                reader.endObject();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            // crc сошелся, значит запись целая; неизвестный формат просто пропускаем
+            return;
+        }
+        replay.seq = record.seq;
+        if (op == null) {
+            return;
+        }
+
+        CanvasActivity.CanvasDocument target = replay.document;
+        List<CanvasActivity.CanvasNode> nodes = target != null ? target.nodes : null;
+        boolean valid = nodes != null && index >= 0 && index < nodes.size();
+        switch (op) {
+            case "ack":
+                replay.ackedSeq = Math.max(replay.ackedSeq, ackSeq);
+                return;
+            case "add":
+                if (target == null || node == null) return;
+                nodes.add(node);
+                break;
+            case "move":
+                if (!valid) return;
+                nodes.get(index).x = x;
+                nodes.get(index).y = y;
+                break;
+            case "edit":
+                if (!valid) return;
+                nodes.get(index).title = title;
+                nodes.get(index).content = content;
+                break;
+            case "color":
+                if (!valid || color == null) return;
+                nodes.get(index).color = color;
+                break;
+            case "delete":
+                if (!valid) return;
+                CanvasActivity.CanvasNode removed = nodes.remove(index);
+                List<CanvasActivity.CanvasConnection> kept = new ArrayList<>();
+                for (CanvasActivity.CanvasConnection connection : target.connections) {
+                    if (connection.from != removed && connection.to != removed) {
+                        kept.add(connection);
+                    }
+                }
+                target.connections = kept;
+                break;
+            case "link":
+                if (!valid || to < 0 || to >= nodes.size()) return;
+                target.connections.add(new CanvasActivity.CanvasConnection(nodes.get(index), nodes.get(to), type));
+                break;
+            case "view":
+                if (target == null) return;
+                target.zoom = zoom;
+                target.panX = x;
+                target.panY = y;
+                target.hasZoom = true;
+                target.hasPanX = true;
+                target.hasPanY = true;
+                return;
+            default:
+                return;
+        }
+        replay.editSeq = record.seq;
+    }
+
+    // снимки
+
+    private static String encodeSnapshot(Replay state) {
+        return ModelCodec.encode(writer -> {
+            writer.beginObject();
+            writer.name("seq").value(state.seq);
+            writer.name("edit_seq").value(state.editSeq);
+            writer.name("acked_seq").value(state.ackedSeq);
+            if (state.document != null) {
+                writer.name("document");
+                ModelCodec.writeCanvasDocument(writer, state.document);
+            }
+            writer.endObject();
+        });
+    }
+
+    private Replay readSnapshot() {
+        Replay replay = new Replay();
+        File file = new File(dir, SNAPSHOT_NAME);
+        if (!file.exists()) {
+            return replay;
+        }
+        try {
+            JsonReader reader = new JsonReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    switch (reader.nextName()) {
+                        case "seq": replay.seq = reader.nextLong(); break;
+                        case "edit_seq": replay.editSeq = reader.nextLong(); break;
+                        case "acked_seq": replay.ackedSeq = reader.nextLong(); break;
+                        case "document": replay.document = ModelCodec.readCanvasDocument(reader); break;
+                        default: reader.skipValue(); break;
+                    }
+                }
+                reader.endObject();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            // снимок заменяется атомарно, ошибка значит порчу - начинаем с пустого
+            return new Replay();
+        }
+        return replay;
+    }
+
+    private boolean writeSnapshot(String json) {
+        File file = new File(dir, SNAPSHOT_NAME);
+        File tempFile = new File(dir, SNAPSHOT_NAME + ".tmp");
+        try {
+            dir.mkdirs();
+            FileOutputStream out = new FileOutputStream(tempFile);
+            try {
+                out.write(json.getBytes(UTF_8));
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (tempFile.renameTo(file)) {
+                return true;
+            }
+        } catch (IOException e) {
+            // ниже
+        }
+        tempFile.delete();
+        return false;
+    }
+
+    private static int checksum(long seq, byte[] payload) {
+        CRC32 crc = new CRC32();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (seq >>> shift));
+        }
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    private static File dirFor(Context context, int canvasId) {
+        return new File(new File(context.getFilesDir(), DIR_NAME), String.valueOf(canvasId));
+    }
+}
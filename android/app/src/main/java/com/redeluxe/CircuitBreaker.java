@@ -0,0 +1,78 @@
+package com.redeluxe;
+
+import android.os.SystemClock;
+import java.util.HashMap;
+import java.util.Map;
+
+// предохранитель на каждый эндпоинт: после серии сбоев запросы к нему
+// сразу завершаются ошибкой, пока не пройдет пауза и пробный запрос
+public class CircuitBreaker {
+    private static final int FAILURE_THRESHOLD = 5;
+    private static final long OPEN_DURATION_MS = 30000;
+
+    private static final Map<String, CircuitBreaker> breakers = new HashMap<>();
+
+    private enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String endpoint;
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+
+    private CircuitBreaker(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    // /canvases/12/nodes/3?x=1 и /canvases/7/nodes/9 попадают в один предохранитель
+    public static synchronized CircuitBreaker forEndpoint(String method, String endpoint) {
+        String key = method + " " + template(endpoint);
+        CircuitBreaker breaker = breakers.get(key);
+        if (breaker == null) {
+            breaker = new CircuitBreaker(key);
+            breakers.put(key, breaker);
+        }
+        return breaker;
+    }
+
+    static String template(String endpoint) {
+        int query = endpoint.indexOf('?');
+        String path = query >= 0 ? endpoint.substring(0, query) : endpoint;
+        return path.replaceAll("/\\d+(?=/|$)", "/:id");
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    // в полуоткрытом состоянии пропускается только один пробный запрос.
+    // если проба не вернула результат за паузу, разрешается следующая
+    public synchronized boolean allowRequest() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (now - openedAt < OPEN_DURATION_MS) {
+            return false;
+        }
+        state = State.HALF_OPEN;
+        openedAt = now;
+        return true;
+    }
+
+    public synchronized void onSuccess() {
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    public synchronized void onFailure() {
+        failures++;
+        if (state == State.HALF_OPEN || failures >= FAILURE_THRESHOLD) {
+            state = State.OPEN;
+            openedAt = SystemClock.elapsedRealtime();
+        }
+    }
+
+    public synchronized boolean isOpen() {
+        return state != State.CLOSED;
+    }
+}
@@ -32,25 +32,35 @@ import android.widget.TextView;
 public class GraphActivity extends AppCompatActivity {
     private GraphView graphView;
     private ApiService apiService;
+    // загрузка, результат которой сейчас ждет экран
+    private ApiCall graphCall;
     private String currentLayout = "force";
     private String currentFilter = "";
     private int currentGraphId;
     private String currentGraphName = "";
+    // узел, найденный поиском: после загрузки встает в центр экрана
+    private String focusNode;
+    // показан ли уже сохраненный граф: первая доставка применяется всегда
+    private boolean documentShown;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_graph);
 
-        apiService = new ApiService(this);
+        apiService = ApiService.getInstance(this).scopedTo(this);
         graphView = findViewById(R.id.graphView);
 
         setupButtons();
 
         Intent intent = getIntent();
         currentGraphId = intent.getIntExtra("graph_id", 0);
+        if (currentGraphId > 0) {
+            BoardPrefetcher.getInstance(this).recordOpened(BoardIndex.KIND_GRAPH, currentGraphId);
+        }
         String graphName = intent.getStringExtra("graph_name");
         currentGraphName = graphName;
+        focusNode = intent.getStringExtra("focus_node");
         
         TextView title = findViewById(R.id.graphTitle);
         if (graphName != null && !graphName.isEmpty()) {
@@ -153,22 +163,21 @@ public class GraphActivity extends AppCompatActivity {
         Toast.makeText(this, "настройки графа", Toast.LENGTH_SHORT).show();
     }
 
+    // новый фильтр делает предыдущую загрузку ненужной
     private void loadGraph() {
-        apiService.getGraph(currentFilter, new ApiService.ApiCallback<String>() {
+        if (graphCall != null) {
+            graphCall.cancel();
+        }
+        graphCall = apiService.getGraph(currentFilter, new ApiService.ApiCallback<GraphDocument>() {
             @Override
-            public void onSuccess(String result) {
-                try {
-                    graphView.loadGraphFromJson(result);
-                    Toast.makeText(GraphActivity.this, "граф загружен", Toast.LENGTH_SHORT).show();
-                } catch (Exception e) {
-                    // если ошибка загрузки, используем демо граф
-                    graphView.createDemoGraph();
-                    Toast.makeText(GraphActivity.this, "демо граф загружен", Toast.LENGTH_SHORT).show();
-                }
+            public void onSuccess(GraphDocument document) {
+                graphView.loadGraph(document);
+                Toast.makeText(GraphActivity.this, "граф загружен", Toast.LENGTH_SHORT).show();
             }
 
             @Override
             public void onError(String error) {
+                // если ошибка загрузки, используем демо граф
                 graphView.createDemoGraph();
                 Toast.makeText(GraphActivity.this, "демо граф загружен", Toast.LENGTH_SHORT).show();
             }
@@ -185,9 +194,11 @@ public class GraphActivity extends AppCompatActivity {
             
             apiService.saveGraphState(currentGraphName, graphData, currentLayout, 
                 state.zoom, state.panX, state.panY, currentFilter, 
-                new ApiService.ApiCallback<String>() {
+                new ApiService.ApiCallback<GraphItem>() {
                 @Override
-                public void onSuccess(String result) {
+                public void onSuccess(GraphItem result) {
+                    BoardIndex.getInstance(GraphActivity.this)
+                        .updateGraph(currentGraphId, currentGraphName, graphView.getNodes());
                     Toast.makeText(GraphActivity.this, "состояние '" + currentGraphName + "' обновлено", Toast.LENGTH_SHORT).show();
                 }
 
@@ -215,18 +226,15 @@ public class GraphActivity extends AppCompatActivity {
                     final String finalName = name;
                     apiService.saveGraphState(finalName, graphData, currentLayout, 
                         state.zoom, state.panX, state.panY, currentFilter, 
-                        new ApiService.ApiCallback<String>() {
+                        new ApiService.ApiCallback<GraphItem>() {
                         @Override
-                        public void onSuccess(String result) {
+                        public void onSuccess(GraphItem result) {
                             Toast.makeText(GraphActivity.this, "состояние '" + finalName + "' сохранено", Toast.LENGTH_SHORT).show();
-                            try {
-                                JSONObject json = new JSONObject(result);
-                                currentGraphId = json.getInt("id");
-                                currentGraphName = json.getString("name");
-                                ((TextView) findViewById(R.id.graphTitle)).setText(currentGraphName);
-                            } catch (JSONException e) {
-                                //
-                            }
+                            currentGraphId = result.getId();
+                            currentGraphName = result.getName();
+                            BoardIndex.getInstance(GraphActivity.this)
+                                .updateGraph(currentGraphId, currentGraphName, graphView.getNodes());
+                            ((TextView) findViewById(R.id.graphTitle)).setText(currentGraphName);
                         }
 
                         @Override
@@ -241,15 +249,25 @@ public class GraphActivity extends AppCompatActivity {
     }
 
     private void loadGraphState(int stateId) {
-        apiService.getGraphState(stateId, new ApiService.ApiCallback<String>() {
+        if (graphCall != null) {
+            graphCall.cancel();
+        }
+        // копия из кэша показывается сразу, свежая подменяет ее, пока граф не трогали
+        graphCall = apiService.getGraphState(stateId, RequestDispatcher.Lane.INTERACTIVE,
+                ApiService.CacheMode.STALE_WHILE_REVALIDATE, new ApiService.ApiCallback<GraphDocument>() {
             @Override
-            public void onSuccess(String result) {
-                try {
-                    graphView.loadGraphStateFromJson(result);
-                    Toast.makeText(GraphActivity.this, "состояние загружено", Toast.LENGTH_SHORT).show();
-                } catch (Exception e) {
-                    Toast.makeText(GraphActivity.this, "ошибка загрузки состояния", Toast.LENGTH_SHORT).show();
+            public void onSuccess(GraphDocument document) {
+                if (documentShown && graphView.isInteracted()) {
+                    Toast.makeText(GraphActivity.this, "на сервере есть более новая версия", Toast.LENGTH_SHORT).show();
+                    return;
                 }
+                graphView.loadGraphState(document);
+                documentShown = true;
+                if (focusNode != null) {
+                    graphView.focusNode(focusNode);
+                    focusNode = null;
+                }
+                Toast.makeText(GraphActivity.this, "состояние загружено", Toast.LENGTH_SHORT).show();
             }
 
             @Override
@@ -293,6 +311,8 @@ public class GraphActivity extends AppCompatActivity {
         private static final int ZOOM = 2;
         
         private float lastTouchX, lastTouchY;
+        // пользователь уже менял граф или вид, свежая копия с сервера его не перезапишет
+        private boolean interacted;
 
         public GraphView(Context context, AttributeSet attrs) {
             super(context, attrs);
@@ -456,6 +476,32 @@ public class GraphActivity extends AppCompatActivity {
             invalidate();
         }
 
+        public List<GraphNode> getNodes() {
+            return nodes;
+        }
+
+        public boolean isInteracted() {
+            return interacted;
+        }
+
+        // узел выделяется и встает в центр экрана, масштаб не меняется
+        public void focusNode(String nodeId) {
+            if (getWidth() == 0) {
+                post(() -> focusNode(nodeId));
+                return;
+            }
+            for (GraphNode node : nodes) {
+                if (nodeId.equals(node.id)) {
+                    selectedNode = node;
+                    matrix.setScale(scaleFactor, scaleFactor);
+                    matrix.postTranslate(getWidth() / 2f - scaleFactor * node.x,
+                        getHeight() / 2f - scaleFactor * node.y);
+                    invalidate();
+                    return;
+                }
+            }
+        }
+
         public void centerGraph() {
             scaleFactor = 1.0f;
             matrix.reset();
@@ -463,6 +509,7 @@ public class GraphActivity extends AppCompatActivity {
         }
         
         public void addNewNode(String label, String type) {
+            interacted = true;
             GraphNode node = new GraphNode();
             node.id = "node_" + System.currentTimeMillis();
             node.label = label;
@@ -602,6 +649,7 @@ public class GraphActivity extends AppCompatActivity {
 
         @Override
         public boolean onTouchEvent(MotionEvent event) {
+            interacted = true;
             scaleDetector.onTouchEvent(event);
             
             float x = event.getX();
@@ -933,131 +981,35 @@ public class GraphActivity extends AppCompatActivity {
             }
         }
 
-        public void loadGraphFromJson(String jsonString) {
-            try {
-                JSONObject response = new JSONObject(jsonString);
-                
-                nodes.clear();
-                edges.clear();
-                
-                // parse graph data from server response
-                if (response.has("nodes")) {
-                    JSONArray nodesArray = response.getJSONArray("nodes");
-                    for (int i = 0; i < nodesArray.length(); i++) {
-                        JSONObject nodeJson = nodesArray.getJSONObject(i);
-                        GraphNode node = new GraphNode();
-                        node.id = nodeJson.getString("id");
-                        node.label = nodeJson.getString("label");
-                        node.type = nodeJson.getString("type");
-                        node.color = nodeJson.getString("color");
-                        node.size = nodeJson.getInt("size");
-                        node.x = (float) nodeJson.optDouble("x", Math.random() * 600 + 100);
-                        node.y = (float) nodeJson.optDouble("y", Math.random() * 400 + 100);
-                        nodes.add(node);
-                    }
-                }
-                
-                if (response.has("edges")) {
-                    JSONArray edgesArray = response.getJSONArray("edges");
-                    for (int i = 0; i < edgesArray.length(); i++) {
-                        JSONObject edgeJson = edgesArray.getJSONObject(i);
-                        String sourceId = edgeJson.getString("source");
-                        String targetId = edgeJson.getString("target");
-                        
-                        GraphNode source = findNodeById(sourceId);
-                        GraphNode target = findNodeById(targetId);
-                        
-                        if (source != null && target != null) {
-                            edges.add(new GraphEdge(source, target, 
-                                edgeJson.getString("type"), edgeJson.getInt("weight")));
-                        }
-                    }
-                }
-                
-                invalidate();
-            } catch (JSONException e) {
-                createDemoGraph();
-            }
+        // документ уже разобран на воркере
+        public void loadGraph(GraphDocument document) {
+            nodes.clear();
+            edges.clear();
+            nodes.addAll(document.nodes);
+            edges.addAll(document.edges);
+            invalidate();
         }
 
-        public void loadGraphStateFromJson(String jsonString) {
-            try {
-                JSONObject state = new JSONObject(jsonString);
-                
-                // load viewport state
-                if (state.has("zoom")) {
-                    scaleFactor = (float) state.getDouble("zoom");
-                }
-                if (state.has("pan_x") && state.has("pan_y")) {
-                    float panX = (float) state.getDouble("pan_x");
-                    float panY = (float) state.getDouble("pan_y");
-                    matrix.setTranslate(panX, panY);
-                    matrix.postScale(scaleFactor, scaleFactor);
-                }
-                
-                // load graph data
-                if (state.has("data")) {
-                    String graphData = state.getString("data");
-                    loadGraphDataFromJson(graphData);
-                }
-                
-                invalidate();
-            } catch (JSONException e) {
-                // ошибка загрузки состояния
+        public void loadGraphState(GraphDocument document) {
+            interacted = false;
+            // load viewport state
+            if (document.hasZoom) {
+                scaleFactor = document.zoom;
+            }
+            if (document.hasPanX && document.hasPanY) {
+                matrix.setTranslate(document.panX, document.panY);
+                matrix.postScale(scaleFactor, scaleFactor);
             }
-        }
 
-        private void loadGraphDataFromJson(String jsonString) {
-            try {
-                JSONObject data = new JSONObject(jsonString);
-                
+            // load graph data
+            if (document.hasData) {
                 nodes.clear();
                 edges.clear();
-                
-                if (data.has("nodes")) {
-                    JSONArray nodesArray = data.getJSONArray("nodes");
-                    for (int i = 0; i < nodesArray.length(); i++) {
-                        JSONObject nodeJson = nodesArray.getJSONObject(i);
-                        GraphNode node = new GraphNode();
-                        node.id = nodeJson.getString("id");
-                        node.label = nodeJson.getString("label");
-                        node.type = nodeJson.getString("type");
-                        node.color = nodeJson.getString("color");
-                        node.size = nodeJson.getInt("size");
-                        node.x = (float) nodeJson.getDouble("x");
-                        node.y = (float) nodeJson.getDouble("y");
-                        nodes.add(node);
-                    }
-                }
-                
-                if (data.has("edges")) {
-                    JSONArray edgesArray = data.getJSONArray("edges");
-                    for (int i = 0; i < edgesArray.length(); i++) {
-                        JSONObject edgeJson = edgesArray.getJSONObject(i);
-                        String sourceId = edgeJson.getString("source");
-                        String targetId = edgeJson.getString("target");
-                        
-                        GraphNode source = findNodeById(sourceId);
-                        GraphNode target = findNodeById(targetId);
-                        
-                        if (source != null && target != null) {
-                            edges.add(new GraphEdge(source, target, 
-                                edgeJson.getString("type"), edgeJson.getInt("weight")));
-                        }
-                    }
-                }
-            } catch (JSONException e) {
-                // ошибка парсинга
+                nodes.addAll(document.nodes);
+                edges.addAll(document.edges);
             }
-        }
 
-        private GraphNode findNodeById(String id) {
-            for (GraphNode node : nodes) {
-                if (node.id.equals(id)) {
-                    return node;
-                }
-            }
-            return null;
+            invalidate();
         }
 
         public void setLayout(String layout) {
@@ -1162,6 +1114,15 @@ public class GraphActivity extends AppCompatActivity {
         public boolean isDragging = false;
     }
 
+    // разобранный граф: ответ /graph или сохраненное состояние
+    public static class GraphDocument {
+        public float zoom = 1.0f;
+        public float panX, panY;
+        public boolean hasZoom, hasPanX, hasPanY, hasData;
+        public List<GraphNode> nodes = new ArrayList<>();
+        public List<GraphEdge> edges = new ArrayList<>();
+    }
+
     public static class GraphEdge {
         public GraphNode source;
         public GraphNode target;
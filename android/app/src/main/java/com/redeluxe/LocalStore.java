@@ -0,0 +1,598 @@
+package com.redeluxe;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.JsonReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// локальная база: копия заметок, категорий, списков canvas и графов с сервера.
+// экраны рисуются из нее сразу, ответы сети сливаются в нее в фоне.
+// многострочные записи идут одной транзакцией. полная загрузка копит заметки
+// в отдельной таблице и подменяет ими список одним коммитом, чтения ее не ждут.
+// заметки хранятся целиком в json, в колонках только поля сортировки и фильтров.
+// все обращения к базе идут отдельным потоком, колбэки вызываются на main потоке
+public class LocalStore {
+    private static final String DB_NAME = "redeluxe.db";
+    private static final int DB_VERSION = 2;
+    // данные в базе принадлежат пользователю, под чьим токеном получены
+    private static final String META_OWNER = "owner";
+    // заметки в базе есть только после первой полной загрузки
+    private static final String META_NOTES_LOADED = "notes_loaded";
+
+    public interface Callback<T> {
+        void onResult(T result);
+    }
+
+    private static class Helper extends SQLiteOpenHelper {
+        Helper(Context context) {
+            super(context, DB_NAME, null, DB_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE notes (id INTEGER PRIMARY KEY, is_pinned INTEGER NOT NULL, " +
+                "is_archived INTEGER NOT NULL, category_id INTEGER, updated_at TEXT NOT NULL, json TEXT NOT NULL)");
+            // порядок главного списка, как у GET /notes
+            db.execSQL("CREATE INDEX notes_order ON notes (is_pinned DESC, updated_at DESC, id DESC)");
+            // заметки идущей полной загрузки, до коммита их не видно
+            db.execSQL("CREATE TABLE notes_incoming (id INTEGER PRIMARY KEY, is_pinned INTEGER NOT NULL, " +
+                "is_archived INTEGER NOT NULL, category_id INTEGER, updated_at TEXT NOT NULL, json TEXT NOT NULL)");
+            db.execSQL("CREATE TABLE categories (id INTEGER PRIMARY KEY, position INTEGER NOT NULL, json TEXT NOT NULL)");
+            db.execSQL("CREATE TABLE canvases (id INTEGER PRIMARY KEY, position INTEGER NOT NULL, " +
+                "name TEXT, created_at TEXT, updated_at TEXT)");
+            db.execSQL("CREATE TABLE graph_states (id INTEGER PRIMARY KEY, position INTEGER NOT NULL, " +
+                "name TEXT, layout TEXT, created_at TEXT, updated_at TEXT)");
+            db.execSQL("CREATE TABLE meta (key TEXT PRIMARY KEY, value TEXT)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // в базе только копия сервера, проще собрать заново
+            db.execSQL("DROP TABLE IF EXISTS notes");
+            db.execSQL("DROP TABLE IF EXISTS notes_incoming");
+            db.execSQL("DROP TABLE IF EXISTS categories");
+            db.execSQL("DROP TABLE IF EXISTS canvases");
+            db.execSQL("DROP TABLE IF EXISTS graph_states");
+            db.execSQL("DROP TABLE IF EXISTS meta");
+            onCreate(db);
+        }
+    }
+
+    private static LocalStore instance;
+
+    private final Context context;
+    private final Helper helper;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Handler dbHandler;
+
+    public static synchronized LocalStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new LocalStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private LocalStore(Context context) {
+        this.context = context;
+        helper = new Helper(context);
+        HandlerThread dbThread = new HandlerThread("redeluxe-store");
+        dbThread.start();
+        dbHandler = new Handler(dbThread.getLooper());
+    }
+
+    // заметки
+
+    // страница в порядке главного списка. cursor - ключ последней заметки
+    // предыдущей страницы, null для первой
+    public void readNotesPage(String filter, String cursor, int limit, Callback<PagedNoteSource.Page> callback) {
+        String owner = currentOwner();
+        submit(() -> {
+            PagedNoteSource.Page page = new PagedNoteSource.Page();
+            SQLiteDatabase db = helper.getReadableDatabase();
+            if (owner.equals(readMeta(db, META_OWNER))) {
+                StringBuilder where = new StringBuilder(filterClause(filter));
+                List<String> args = new ArrayList<>();
+                if (cursor != null) {
+                    String[] key = cursor.split("\\|", 3);
+                    if (where.length() > 0) {
+                        where.append(" AND ");
+                    }
+                    // заметки строго после курсора, как keyset на сервере
+                    where.append("(is_pinned < ? OR (is_pinned = ? AND updated_at < ?) " +
+                        "OR (is_pinned = ? AND updated_at = ? AND id < ?))");
+                    args.add(key[0]);
+                    args.add(key[0]);
+                    args.add(key[1]);
+                    args.add(key[0]);
+                    args.add(key[1]);
+                    args.add(key[2]);
+                }
+                // лишняя строка показывает, есть ли следующая страница
+                Cursor rows = db.query("notes", new String[] {"json"},
+                    where.length() > 0 ? where.toString() : null, args.toArray(new String[0]),
+                    null, null, "is_pinned DESC, updated_at DESC, id DESC", String.valueOf(limit + 1));
+                try {
+                    while (rows.moveToNext()) {
+                        Note note = decodeNote(rows.getString(0));
+                        if (note != null) {
+                            page.notes.add(note);
+                        }
+                    }
+                } finally {
+                    rows.close();
+                }
+                if (page.notes.size() > limit) {
+                    page.notes.remove(page.notes.size() - 1);
+                    page.nextCursor = cursorOf(page.notes.get(page.notes.size() - 1));
+                }
+            }
+            mainHandler.post(() -> callback.onResult(page));
+        });
+    }
+
+    // null, если заметки нет в базе
+    public void readNote(int noteId, Callback<Note> callback) {
+        String owner = currentOwner();
+        submit(() -> {
+            Note note = null;
+            SQLiteDatabase db = helper.getReadableDatabase();
+            if (owner.equals(readMeta(db, META_OWNER))) {
+                Cursor rows = db.query("notes", new String[] {"json"}, "id = ?",
+                    new String[] {String.valueOf(noteId)}, null, null, null);
+                try {
+                    if (rows.moveToFirst()) {
+                        note = decodeNote(rows.getString(0));
+                    }
+                } finally {
+                    rows.close();
+                }
+            }
+            Note result = note;
+            mainHandler.post(() -> callback.onResult(result));
+        });
+    }
+
+    // null, если полной загрузки заметок этого пользователя еще не было
+    public void readAllNotes(Callback<List<Note>> callback) {
+        String owner = currentOwner();
+        submit(() -> {
+            SQLiteDatabase db = helper.getReadableDatabase();
+            List<Note> notes = hasNotes(db, owner) ? new ArrayList<>() : null;
+            if (notes != null) {
+                Cursor rows = db.query("notes", new String[] {"json"}, null, null, null, null, null);
+                try {
+                    while (rows.moveToNext()) {
+                        Note note = decodeNote(rows.getString(0));
+                        if (note != null) {
+                            notes.add(note);
+                        }
+                    }
+                } finally {
+                    rows.close();
+                }
+            }
+            mainHandler.post(() -> callback.onResult(notes));
+        });
+    }
+
+    // полная загрузка заменяет все заметки одним коммитом, но порции пишутся по мере
+    // прихода: в памяти не копится весь список. порция - короткая транзакция
+    // в notes_incoming, чтения списка между ними видят прежние заметки.
+    // commit переносит накопленное в notes, abort выбрасывает, один из них
+    // должен быть вызван обязательно. методы вызываются на main потоке
+    public class NotesReplace {
+        private final String owner = currentOwner();
+        private boolean started;
+        private boolean finished;
+
+        public void append(List<Note> chunk) {
+            if (finished) {
+                return;
+            }
+            // остатки загрузки, прерванной вместе с процессом
+            boolean clear = !started;
+            started = true;
+            dbHandler.post(() -> {
+                SQLiteDatabase db = helper.getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    if (clear) {
+                        db.delete("notes_incoming", null, null);
+                    }
+                    SQLiteStatement insert = compileNoteInsert(db, "notes_incoming");
+                    try {
+                        for (Note note : chunk) {
+                            bindNote(insert, note);
+                            insert.executeInsert();
+                        }
+                    } finally {
+                        insert.close();
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            });
+        }
+
+        // done вызывается после коммита
+        public void commit(Runnable done) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            boolean empty = !started;
+            dbHandler.post(() -> {
+                SQLiteDatabase db = helper.getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    if (!owner.equals(readMeta(db, META_OWNER))) {
+                        clearAll(db);
+                        writeMeta(db, META_OWNER, owner);
+                    }
+                    db.delete("notes", null, null);
+                    if (!empty) {
+                        db.execSQL("INSERT INTO notes SELECT * FROM notes_incoming");
+                        db.delete("notes_incoming", null, null);
+                    }
+                    writeMeta(db, META_NOTES_LOADED, "1");
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                postDone(done);
+            });
+        }
+
+        // загрузка оборвалась, в базе остаются прежние заметки
+        public void abort() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            if (started) {
+                dbHandler.post(() -> helper.getWritableDatabase().delete("notes_incoming", null, null));
+            }
+        }
+    }
+
+    public NotesReplace beginReplaceNotes() {
+        return new NotesReplace();
+    }
+
+    // дельта синхронизации: заметки, удаления и категории одной транзакцией
+    public void applyDelta(SyncEngine.SyncDelta delta, Runnable done) {
+        String owner = currentOwner();
+        submit(() -> {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                // дельта без снимка заметок этого пользователя ничего не дополнит
+                if (hasNotes(db, owner)) {
+                    upsertCategories(db, delta.categories);
+                    // в дельте у заметок только category_id, категория берется из базы
+                    Map<Integer, Category> categoryById = new HashMap<>();
+                    for (Category category : readCategories(db)) {
+                        categoryById.put(category.getId(), category);
+                    }
+                    SQLiteStatement insert = compileNoteInsert(db, "notes");
+                    try {
+                        for (Note note : delta.notes) {
+                            if (note.getCategoryId() != null && categoryById.containsKey(note.getCategoryId())) {
+                                note.setCategory(categoryById.get(note.getCategoryId()));
+                            }
+                            bindNote(insert, note);
+                            insert.executeInsert();
+                        }
+                    } finally {
+                        insert.close();
+                    }
+                    SQLiteStatement delete = db.compileStatement("DELETE FROM notes WHERE id = ?");
+                    try {
+                        for (int noteId : delta.deletedNoteIds) {
+                            delete.bindLong(1, noteId);
+                            delete.executeUpdateDelete();
+                        }
+                    } finally {
+                        delete.close();
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            postDone(done);
+        });
+    }
+
+    // категории
+
+    public void readCategories(Callback<List<Category>> callback) {
+        String owner = currentOwner();
+        submit(() -> {
+            SQLiteDatabase db = helper.getReadableDatabase();
+            List<Category> categories = owner.equals(readMeta(db, META_OWNER)) ?
+                readCategories(db) : new ArrayList<>();
+            mainHandler.post(() -> callback.onResult(categories));
+        });
+    }
+
+    public void replaceCategories(List<Category> categories) {
+        replaceTable("categories", () -> {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            upsertCategories(db, categories);
+        });
+    }
+
+    // списки canvas и графов
+
+    public void readCanvases(Callback<List<CanvasItem>> callback) {
+        String owner = currentOwner();
+        submit(() -> {
+            List<CanvasItem> canvases = new ArrayList<>();
+            SQLiteDatabase db = helper.getReadableDatabase();
+            if (owner.equals(readMeta(db, META_OWNER))) {
+                Cursor rows = db.query("canvases", new String[] {"id", "name", "created_at", "updated_at"},
+                    null, null, null, null, "position");
+                try {
+                    while (rows.moveToNext()) {
+                        CanvasItem canvas = new CanvasItem();
+                        canvas.setId(rows.getInt(0));
+                        canvas.setName(rows.getString(1));
+                        canvas.setCreatedAt(rows.getString(2));
+                        canvas.setUpdatedAt(rows.getString(3));
+                        canvases.add(canvas);
+                    }
+                } finally {
+                    rows.close();
+                }
+            }
+            mainHandler.post(() -> callback.onResult(canvases));
+        });
+    }
+
+    public void replaceCanvases(List<CanvasItem> canvases) {
+        replaceTable("canvases", () -> {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO canvases " +
+                "(id, position, name, created_at, updated_at) VALUES (?, ?, ?, ?, ?)");
+            try {
+                for (int i = 0; i < canvases.size(); i++) {
+                    CanvasItem canvas = canvases.get(i);
+                    insert.bindLong(1, canvas.getId());
+                    insert.bindLong(2, i);
+                    bindText(insert, 3, canvas.getName());
+                    bindText(insert, 4, canvas.getCreatedAt());
+                    bindText(insert, 5, canvas.getUpdatedAt());
+                    insert.executeInsert();
+                }
+            } finally {
+                insert.close();
+            }
+        });
+    }
+
+    public void readGraphs(Callback<List<GraphItem>> callback) {
+        String owner = currentOwner();
+        submit(() -> {
+            List<GraphItem> graphs = new ArrayList<>();
+            SQLiteDatabase db = helper.getReadableDatabase();
+            if (owner.equals(readMeta(db, META_OWNER))) {
+                Cursor rows = db.query("graph_states", new String[] {"id", "name", "layout", "created_at", "updated_at"},
+                    null, null, null, null, "position");
+                try {
+                    while (rows.moveToNext()) {
+                        GraphItem graph = new GraphItem();
+                        graph.setId(rows.getInt(0));
+                        graph.setName(rows.getString(1));
+                        graph.setLayout(rows.getString(2));
+                        graph.setCreatedAt(rows.getString(3));
+                        graph.setUpdatedAt(rows.getString(4));
+                        graphs.add(graph);
+                    }
+                } finally {
+                    rows.close();
+                }
+            }
+            mainHandler.post(() -> callback.onResult(graphs));
+        });
+    }
+
+    public void replaceGraphs(List<GraphItem> graphs) {
+        replaceTable("graph_states", () -> {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            SQLiteStatement insert = db.compileStatement("INSERT OR REPLACE INTO graph_states " +
+                "(id, position, name, layout, created_at, updated_at) VALUES (?, ?, ?, ?, ?, ?)");
+            try {
+                for (int i = 0; i < graphs.size(); i++) {
+                    GraphItem graph = graphs.get(i);
+                    insert.bindLong(1, graph.getId());
+                    insert.bindLong(2, i);
+                    bindText(insert, 3, graph.getName());
+                    bindText(insert, 4, graph.getLayout());
+                    bindText(insert, 5, graph.getCreatedAt());
+                    bindText(insert, 6, graph.getUpdatedAt());
+                    insert.executeInsert();
+                }
+            } finally {
+                insert.close();
+            }
+        });
+    }
+
+    // список целиком заменяет таблицу, все в одной транзакции
+    private void replaceTable(String table, Runnable fill) {
+        String owner = currentOwner();
+        submit(() -> {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                if (!owner.equals(readMeta(db, META_OWNER))) {
+                    clearAll(db);
+                    writeMeta(db, META_OWNER, owner);
+                }
+                db.delete(table, null, null);
+                fill.run();
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        });
+    }
+
+    private static List<Category> readCategories(SQLiteDatabase db) {
+        List<Category> categories = new ArrayList<>();
+        Cursor rows = db.query("categories", new String[] {"json"}, null, null, null, null, "position");
+        try {
+            while (rows.moveToNext()) {
+                try {
+                    categories.add(ModelCodec.decode(rows.getString(0), ModelCodec::readCategory));
+                } catch (IOException | RuntimeException e) {
+                    // испорченная строка перезапишется со следующим списком
+                }
+            }
+        } finally {
+            rows.close();
+        }
+        return categories;
+    }
+
+    private static void upsertCategories(SQLiteDatabase db, List<Category> categories) {
+        // новые категории встают в конец, обновленные сохраняют место
+        long position = 0;
+        Cursor last = db.rawQuery("SELECT MAX(position) FROM categories", null);
+        try {
+            if (last.moveToFirst() && !last.isNull(0)) {
+                position = last.getLong(0) + 1;
+            }
+        } finally {
+            last.close();
+        }
+        SQLiteStatement update = db.compileStatement("UPDATE categories SET json = ? WHERE id = ?");
+        SQLiteStatement insert = db.compileStatement("INSERT INTO categories (id, position, json) VALUES (?, ?, ?)");
+        try {
+            for (Category category : categories) {
+                String json = ModelCodec.encode(writer -> ModelCodec.writeCategory(writer, category));
+                update.bindString(1, json);
+                update.bindLong(2, category.getId());
+                if (update.executeUpdateDelete() == 0) {
+                    insert.bindLong(1, category.getId());
+                    insert.bindLong(2, position++);
+                    insert.bindString(3, json);
+                    insert.executeInsert();
+                }
+            }
+        } finally {
+            update.close();
+            insert.close();
+        }
+    }
+
+    private static SQLiteStatement compileNoteInsert(SQLiteDatabase db, String table) {
+        return db.compileStatement("INSERT OR REPLACE INTO " + table + " " +
+            "(id, is_pinned, is_archived, category_id, updated_at, json) VALUES (?, ?, ?, ?, ?, ?)");
+    }
+
+    private static void bindNote(SQLiteStatement insert, Note note) {
+        insert.clearBindings();
+        insert.bindLong(1, note.getId());
+        insert.bindLong(2, note.isPinned() ? 1 : 0);
+        insert.bindLong(3, note.isArchived() ? 1 : 0);
+        if (note.getCategoryId() != null) {
+            insert.bindLong(4, note.getCategoryId());
+        }
+        insert.bindString(5, note.getUpdatedAt() != null ? note.getUpdatedAt() : "");
+        insert.bindString(6, ModelCodec.encode(writer -> ModelCodec.writeNote(writer, note)));
+    }
+
+    private static void bindText(SQLiteStatement statement, int index, String value) {
+        if (value != null) {
+            statement.bindString(index, value);
+        } else {
+            statement.bindNull(index);
+        }
+    }
+
+    private static Note decodeNote(String json) {
+        try {
+            JsonReader reader = new JsonReader(new StringReader(json));
+            try {
+                return ModelCodec.readNote(reader);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            // испорченная строка перезапишется при следующей синхронизации
+            return null;
+        }
+    }
+
+    // ключ заметки для следующей страницы, сравнивается как в ORDER BY
+    static String cursorOf(Note note) {
+        return (note.isPinned() ? 1 : 0) + "|" + (note.getUpdatedAt() != null ? note.getUpdatedAt() : "") +
+            "|" + note.getId();
+    }
+
+    private static String filterClause(String filter) {
+        switch (filter) {
+            case "pinned": return "is_pinned = 1";
+            case "archived": return "is_archived = 1";
+            case "categories": return "category_id IS NOT NULL";
+            default: return "";
+        }
+    }
+
+    private static void clearAll(SQLiteDatabase db) {
+        db.delete("notes", null, null);
+        db.delete("categories", null, null);
+        db.delete("canvases", null, null);
+        db.delete("graph_states", null, null);
+        db.delete("meta", null, null);
+    }
+
+    private static boolean hasNotes(SQLiteDatabase db, String owner) {
+        return owner.equals(readMeta(db, META_OWNER)) && readMeta(db, META_NOTES_LOADED) != null;
+    }
+
+    private static String readMeta(SQLiteDatabase db, String key) {
+        Cursor rows = db.query("meta", new String[] {"value"}, "key = ?", new String[] {key}, null, null, null);
+        try {
+            return rows.moveToFirst() ? rows.getString(0) : null;
+        } finally {
+            rows.close();
+        }
+    }
+
+    private static void writeMeta(SQLiteDatabase db, String key, String value) {
+        ContentValues values = new ContentValues();
+        values.put("key", key);
+        values.put("value", value);
+        db.insertWithOnConflict("meta", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    private void submit(Runnable task) {
+        dbHandler.post(task);
+    }
+
+    private void postDone(Runnable done) {
+        if (done != null) {
+            mainHandler.post(done);
+        }
+    }
+
+    private String currentOwner() {
+        return ResponseCache.key(ApiService.getInstance(context).getToken(), "/store");
+    }
+}
@@ -35,7 +35,7 @@ public class LoginActivity extends AppCompatActivity implements SensorEventListe
 
         initViews();
         initSensors();
-        apiService = new ApiService(this);
+        apiService = ApiService.getInstance(this).scopedTo(this);
     }
 
     private void initViews() {
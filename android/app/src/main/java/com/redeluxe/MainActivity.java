@@ -3,14 +3,19 @@ package com.redeluxe;
 import android.animation.Animator;
 import android.animation.ObjectAnimator;
 import android.content.Intent;
+import android.graphics.Typeface;
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.View;
 import android.view.animation.OvershootInterpolator;
 import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.LinearLayout;
+import android.widget.ScrollView;
 import android.widget.TextView;
 import android.widget.Toast;
+import androidx.annotation.NonNull;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.recyclerview.widget.LinearLayoutManager;
@@ -18,9 +23,9 @@ import androidx.recyclerview.widget.RecyclerView;
 import com.google.android.material.floatingactionbutton.ExtendedFloatingActionButton;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import com.google.android.material.chip.Chip;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -66,11 +71,14 @@ class ListItem {
     public static final int TYPE_NOTE = 0;
     public static final int TYPE_CANVAS = 1;
     public static final int TYPE_GRAPH = 2;
+    // узел внутри canvas или графа, найденный поиском
+    public static final int TYPE_NODE = 3;
     
     private int type;
     private Note note;
     private CanvasItem canvas;
     private GraphItem graph;
+    private BoardIndex.Hit nodeHit;
     
     public ListItem(Note note) {
         this.type = TYPE_NOTE;
@@ -87,17 +95,35 @@ class ListItem {
         this.graph = graph;
     }
     
+    public ListItem(BoardIndex.Hit nodeHit) {
+        this.type = TYPE_NODE;
+        this.nodeHit = nodeHit;
+    }
+    
     public int getType() { return type; }
     public Note getNote() { return note; }
     public CanvasItem getCanvas() { return canvas; }
     public GraphItem getGraph() { return graph; }
+    public BoardIndex.Hit getNodeHit() { return nodeHit; }
 }
 
 public class MainActivity extends AppCompatActivity {
     private RecyclerView notesRecyclerView;
     private NotesAdapter notesAdapter;
     private ApiService apiService;
-    private List<Note> allNotes = new ArrayList<>();
+    private NoteOutbox noteOutbox;
+    private SyncEngine syncEngine;
+    private LocalStore localStore;
+    // идущая полная загрузка заметок в базу
+    private LocalStore.NotesReplace notesReplace;
+    private final NoteOutbox.Listener outboxListener = this::loadNotes;
+    // заметки главного списка, постранично из локальной базы
+    private PagedNoteSource pagedNotes;
+    private NoteSearch noteSearch;
+    private NoteIndex noteIndex;
+    private BoardIndex boardIndex;
+    private BoardPrefetcher boardPrefetcher;
+    private List<Category> allCategories = new ArrayList<>();
     private List<CanvasItem> allCanvases = new ArrayList<>();
     private List<GraphItem> allGraphs = new ArrayList<>();
     private List<ListItem> filteredItems = new ArrayList<>();
@@ -124,8 +150,31 @@ public class MainActivity extends AppCompatActivity {
         setupRecyclerView();
         setupListeners();
 
-        apiService = new ApiService(this);
-        loadAllData();
+        apiService = ApiService.getInstance(this).scopedTo(this);
+        localStore = LocalStore.getInstance(this);
+        syncEngine = new SyncEngine(this, apiService, localStore);
+        noteOutbox = NoteOutbox.getInstance(this);
+        noteOutbox.addListener(outboxListener);
+        pagedNotes = new PagedNoteSource(localStore, noteOutbox, () -> {
+            notesAdapter.notifyDataSetChanged();
+            updateEmptyState();
+            updateNotesCount();
+        });
+        noteIndex = NoteIndex.getInstance(this);
+        boardIndex = BoardIndex.getInstance(this);
+        boardPrefetcher = BoardPrefetcher.getInstance(this);
+        noteSearch = new NoteSearch(apiService, noteIndex, new NoteSearch.Listener() {
+            @Override
+            public void onSearchResults(String query, List<Note> notes) {
+                showSearchResults(query, notes);
+            }
+
+            @Override
+            public void onSearchError(String error) {
+                Toast.makeText(MainActivity.this, "ошибка поиска: " + error, Toast.LENGTH_SHORT).show();
+            }
+        });
+        // данные загружает onResume, он идет сразу после onCreate
     }
 
     private void initViews() {
@@ -206,6 +255,23 @@ public class MainActivity extends AppCompatActivity {
                 startActivity(intent);
             }
             
+            // узел из поиска: доска открывается с этим узлом в центре экрана
+            @Override
+            public void onNodeHitClick(BoardIndex.Hit hit) {
+                Intent intent;
+                if (hit.kind.equals(BoardIndex.KIND_CANVAS)) {
+                    intent = new Intent(MainActivity.this, CanvasActivity.class);
+                    intent.putExtra("canvas_id", hit.boardId);
+                    intent.putExtra("canvas_name", hit.boardName);
+                } else {
+                    intent = new Intent(MainActivity.this, GraphActivity.class);
+                    intent.putExtra("graph_id", hit.boardId);
+                    intent.putExtra("graph_name", hit.boardName);
+                }
+                intent.putExtra("focus_node", hit.nodeKey);
+                startActivity(intent);
+            }
+            
             @Override
             public void onCanvasDelete(CanvasItem canvas) {
                 new AlertDialog.Builder(MainActivity.this)
@@ -227,8 +293,43 @@ public class MainActivity extends AppCompatActivity {
             }
         });
 
-        notesRecyclerView.setLayoutManager(new LinearLayoutManager(this));
+        LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        notesRecyclerView.setLayoutManager(layoutManager);
         notesRecyclerView.setAdapter(notesAdapter);
+        // страницы подгружаются заранее, пока до них еще не докрутили
+        notesRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                int first = layoutManager.findFirstVisibleItemPosition();
+                if (first == RecyclerView.NO_POSITION) {
+                    return;
+                }
+                int last = layoutManager.findLastVisibleItemPosition();
+                PagedNoteSource source = notesAdapter.getNoteSource();
+                if (source != null) {
+                    source.onVisibleRange(first, last);
+                }
+                prefetchVisibleBoards(first, last);
+            }
+        });
+    }
+
+    // документы видимых canvas и графов заранее грузятся в кэш
+    private void prefetchVisibleBoards(int first, int last) {
+        int noteCount = notesAdapter.getItemCount() - filteredItems.size();
+        List<CanvasItem> canvases = new ArrayList<>();
+        List<GraphItem> graphs = new ArrayList<>();
+        for (int position = Math.max(first, noteCount); position <= last; position++) {
+            ListItem item = filteredItems.get(position - noteCount);
+            if (item.getType() == ListItem.TYPE_CANVAS) {
+                canvases.add(item.getCanvas());
+            } else if (item.getType() == ListItem.TYPE_GRAPH) {
+                graphs.add(item.getGraph());
+            }
+        }
+        if (!canvases.isEmpty() || !graphs.isEmpty()) {
+            boardPrefetcher.prefetchVisible(canvases, graphs);
+        }
     }
 
     private void setupListeners() {
@@ -273,11 +374,28 @@ public class MainActivity extends AppCompatActivity {
         chipCanvas.setOnClickListener(v -> applyFilter("canvas"));
         chipGraphs.setOnClickListener(v -> applyFilter("graphs"));
 
-        // Search
+        // Search: по мере ввода, с клавиатуры - сразу
+        searchInput.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                if (s.toString().trim().isEmpty()) {
+                    noteSearch.cancel();
+                    applyFilter(currentFilter);
+                } else {
+                    noteSearch.onQueryChanged(s.toString());
+                }
+            }
+        });
         searchInput.setOnEditorActionListener((v, actionId, event) -> {
             String query = searchInput.getText().toString().trim();
             if (!query.isEmpty()) {
-                searchNotes(query);
+                noteSearch.submit(query);
             } else {
                 applyFilter(currentFilter);
             }
@@ -366,23 +484,25 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void showMainMenu() {
-        String[] options = {
-            "📊 статистика",
-            "💾 создать backup",
-            "⚙️ настройки",
-            "ℹ️ о приложении"
-        };
+        List<String> options = new ArrayList<>();
+        List<Runnable> actions = new ArrayList<>();
+        options.add("📊 статистика");
+        actions.add(this::showStatsDialog);
+        options.add("💾 создать backup");
+        actions.add(this::createBackup);
+        options.add("⚙️ настройки");
+        actions.add(this::showSettings);
+        // метрики сети нужны только при разработке, в релизной сборке пункта нет
+        if (BuildConfig.DEBUG) {
+            options.add("🛠 сеть");
+            actions.add(this::showNetworkMetrics);
+        }
+        options.add("ℹ️ о приложении");
+        actions.add(this::showAbout);
 
         new AlertDialog.Builder(this)
             .setTitle("◢ redeluxe")
-            .setItems(options, (dialog, which) -> {
-                switch (which) {
-                    case 0: showStatsDialog(); break;
-                    case 1: createBackup(); break;
-                    case 2: showSettings(); break;
-                    case 3: showAbout(); break;
-                }
-            })
+            .setItems(options.toArray(new String[0]), (dialog, which) -> actions.get(which).run())
             .setNegativeButton("отмена", null)
             .show();
     }
@@ -433,6 +553,42 @@ public class MainActivity extends AppCompatActivity {
         Toast.makeText(this, "настройки в разработке", Toast.LENGTH_SHORT).show();
     }
 
+    // метрики запросов с момента запуска, json сохраняется для сравнения сборок
+    private void showNetworkMetrics() {
+        TextView report = new TextView(this);
+        report.setText(apiService.getMetricsReport());
+        report.setTypeface(Typeface.MONOSPACE);
+        report.setTextSize(11);
+        report.setTextIsSelectable(true);
+        int padding = (int) (16 * getResources().getDisplayMetrics().density);
+        report.setPadding(padding, padding, padding, padding);
+        ScrollView scroll = new ScrollView(this);
+        scroll.addView(report);
+
+        new AlertDialog.Builder(this)
+            .setTitle("🛠 сеть")
+            .setView(scroll)
+            .setPositiveButton("ok", null)
+            .setNeutralButton("сбросить", (dialog, which) -> ApiMetrics.getInstance().reset())
+            .setNegativeButton("json", (dialog, which) -> dumpNetworkMetrics())
+            .show();
+    }
+
+    private void dumpNetworkMetrics() {
+        File file = new File(getExternalFilesDir(null), "api_metrics.json");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(ApiMetrics.getInstance().toJson().getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            Toast.makeText(this, "сохранено: " + file.getAbsolutePath(), Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            Toast.makeText(this, "ошибка записи: " + e.getMessage(), Toast.LENGTH_SHORT).show();
+        }
+    }
+
     private void showAbout() {
         new AlertDialog.Builder(this)
             .setTitle("◢ redeluxe")
@@ -441,6 +597,7 @@ public class MainActivity extends AppCompatActivity {
             .show();
     }
 
+    // списки сначала рисуются из локальной базы, затем сверяются с сервером
     private void loadAllData() {
         loadNotes();
         loadCanvases();
@@ -448,28 +605,29 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void loadCanvases() {
-        apiService.getCanvases(new ApiService.ApiCallback<String>() {
+        if (!allCanvases.isEmpty()) {
+            fetchCanvases();
+            return;
+        }
+        localStore.readCanvases(stored -> {
+            if (allCanvases.isEmpty() && !stored.isEmpty()) {
+                allCanvases.addAll(stored);
+                applyFilter(currentFilter);
+            }
+            fetchCanvases();
+        });
+    }
+
+    private void fetchCanvases() {
+        apiService.getCanvases(ApiService.CacheMode.VALIDATE, new ApiService.ApiCallback<List<CanvasItem>>() {
             @Override
-            public void onSuccess(String result) {
-                try {
-                    JSONObject json = new JSONObject(result);
-                    JSONArray canvasesArray = json.getJSONArray("canvases");
-                    
-                    allCanvases.clear();
-                    for (int i = 0; i < canvasesArray.length(); i++) {
-                        JSONObject canvasJson = canvasesArray.getJSONObject(i);
-                        CanvasItem canvas = new CanvasItem();
-                        canvas.setId(canvasJson.getInt("id"));
-                        canvas.setName(canvasJson.getString("name"));
-                        canvas.setCreatedAt(canvasJson.getString("created_at"));
-                        canvas.setUpdatedAt(canvasJson.getString("updated_at"));
-                        allCanvases.add(canvas);
-                    }
-                    
-                    applyFilter(currentFilter);
-                } catch (JSONException e) {
-                    // игнорируем ошибку загрузки canvas
-                }
+            public void onSuccess(List<CanvasItem> canvases) {
+                localStore.replaceCanvases(canvases);
+                allCanvases.clear();
+                allCanvases.addAll(canvases);
+                boardIndex.syncCanvases(canvases);
+                boardPrefetcher.prefetchRecent(allCanvases, allGraphs);
+                applyFilter(currentFilter);
             }
 
             @Override
@@ -480,30 +638,29 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void loadGraphs() {
-        apiService.getGraphStates(new ApiService.ApiCallback<String>() {
+        if (!allGraphs.isEmpty()) {
+            fetchGraphs();
+            return;
+        }
+        localStore.readGraphs(stored -> {
+            if (allGraphs.isEmpty() && !stored.isEmpty()) {
+                allGraphs.addAll(stored);
+                applyFilter(currentFilter);
+            }
+            fetchGraphs();
+        });
+    }
+
+    private void fetchGraphs() {
+        apiService.getGraphStates(ApiService.CacheMode.VALIDATE, new ApiService.ApiCallback<List<GraphItem>>() {
             @Override
-            public void onSuccess(String result) {
-                try {
-                    JSONObject json = new JSONObject(result);
-                    JSONArray statesArray = json.getJSONArray("states");
-                    
-                    allGraphs.clear();
-                    for (int i = 0; i < statesArray.length(); i++) {
-                        JSONObject stateJson = statesArray.getJSONObject(i);
-                        
-                        GraphItem graph = new GraphItem();
-                        graph.setId(stateJson.getInt("id"));
-                        graph.setName(stateJson.getString("name"));
-                        graph.setLayout(stateJson.optString("layout", "force"));
-                        graph.setCreatedAt(stateJson.getString("created_at"));
-                        graph.setUpdatedAt(stateJson.getString("updated_at"));
-                        allGraphs.add(graph);
-                    }
-                    
-                    applyFilter(currentFilter);
-                } catch (JSONException e) {
-                    // игнорируем ошибку загрузки графов
-                }
+            public void onSuccess(List<GraphItem> graphs) {
+                localStore.replaceGraphs(graphs);
+                allGraphs.clear();
+                allGraphs.addAll(graphs);
+                boardIndex.syncGraphs(graphs);
+                boardPrefetcher.prefetchRecent(allCanvases, allGraphs);
+                applyFilter(currentFilter);
             }
 
             @Override
@@ -513,37 +670,143 @@ public class MainActivity extends AppCompatActivity {
         });
     }
 
+    // список сразу рисуется из локальной базы. полная загрузка только при первом
+    // запуске или после потери отметки синхронизации, в остальных случаях
+    // приходят изменения с прошлой синхронизации
     private void loadNotes() {
-        apiService.getNotes(new ApiService.ApiCallback<List<Note>>() {
+        if (!pagedNotes.isStarted()) {
+            reloadNotes();
+        }
+        if (!syncEngine.hasWatermark()) {
+            syncEngine.beginFullLoad(this::fullLoadNotes);
+        } else {
+            noteIndex.ensureBuilt();
+            syncNotes();
+        }
+    }
+
+    // порции пишутся в базу по мере чтения ответа, весь список в памяти не собирается.
+    // список заметок подменяется одним коммитом в конце, после него сохраняется отметка.
+    // при первом запуске первая порция показывается сразу
+    private void fullLoadNotes(Runnable commitWatermark, Runnable failed) {
+        LocalStore.NotesReplace replace = localStore.beginReplaceNotes();
+        notesReplace = replace;
+        apiService.getNotesStreaming(ApiService.CacheMode.NONE, new ApiService.StreamCallback<Note>() {
             @Override
-            public void onSuccess(List<Note> notes) {
-                allNotes.clear();
-                allNotes.addAll(notes);
-                applyFilter(currentFilter);
-                updateEmptyState();
-                updateNotesCount();
+            public void onChunk(List<Note> chunk, boolean first) {
+                replace.append(chunk);
+                if (first) {
+                    pagedNotes.showFirstChunk(chunk);
+                }
+            }
+
+            @Override
+            public void onComplete() {
+                notesReplace = null;
+                replace.commit(() -> {
+                    commitWatermark.run();
+                    // без отметки дельты не восстановят индекс, собираем его заново
+                    noteIndex.rebuild();
+                    reloadNotes();
+                });
             }
 
             @Override
             public void onError(String error) {
+                notesReplace = null;
+                replace.abort();
+                failed.run();
+                // остаемся на данных из базы, полная загрузка повторится при следующем обновлении
                 Toast.makeText(MainActivity.this, "ошибка загрузки: " + error, Toast.LENGTH_SHORT).show();
             }
         });
     }
 
+    private void reloadNotes() {
+        noteIndex.ensureBuilt();
+        loadCategories();
+        // на вкладках canvas и графов источник держит последний фильтр заметок
+        String noteFilter = noteFilter(currentFilter);
+        pagedNotes.reload(noteFilter != null ? noteFilter : pagedNotes.getFilter());
+    }
+
+    private void syncNotes() {
+        syncEngine.syncDelta(new ApiService.ApiCallback<SyncEngine.SyncDelta>() {
+            @Override
+            public void onSuccess(SyncEngine.SyncDelta delta) {
+                SyncEngine.mergeCategories(allCategories, delta);
+                pagedNotes.applyDelta(delta, allCategories);
+                List<Note> localNotes = new ArrayList<>();
+                noteOutbox.applyPending(localNotes);
+                noteIndex.applyDelta(delta, localNotes);
+            }
+
+            @Override
+            public void onError(String error) {
+                // остаемся на данных в памяти, следующая синхронизация заберет изменения
+            }
+        });
+    }
+
+    private void loadCategories() {
+        if (!allCategories.isEmpty()) {
+            fetchCategories();
+            return;
+        }
+        localStore.readCategories(stored -> {
+            if (allCategories.isEmpty()) {
+                allCategories = new ArrayList<>(stored);
+            }
+            fetchCategories();
+        });
+    }
+
+    private void fetchCategories() {
+        apiService.getCategories(ApiService.CacheMode.VALIDATE, new ApiService.ApiCallback<List<Category>>() {
+            @Override
+            public void onSuccess(List<Category> categories) {
+                localStore.replaceCategories(categories);
+                allCategories = new ArrayList<>(categories);
+            }
+
+            @Override
+            public void onError(String error) {
+                // категории обновятся со следующей дельтой
+            }
+        });
+    }
+
+    // пока не все страницы пройдены, точное число заметок неизвестно
     private void updateNotesCount() {
-        notesCountText.setText(String.valueOf(filteredItems.size()));
+        PagedNoteSource source = notesAdapter.getNoteSource();
+        String count = String.valueOf(notesAdapter.getItemCount());
+        notesCountText.setText(source != null && !source.isEndReached() ? count + "+" : count);
+    }
+
+    // фильтр заметок для постраничного списка, null - в списке нет заметок
+    private static String noteFilter(String filter) {
+        switch (filter) {
+            case "canvas":
+            case "graphs":
+                return null;
+            default:
+                return filter;
+        }
     }
 
     private void applyFilter(String filter) {
         currentFilter = filter;
         filteredItems.clear();
 
+        String noteFilter = noteFilter(filter);
+        if (noteFilter != null && pagedNotes.isStarted() && !noteFilter.equals(pagedNotes.getFilter())) {
+            pagedNotes.reload(noteFilter);
+        }
+        notesAdapter.setNoteSource(noteFilter != null ? pagedNotes : null);
+
+        // canvas и графы идут после всех заметок
         switch (filter) {
             case "all":
-                for (Note note : allNotes) {
-                    filteredItems.add(new ListItem(note));
-                }
                 for (CanvasItem canvas : allCanvases) {
                     filteredItems.add(new ListItem(canvas));
                 }
@@ -551,27 +814,6 @@ public class MainActivity extends AppCompatActivity {
                     filteredItems.add(new ListItem(graph));
                 }
                 break;
-            case "pinned":
-                for (Note note : allNotes) {
-                    if (note.isPinned()) {
-                        filteredItems.add(new ListItem(note));
-                    }
-                }
-                break;
-            case "archived":
-                for (Note note : allNotes) {
-                    if (note.isArchived()) {
-                        filteredItems.add(new ListItem(note));
-                    }
-                }
-                break;
-            case "categories":
-                for (Note note : allNotes) {
-                    if (note.getCategory() != null) {
-                        filteredItems.add(new ListItem(note));
-                    }
-                }
-                break;
             case "canvas":
                 for (CanvasItem canvas : allCanvases) {
                     filteredItems.add(new ListItem(canvas));
@@ -589,40 +831,37 @@ public class MainActivity extends AppCompatActivity {
         updateNotesCount();
     }
 
-    private void searchNotes(String query) {
-        apiService.searchNotes(query, new ApiService.ApiCallback<List<Note>>() {
-            @Override
-            public void onSuccess(List<Note> notes) {
-                filteredItems.clear();
-                for (Note note : notes) {
-                    filteredItems.add(new ListItem(note));
-                }
-                
-                // поиск по canvas
-                String lowerQuery = query.toLowerCase();
-                for (CanvasItem canvas : allCanvases) {
-                    if (canvas.getName().toLowerCase().contains(lowerQuery)) {
-                        filteredItems.add(new ListItem(canvas));
-                    }
-                }
-                
-                // поиск по графикам
-                for (GraphItem graph : allGraphs) {
-                    if (graph.getName().toLowerCase().contains(lowerQuery)) {
-                        filteredItems.add(new ListItem(graph));
-                    }
-                }
-                
-                notesAdapter.notifyDataSetChanged();
-                updateEmptyState();
-                updateNotesCount();
+    private void showSearchResults(String query, List<Note> notes) {
+        // результаты поиска показываются простым списком
+        notesAdapter.setNoteSource(null);
+        filteredItems.clear();
+        for (Note note : notes) {
+            filteredItems.add(new ListItem(note));
+        }
+        
+        // поиск по canvas
+        String lowerQuery = query.toLowerCase();
+        for (CanvasItem canvas : allCanvases) {
+            if (canvas.getName().toLowerCase().contains(lowerQuery)) {
+                filteredItems.add(new ListItem(canvas));
             }
-
-            @Override
-            public void onError(String error) {
-                Toast.makeText(MainActivity.this, "ошибка поиска: " + error, Toast.LENGTH_SHORT).show();
+        }
+        
+        // поиск по графикам
+        for (GraphItem graph : allGraphs) {
+            if (graph.getName().toLowerCase().contains(lowerQuery)) {
+                filteredItems.add(new ListItem(graph));
             }
-        });
+        }
+        
+        // поиск внутри canvas и графов
+        for (BoardIndex.Hit hit : boardIndex.search(query)) {
+            filteredItems.add(new ListItem(hit));
+        }
+        
+        notesAdapter.notifyDataSetChanged();
+        updateEmptyState();
+        updateNotesCount();
     }
 
     private void archiveNote(Note note) {
@@ -635,44 +874,22 @@ public class MainActivity extends AppCompatActivity {
         updateNote(note);
     }
 
+    // изменения уходят в офлайн-очередь, список обновляется сразу
     private void updateNote(Note note) {
-        apiService.updateNote(note.getId(), note, new ApiService.ApiCallback<Note>() {
-            @Override
-            public void onSuccess(Note updatedNote) {
-                for (int i = 0; i < allNotes.size(); i++) {
-                    if (allNotes.get(i).getId() == updatedNote.getId()) {
-                        allNotes.set(i, updatedNote);
-                        break;
-                    }
-                }
-                applyFilter(currentFilter);
-            }
-
-            @Override
-            public void onError(String error) {
-                Toast.makeText(MainActivity.this, "ошибка обновления: " + error, Toast.LENGTH_SHORT).show();
-            }
-        });
+        noteOutbox.update(note);
+        noteIndex.put(note);
+        pagedNotes.upsert(note);
     }
 
     private void deleteNote(Note note) {
-        apiService.deleteNote(note.getId(), new ApiService.ApiCallback<String>() {
-            @Override
-            public void onSuccess(String result) {
-                allNotes.remove(note);
-                applyFilter(currentFilter);
-                    Toast.makeText(MainActivity.this, "заметка удалена", Toast.LENGTH_SHORT).show();
-            }
-
-            @Override
-            public void onError(String error) {
-                    Toast.makeText(MainActivity.this, "ошибка удаления: " + error, Toast.LENGTH_SHORT).show();
-            }
-        });
+        noteOutbox.delete(note.getId());
+        noteIndex.remove(note.getId());
+        pagedNotes.remove(note.getId());
+        Toast.makeText(MainActivity.this, "заметка удалена", Toast.LENGTH_SHORT).show();
     }
 
     private void updateEmptyState() {
-        if (filteredItems.isEmpty()) {
+        if (notesAdapter.getItemCount() == 0) {
             emptyState.setVisibility(View.VISIBLE);
             notesRecyclerView.setVisibility(View.GONE);
         } else {
@@ -687,6 +904,17 @@ public class MainActivity extends AppCompatActivity {
         loadAllData();
     }
 
+    @Override
+    protected void onDestroy() {
+        noteOutbox.removeListener(outboxListener);
+        // запрос отменится вместе с экраном, транзакция не должна остаться открытой
+        if (notesReplace != null) {
+            notesReplace.abort();
+            notesReplace = null;
+        }
+        super.onDestroy();
+    }
+
     @Override
     public void onBackPressed() {
         if (isFabMenuOpen) {
@@ -705,23 +933,17 @@ public class MainActivity extends AppCompatActivity {
         dailyNote.setContent("# " + today + "\n\n## задачи\n- [ ] \n\n## заметки\n\n## рефлексия\n");
         dailyNote.setColor("#00ffff");
 
-        apiService.createNote(dailyNote, new ApiService.ApiCallback<Note>() {
-            @Override
-            public void onSuccess(Note note) {
-                Toast.makeText(MainActivity.this, "daily note создана", Toast.LENGTH_SHORT).show();
-                Intent intent = new Intent(MainActivity.this, NoteEditActivity.class);
-                intent.putExtra("note_id", note.getId());
-                intent.putExtra("note_title", note.getTitle());
-                intent.putExtra("note_content", note.getContent());
-                intent.putExtra("note_color", note.getColor());
-                startActivity(intent);
-            }
-
-            @Override
-            public void onError(String error) {
-                Toast.makeText(MainActivity.this, "ошибка создания daily note: " + error, Toast.LENGTH_SHORT).show();
-            }
-        });
+        // до ответа сервера редактор работает с локальным id заметки
+        int noteId = noteOutbox.create(dailyNote);
+        noteIndex.put(dailyNote);
+        pagedNotes.upsert(dailyNote);
+        Toast.makeText(MainActivity.this, "daily note создана", Toast.LENGTH_SHORT).show();
+        Intent intent = new Intent(MainActivity.this, NoteEditActivity.class);
+        intent.putExtra("note_id", noteId);
+        intent.putExtra("note_title", dailyNote.getTitle());
+        intent.putExtra("note_content", dailyNote.getContent());
+        intent.putExtra("note_color", dailyNote.getColor());
+        startActivity(intent);
     }
 
     private void showTemplatesDialog() {
@@ -751,18 +973,10 @@ public class MainActivity extends AppCompatActivity {
                 templateNote.setContent(templateContents[which]);
                 templateNote.setColor("#ff0080");
 
-                apiService.createNote(templateNote, new ApiService.ApiCallback<Note>() {
-                    @Override
-                    public void onSuccess(Note note) {
-                        Toast.makeText(MainActivity.this, "заметка из шаблона создана", Toast.LENGTH_SHORT).show();
-                        loadAllData();
-                    }
-
-                    @Override
-                    public void onError(String error) {
-                        Toast.makeText(MainActivity.this, "ошибка создания заметки: " + error, Toast.LENGTH_SHORT).show();
-                    }
-                });
+                noteOutbox.create(templateNote);
+                noteIndex.put(templateNote);
+                pagedNotes.upsert(templateNote);
+                Toast.makeText(MainActivity.this, "заметка из шаблона создана", Toast.LENGTH_SHORT).show();
             })
             .setNegativeButton("отмена", null)
             .show();
@@ -846,28 +1060,17 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void createNewCanvas(String name) {
-        apiService.createCanvas(name, 1920, 1080, new ApiService.ApiCallback<String>() {
+        apiService.createCanvas(name, 1920, 1080, new ApiService.ApiCallback<CanvasItem>() {
             @Override
-            public void onSuccess(String result) {
-                try {
-                    JSONObject json = new JSONObject(result);
-                    CanvasItem canvas = new CanvasItem();
-                    canvas.setId(json.getInt("id"));
-                    canvas.setName(json.getString("name"));
-                    canvas.setCreatedAt(json.getString("created_at"));
-                    canvas.setUpdatedAt(json.getString("updated_at"));
-                    
-                    allCanvases.add(canvas);
-                    applyFilter(currentFilter);
-                    
-                    // открываем созданный canvas
-                    Intent intent = new Intent(MainActivity.this, CanvasActivity.class);
-                    intent.putExtra("canvas_id", canvas.getId());
-                    intent.putExtra("canvas_name", canvas.getName());
-                    startActivity(intent);
-                } catch (JSONException e) {
-                    Toast.makeText(MainActivity.this, "ошибка создания canvas", Toast.LENGTH_SHORT).show();
-                }
+            public void onSuccess(CanvasItem canvas) {
+                allCanvases.add(canvas);
+                applyFilter(currentFilter);
+                
+                // открываем созданный canvas
+                Intent intent = new Intent(MainActivity.this, CanvasActivity.class);
+                intent.putExtra("canvas_id", canvas.getId());
+                intent.putExtra("canvas_name", canvas.getName());
+                startActivity(intent);
             }
 
             @Override
@@ -879,29 +1082,17 @@ public class MainActivity extends AppCompatActivity {
 
     private void createNewGraph(String name) {
         apiService.saveGraphState(name, "{}", "force", 1.0, 0.0, 0.0, "", 
-            new ApiService.ApiCallback<String>() {
+            new ApiService.ApiCallback<GraphItem>() {
             @Override
-            public void onSuccess(String result) {
-                try {
-                    JSONObject json = new JSONObject(result);
-                    GraphItem graph = new GraphItem();
-                    graph.setId(json.getInt("id"));
-                    graph.setName(json.getString("name"));
-                    graph.setLayout(json.optString("layout", "force"));
-                    graph.setCreatedAt(json.getString("created_at"));
-                    graph.setUpdatedAt(json.getString("updated_at"));
-                    
-                    allGraphs.add(graph);
-                    applyFilter(currentFilter);
-                    
-                    // открываем созданный граф
-                    Intent intent = new Intent(MainActivity.this, GraphActivity.class);
-                    intent.putExtra("graph_id", graph.getId());
-                    intent.putExtra("graph_name", graph.getName());
-                    startActivity(intent);
-                } catch (JSONException e) {
-                    Toast.makeText(MainActivity.this, "ошибка создания графа", Toast.LENGTH_SHORT).show();
-                }
+            public void onSuccess(GraphItem graph) {
+                allGraphs.add(graph);
+                applyFilter(currentFilter);
+                
+                // открываем созданный граф
+                Intent intent = new Intent(MainActivity.this, GraphActivity.class);
+                intent.putExtra("graph_id", graph.getId());
+                intent.putExtra("graph_name", graph.getName());
+                startActivity(intent);
             }
 
             @Override
@@ -915,6 +1106,8 @@ public class MainActivity extends AppCompatActivity {
         apiService.deleteCanvas(canvasId, new ApiService.ApiCallback<String>() {
             @Override
             public void onSuccess(String result) {
+                boardIndex.remove(BoardIndex.KIND_CANVAS, canvasId);
+                CanvasJournal.delete(MainActivity.this, canvasId);
                 Toast.makeText(MainActivity.this, "Canvas удален", Toast.LENGTH_SHORT).show();
                 loadAllData();
             }
@@ -930,6 +1123,7 @@ public class MainActivity extends AppCompatActivity {
         apiService.deleteGraphState(graphId, new ApiService.ApiCallback<String>() {
             @Override
             public void onSuccess(String result) {
+                boardIndex.remove(BoardIndex.KIND_GRAPH, graphId);
                 Toast.makeText(MainActivity.this, "Граф удален", Toast.LENGTH_SHORT).show();
                 loadAllData();
             }
@@ -0,0 +1,755 @@
+package com.redeluxe;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// ручные кодеки моделей поверх JsonReader/JsonWriter, без рефлексии.
+// вызываются на воркере диспетчера, колбэки получают готовые объекты
+public final class ModelCodec {
+
+    public interface Decoder<T> {
+        T decode(JsonReader reader) throws IOException;
+    }
+
+    public interface Encoder {
+        void encode(JsonWriter writer) throws IOException;
+    }
+
+    private ModelCodec() {}
+
+    // разбор всего ответа одним объектом
+    public static <T> T decode(String json, Decoder<T> decoder) throws IOException {
+        JsonReader reader = new JsonReader(new StringReader(json));
+        try {
+            return decoder.decode(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    // разбор списка из поля-обертки вида {"notes": [...]}
+    public static <T> List<T> decodeList(String json, String field, Decoder<T> decoder) throws IOException {
+        return decode(json, reader -> {
+            List<T> result = new ArrayList<>();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals(field) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    result = readArray(reader, decoder);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return result;
+        });
+    }
+
+    public static <T> List<T> readArray(JsonReader reader, Decoder<T> decoder) throws IOException {
+        List<T> result = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            result.add(decoder.decode(reader));
+        }
+        reader.endArray();
+        return result;
+    }
+
+    public static String encode(Encoder encoder) {
+        StringWriter out = new StringWriter();
+        JsonWriter writer = new JsonWriter(out);
+        try {
+            encoder.encode(writer);
+            writer.close();
+        } catch (IOException e) {
+            return "{}";
+        }
+        return out.toString();
+    }
+
+    // заметки
+
+    public static Note readNote(JsonReader reader) throws IOException {
+        Note note = new Note();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (skipNull(reader)) continue;
+            switch (name) {
+                case "id": note.setId(reader.nextInt()); break;
+                case "title": note.setTitle(reader.nextString()); break;
+                case "content": note.setContent(reader.nextString()); break;
+                case "color": note.setColor(reader.nextString()); break;
+                case "is_encrypted": note.setEncrypted(reader.nextBoolean()); break;
+                case "is_pinned": note.setPinned(reader.nextBoolean()); break;
+                case "is_archived": note.setArchived(reader.nextBoolean()); break;
+                case "category_id": note.setCategoryId(reader.nextInt()); break;
+                case "category": note.setCategory(readCategory(reader)); break;
+                case "tags": note.setTags(readArray(reader, ModelCodec::readTag)); break;
+                case "created_at": note.setCreatedAt(reader.nextString()); break;
+                case "updated_at": note.setUpdatedAt(reader.nextString()); break;
+                default: reader.skipValue(); break;
+            }
+        }
+        reader.endObject();
+        return note;
+    }
+
+    // заметка целиком, в том же виде, что отдает сервер. для локальных файлов
+    public static void writeNote(JsonWriter writer, Note note) throws IOException {
+        writer.beginObject();
+        writer.name("id").value(note.getId());
+        writer.name("title").value(note.getTitle());
+        writer.name("content").value(note.getContent());
+        writer.name("color").value(note.getColor());
+        writer.name("is_encrypted").value(note.isEncrypted());
+        writer.name("is_pinned").value(note.isPinned());
+        writer.name("is_archived").value(note.isArchived());
+        if (note.getCategoryId() != null) {
+            writer.name("category_id").value(note.getCategoryId());
+        }
+        Category category = note.getCategory();
+        if (category != null) {
+            writer.name("category").beginObject();
+            writer.name("id").value(category.getId());
+            writer.name("name").value(category.getName());
+            writer.name("color").value(category.getColor());
+            writer.name("icon").value(category.getIcon());
+            writer.endObject();
+        }
+        if (note.getTags() != null) {
+            writer.name("tags").beginArray();
+            for (Tag tag : note.getTags()) {
+                writer.beginObject();
+                writer.name("id").value(tag.getId());
+                writer.name("name").value(tag.getName());
+                writer.name("color").value(tag.getColor());
+                writer.endObject();
+            }
+            writer.endArray();
+        }
+        writer.name("created_at").value(note.getCreatedAt());
+        writer.name("updated_at").value(note.getUpdatedAt());
+        writer.endObject();
+    }
+
+    // тело запроса на создание/обновление: только редактируемые поля
+    public static void writeNoteBody(JsonWriter writer, Note note) throws IOException {
+        writer.beginObject();
+        writer.name("title").value(note.getTitle());
+        writer.name("content").value(note.getContent());
+        writer.name("color").value(note.getColor());
+        writer.name("is_pinned").value(note.isPinned());
+        writer.name("is_archived").value(note.isArchived());
+        if (note.getCategoryId() != null) {
+            writer.name("category_id").value(note.getCategoryId());
+        }
+        writer.endObject();
+    }
+
+    public static NoteOutbox.BatchResult readNoteBatchResult(JsonReader reader) throws IOException {
+        NoteOutbox.BatchResult result = new NoteOutbox.BatchResult();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (skipNull(reader)) continue;
+            switch (name) {
+                case "op": result.op = reader.nextString(); break;
+                case "id": result.id = reader.nextInt(); break;
+                case "client_id": result.clientId = reader.nextInt(); break;
+                case "status": result.status = reader.nextInt(); break;
+                case "note": result.note = readNote(reader); break;
+                default: reader.skipValue(); break;
+            }
+        }
+        reader.endObject();
+        if (result.op == null) {
+            throw new IOException("неполный результат пачки");
+        }
+        return result;
+    }
+
+    // ответ /sync: изменения после отметки и новая отметка
+    public static SyncEngine.SyncDelta readSyncDelta(JsonReader reader) throws IOException {
+        SyncEngine.SyncDelta delta = new SyncEngine.SyncDelta();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (skipNull(reader)) continue;
+            switch (name) {
+                case "notes": delta.notes = readArray(reader, ModelCodec::readNote); break;
+                case "categories": delta.categories = readArray(reader, ModelCodec::readCategory); break;
+                case "tags": delta.tags = readArray(reader, ModelCodec::readTag); break;
+                case "deleted_note_ids": delta.deletedNoteIds = readArray(reader, JsonReader::nextInt); break;
+                case "server_time": delta.serverTime = reader.nextString(); break;
+                default: reader.skipValue(); break;
+            }
+        }
+        reader.endObject();
+        return delta;
+    }
+
+    // категории и теги
+
+    public static Category readCategory(JsonReader reader) throws IOException {
+        Category category = new Category();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (skipNull(reader)) continue;
+            switch (name) {
+                case "id": category.setId(reader.nextInt()); break;
+                case "name": category.setName(reader.nextString()); break;
+                case "color": category.setColor(reader.nextString()); break;
+                case "icon": category.setIcon(reader.nextString()); break;
+                case "user_id": category.setUserId(reader.nextInt()); break;
+                case "created_at": category.setCreatedAt(reader.nextString()); break;
+                case "updated_at": category.setUpdatedAt(reader.nextString()); break;
+                default: reader.skipValue(); break;
+            }
+        }
+        reader.endObject();
+        return category;
+    }
+
+    // категория целиком, для локальной базы
+    public static void writeCategory(JsonWriter writer, Category category) throws IOException {
+        writer.beginObject();
+        writer.name("id").value(category.getId());
+        writer.name("name").value(category.getName());
+        writer.name("color").value(category.getColor());
+        writer.name("icon").value(category.getIcon());
+        writer.name("user_id").value(category.getUserId());
+        writer.name("created_at").value(category.getCreatedAt());
+        writer.name("updated_at").value(category.getUpdatedAt());
+        writer.endObject();
+    }
+
+    public static void writeCategoryBody(JsonWriter writer, Category category) throws IOException {
+        writer.beginObject();
+        writer.name("name").value(category.getName());
+        writer.name("color").value(category.getColor());
+        writer.name("icon").value(category.getIcon());
+        writer.endObject();
+    }
+
+    public static Tag readTag(JsonReader reader) throws IOException {
+        Tag tag = new Tag();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (skipNull(reader)) continue;
+            switch (name) {
+                case "id": tag.setId(reader.nextInt()); break;
+                case "name": tag.setName(reader.nextString()); break;
+                case "color": tag.setColor(reader.nextString()); break;
+                case "user_id": tag.setUserId(reader.nextInt()); break;
+                case "created_at": tag.setCreatedAt(reader.nextString()); break;
+                default: reader.skipValue(); break;
+            }
+        }
+        reader.endObject();
+        return tag;
+    }
+
+    public static void writeTagBody(JsonWriter writer, Tag tag) throws IOException {
+        writer.beginObject();
+        writer.name("name").value(tag.getName());
+        writer.name("color").value(tag.getColor());
+        writer.endObject();
+    }
+
+    // элементы списка canvas и графов
+
+    public static CanvasItem readCanvasItem(JsonReader reader) throws IOException {
+        CanvasItem canvas = new CanvasItem();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (skipNull(reader)) continue;
+            switch (name) {
+                case "id": canvas.setId(reader.nextInt()); break;
+                case "name": canvas.setName(reader.nextString()); break;
+                case "created_at": canvas.setCreatedAt(reader.nextString()); break;
+                case "updated_at": canvas.setUpdatedAt(reader.nextString()); break;
+                default: reader.skipValue(); break;
+            }
+        }
+        reader.endObject();
+        return canvas;
+    }
+
+    public static GraphItem readGraphItem(JsonReader reader) throws IOException {
+        GraphItem graph = new GraphItem();
+        graph.setLayout("force");
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (skipNull(reader)) continue;
+            switch (name) {
+                case "id": graph.setId(reader.nextInt()); break;
+                case "name": graph.setName(reader.nextString()); break;
+                case "layout": graph.setLayout(reader.nextString()); break;
+                case "created_at": graph.setCreatedAt(reader.nextString()); break;
+                case "updated_at": graph.setUpdatedAt(reader.nextString()); break;
+                default: reader.skipValue(); break;
+            }
+        }
+        reader.endObject();
+        return graph;
+    }
+
+    // документ canvas: viewport, узлы и связи. сервер связывает узлы по id,
+    // локальный снимок - по позициям, в старых сохранениях id узла был позицией
+
+    public static CanvasActivity.CanvasDocument readCanvasDocument(JsonReader reader) throws IOException {
+        CanvasActivity.CanvasDocument document = new CanvasActivity.CanvasDocument();
+        // from, to, id связи, концы заданы позициями
+        List<int[]> links = new ArrayList<>();
+        List<String> linkTypes = new ArrayList<>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (skipNull(reader)) continue;
+            switch (name) {
+                case "zoom":
+                    document.zoom = (float) reader.nextDouble();
+                    document.hasZoom = true;
+                    break;
+                case "pan_x":
+                    document.panX = (float) reader.nextDouble();
+                    document.hasPanX = true;
+                    break;
+                case "pan_y":
+                    document.panY = (float) reader.nextDouble();
+                    document.hasPanY = true;
+                    break;
+                case "nodes":
+                    document.nodes = readArray(reader, ModelCodec::readCanvasNode);
+                    break;
+                case "connections":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        readCanvasLink(reader, links, linkTypes);
+                    }
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
+        // связи ссылаются на узлы, поэтому собираются после чтения всех узлов
+        Map<Integer, CanvasActivity.CanvasNode> nodeById = new HashMap<>();
+        for (CanvasActivity.CanvasNode node : document.nodes) {
+            if (node.id > 0) {
+                nodeById.put(node.id, node);
+            }
+        }
+        for (int i = 0; i < links.size(); i++) {
+            int[] link = links.get(i);
+            boolean byIndex = link[3] != 0;
+            CanvasActivity.CanvasNode from = resolveLinkEnd(document.nodes, nodeById, link[0], byIndex);
+            CanvasActivity.CanvasNode to = resolveLinkEnd(document.nodes, nodeById, link[1], byIndex);
+            if (from != null && to != null) {
+                CanvasActivity.CanvasConnection connection =
+                    new CanvasActivity.CanvasConnection(from, to, linkTypes.get(i));
+                connection.id = link[2];
+                document.connections.add(connection);
+            }
+        }
+        return document;
+    }
+
+    private static CanvasActivity.CanvasNode resolveLinkEnd(List<CanvasActivity.CanvasNode> nodes,
+            Map<Integer, CanvasActivity.CanvasNode> nodeById, int ref, boolean byIndex) {
+        if (!byIndex) {
+            CanvasActivity.CanvasNode node = nodeById.get(ref);
+            if (node != null) {
+                return node;
+            }
+            // узла с таким id нет: связь из старого сохранения, где id был позицией
+        }
+        return ref >= 0 && ref < nodes.size() ? nodes.get(ref) : null;
+    }
+
+    private static void readCanvasLink(JsonReader reader, List<int[]> links, List<String> types) throws IOException {
+        int from = -1;
+        int to = -1;
+        int id = 0;
+        int byIndex = 0;
+        String type = "connection";
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (skipNull(reader)) continue;
+            switch (name) {
+                case "id": id = reader.nextInt(); break;
+                case "from_node_id": from = reader.nextInt(); break;
+                case "to_node_id": to = reader.nextInt(); break;
+                case "from_index": from = reader.nextInt(); byIndex = 1; break;
+                case "to_index": to = reader.nextInt(); byIndex = 1; break;
+                case "type": type = reader.nextString(); break;
+                default: reader.skipValue(); break;
+            }
+        }
+        reader.endObject();
+        links.add(new int[]{from, to, id, byIndex});
+        types.add(type);
+    }
+
+    public static CanvasActivity.CanvasNode readCanvasNode(JsonReader reader) throws IOException {
+        CanvasActivity.CanvasNode node = new CanvasActivity.CanvasNode();
+        node.x = 100;
+        node.y = 100;
+        node.width = 200;
+        node.height = 140;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (skipNull(reader)) continue;
+            switch (name) {
+                case "id": node.id = reader.nextInt(); break;
+                case "type": node.type = reader.nextString(); break;
+                case "x": node.x = (float) reader.nextDouble(); break;
+                case "y": node.y = (float) reader.nextDouble(); break;
+                case "width": node.width = (float) reader.nextDouble(); break;
+                case "height": node.height = (float) reader.nextDouble(); break;
+                case "title": node.title = reader.nextString(); break;
+                case "content": node.content = reader.nextString(); break;
+                case "color": node.color = reader.nextString(); break;
+                case "note_id": node.noteId = reader.nextInt(); break;
+                default: reader.skipValue(); break;
+            }
+        }
+        reader.endObject();
+        return node;
+    }
+
+    // документ canvas для локальных снимков. связи ссылаются на позиции:
+    // у узлов, еще не созданных на сервере, id пока нет
+    public static void writeCanvasDocument(JsonWriter writer, CanvasActivity.CanvasDocument document) throws IOException {
+        writer.beginObject();
+        if (document.hasZoom) {
+            writer.name("zoom").value(document.zoom);
+        }
+        if (document.hasPanX && document.hasPanY) {
+            writer.name("pan_x").value(document.panX);
+            writer.name("pan_y").value(document.panY);
+        }
+        writer.name("nodes").beginArray();
+        for (CanvasActivity.CanvasNode node : document.nodes) {
+            writeCanvasNode(writer, node);
+        }
+        writer.endArray();
+        writer.name("connections").beginArray();
+        Map<CanvasActivity.CanvasNode, Integer> positions = positionsOf(document.nodes);
+        for (CanvasActivity.CanvasConnection connection : document.connections) {
+            Integer from = positions.get(connection.from);
+            Integer to = positions.get(connection.to);
+            if (from != null && to != null) {
+                writer.beginObject();
+                if (connection.id > 0) {
+                    writer.name("id").value(connection.id);
+                }
+                writer.name("from_index").value(from);
+                writer.name("to_index").value(to);
+                writer.name("type").value(connection.type);
+                writer.endObject();
+            }
+        }
+        writer.endArray();
+        writer.endObject();
+    }
+
+    // тело POST /canvases/:id/save-state. связи ссылаются на позиции узлов в запросе,
+    // сервер заменяет их на новые id
+    public static void writeCanvasSaveState(JsonWriter writer, CanvasActivity.CanvasView.ViewportState state,
+                                            String data, CanvasActivity.CanvasDocument snapshot) throws IOException {
+        writer.beginObject();
+        writer.name("zoom").value(state.zoom);
+        writer.name("pan_x").value(state.panX);
+        writer.name("pan_y").value(state.panY);
+        writer.name("view_state").value(state.viewState);
+        writer.name("data").value(data);
+        writer.name("nodes").beginArray();
+        for (CanvasActivity.CanvasNode node : snapshot.nodes) {
+            writeCanvasNode(writer, node);
+        }
+        writer.endArray();
+        writer.name("connections").beginArray();
+        Map<CanvasActivity.CanvasNode, Integer> positions = positionsOf(snapshot.nodes);
+        for (CanvasActivity.CanvasConnection connection : snapshot.connections) {
+            writer.beginObject();
+            writer.name("from_node_id").value(positions.get(connection.from));
+            writer.name("to_node_id").value(positions.get(connection.to));
+            writer.name("type").value(connection.type);
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.endObject();
+    }
+
+    // позиция каждого узла за один проход вместо indexOf на каждую связь
+    public static Map<CanvasActivity.CanvasNode, Integer> positionsOf(List<CanvasActivity.CanvasNode> nodes) {
+        Map<CanvasActivity.CanvasNode, Integer> positions = new IdentityHashMap<>(nodes.size() * 2);
+        for (int i = 0; i < nodes.size(); i++) {
+            positions.put(nodes.get(i), i);
+        }
+        return positions;
+    }
+
+    public static void writeCanvasNode(JsonWriter writer, CanvasActivity.CanvasNode node) throws IOException {
+        writer.beginObject();
+        if (node.id > 0) {
+            writer.name("id").value(node.id);
+        }
+        writer.name("type").value(node.type);
+        writer.name("x").value(node.x);
+        writer.name("y").value(node.y);
+        writer.name("width").value(node.width);
+        writer.name("height").value(node.height);
+        writer.name("title").value(node.title);
+        writer.name("content").value(node.content);
+        writer.name("color").value(node.color);
+        if (node.noteId > 0) {
+            writer.name("note_id").value(node.noteId);
+        }
+        writer.endObject();
+    }
+
+    // тело PUT /canvases/:id/nodes/:nodeId: только изменившиеся поля
+    public static void writeCanvasNodeFields(JsonWriter writer, CanvasActivity.CanvasNode node, int fields) throws IOException {
+        writer.beginObject();
+        if ((fields & CanvasAutosave.FIELD_POSITION) != 0) {
+            writer.name("x").value(node.x);
+            writer.name("y").value(node.y);
+        }
+        if ((fields & CanvasAutosave.FIELD_TEXT) != 0) {
+            writer.name("title").value(node.title);
+            writer.name("content").value(node.content);
+        }
+        if ((fields & CanvasAutosave.FIELD_COLOR) != 0) {
+            writer.name("color").value(node.color);
+        }
+        writer.endObject();
+    }
+
+    // ответ полного сохранения: новые id узлов и связей в порядке запроса
+    public static CanvasActivity.CanvasSaveResult readCanvasSaveResult(JsonReader reader) throws IOException {
+        CanvasActivity.CanvasSaveResult result = new CanvasActivity.CanvasSaveResult();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (skipNull(reader)) continue;
+            switch (name) {
+                case "node_ids": result.nodeIds = readArray(reader, JsonReader::nextInt); break;
+                case "connection_ids": result.connectionIds = readArray(reader, JsonReader::nextInt); break;
+                default: reader.skipValue(); break;
+            }
+        }
+        reader.endObject();
+        return result;
+    }
+
+    // id из ответа на создание узла или связи
+    public static int readObjectId(JsonReader reader) throws IOException {
+        int id = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (skipNull(reader)) continue;
+            if (name.equals("id")) {
+                id = reader.nextInt();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return id;
+    }
+
+    // граф: ответ /graph и сохраненные состояния графа
+
+    public static GraphActivity.GraphDocument readGraphDocument(JsonReader reader) throws IOException {
+        GraphActivity.GraphDocument document = new GraphActivity.GraphDocument();
+        reader.beginObject();
+        readGraphFields(reader, document, true);
+        reader.endObject();
+        return document;
+    }
+
+    // состояние хранит граф строкой в поле data, она разбирается вторым проходом
+    public static GraphActivity.GraphDocument readGraphStateDocument(JsonReader reader) throws IOException {
+        GraphActivity.GraphDocument document = new GraphActivity.GraphDocument();
+        String data = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (skipNull(reader)) continue;
+            switch (name) {
+                case "zoom":
+                    document.zoom = (float) reader.nextDouble();
+                    document.hasZoom = true;
+                    break;
+                case "pan_x":
+                    document.panX = (float) reader.nextDouble();
+                    document.hasPanX = true;
+                    break;
+                case "pan_y":
+                    document.panY = (float) reader.nextDouble();
+                    document.hasPanY = true;
+                    break;
+                case "data":
+                    data = reader.nextString();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
+        if (data != null) {
+            document.hasData = true;
+            JsonReader dataReader = new JsonReader(new StringReader(data));
+            try {
+                dataReader.beginObject();
+                readGraphFields(dataReader, document, false);
+                dataReader.endObject();
+            } catch (IOException | RuntimeException e) {
+                // битые данные состояния - показываем пустой граф, как раньше
+                document.nodes.clear();
+                document.edges.clear();
+            } finally {
+                dataReader.close();
+            }
+        }
+        return document;
+    }
+
+    private static void readGraphFields(JsonReader reader, GraphActivity.GraphDocument document,
+                                        boolean randomizeMissing) throws IOException {
+        List<String[]> edgeRefs = new ArrayList<>();
+        List<GraphActivity.GraphEdge> pending = new ArrayList<>();
+
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (skipNull(reader)) continue;
+            switch (name) {
+                case "nodes":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        document.nodes.add(readGraphNode(reader, randomizeMissing));
+                    }
+                    reader.endArray();
+                    break;
+                case "edges":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        String[] ref = new String[2];
+                        pending.add(readGraphEdge(reader, ref));
+                        edgeRefs.add(ref);
+                    }
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+
+        Map<String, GraphActivity.GraphNode> byId = new HashMap<>();
+        for (GraphActivity.GraphNode node : document.nodes) {
+            if (!byId.containsKey(node.id)) {
+                byId.put(node.id, node);
+            }
+        }
+        for (int i = 0; i < pending.size(); i++) {
+            GraphActivity.GraphNode source = byId.get(edgeRefs.get(i)[0]);
+            GraphActivity.GraphNode target = byId.get(edgeRefs.get(i)[1]);
+            if (source != null && target != null) {
+                GraphActivity.GraphEdge edge = pending.get(i);
+                edge.source = source;
+                edge.target = target;
+                document.edges.add(edge);
+            }
+        }
+    }
+
+    public static GraphActivity.GraphNode readGraphNode(JsonReader reader, boolean randomizeMissing) throws IOException {
+        GraphActivity.GraphNode node = new GraphActivity.GraphNode();
+        boolean hasX = false;
+        boolean hasY = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (skipNull(reader)) continue;
+            switch (name) {
+                case "id": node.id = reader.nextString(); break;
+                case "label": node.label = reader.nextString(); break;
+                case "type": node.type = reader.nextString(); break;
+                case "color": node.color = reader.nextString(); break;
+                case "size": node.size = reader.nextInt(); break;
+                case "x": node.x = (float) reader.nextDouble(); hasX = true; break;
+                case "y": node.y = (float) reader.nextDouble(); hasY = true; break;
+                default: reader.skipValue(); break;
+            }
+        }
+        reader.endObject();
+
+        if (node.id == null || node.label == null || node.type == null || node.color == null) {
+            throw new IOException("неполный узел графа");
+        }
+        if (!hasX || !hasY) {
+            if (!randomizeMissing) {
+                throw new IOException("узел графа без координат");
+            }
+            if (!hasX) node.x = (float) (Math.random() * 600 + 100);
+            if (!hasY) node.y = (float) (Math.random() * 400 + 100);
+        }
+        return node;
+    }
+
+    private static GraphActivity.GraphEdge readGraphEdge(JsonReader reader, String[] ref) throws IOException {
+        String type = null;
+        int weight = 1;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (skipNull(reader)) continue;
+            switch (name) {
+                case "source": ref[0] = reader.nextString(); break;
+                case "target": ref[1] = reader.nextString(); break;
+                case "type": type = reader.nextString(); break;
+                case "weight": weight = reader.nextInt(); break;
+                default: reader.skipValue(); break;
+            }
+        }
+        reader.endObject();
+        if (type == null) {
+            throw new IOException("неполная связь графа");
+        }
+        return new GraphActivity.GraphEdge(null, null, type, weight);
+    }
+
+    private static boolean skipNull(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,85 @@
+package com.redeluxe;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.os.Handler;
+import android.os.Looper;
+import java.util.ArrayList;
+import java.util.List;
+
+// состояние сети для всего приложения: есть ли подключение и лимитное ли оно
+public class NetworkMonitor {
+    public interface Listener {
+        // вызывается на main потоке, когда сеть снова доступна
+        void onNetworkAvailable();
+    }
+
+    private static NetworkMonitor instance;
+
+    private final ConnectivityManager connectivity;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final List<Listener> listeners = new ArrayList<>();
+    private volatile boolean online;
+    private volatile boolean metered;
+
+    public static synchronized NetworkMonitor getInstance(Context context) {
+        if (instance == null) {
+            instance = new NetworkMonitor(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private NetworkMonitor(Context context) {
+        connectivity = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        Network active = connectivity.getActiveNetwork();
+        update(active != null ? connectivity.getNetworkCapabilities(active) : null);
+
+        connectivity.registerDefaultNetworkCallback(new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+                boolean wasOnline = online;
+                update(capabilities);
+                if (online && !wasOnline) {
+                    mainHandler.post(NetworkMonitor.this::notifyAvailable);
+                }
+            }
+
+            @Override
+            public void onLost(Network network) {
+                online = false;
+            }
+        });
+    }
+
+    private void update(NetworkCapabilities capabilities) {
+        online = capabilities != null &&
+            capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET);
+        metered = capabilities == null ||
+            !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED);
+    }
+
+    public boolean isOnline() {
+        return online;
+    }
+
+    public boolean isMetered() {
+        return metered;
+    }
+
+    // слушатели добавляются и вызываются на main потоке
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    private void notifyAvailable() {
+        for (Listener listener : new ArrayList<>(listeners)) {
+            listener.onNetworkAvailable();
+        }
+    }
+}
@@ -12,8 +12,12 @@ import androidx.appcompat.widget.Toolbar;
 public class NoteEditActivity extends AppCompatActivity {
     private EditText titleInput;
     private EditText contentInput;
-    private ApiService apiService;
     private int noteId = -1;
+    // редактируемая заметка целиком: правка меняет только текст и цвет,
+    // закрепление, архив, категория и дата остаются как были
+    private Note existingNote;
+    private boolean existingLoaded;
+    private boolean saveWhenLoaded;
     private String currentColor = "#7c3aed";
     private String[] colors = {"#7c3aed", "#8b5cf6", "#a855f7", "#c084fc", "#ddd6fe", "#e879f9", "#f472b6", "#fb7185"};
 
@@ -24,7 +28,6 @@ public class NoteEditActivity extends AppCompatActivity {
 
         initViews();
         loadNoteData();
-        apiService = new ApiService(this);
     }
 
     private void initViews() {
@@ -44,6 +47,7 @@ public class NoteEditActivity extends AppCompatActivity {
             titleInput.setText(getIntent().getStringExtra("note_title"));
             contentInput.setText(getIntent().getStringExtra("note_content"));
             currentColor = getIntent().getStringExtra("note_color");
+            loadExistingNote();
         } else {
             // создание новой заметки
             getSupportActionBar().setTitle("новая заметка");
@@ -51,6 +55,24 @@ public class NoteEditActivity extends AppCompatActivity {
         updateBackgroundColor();
     }
 
+    // сначала неотправленная версия из очереди, затем копия сервера в локальной базе
+    private void loadExistingNote() {
+        Note pendingNote = NoteOutbox.getInstance(this).getPendingNote(noteId);
+        if (pendingNote != null) {
+            onExistingLoaded(pendingNote);
+            return;
+        }
+        LocalStore.getInstance(this).readNote(noteId, this::onExistingLoaded);
+    }
+
+    private void onExistingLoaded(Note note) {
+        existingNote = note;
+        existingLoaded = true;
+        if (saveWhenLoaded && !isFinishing()) {
+            saveNote();
+        }
+    }
+
     private void updateBackgroundColor() {
         try {
             getWindow().getDecorView().setBackgroundColor(Color.parseColor(currentColor + "40"));
@@ -91,45 +113,31 @@ public class NoteEditActivity extends AppCompatActivity {
             return;
         }
 
-        Note note = new Note(title, content, currentColor);
+        if (noteId != -1 && !existingLoaded) {
+            // чтение из базы занимает миллисекунды, сохраним сразу после него
+            saveWhenLoaded = true;
+            return;
+        }
 
+        // сохранение не ждет сеть: изменение уходит в офлайн-очередь
+        NoteOutbox outbox = NoteOutbox.getInstance(this);
         if (noteId == -1) {
-            // создание новой заметки
-            apiService.createNote(note, new ApiService.ApiCallback<Note>() {
-                @Override
-                public void onSuccess(Note result) {
-                    runOnUiThread(() -> {
-                        Toast.makeText(NoteEditActivity.this, "заметка создана", Toast.LENGTH_SHORT).show();
-                        finish();
-                    });
-                }
-
-                @Override
-                public void onError(String error) {
-                    runOnUiThread(() -> {
-                        Toast.makeText(NoteEditActivity.this, "ошибка создания: " + error, Toast.LENGTH_SHORT).show();
-                    });
-                }
-            });
+            Note note = new Note(title, content, currentColor);
+            outbox.create(note);
+            NoteIndex.getInstance(this).put(note);
+            Toast.makeText(this, "заметка создана", Toast.LENGTH_SHORT).show();
         } else {
-            // обновление существующей заметки
-            apiService.updateNote(noteId, note, new ApiService.ApiCallback<Note>() {
-                @Override
-                public void onSuccess(Note result) {
-                    runOnUiThread(() -> {
-                        Toast.makeText(NoteEditActivity.this, "заметка обновлена", Toast.LENGTH_SHORT).show();
-                        finish();
-                    });
-                }
-
-                @Override
-                public void onError(String error) {
-                    runOnUiThread(() -> {
-                        Toast.makeText(NoteEditActivity.this, "ошибка обновления: " + error, Toast.LENGTH_SHORT).show();
-                    });
-                }
-            });
+            // заметки нет ни в очереди, ни в базе: уходят только поля редактора
+            Note note = existingNote != null ? existingNote : new Note();
+            note.setId(noteId);
+            note.setTitle(title);
+            note.setContent(content);
+            note.setColor(currentColor);
+            outbox.update(note);
+            NoteIndex.getInstance(this).put(note);
+            Toast.makeText(this, "заметка обновлена", Toast.LENGTH_SHORT).show();
         }
+        finish();
     }
 
     private void showColorPicker() {
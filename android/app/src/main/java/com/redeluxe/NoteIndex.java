@@ -0,0 +1,337 @@
+package com.redeluxe;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+// локальный полнотекстовый индекс заметок: триграммы заголовка и текста,
+// ранжирование по BM25. поиск работает без сети.
+// отдельного файла у индекса нет: заметки уже лежат в LocalStore, индекс
+// собирается из них отдельным потоком и подменяет текущий на main потоке.
+// цена этого - пересборка при каждом холодном старте: пока она не закончилась,
+// isReady() ложно и поиск идет через сервер (NoteSearch).
+// текущий индекс меняется только на main потоке
+public class NoteIndex {
+    // совпадение в заголовке весит как несколько в тексте
+    private static final int TITLE_WEIGHT = 3;
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    private static class Doc {
+        final Note note;
+        final String title;
+        final String content;
+        // уникальные триграммы документа, нужны для удаления из индекса
+        final String[] terms;
+        final int length;
+
+        Doc(Note note, String title, String content, String[] terms, int length) {
+            this.note = note;
+            this.title = title;
+            this.content = content;
+            this.terms = terms;
+            this.length = length;
+        }
+    }
+
+    // сам индекс отдельно от синглтона: при перестроении новый собирается
+    // рядом со старым и подменяет его целиком
+    private static class Index {
+        final Map<Integer, Doc> docs = new HashMap<>();
+        // триграмма -> id заметки -> взвешенная частота
+        final Map<String, Map<Integer, Integer>> postings = new HashMap<>();
+        long totalLength;
+
+        void put(Note note) {
+            remove(note.getId());
+            String title = normalize(note.getTitle());
+            String content = normalize(note.getContent());
+            Map<String, Integer> freqs = new HashMap<>();
+            int length = addTrigrams(freqs, title, TITLE_WEIGHT) + addTrigrams(freqs, content, 1);
+            for (Map.Entry<String, Integer> entry : freqs.entrySet()) {
+                Map<Integer, Integer> posting = postings.get(entry.getKey());
+                if (posting == null) {
+                    posting = new HashMap<>();
+                    postings.put(entry.getKey(), posting);
+                }
+                posting.put(note.getId(), entry.getValue());
+            }
+            docs.put(note.getId(), new Doc(note, title, content,
+                freqs.keySet().toArray(new String[0]), length));
+            totalLength += length;
+        }
+
+        void remove(int noteId) {
+            Doc doc = docs.remove(noteId);
+            if (doc == null) {
+                return;
+            }
+            for (String term : doc.terms) {
+                Map<Integer, Integer> posting = postings.get(term);
+                posting.remove(noteId);
+                if (posting.isEmpty()) {
+                    postings.remove(term);
+                }
+            }
+            totalLength -= doc.length;
+        }
+
+        List<Note> search(String query) {
+            String needle = normalize(query);
+            if (needle.isEmpty()) {
+                return new ArrayList<>();
+            }
+            if (needle.length() < 3) {
+                return scan(needle);
+            }
+
+            // пересечение начинается с самой редкой триграммы
+            List<Map<Integer, Integer>> lists = new ArrayList<>();
+            for (String term : trigrams(needle)) {
+                Map<Integer, Integer> posting = postings.get(term);
+                if (posting == null) {
+                    return new ArrayList<>();
+                }
+                lists.add(posting);
+            }
+            Collections.sort(lists, (a, b) -> Integer.compare(a.size(), b.size()));
+
+            double avgLength = docs.isEmpty() ? 1 : Math.max((double) totalLength / docs.size(), 1);
+            List<Doc> found = new ArrayList<>();
+            Map<Integer, Double> scores = new HashMap<>();
+            candidates:
+            for (int noteId : lists.get(0).keySet()) {
+                for (int i = 1; i < lists.size(); i++) {
+                    if (!lists.get(i).containsKey(noteId)) {
+                        continue candidates;
+                    }
+                }
+                // все триграммы есть, но подстрока может и не найтись
+                Doc doc = docs.get(noteId);
+                if (!doc.title.contains(needle) && !doc.content.contains(needle)) {
+                    continue;
+                }
+                double score = 0;
+                for (Map<Integer, Integer> posting : lists) {
+                    score += bm25(posting.get(noteId), posting.size(), doc.length, avgLength);
+                }
+                found.add(doc);
+                scores.put(noteId, score);
+            }
+            Collections.sort(found, (a, b) -> Double.compare(scores.get(b.note.getId()), scores.get(a.note.getId())));
+
+            List<Note> result = new ArrayList<>(found.size());
+            for (Doc doc : found) {
+                result.add(doc.note);
+            }
+            return result;
+        }
+
+        // для одной-двух букв триграмм нет, перебираем заметки, заголовки впереди
+        private List<Note> scan(String needle) {
+            List<Note> inTitle = new ArrayList<>();
+            List<Note> inContent = new ArrayList<>();
+            for (Doc doc : docs.values()) {
+                if (doc.title.contains(needle)) {
+                    inTitle.add(doc.note);
+                } else if (doc.content.contains(needle)) {
+                    inContent.add(doc.note);
+                }
+            }
+            inTitle.addAll(inContent);
+            return inTitle;
+        }
+
+        private double bm25(int freq, int docFreq, int length, double avgLength) {
+            double idf = Math.log(1 + (docs.size() - docFreq + 0.5) / (docFreq + 0.5));
+            return idf * freq * (K1 + 1) / (freq + K1 * (1 - B + B * length / avgLength));
+        }
+    }
+
+    private static NoteIndex instance;
+
+    private final Context context;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Handler buildHandler;
+    private Index index = new Index();
+    // владелец индекса, см. SyncEngine
+    private String owner;
+    private boolean built;
+    // номер последнего начатого перестроения, 0 - перестроение не идет
+    private int rebuilding;
+    private int rebuildCount;
+    // изменения, пришедшие во время перестроения: id -> заметка, null - удалена
+    private final LinkedHashMap<Integer, Note> changedMeanwhile = new LinkedHashMap<>();
+
+    public static synchronized NoteIndex getInstance(Context context) {
+        if (instance == null) {
+            instance = new NoteIndex(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private NoteIndex(Context context) {
+        this.context = context;
+
+        HandlerThread buildThread = new HandlerThread("redeluxe-index");
+        buildThread.start();
+        buildHandler = new Handler(buildThread.getLooper());
+    }
+
+    // индекс есть и принадлежит текущему пользователю
+    public boolean isReady() {
+        return built && currentOwner().equals(owner);
+    }
+
+    public void ensureBuilt() {
+        if (!isReady() && rebuilding == 0) {
+            rebuild();
+        }
+    }
+
+    // индекс собирается заново из локальной базы, старый работает до окончания
+    public void rebuild() {
+        changedMeanwhile.clear();
+        String rebuildOwner = currentOwner();
+        int generation = ++rebuildCount;
+        rebuilding = generation;
+        LocalStore.getInstance(context).readAllNotes(notes -> {
+            if (rebuilding != generation) {
+                // начато более новое перестроение
+                return;
+            }
+            if (notes == null) {
+                // заметок в базе еще нет, индекс соберется после полной загрузки
+                rebuilding = 0;
+                changedMeanwhile.clear();
+                return;
+            }
+            buildHandler.post(() -> {
+                Index next = new Index();
+                for (Note note : notes) {
+                    next.put(note);
+                }
+                mainHandler.post(() -> {
+                    if (rebuilding != generation) {
+                        return;
+                    }
+                    rebuilding = 0;
+                    replayChanges(next);
+                    index = next;
+                    owner = rebuildOwner;
+                    built = true;
+                });
+            });
+        });
+    }
+
+    public void put(Note note) {
+        index.put(note);
+        record(note.getId(), note);
+    }
+
+    public void remove(int noteId) {
+        index.remove(noteId);
+        record(noteId, null);
+    }
+
+    // дельта синхронизации. localNotes - неотправленные заметки из офлайн-очереди,
+    // они накладываются заново поверх ответа сервера
+    public void applyDelta(SyncEngine.SyncDelta delta, List<Note> localNotes) {
+        List<Integer> local = new ArrayList<>();
+        for (int noteId : index.docs.keySet()) {
+            if (noteId <= 0) {
+                local.add(noteId);
+            }
+        }
+        for (int noteId : local) {
+            remove(noteId);
+        }
+        for (int noteId : delta.deletedNoteIds) {
+            remove(noteId);
+        }
+        for (Note note : delta.notes) {
+            put(note);
+        }
+        for (Note note : localNotes) {
+            put(note);
+        }
+    }
+
+    public List<Note> search(String query) {
+        return index.search(query);
+    }
+
+    private void record(int noteId, Note note) {
+        if (rebuilding != 0) {
+            changedMeanwhile.remove(noteId);
+            changedMeanwhile.put(noteId, note);
+        }
+    }
+
+    private void replayChanges(Index target) {
+        for (Map.Entry<Integer, Note> change : changedMeanwhile.entrySet()) {
+            if (change.getValue() != null) {
+                target.put(change.getValue());
+            } else {
+                target.remove(change.getKey());
+            }
+        }
+        changedMeanwhile.clear();
+    }
+
+    private String currentOwner() {
+        return ResponseCache.key(ApiService.getInstance(context).getToken(), "/notes");
+    }
+
+    // регистр и пробелы не важны: "Foo  Bar" находится по "foo bar"
+    private static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder result = new StringBuilder(text.length());
+        boolean space = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = result.length() > 0;
+            } else {
+                if (space) {
+                    result.append(' ');
+                    space = false;
+                }
+                result.append(c);
+            }
+        }
+        return result.toString().toLowerCase(Locale.ROOT);
+    }
+
+    private static int addTrigrams(Map<String, Integer> freqs, String text, int weight) {
+        int count = 0;
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            String term = text.substring(i, i + 3);
+            Integer seen = freqs.get(term);
+            freqs.put(term, seen != null ? seen + weight : weight);
+            count += weight;
+        }
+        return count;
+    }
+
+    private static Set<String> trigrams(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            terms.add(text.substring(i, i + 3));
+        }
+        return terms;
+    }
+}
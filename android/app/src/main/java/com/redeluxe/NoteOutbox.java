@@ -0,0 +1,520 @@
+package com.redeluxe;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.JsonReader;
+import android.util.JsonWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+
+// офлайн-очередь изменений заметок. изменение сразу попадает в файл очереди,
+// повторные операции над одной заметкой схлопываются, на сервер очередь
+// уходит пачками через /notes/batch, когда есть сеть.
+// состояние очереди меняется только на main потоке, запись на диск идет отдельным потоком
+public class NoteOutbox {
+    private static final String FILE_NAME = "note_outbox.json";
+    private static final int BATCH_SIZE = 50;
+    private static final long RETRY_DELAY_MS = 30000;
+    // столько последних соответствий локальных id хватает экранам, открытым до ответа
+    private static final int MAX_RESOLVED_IDS = 500;
+
+    public interface Listener {
+        // пачка применена на сервере, список заметок стоит перечитать
+        void onOutboxFlushed();
+    }
+
+    public static class BatchResult {
+        public String op;
+        public int id;
+        public int clientId;
+        public int status;
+        public Note note;
+    }
+
+    private enum Kind { CREATE, UPDATE, DELETE }
+
+    private static class Op {
+        final Kind kind;
+        final int noteId;
+        final Note note;
+        // только у создания: по нему сервер узнает повтор пачки, ответ на которую потерялся.
+        // локальный id для этого не годится, счетчик начинается заново после переустановки
+        final String clientUuid;
+
+        Op(Kind kind, int noteId, Note note) {
+            this(kind, noteId, note, null);
+        }
+
+        Op(Kind kind, int noteId, Note note, String clientUuid) {
+            this.kind = kind;
+            this.noteId = noteId;
+            this.note = note;
+            this.clientUuid = clientUuid;
+        }
+    }
+
+    private static class Stored {
+        final List<Op> ops = new ArrayList<>();
+        final LinkedHashMap<Integer, Integer> resolvedIds = new LinkedHashMap<>();
+    }
+
+    private static NoteOutbox instance;
+
+    private final Context context;
+    private final NetworkMonitor networkMonitor;
+    private final File file;
+    private final File tempFile;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Handler diskHandler;
+    // ключ - id заметки, у созданных офлайн он отрицательный
+    private final LinkedHashMap<Integer, Op> pending = new LinkedHashMap<>();
+    private final LinkedHashMap<Integer, Op> inFlight = new LinkedHashMap<>();
+    // локальный id созданной заметки -> id на сервере. хранится в файле очереди:
+    // после перезапуска правка заметки, открытой под локальным id, должна найти серверный
+    private final LinkedHashMap<Integer, Integer> resolvedIds = new LinkedHashMap<>();
+    private final List<Listener> listeners = new ArrayList<>();
+    // -1 в NoteEditActivity означает новую заметку, поэтому локальные id начинаются с -2
+    private int nextLocalId = -2;
+    private boolean loaded;
+    private boolean flushing;
+    private boolean retryScheduled;
+
+    public static synchronized NoteOutbox getInstance(Context context) {
+        if (instance == null) {
+            instance = new NoteOutbox(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private NoteOutbox(Context context) {
+        this.context = context;
+        networkMonitor = NetworkMonitor.getInstance(context);
+        file = new File(context.getFilesDir(), FILE_NAME);
+        tempFile = new File(context.getFilesDir(), FILE_NAME + ".tmp");
+
+        HandlerThread diskThread = new HandlerThread("redeluxe-outbox");
+        diskThread.start();
+        diskHandler = new Handler(diskThread.getLooper());
+
+        networkMonitor.addListener(this::flush);
+        diskHandler.post(() -> {
+            Stored stored = readFile();
+            mainHandler.post(() -> onLoaded(stored));
+        });
+    }
+
+    // операции, сделанные до загрузки файла, новее сохраненных
+    private void onLoaded(Stored stored) {
+        LinkedHashMap<Integer, Op> newer = new LinkedHashMap<>(pending);
+        pending.clear();
+        for (Map.Entry<Integer, Integer> entry : stored.resolvedIds.entrySet()) {
+            resolvedIds.put(entry.getKey(), entry.getValue());
+            nextLocalId = Math.min(nextLocalId, entry.getKey() - 1);
+        }
+        for (Op op : stored.ops) {
+            nextLocalId = Math.min(nextLocalId, op.noteId - 1);
+            op = rekey(op);
+            pending.put(op.noteId, op);
+        }
+        // правки, сделанные до загрузки, могли прийти под уже известным локальным id
+        for (Op op : newer.values()) {
+            enqueue(rekey(op));
+        }
+        loaded = true;
+        persist();
+        flush();
+    }
+
+    // создание заметки, возвращает локальный id до ответа сервера
+    public int create(Note note) {
+        int localId = nextLocalId--;
+        note.setId(localId);
+        enqueue(new Op(Kind.CREATE, localId, note, UUID.randomUUID().toString()));
+        persist();
+        flush();
+        return localId;
+    }
+
+    public void update(Note note) {
+        int noteId = resolve(note.getId());
+        note.setId(noteId);
+        enqueue(new Op(Kind.UPDATE, noteId, note));
+        persist();
+        flush();
+    }
+
+    public void delete(int noteId) {
+        noteId = resolve(noteId);
+        enqueue(new Op(Kind.DELETE, noteId, null));
+        persist();
+        flush();
+    }
+
+    // последняя версия заметки, еще не подтвержденная сервером. null - неотправленных
+    // правок нет или заметка удалена
+    public Note getPendingNote(int noteId) {
+        noteId = resolve(noteId);
+        Op op = pending.get(noteId);
+        if (op == null) {
+            op = inFlight.get(noteId);
+        }
+        return op != null ? op.note : null;
+    }
+
+    public int getPendingCount() {
+        return pending.size() + inFlight.size();
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    // накладывает неотправленные изменения на список с сервера
+    public void applyPending(List<Note> notes) {
+        applyPending(notes, true);
+    }
+
+    // addCreated - добавлять ли в начало списка заметки, созданные офлайн.
+    // для страниц после первой они не нужны, их место в начале списка
+    public void applyPending(List<Note> notes, boolean addCreated) {
+        Map<Integer, Op> ops = new HashMap<>(inFlight);
+        for (Op op : pending.values()) {
+            Op previous = ops.remove(op.noteId);
+            Op merged = previous != null ? collapse(previous, op) : op;
+            if (merged != null) {
+                ops.put(op.noteId, merged);
+            }
+        }
+        if (ops.isEmpty()) {
+            return;
+        }
+
+        ListIterator<Note> iterator = notes.listIterator();
+        while (iterator.hasNext()) {
+            Op op = ops.remove(iterator.next().getId());
+            if (op == null) {
+                continue;
+            }
+            if (op.kind == Kind.DELETE) {
+                iterator.remove();
+            } else {
+                iterator.set(op.note);
+            }
+        }
+        for (Op op : ops.values()) {
+            if (op.kind == Kind.CREATE && !addCreated) {
+                continue;
+            }
+            if (op.kind != Kind.DELETE) {
+                notes.add(0, op.note);
+            }
+        }
+    }
+
+    // правка заметки, которой сервер уже выдал id, переходит на серверный ключ
+    private Op rekey(Op op) {
+        Integer serverId = op.kind != Kind.CREATE ? resolvedIds.get(op.noteId) : null;
+        if (serverId == null) {
+            return op;
+        }
+        if (op.note != null) {
+            op.note.setId(serverId);
+        }
+        return new Op(op.kind, serverId, op.note);
+    }
+
+    private int resolve(int noteId) {
+        Integer serverId = resolvedIds.get(noteId);
+        return serverId != null ? serverId : noteId;
+    }
+
+    private void enqueue(Op op) {
+        Op previous = pending.remove(op.noteId);
+        Op merged = previous != null ? collapse(previous, op) : op;
+        if (merged != null) {
+            pending.put(op.noteId, merged);
+        }
+    }
+
+    // пять переключений закрепления дают один PUT, создание и удаление - ничего
+    private static Op collapse(Op older, Op newer) {
+        if (older.kind == Kind.DELETE) {
+            return older;
+        }
+        if (newer.kind == Kind.DELETE) {
+            return older.kind == Kind.CREATE ? null : newer;
+        }
+        return new Op(older.kind, older.noteId, newer.note, older.clientUuid);
+    }
+
+    public void flush() {
+        if (!loaded || flushing || pending.isEmpty() || !networkMonitor.isOnline()) {
+            return;
+        }
+
+        // изменения офлайн-заметки ждут, пока сервер не выдаст ей id
+        List<Op> batch = new ArrayList<>();
+        for (Op op : pending.values()) {
+            if (op.noteId > 0 || op.kind == Kind.CREATE) {
+                batch.add(op);
+                if (batch.size() >= BATCH_SIZE) {
+                    break;
+                }
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        for (Op op : batch) {
+            pending.remove(op.noteId);
+            inFlight.put(op.noteId, op);
+        }
+        flushing = true;
+
+        String body = ModelCodec.encode(writer -> {
+            writer.beginObject();
+            writer.name("ops").beginArray();
+            for (Op op : batch) {
+                writeOp(writer, op, true);
+            }
+            writer.endArray();
+            writer.endObject();
+        });
+        ApiService.getInstance(context).batchNotes(body, new ApiService.ApiCallback<List<BatchResult>>() {
+            @Override
+            public void onSuccess(List<BatchResult> results) {
+                onBatchDone(results);
+            }
+
+            @Override
+            public void onError(String error) {
+                onBatchFailed();
+            }
+        });
+    }
+
+    private void onBatchDone(List<BatchResult> results) {
+        for (BatchResult result : results) {
+            int key = result.op.equals("create") ? result.clientId : result.id;
+            Op sent = inFlight.get(key);
+            if (sent == null) {
+                continue;
+            }
+            // 5xx по отдельной операции - повторим, остальное окончательно
+            if (result.status >= 500) {
+                continue;
+            }
+            inFlight.remove(key);
+
+            if (sent.kind == Kind.CREATE && result.status < 300 && result.id > 0) {
+                rememberResolved(sent.noteId, result.id);
+                Op next = pending.remove(sent.noteId);
+                if (next != null) {
+                    if (next.note != null) {
+                        next.note.setId(result.id);
+                    }
+                    enqueue(new Op(next.kind == Kind.CREATE ? Kind.UPDATE : next.kind, result.id, next.note));
+                }
+            } else if (sent.kind == Kind.CREATE) {
+                // создание отклонено, последующие правки этой заметки некуда применить
+                pending.remove(sent.noteId);
+            }
+        }
+        requeueInFlight();
+        flushing = false;
+        persist();
+
+        for (Listener listener : new ArrayList<>(listeners)) {
+            listener.onOutboxFlushed();
+        }
+        flush();
+    }
+
+    private void rememberResolved(int localId, int serverId) {
+        resolvedIds.put(localId, serverId);
+        if (resolvedIds.size() > MAX_RESOLVED_IDS) {
+            resolvedIds.remove(resolvedIds.keySet().iterator().next());
+        }
+    }
+
+    private void onBatchFailed() {
+        requeueInFlight();
+        flushing = false;
+        persist();
+
+        // сеть могла не пропасть совсем, тогда ждем и пробуем снова
+        if (!retryScheduled) {
+            retryScheduled = true;
+            mainHandler.postDelayed(() -> {
+                retryScheduled = false;
+                flush();
+            }, RETRY_DELAY_MS);
+        }
+    }
+
+    // неподтвержденные операции старше тех, что успели накопиться за время отправки
+    private void requeueInFlight() {
+        LinkedHashMap<Integer, Op> newer = new LinkedHashMap<>(pending);
+        pending.clear();
+        pending.putAll(inFlight);
+        inFlight.clear();
+        for (Op op : newer.values()) {
+            enqueue(op);
+        }
+    }
+
+    // снимок очереди пишется во временный файл и атомарно подменяет старый
+    private void persist() {
+        if (!loaded) {
+            return;
+        }
+        List<Op> snapshot = new ArrayList<>(inFlight.values());
+        snapshot.addAll(pending.values());
+        Map<Integer, Integer> resolved = new LinkedHashMap<>(resolvedIds);
+        String json = ModelCodec.encode(writer -> {
+            writer.beginObject();
+            writer.name("ops").beginArray();
+            for (Op op : snapshot) {
+                writeOp(writer, op, false);
+            }
+            writer.endArray();
+            writer.name("resolved").beginArray();
+            for (Map.Entry<Integer, Integer> entry : resolved.entrySet()) {
+                writer.beginArray().value(entry.getKey()).value(entry.getValue()).endArray();
+            }
+            writer.endArray();
+            writer.endObject();
+        });
+
+        diskHandler.post(() -> {
+            try {
+                FileOutputStream out = new FileOutputStream(tempFile);
+                try {
+                    out.write(json.getBytes("UTF-8"));
+                    out.getFD().sync();
+                } finally {
+                    out.close();
+                }
+                if (!tempFile.renameTo(file)) {
+                    tempFile.delete();
+                }
+            } catch (IOException e) {
+                tempFile.delete();
+            }
+        });
+    }
+
+    private Stored readFile() {
+        Stored stored = new Stored();
+        if (!file.exists()) {
+            return stored;
+        }
+        try {
+            JsonReader reader = new JsonReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    switch (reader.nextName()) {
+                        case "ops": readOps(reader, stored.ops); break;
+                        case "resolved": readResolved(reader, stored.resolvedIds); break;
+                        default: reader.skipValue(); break;
+                    }
+                }
+                reader.endObject();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            // файл заменяется атомарно, поэтому ошибка значит порчу - начинаем с пустой очереди
+            return new Stored();
+        }
+        return stored;
+    }
+
+    private static void readOps(JsonReader reader, List<Op> ops) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            ops.add(readOp(reader));
+        }
+        reader.endArray();
+    }
+
+    private static void readResolved(JsonReader reader, Map<Integer, Integer> resolved) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            reader.beginArray();
+            int localId = reader.nextInt();
+            int serverId = reader.nextInt();
+            reader.endArray();
+            resolved.put(localId, serverId);
+        }
+        reader.endArray();
+    }
+
+    private static void writeOp(JsonWriter writer, Op op, boolean forServer) throws IOException {
+        writer.beginObject();
+        writer.name("op").value(op.kind.name().toLowerCase(Locale.ROOT));
+        if (op.kind == Kind.CREATE) {
+            writer.name("client_id").value(op.noteId);
+            writer.name("client_uuid").value(op.clientUuid);
+        } else {
+            writer.name("id").value(op.noteId);
+        }
+        if (!forServer) {
+            writer.name("local_id").value(op.noteId);
+        }
+        if (op.note != null) {
+            // в файле заметка целиком: после перезапуска она встает в список на свое место
+            writer.name("note");
+            if (forServer) {
+                ModelCodec.writeNoteBody(writer, op.note);
+            } else {
+                ModelCodec.writeNote(writer, op.note);
+            }
+        }
+        writer.endObject();
+    }
+
+    private static Op readOp(JsonReader reader) throws IOException {
+        Kind kind = null;
+        int noteId = 0;
+        Note note = null;
+        String clientUuid = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "op": kind = Kind.valueOf(reader.nextString().toUpperCase(Locale.ROOT)); break;
+                case "local_id": noteId = reader.nextInt(); break;
+                case "client_uuid": clientUuid = reader.nextString(); break;
+                case "note": note = ModelCodec.readNote(reader); break;
+                default: reader.skipValue(); break;
+            }
+        }
+        reader.endObject();
+        if (kind == null || (kind != Kind.DELETE && note == null) || (kind == Kind.CREATE && clientUuid == null)) {
+            throw new IOException("неполная операция очереди");
+        }
+        if (note != null) {
+            note.setId(noteId);
+        }
+        return new Op(kind, noteId, note, clientUuid);
+    }
+}
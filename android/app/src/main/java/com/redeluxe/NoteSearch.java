@@ -0,0 +1,168 @@
+package com.redeluxe;
+
+import android.os.Handler;
+import android.os.Looper;
+import java.util.ArrayList;
+import java.util.List;
+
+// поиск по мере ввода. если локальный индекс готов, ищем по нему сразу.
+// иначе запрос уходит на сервер после паузы в наборе, устаревший запрос
+// отменяется. если новый запрос продолжает тот, по которому результаты уже
+// есть, они просто отфильтровываются на месте без сети.
+// все методы вызываются на main потоке
+public class NoteSearch {
+    private static final long DEBOUNCE_MS = 250;
+
+    public interface Listener {
+        void onSearchResults(String query, List<Note> notes);
+        void onSearchError(String error);
+    }
+
+    private final ApiService apiService;
+    private final NoteIndex noteIndex;
+    private final Listener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable sendQuery = this::send;
+    private boolean scheduled;
+    // то, что сейчас в поле поиска
+    private String query;
+    // запрос, ответ на который в пути
+    private String sentQuery;
+    private ApiCall sentCall;
+    // полный ответ сервера, из которого фильтруются уточнения
+    private String baseQuery;
+    private List<Note> baseNotes;
+
+    public NoteSearch(ApiService apiService, NoteIndex noteIndex, Listener listener) {
+        this.apiService = apiService;
+        this.noteIndex = noteIndex;
+        this.listener = listener;
+    }
+
+    public void onQueryChanged(String text) {
+        search(text, false);
+    }
+
+    // подтверждение с клавиатуры, без ожидания паузы
+    public void submit(String text) {
+        search(text, true);
+    }
+
+    public void cancel() {
+        unschedule();
+        cancelSent();
+        query = null;
+        baseQuery = null;
+        baseNotes = null;
+    }
+
+    private void search(String text, boolean now) {
+        String next = text.trim();
+        if (next.isEmpty()) {
+            cancel();
+            return;
+        }
+        if (next.equals(query)) {
+            if (now && scheduled) {
+                unschedule();
+                send();
+            }
+            return;
+        }
+        query = next;
+        unschedule();
+
+        if (noteIndex.isReady()) {
+            cancelSent();
+            listener.onSearchResults(next, noteIndex.search(next));
+            return;
+        }
+
+        // ответ на более короткий запрос покрывает уточнение, ждем его
+        if (sentCall != null && extendsQuery(next, sentQuery)) {
+            return;
+        }
+        cancelSent();
+
+        if (baseNotes != null && extendsQuery(next, baseQuery)) {
+            listener.onSearchResults(next, refine(baseNotes, next));
+            return;
+        }
+        if (now) {
+            send();
+        } else {
+            scheduled = true;
+            handler.postDelayed(sendQuery, DEBOUNCE_MS);
+        }
+    }
+
+    private void unschedule() {
+        handler.removeCallbacks(sendQuery);
+        scheduled = false;
+    }
+
+    private void send() {
+        scheduled = false;
+        String sent = query;
+        if (sent == null) {
+            return;
+        }
+        sentQuery = sent;
+        sentCall = apiService.searchNotes(sent, new ApiService.ApiCallback<List<Note>>() {
+            @Override
+            public void onSuccess(List<Note> notes) {
+                sentCall = null;
+                sentQuery = null;
+                baseQuery = sent;
+                baseNotes = notes;
+                listener.onSearchResults(query, sent.equals(query) ? notes : refine(notes, query));
+            }
+
+            @Override
+            public void onError(String error) {
+                sentCall = null;
+                sentQuery = null;
+                listener.onSearchError(error);
+            }
+        });
+    }
+
+    private void cancelSent() {
+        if (sentCall != null) {
+            sentCall.cancel();
+            sentCall = null;
+            sentQuery = null;
+        }
+    }
+
+    private static List<Note> refine(List<Note> notes, String query) {
+        String needle = fold(query);
+        List<Note> result = new ArrayList<>();
+        for (Note note : notes) {
+            if (contains(note.getTitle(), needle) || contains(note.getContent(), needle)) {
+                result.add(note);
+            }
+        }
+        return result;
+    }
+
+    // каждая заметка, где есть next, содержит и previous
+    private static boolean extendsQuery(String next, String previous) {
+        return previous != null && fold(next).contains(fold(previous));
+    }
+
+    private static boolean contains(String text, String needle) {
+        return text != null && fold(text).contains(needle);
+    }
+
+    // как LIKE в sqlite на сервере: регистр не важен только для латиницы
+    private static String fold(String text) {
+        char[] chars = text.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            if (chars[i] >= 'A' && chars[i] <= 'Z') {
+                chars[i] += 'a' - 'A';
+            }
+        }
+        return new String(chars);
+    }
+}
@@ -20,6 +20,8 @@ import java.util.Locale;
 public class NotesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
     private List<ListItem> items;
     private OnNoteActionListener listener;
+    // постраничные заметки идут первыми, за ними элементы из items
+    private PagedNoteSource noteSource;
 
     public interface OnNoteActionListener {
         void onNoteClick(Note note);
@@ -31,6 +33,7 @@ public class NotesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
         void onCanvasDelete(CanvasItem canvas);
         void onGraphClick(GraphItem graph);
         void onGraphDelete(GraphItem graph);
+        void onNodeHitClick(BoardIndex.Hit hit);
     }
 
     public NotesAdapter(List<ListItem> items, OnNoteActionListener listener) {
@@ -38,9 +41,22 @@ public class NotesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
         this.listener = listener;
     }
 
+    public void setNoteSource(PagedNoteSource noteSource) {
+        this.noteSource = noteSource;
+    }
+
+    public PagedNoteSource getNoteSource() {
+        return noteSource;
+    }
+
+    private int getNoteCount() {
+        return noteSource != null ? noteSource.size() : 0;
+    }
+
     @Override
     public int getItemViewType(int position) {
-        return items.get(position).getType();
+        int noteCount = getNoteCount();
+        return position < noteCount ? ListItem.TYPE_NOTE : items.get(position - noteCount).getType();
     }
 
     @NonNull
@@ -55,6 +71,9 @@ public class NotesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
             case ListItem.TYPE_GRAPH:
                 View graphView = inflater.inflate(R.layout.item_note, parent, false);
                 return new GraphViewHolder(graphView);
+            case ListItem.TYPE_NODE:
+                View nodeView = inflater.inflate(R.layout.item_note, parent, false);
+                return new NodeHitViewHolder(nodeView);
             default: // TYPE_NOTE
                 View noteView = inflater.inflate(R.layout.item_note, parent, false);
                 return new NoteViewHolder(noteView);
@@ -63,7 +82,18 @@ public class NotesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
 
     @Override
     public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position) {
-        ListItem item = items.get(position);
+        int noteCount = getNoteCount();
+        if (position < noteCount) {
+            Note note = noteSource.get(position);
+            if (note != null) {
+                ((NoteViewHolder) holder).bind(note);
+            } else {
+                ((NoteViewHolder) holder).bindPlaceholder();
+            }
+            return;
+        }
+
+        ListItem item = items.get(position - noteCount);
         
         switch (item.getType()) {
             case ListItem.TYPE_NOTE:
@@ -75,12 +105,15 @@ public class NotesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
             case ListItem.TYPE_GRAPH:
                 ((GraphViewHolder) holder).bind(item.getGraph());
                 break;
+            case ListItem.TYPE_NODE:
+                ((NodeHitViewHolder) holder).bind(item.getNodeHit());
+                break;
         }
     }
 
     @Override
     public int getItemCount() {
-        return items.size();
+        return getNoteCount() + items.size();
     }
 
     // ViewHolder для заметок
@@ -107,6 +140,21 @@ public class NotesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
             tagsLayout = itemView.findViewById(R.id.tagsLayout);
         }
 
+        // страница еще грузится, строка держит место
+        public void bindPlaceholder() {
+            titleText.setText("…");
+            contentText.setText("");
+            dateText.setText("");
+            colorIndicator.setBackgroundColor(Color.parseColor("#333333"));
+            pinIcon.setVisibility(View.GONE);
+            categoryText.setVisibility(View.GONE);
+            tagsContainer.setVisibility(View.GONE);
+            itemView.setOnClickListener(null);
+            itemView.setOnLongClickListener(null);
+            archiveButton.setOnClickListener(null);
+            moreButton.setOnClickListener(null);
+        }
+
         public void bind(Note note) {
             // основные данные
             titleText.setText(note.getTitle().isEmpty() ? "без названия" : note.getTitle());
@@ -310,4 +358,51 @@ public class NotesAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder>
             });
         }
     }
-} 
\ No newline at end of file
+
+    // ViewHolder для узлов canvas и графов из поиска
+    class NodeHitViewHolder extends RecyclerView.ViewHolder {
+        private View colorIndicator;
+        private TextView titleText, contentText, dateText, categoryText;
+        private ImageView pinIcon;
+        private ImageButton archiveButton, moreButton;
+
+        public NodeHitViewHolder(@NonNull View itemView) {
+            super(itemView);
+            
+            colorIndicator = itemView.findViewById(R.id.colorIndicator);
+            titleText = itemView.findViewById(R.id.titleText);
+            contentText = itemView.findViewById(R.id.contentText);
+            dateText = itemView.findViewById(R.id.dateText);
+            categoryText = itemView.findViewById(R.id.categoryText);
+            pinIcon = itemView.findViewById(R.id.pinIcon);
+            archiveButton = itemView.findViewById(R.id.archiveButton);
+            moreButton = itemView.findViewById(R.id.moreButton);
+        }
+
+        public void bind(BoardIndex.Hit hit) {
+            boolean canvas = hit.kind.equals(BoardIndex.KIND_CANVAS);
+            
+            // основные данные: доска и текст узла
+            titleText.setText((canvas ? "🎨 " : "📊 ") + hit.boardName);
+            contentText.setText(hit.text);
+            dateText.setText("");
+            colorIndicator.setBackgroundColor(Color.parseColor(canvas ? "#ff8000" : "#00ff41"));
+            pinIcon.setVisibility(View.GONE);
+            
+            // тип элемента
+            categoryText.setText(canvas ? "◇ узел canvas" : "◇ узел графа");
+            categoryText.setTextColor(Color.parseColor(canvas ? "#ff8000" : "#00ff41"));
+            categoryText.setVisibility(View.VISIBLE);
+            
+            itemView.setOnClickListener(v -> {
+                if (listener != null) {
+                    listener.onNodeHitClick(hit);
+                }
+            });
+            itemView.setOnLongClickListener(null);
+            
+            archiveButton.setVisibility(View.GONE);
+            moreButton.setVisibility(View.GONE);
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package com.redeluxe;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+// постраничный список заметок для главного экрана. страницы читаются из локальной
+// базы по курсору с опережением прокрутки, в памяти держится ограниченное окно страниц.
+// выгруженная страница помнит свой размер, чтобы позиции в списке не сдвигались,
+// и перечитывается по сохраненному курсору, когда к ней возвращаются.
+// все методы вызываются на main потоке
+public class PagedNoteSource {
+    static final int PAGE_SIZE = 50;
+    // за сколько элементов до края окна начинается загрузка соседней страницы
+    private static final int PREFETCH_DISTANCE = 25;
+    private static final int MAX_PAGES_IN_MEMORY = 6;
+
+    public interface Listener {
+        void onPagesChanged();
+    }
+
+    public static class Page {
+        public List<Note> notes = new ArrayList<>();
+        public String nextCursor;
+    }
+
+    private static class Slot {
+        String cursor;
+        List<Note> notes;
+        int size;
+        boolean loading;
+
+        Slot(String cursor) {
+            this.cursor = cursor;
+        }
+    }
+
+    private final LocalStore store;
+    private final NoteOutbox noteOutbox;
+    private final Listener listener;
+    private final List<Slot> slots = new ArrayList<>();
+    private String filter = "all";
+    private boolean endReached;
+    private int firstVisible;
+    private int lastVisible;
+
+    public PagedNoteSource(LocalStore store, NoteOutbox noteOutbox, Listener listener) {
+        this.store = store;
+        this.noteOutbox = noteOutbox;
+        this.listener = listener;
+    }
+
+    public String getFilter() {
+        return filter;
+    }
+
+    // смена фильтра или полная перезагрузка: начинаем с первой страницы
+    public void reload(String filter) {
+        this.filter = filter;
+        // чтения старых слотов завершатся впустую, их ответы отбросит onPageLoaded
+        slots.clear();
+        slots.add(new Slot(null));
+        endReached = false;
+        firstVisible = 0;
+        lastVisible = 0;
+        load(0);
+    }
+
+    // первая порция полной загрузки, пока в базе пусто: показывается сразу,
+    // не дожидаясь конца загрузки. это начало списка в том же порядке, что и в базе,
+    // после коммита источник перезагружается из базы
+    public void showFirstChunk(List<Note> chunk) {
+        if (size() > 0) {
+            // в базе прежние заметки, они остаются на экране до коммита
+            return;
+        }
+        List<Note> notes = new ArrayList<>();
+        for (Note note : chunk) {
+            if (matchesFilter(note)) {
+                notes.add(note);
+            }
+        }
+        noteOutbox.applyPending(notes, true);
+        // чтение пустой базы, если оно еще идет, отбросит onPageLoaded
+        slots.clear();
+        Slot slot = new Slot(null);
+        slot.notes = notes;
+        slot.size = notes.size();
+        slots.add(slot);
+        endReached = true;
+        listener.onPagesChanged();
+    }
+
+    public boolean isStarted() {
+        return !slots.isEmpty();
+    }
+
+    public boolean isEndReached() {
+        return endReached;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Slot slot : slots) {
+            size += slot.size;
+        }
+        return size;
+    }
+
+    // null, пока страница с этой позицией не загружена
+    public Note get(int position) {
+        int start = 0;
+        for (int i = 0; i < slots.size(); i++) {
+            Slot slot = slots.get(i);
+            if (position < start + slot.size) {
+                if (slot.notes == null) {
+                    load(i);
+                    return null;
+                }
+                return slot.notes.get(position - start);
+            }
+            start += slot.size;
+        }
+        return null;
+    }
+
+    public void onVisibleRange(int first, int last) {
+        firstVisible = first;
+        lastVisible = last;
+        int from = Math.max(first - PREFETCH_DISTANCE, 0);
+        int to = last + PREFETCH_DISTANCE;
+
+        int start = 0;
+        for (int i = 0; i < slots.size(); i++) {
+            int end = start + slots.get(i).size;
+            if (end > from && start <= to) {
+                load(i);
+            }
+            start = end;
+        }
+        // конец известной части близко, открываем следующую страницу
+        if (!endReached && to >= start) {
+            load(slots.size() - 1);
+        }
+        evict();
+    }
+
+    private void load(int index) {
+        Slot slot = slots.get(index);
+        if (slot.notes != null || slot.loading) {
+            return;
+        }
+        slot.loading = true;
+        store.readNotesPage(filter, slot.cursor, PAGE_SIZE, page -> {
+            slot.loading = false;
+            onPageLoaded(slot, page);
+        });
+    }
+
+    private void onPageLoaded(Slot slot, Page page) {
+        int index = slots.indexOf(slot);
+        if (index < 0) {
+            // источник перезагружен, ответ относится к старому списку
+            return;
+        }
+        // неотправленные изменения поверх страницы, новые заметки только в начало списка
+        noteOutbox.applyPending(page.notes, index == 0);
+        slot.notes = page.notes;
+        slot.size = page.notes.size();
+
+        if (index == slots.size() - 1) {
+            if (page.nextCursor != null) {
+                slots.add(new Slot(page.nextCursor));
+            } else {
+                endReached = true;
+            }
+        } else if (page.nextCursor != null) {
+            Slot next = slots.get(index + 1);
+            if (next.notes == null && !next.loading) {
+                next.cursor = page.nextCursor;
+            }
+        } else {
+            // хвост списка исчез из базы
+            while (slots.size() > index + 1) {
+                slots.remove(slots.size() - 1);
+            }
+            endReached = true;
+        }
+
+        listener.onPagesChanged();
+        onVisibleRange(firstVisible, lastVisible);
+    }
+
+    // выгружаются страницы дальше всего от видимой части
+    private void evict() {
+        int loaded = 0;
+        for (Slot slot : slots) {
+            if (slot.notes != null) {
+                loaded++;
+            }
+        }
+        while (loaded > MAX_PAGES_IN_MEMORY) {
+            int firstPage = pageAt(firstVisible);
+            int lastPage = pageAt(lastVisible);
+            Slot farthest = null;
+            int farthestDistance = -1;
+            for (int i = 0; i < slots.size(); i++) {
+                Slot slot = slots.get(i);
+                if (slot.notes == null) {
+                    continue;
+                }
+                int distance = i < firstPage ? firstPage - i : Math.max(i - lastPage, 0);
+                if (distance > farthestDistance) {
+                    farthest = slot;
+                    farthestDistance = distance;
+                }
+            }
+            if (farthest == null || farthestDistance == 0) {
+                return;
+            }
+            farthest.notes = null;
+            loaded--;
+        }
+    }
+
+    private int pageAt(int position) {
+        int start = 0;
+        for (int i = 0; i < slots.size(); i++) {
+            start += slots.get(i).size;
+            if (position < start) {
+                return i;
+            }
+        }
+        return slots.size() - 1;
+    }
+
+    // локальное изменение: заметка переезжает на место по порядку сортировки.
+    // если ее место в невыгруженной части, она появится при загрузке страницы
+    public void upsert(Note note) {
+        removeLoaded(note.getId());
+        if (matchesFilter(note)) {
+            insertSorted(note);
+        }
+        listener.onPagesChanged();
+    }
+
+    public void remove(int noteId) {
+        removeLoaded(noteId);
+        listener.onPagesChanged();
+    }
+
+    // дельта синхронизации применяется к загруженным страницам
+    public void applyDelta(SyncEngine.SyncDelta delta, List<Category> categories) {
+        Map<Integer, Category> categoryById = new HashMap<>();
+        for (Category category : categories) {
+            categoryById.put(category.getId(), category);
+        }
+
+        // локальные заметки из офлайн-очереди накладываются заново ниже
+        removeLocal();
+        for (int noteId : delta.deletedNoteIds) {
+            removeLoaded(noteId);
+        }
+        for (Note note : delta.notes) {
+            if (note.getCategoryId() != null && categoryById.containsKey(note.getCategoryId())) {
+                note.setCategory(categoryById.get(note.getCategoryId()));
+            }
+            removeLoaded(note.getId());
+            if (matchesFilter(note)) {
+                insertSorted(note);
+            }
+        }
+        for (int i = 0; i < slots.size(); i++) {
+            Slot slot = slots.get(i);
+            if (slot.notes != null) {
+                noteOutbox.applyPending(slot.notes, i == 0);
+                slot.size = slot.notes.size();
+            }
+        }
+        listener.onPagesChanged();
+    }
+
+    private void removeLocal() {
+        for (Slot slot : slots) {
+            if (slot.notes == null) {
+                continue;
+            }
+            Iterator<Note> iterator = slot.notes.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().getId() <= 0) {
+                    iterator.remove();
+                    slot.size--;
+                }
+            }
+        }
+    }
+
+    private void removeLoaded(int noteId) {
+        for (Slot slot : slots) {
+            if (slot.notes == null) {
+                continue;
+            }
+            Iterator<Note> iterator = slot.notes.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().getId() == noteId) {
+                    iterator.remove();
+                    slot.size--;
+                    return;
+                }
+            }
+        }
+    }
+
+    // заметка вставляется в загруженную страницу, диапазон которой ее покрывает
+    private void insertSorted(Note note) {
+        for (int i = 0; i < slots.size(); i++) {
+            Slot slot = slots.get(i);
+            if (slot.notes == null) {
+                continue;
+            }
+            boolean last = i == slots.size() - 1;
+            boolean afterStart = i == 0 || (!slot.notes.isEmpty() && compare(slot.notes.get(0), note) <= 0);
+            boolean beforeEnd = (last && endReached) ||
+                (!slot.notes.isEmpty() && compare(note, slot.notes.get(slot.notes.size() - 1)) <= 0);
+            if (!afterStart || !beforeEnd) {
+                continue;
+            }
+            int position = 0;
+            while (position < slot.notes.size() && compare(slot.notes.get(position), note) <= 0) {
+                position++;
+            }
+            slot.notes.add(position, note);
+            slot.size++;
+            return;
+        }
+    }
+
+    // порядок как на сервере: закрепленные, затем по дате изменения, затем по id.
+    // у созданных офлайн заметок даты еще нет, они считаются самыми новыми
+    private static int compare(Note a, Note b) {
+        if (a.isPinned() != b.isPinned()) {
+            return a.isPinned() ? -1 : 1;
+        }
+        String left = a.getUpdatedAt() != null ? a.getUpdatedAt() : "\uffff";
+        String right = b.getUpdatedAt() != null ? b.getUpdatedAt() : "\uffff";
+        int byDate = right.compareTo(left);
+        if (byDate != 0) {
+            return byDate;
+        }
+        return Integer.compare(b.getId(), a.getId());
+    }
+
+    private boolean matchesFilter(Note note) {
+        switch (filter) {
+            case "pinned": return note.isPinned();
+            case "archived": return note.isArchived();
+            case "categories": return note.getCategoryId() != null;
+            default: return true;
+        }
+    }
+}
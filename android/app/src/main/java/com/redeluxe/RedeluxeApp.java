@@ -0,0 +1,13 @@
+package com.redeluxe;
+
+import android.app.Application;
+
+// общие для процесса объекты создаются здесь, пока рисуется первый экран
+public class RedeluxeApp extends Application {
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        NetworkMonitor.getInstance(this);
+        ApiService.getInstance(this).warmUp();
+    }
+}
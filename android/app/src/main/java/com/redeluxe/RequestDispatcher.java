@@ -0,0 +1,157 @@
+package com.redeluxe;
+
+import android.os.Process;
+import java.util.ArrayDeque;
+import java.util.Timer;
+import java.util.TimerTask;
+
+// общий диспетчер сетевых запросов: ограниченный пул воркеров и приоритетные полосы
+public class RequestDispatcher {
+    private static final int WORKER_COUNT = 4;
+
+    public enum Lane {
+        // чтение, результата которого ждет пользователь
+        INTERACTIVE(4, 32),
+        // изменения, запущенные пользователем
+        WRITE(2, 64),
+        // автосохранение и синхронизация
+        BACKGROUND(1, 16);
+
+        final int maxConcurrent;
+        final int maxQueued;
+
+        Lane(int maxConcurrent, int maxQueued) {
+            this.maxConcurrent = maxConcurrent;
+            this.maxQueued = maxQueued;
+        }
+    }
+
+    private static RequestDispatcher instance;
+
+    private final Object lock = new Object();
+    private final Lane[] lanes = Lane.values();
+    private final ArrayDeque<Task>[] queues;
+    private final int[] running;
+    private final Timer timer = new Timer("redeluxe-net-delay", true);
+
+    private static class Task {
+        final Runnable work;
+        final Runnable onRejected;
+
+        Task(Runnable work, Runnable onRejected) {
+            this.work = work;
+            this.onRejected = onRejected;
+        }
+    }
+
+    public static synchronized RequestDispatcher getInstance() {
+        if (instance == null) {
+            instance = new RequestDispatcher();
+        }
+        return instance;
+    }
+
+    @SuppressWarnings("unchecked")
+    private RequestDispatcher() {
+        queues = new ArrayDeque[lanes.length];
+        running = new int[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            queues[i] = new ArrayDeque<>();
+        }
+        for (int i = 0; i < WORKER_COUNT; i++) {
+            Thread worker = new Thread(this::workerLoop, "redeluxe-net-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    // ставит задачу в очередь полосы. при переполнении фоновая полоса
+    // вытесняет самую старую задачу, остальные отклоняют новую
+    public void submit(Lane lane, Runnable work, Runnable onRejected) {
+        Task rejected = null;
+        Task task = new Task(work, onRejected);
+
+        synchronized (lock) {
+            ArrayDeque<Task> queue = queues[lane.ordinal()];
+            if (queue.size() >= lane.maxQueued) {
+                if (lane == Lane.BACKGROUND) {
+                    rejected = queue.pollFirst();
+                    queue.addLast(task);
+                } else {
+                    rejected = task;
+                }
+            } else {
+                queue.addLast(task);
+            }
+            lock.notifyAll();
+        }
+
+        if (rejected != null && rejected.onRejected != null) {
+            rejected.onRejected.run();
+        }
+    }
+
+    // отложенная постановка в очередь, пока задача ждет, воркер не занят
+    public void submitDelayed(Lane lane, long delayMs, Runnable work, Runnable onRejected) {
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                submit(lane, work, onRejected);
+            }
+        }, Math.max(delayMs, 0));
+    }
+
+    public int getQueueDepth(Lane lane) {
+        synchronized (lock) {
+            return queues[lane.ordinal()].size();
+        }
+    }
+
+    public int getRunningCount(Lane lane) {
+        synchronized (lock) {
+            return running[lane.ordinal()];
+        }
+    }
+
+    private void workerLoop() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        while (true) {
+            Task task;
+            int laneIndex;
+
+            synchronized (lock) {
+                while ((laneIndex = nextLane()) < 0) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                task = queues[laneIndex].pollFirst();
+                running[laneIndex]++;
+            }
+
+            try {
+                task.work.run();
+            } catch (RuntimeException e) {
+                // ошибка задачи не должна останавливать воркер
+            } finally {
+                synchronized (lock) {
+                    running[laneIndex]--;
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    // полосы перебираются по приоритету с учетом лимита одновременных задач
+    private int nextLane() {
+        for (int i = 0; i < lanes.length; i++) {
+            if (!queues[i].isEmpty() && running[i] < lanes[i].maxConcurrent) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
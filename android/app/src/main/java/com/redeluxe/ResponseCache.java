@@ -0,0 +1,210 @@
+package com.redeluxe;
+
+import android.content.Context;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// дисковый кэш GET-ответов с валидаторами ETag/Last-Modified.
+// при превышении лимита вытесняются давно не читанные записи
+public class ResponseCache {
+    private static final long MAX_SIZE_BYTES = 8L * 1024 * 1024;
+    private static final int FORMAT_VERSION = 1;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static ResponseCache instance;
+
+    private final File dir;
+    private final long maxSize;
+    // порядок доступа: первым идет самый давно использованный ключ
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // меняются под блокировкой, читаются без нее: экран метрик не ждет диск
+    private volatile long size;
+    private volatile boolean loaded;
+
+    public static class Entry {
+        public final String etag;
+        public final String lastModified;
+        public final byte[] body;
+
+        Entry(String etag, String lastModified, byte[] body) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.body = body;
+        }
+
+        public String bodyString() {
+            try {
+                return new String(body, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                return new String(body);
+            }
+        }
+    }
+
+    public static synchronized ResponseCache getInstance(Context context) {
+        if (instance == null) {
+            File dir = new File(context.getApplicationContext().getCacheDir(), "http");
+            instance = new ResponseCache(dir, MAX_SIZE_BYTES);
+        }
+        return instance;
+    }
+
+    ResponseCache(File dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+    }
+
+    // ключ учитывает токен, чтобы ответы разных пользователей не смешивались
+    public static String key(String token, String endpoint) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest((token + " " + endpoint).getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            return Integer.toHexString((token + " " + endpoint).hashCode());
+        }
+    }
+
+    public synchronized Entry get(String key) {
+        ensureLoaded();
+        if (entries.get(key) == null) {
+            return null;
+        }
+
+        File file = new File(dir, key);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (in.readInt() != FORMAT_VERSION) {
+                throw new IOException("неизвестный формат");
+            }
+            String etag = emptyToNull(in.readUTF());
+            String lastModified = emptyToNull(in.readUTF());
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            // время файла хранит порядок LRU между запусками
+            file.setLastModified(System.currentTimeMillis());
+            return new Entry(etag, lastModified, body);
+        } catch (IOException e) {
+            remove(key);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    public synchronized void put(String key, String etag, String lastModified, byte[] body) {
+        ensureLoaded();
+        // без валидаторов запись бесполезна, слишком большие ответы вытеснят весь кэш
+        if ((etag == null && lastModified == null) || body.length > maxSize / 4) {
+            remove(key);
+            return;
+        }
+
+        File temp = new File(dir, key + TEMP_SUFFIX);
+        File file = new File(dir, key);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(temp));
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(etag != null ? etag : "");
+            out.writeUTF(lastModified != null ? lastModified : "");
+            out.writeInt(body.length);
+            out.write(body);
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                throw new IOException("не удалось записать " + file);
+            }
+        } catch (IOException e) {
+            closeQuietly(out);
+            temp.delete();
+            remove(key);
+            return;
+        }
+
+        Long previous = entries.put(key, file.length());
+        size += file.length() - (previous != null ? previous : 0);
+        trimToSize();
+    }
+
+    public synchronized void remove(String key) {
+        Long length = entries.remove(key);
+        if (length != null) {
+            size -= length;
+        }
+        new File(dir, key).delete();
+    }
+
+    // размер без обращения к диску и без блокировки, -1 - индекс еще не прочитан
+    public long getKnownSize() {
+        return loaded ? size : -1;
+    }
+
+    // индекс строится при первом обращении, то есть уже на воркере
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        dir.mkdirs();
+
+        File[] files = dir.listFiles();
+        if (files == null) {
+            loaded = true;
+            return;
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                file.delete();
+                continue;
+            }
+            entries.put(file.getName(), file.length());
+            size += file.length();
+        }
+        trimToSize();
+        // флаг последним: getKnownSize не увидит недосчитанный размер
+        loaded = true;
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            size -= eldest.getValue();
+            new File(dir, eldest.getKey()).delete();
+            iterator.remove();
+        }
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // игнорируем
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.redeluxe;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.Random;
+
+// правила повтора запросов: экспоненциальная задержка со случайным разбросом.
+// по умолчанию повторяются только идемпотентные методы
+public class RetryPolicy {
+    public static final RetryPolicy DEFAULT = new RetryPolicy(3, 500, 8000, false);
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, false);
+
+    private final int maxAttempts;
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final boolean retryNonIdempotent;
+    private final Random random = new Random();
+
+    public RetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs, boolean retryNonIdempotent) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.retryNonIdempotent = retryNonIdempotent;
+    }
+
+    // attempt - номер завершившейся попытки, с нуля
+    public boolean canRetry(String method, int attempt, IOException error) {
+        if (attempt + 1 >= maxAttempts) {
+            return false;
+        }
+        // соединение не установлено, значит тело точно не дошло до сервера
+        return isIdempotent(method) || retryNonIdempotent || error instanceof ConnectException;
+    }
+
+    public boolean canRetry(String method, int attempt, int responseCode) {
+        if (attempt + 1 >= maxAttempts || !isRetryableStatus(responseCode)) {
+            return false;
+        }
+        return isIdempotent(method) || retryNonIdempotent;
+    }
+
+    // задержка перед следующей попыткой. Retry-After от сервера важнее своей
+    // задержки; если он дольше допустимого, повтор не делается и возвращается -1
+    public long delayMs(int attempt, long retryAfterMs) {
+        if (retryAfterMs >= 0) {
+            return retryAfterMs <= maxDelayMs ? retryAfterMs : -1;
+        }
+        long ceiling = Math.min(maxDelayMs, baseDelayMs << Math.min(attempt, 16));
+        synchronized (random) {
+            return ceiling / 2 + (long) (random.nextDouble() * (ceiling / 2 + 1));
+        }
+    }
+
+    public static boolean isRetryableStatus(int responseCode) {
+        return responseCode == 429 || responseCode == 502 || responseCode == 503 || responseCode == 504;
+    }
+
+    private static boolean isIdempotent(String method) {
+        return method.equals("GET") || method.equals("PUT") || method.equals("DELETE");
+    }
+}
@@ -0,0 +1,200 @@
+package com.redeluxe;
+
+import android.os.Handler;
+import android.os.Looper;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// объединение одинаковых GET-запросов: пока запрос выполняется, повторные
+// вызовы подписываются на его результат вместо нового похода в сеть
+public class SingleFlight {
+    private static SingleFlight instance;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Map<String, Flight<?>> flights = new HashMap<>();
+    private long savedCalls;
+
+    public static synchronized SingleFlight getInstance() {
+        if (instance == null) {
+            instance = new SingleFlight();
+        }
+        return instance;
+    }
+
+    // первый вызов получает общий колбэк и выполняет запрос сам,
+    // повторный подписывается на идущий запрос и получает null
+    @SuppressWarnings("unchecked")
+    public synchronized <T> SharedCallback<T> join(String key, ApiService.ApiCallback<T> callback) {
+        SharedCallback<T> running = (SharedCallback<T>) flights.get(key);
+        if (running != null) {
+            savedCalls++;
+            mainHandler.post(() -> running.subscribe(callback));
+            return null;
+        }
+        SharedCallback<T> flight = new SharedCallback<>(callback);
+        flights.put(key, flight);
+        return flight;
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized <T> SharedStream<T> joinStream(String key, ApiService.StreamCallback<T> callback) {
+        SharedStream<T> running = (SharedStream<T>) flights.get(key);
+        if (running != null) {
+            savedCalls++;
+            mainHandler.post(() -> running.subscribe(callback));
+            return null;
+        }
+        SharedStream<T> flight = new SharedStream<>(callback);
+        flights.put(key, flight);
+        return flight;
+    }
+
+    // запрос завершен, следующий вызов с тем же ключом снова пойдет в сеть
+    public synchronized void finish(String key, Object flight) {
+        if (flights.get(key) == flight) {
+            flights.remove(key);
+        }
+    }
+
+    // отмененный подписчик уходит из запроса. когда уходит последний,
+    // запрос снимается и его соединение обрывается
+    public void leave(String key, Object callback) {
+        mainHandler.post(() -> {
+            Flight<?> flight;
+            synchronized (this) {
+                flight = flights.get(key);
+            }
+            if (flight == null || !flight.unsubscribe(callback) || !flight.subscribers.isEmpty()) {
+                return;
+            }
+            finish(key, flight);
+            flight.cancel();
+        });
+    }
+
+    // сколько сетевых вызовов сэкономлено с запуска процесса
+    public synchronized long getSavedCalls() {
+        return savedCalls;
+    }
+
+    public synchronized int getInFlightCount() {
+        return flights.size();
+    }
+
+    // подписчики меняются только на main потоке
+    abstract static class Flight<C> {
+        final List<C> subscribers = new ArrayList<>();
+        private ApiCall network;
+
+        // сетевой вызов, который выполняет запрос за всех подписчиков
+        void setNetworkCall(ApiCall network) {
+            this.network = network;
+        }
+
+        boolean unsubscribe(Object callback) {
+            return subscribers.remove(callback);
+        }
+
+        void cancel() {
+            if (network != null) {
+                network.cancel();
+            }
+        }
+    }
+
+    // раздает результат всем подписчикам. все методы работают на main потоке,
+    // поэтому опоздавший подписчик сначала получает уже доставленное
+    public static class SharedCallback<T> extends Flight<ApiService.ApiCallback<T>>
+            implements ApiService.ApiCallback<T> {
+        private boolean hasResult;
+        private T lastResult;
+        private String error;
+
+        SharedCallback(ApiService.ApiCallback<T> first) {
+            subscribers.add(first);
+        }
+
+        void subscribe(ApiService.ApiCallback<T> callback) {
+            if (hasResult) {
+                callback.onSuccess(lastResult);
+            }
+            if (error != null) {
+                callback.onError(error);
+            }
+            subscribers.add(callback);
+        }
+
+        @Override
+        public void onSuccess(T result) {
+            hasResult = true;
+            lastResult = result;
+            for (int i = 0; i < subscribers.size(); i++) {
+                subscribers.get(i).onSuccess(result);
+            }
+        }
+
+        @Override
+        public void onError(String error) {
+            this.error = error;
+            for (int i = 0; i < subscribers.size(); i++) {
+                subscribers.get(i).onError(error);
+            }
+        }
+    }
+
+    public static class SharedStream<T> extends Flight<ApiService.StreamCallback<T>>
+            implements ApiService.StreamCallback<T> {
+        // все порции текущего прохода, для повтора опоздавшим
+        private final List<T> delivered = new ArrayList<>();
+        private boolean started;
+        private boolean complete;
+        private String error;
+
+        SharedStream(ApiService.StreamCallback<T> first) {
+            subscribers.add(first);
+        }
+
+        void subscribe(ApiService.StreamCallback<T> callback) {
+            if (started) {
+                callback.onChunk(new ArrayList<>(delivered), true);
+            }
+            if (complete) {
+                callback.onComplete();
+            }
+            if (error != null) {
+                callback.onError(error);
+            }
+            subscribers.add(callback);
+        }
+
+        @Override
+        public void onChunk(List<T> chunk, boolean first) {
+            if (first) {
+                delivered.clear();
+            }
+            started = true;
+            delivered.addAll(chunk);
+            for (int i = 0; i < subscribers.size(); i++) {
+                subscribers.get(i).onChunk(chunk, first);
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            complete = true;
+            for (int i = 0; i < subscribers.size(); i++) {
+                subscribers.get(i).onComplete();
+            }
+        }
+
+        @Override
+        public void onError(String error) {
+            this.error = error;
+            for (int i = 0; i < subscribers.size(); i++) {
+                subscribers.get(i).onError(error);
+            }
+        }
+    }
+}
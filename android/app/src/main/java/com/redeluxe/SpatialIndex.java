@@ -0,0 +1,367 @@
+package com.redeluxe;
+
+import android.graphics.RectF;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// свободное квадродерево для объектов доски. ячейка принимает объект, если его центр
+// в ее клетке, а половина размера не больше половины клетки: тогда объект целиком
+// внутри ячейки, растянутой вдвое. глубина выбирается по размеру объекта, поэтому
+// вставка и перемещение - спуск от корня без разделения ячеек.
+// объекты за пределами корня лежат в отдельном списке, когда их становится много,
+// дерево перестраивается по новым границам.
+// запросы отдают объекты в порядке добавления: он же порядок отрисовки.
+// все методы вызываются на main потоке
+public class SpatialIndex<T> {
+    private static final int MAX_DEPTH = 16;
+    // меньше корень не делается: доска растет вокруг первых узлов
+    private static final float MIN_ROOT_HALF = 1024;
+    private static final int MIN_OVERFLOW_REBUILD = 32;
+
+    public interface Bounds<T> {
+        void get(T item, RectF out);
+    }
+
+    private static final class Entry<T> {
+        final T item;
+        final long order;
+        float left, top, right, bottom;
+        Cell<T> cell;
+
+        Entry(T item, long order) {
+            this.item = item;
+            this.order = order;
+        }
+    }
+
+    private static final class Cell<T> {
+        final Cell<T> parent;
+        final float centerX, centerY, half;
+        final List<Entry<T>> entries = new ArrayList<>(4);
+        Cell<T>[] children;
+        int childCount;
+
+        Cell(Cell<T> parent, float centerX, float centerY, float half) {
+            this.parent = parent;
+            this.centerX = centerX;
+            this.centerY = centerY;
+            this.half = half;
+        }
+
+        boolean isEmpty() {
+            return entries.isEmpty() && childCount == 0;
+        }
+    }
+
+    private static final Comparator<Entry<?>> BY_ORDER = (a, b) -> Long.compare(a.order, b.order);
+
+    private final Bounds<T> bounds;
+    private final Map<T, Entry<T>> entries = new IdentityHashMap<>();
+    private final List<Entry<T>> overflow = new ArrayList<>();
+    private final RectF scratch = new RectF();
+    // найденные запросом записи. массивы растут и переиспользуются: кадр не выделяет память
+    private Object[] found = new Object[64];
+    private Object[] sortBuffer = new Object[64];
+    private int foundCount;
+    private Cell<T> root;
+    private long nextOrder;
+
+    public SpatialIndex(Bounds<T> bounds) {
+        this.bounds = bounds;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public void clear() {
+        entries.clear();
+        overflow.clear();
+        root = null;
+        nextOrder = 0;
+    }
+
+    // полная перестройка: корень охватывает все объекты, порядок - как в списке
+    public void rebuild(List<T> items) {
+        clear();
+        for (T item : items) {
+            Entry<T> entry = new Entry<>(item, nextOrder++);
+            readBounds(entry);
+            entries.put(item, entry);
+        }
+        rebuildTree();
+    }
+
+    // новый объект рисуется поверх остальных
+    public void insert(T item) {
+        if (entries.containsKey(item)) {
+            update(item);
+            return;
+        }
+        Entry<T> entry = new Entry<>(item, nextOrder++);
+        readBounds(entry);
+        entries.put(item, entry);
+        place(entry);
+    }
+
+    public void remove(T item) {
+        Entry<T> entry = entries.remove(item);
+        if (entry != null) {
+            unlink(entry);
+        }
+    }
+
+    // объект сдвинулся или изменил размер, порядок отрисовки сохраняется
+    public void update(T item) {
+        Entry<T> entry = entries.get(item);
+        if (entry == null) {
+            return;
+        }
+        unlink(entry);
+        readBounds(entry);
+        place(entry);
+    }
+
+    // объекты, пересекающие прямоугольник, в порядке добавления
+    @SuppressWarnings("unchecked")
+    public void query(float left, float top, float right, float bottom, List<T> out) {
+        find(left, top, right, bottom);
+        sortFound();
+        for (int i = 0; i < foundCount; i++) {
+            out.add(((Entry<T>) found[i]).item);
+            found[i] = null;
+        }
+        foundCount = 0;
+    }
+
+    // верхний объект в точке или null
+    @SuppressWarnings("unchecked")
+    public T hit(float x, float y) {
+        find(x, y, x, y);
+        Entry<T> top = null;
+        for (int i = 0; i < foundCount; i++) {
+            Entry<T> entry = (Entry<T>) found[i];
+            if (top == null || entry.order > top.order) {
+                top = entry;
+            }
+            found[i] = null;
+        }
+        foundCount = 0;
+        return top != null ? top.item : null;
+    }
+
+    // для тестов: объекты в отдельном списке и ячейки дерева
+    int overflowSize() {
+        return overflow.size();
+    }
+
+    int cellCount() {
+        return root != null ? countCells(root) : 0;
+    }
+
+    private static int countCells(Cell<?> cell) {
+        int count = 1;
+        if (cell.children != null) {
+            for (Cell<?> child : cell.children) {
+                if (child != null) {
+                    count += countCells(child);
+                }
+            }
+        }
+        return count;
+    }
+
+    private void find(float left, float top, float right, float bottom) {
+        foundCount = 0;
+        if (root != null) {
+            collect(root, left, top, right, bottom);
+        }
+        for (int i = 0; i < overflow.size(); i++) {
+            Entry<T> entry = overflow.get(i);
+            if (intersects(entry, left, top, right, bottom)) {
+                addFound(entry);
+            }
+        }
+    }
+
+    private void addFound(Entry<T> entry) {
+        if (foundCount == found.length) {
+            found = Arrays.copyOf(found, found.length * 2);
+        }
+        found[foundCount++] = entry;
+    }
+
+    // восходящая сортировка слиянием по порядку добавления, буфер переиспользуется
+    private void sortFound() {
+        if (sortBuffer.length < foundCount) {
+            sortBuffer = new Object[found.length];
+        }
+        Object[] source = found;
+        Object[] target = sortBuffer;
+        for (int width = 1; width < foundCount; width *= 2) {
+            for (int low = 0; low < foundCount; low += width * 2) {
+                int middle = Math.min(low + width, foundCount);
+                int high = Math.min(low + width * 2, foundCount);
+                int left = low;
+                int right = middle;
+                for (int i = low; i < high; i++) {
+                    if (left < middle && (right >= high || orderOf(source[left]) <= orderOf(source[right]))) {
+                        target[i] = source[left++];
+                    } else {
+                        target[i] = source[right++];
+                    }
+                }
+            }
+            Object[] swap = source;
+            source = target;
+            target = swap;
+        }
+        if (source != found) {
+            System.arraycopy(source, 0, found, 0, foundCount);
+        }
+        Arrays.fill(sortBuffer, 0, Math.min(foundCount, sortBuffer.length), null);
+    }
+
+    private static long orderOf(Object entry) {
+        return ((Entry<?>) entry).order;
+    }
+
+    private void collect(Cell<T> cell, float left, float top, float right, float bottom) {
+        // объекты ячейки не выходят за ее клетку, растянутую вдвое
+        float loose = cell.half * 2;
+        if (cell.centerX - loose > right || cell.centerX + loose < left ||
+                cell.centerY - loose > bottom || cell.centerY + loose < top) {
+            return;
+        }
+        for (int i = 0; i < cell.entries.size(); i++) {
+            Entry<T> entry = cell.entries.get(i);
+            if (intersects(entry, left, top, right, bottom)) {
+                addFound(entry);
+            }
+        }
+        if (cell.children != null) {
+            for (Cell<T> child : cell.children) {
+                if (child != null) {
+                    collect(child, left, top, right, bottom);
+                }
+            }
+        }
+    }
+
+    private static boolean intersects(Entry<?> entry, float left, float top, float right, float bottom) {
+        return entry.left <= right && entry.right >= left && entry.top <= bottom && entry.bottom >= top;
+    }
+
+    private void readBounds(Entry<T> entry) {
+        bounds.get(entry.item, scratch);
+        entry.left = Math.min(scratch.left, scratch.right);
+        entry.top = Math.min(scratch.top, scratch.bottom);
+        entry.right = Math.max(scratch.left, scratch.right);
+        entry.bottom = Math.max(scratch.top, scratch.bottom);
+    }
+
+    private void place(Entry<T> entry) {
+        if (root == null) {
+            rebuildTree();
+            return;
+        }
+        float centerX = (entry.left + entry.right) / 2;
+        float centerY = (entry.top + entry.bottom) / 2;
+        float extent = Math.max(entry.right - entry.left, entry.bottom - entry.top) / 2;
+        if (Math.abs(centerX - root.centerX) > root.half || Math.abs(centerY - root.centerY) > root.half ||
+                extent > root.half) {
+            entry.cell = null;
+            overflow.add(entry);
+            if (overflow.size() > Math.max(MIN_OVERFLOW_REBUILD, entries.size() / 8)) {
+                rebuildTree();
+            }
+            return;
+        }
+
+        Cell<T> cell = root;
+        for (int depth = 0; depth < MAX_DEPTH && extent <= cell.half / 2; depth++) {
+            int quadrant = (centerX >= cell.centerX ? 1 : 0) | (centerY >= cell.centerY ? 2 : 0);
+            cell = child(cell, quadrant);
+        }
+        cell.entries.add(entry);
+        entry.cell = cell;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Cell<T> child(Cell<T> cell, int quadrant) {
+        if (cell.children == null) {
+            cell.children = new Cell[4];
+        }
+        Cell<T> child = cell.children[quadrant];
+        if (child == null) {
+            float quarter = cell.half / 2;
+            child = new Cell<>(cell,
+                cell.centerX + ((quadrant & 1) != 0 ? quarter : -quarter),
+                cell.centerY + ((quadrant & 2) != 0 ? quarter : -quarter),
+                quarter);
+            cell.children[quadrant] = child;
+            cell.childCount++;
+        }
+        return child;
+    }
+
+    // пустые ячейки убираются, чтобы перетаскивание не оставляло за собой след из ячеек
+    private void unlink(Entry<T> entry) {
+        Cell<T> cell = entry.cell;
+        if (cell == null) {
+            overflow.remove(entry);
+            return;
+        }
+        cell.entries.remove(entry);
+        entry.cell = null;
+        while (cell.parent != null && cell.isEmpty()) {
+            Cell<T> parent = cell.parent;
+            for (int i = 0; i < 4; i++) {
+                if (parent.children[i] == cell) {
+                    parent.children[i] = null;
+                    parent.childCount--;
+                }
+            }
+            if (parent.childCount == 0) {
+                parent.children = null;
+            }
+            cell = parent;
+        }
+    }
+
+    private void rebuildTree() {
+        overflow.clear();
+        if (entries.isEmpty()) {
+            root = null;
+            return;
+        }
+        float left = Float.MAX_VALUE;
+        float top = Float.MAX_VALUE;
+        float right = -Float.MAX_VALUE;
+        float bottom = -Float.MAX_VALUE;
+        for (Entry<T> entry : entries.values()) {
+            left = Math.min(left, entry.left);
+            top = Math.min(top, entry.top);
+            right = Math.max(right, entry.right);
+            bottom = Math.max(bottom, entry.bottom);
+        }
+        // округление до степени двойки дает запас: новые узлы у края не уходят в отдельный список
+        float half = MIN_ROOT_HALF;
+        while (half < Math.max(right - left, bottom - top)) {
+            half *= 2;
+        }
+        root = new Cell<>(null, (left + right) / 2, (top + bottom) / 2, half);
+
+        List<Entry<T>> ordered = new ArrayList<>(entries.values());
+        Collections.sort(ordered, BY_ORDER);
+        for (Entry<T> entry : ordered) {
+            entry.cell = null;
+            place(entry);
+        }
+    }
+}
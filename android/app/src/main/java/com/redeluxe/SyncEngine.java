@@ -0,0 +1,162 @@
+package com.redeluxe;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import java.util.ArrayList;
+import java.util.List;
+
+// инкрементальная синхронизация через POST /sync. отметка server_time
+// сохраняется между запусками, с сервера приходят только изменения после нее.
+// отметка сдвигается только после того, как данные записаны в локальную базу
+public class SyncEngine {
+    private static final String PREFS_NAME = "redeluxe";
+    private static final String KEY_WATERMARK = "sync_watermark";
+    private static final String KEY_SAVED_AT = "sync_watermark_saved_at";
+    private static final String KEY_OWNER = "sync_watermark_owner";
+    // после долгого перерыва дельта почти равна полной загрузке, проще начать заново
+    private static final long MAX_WATERMARK_AGE_MS = 14L * 24 * 60 * 60 * 1000;
+
+    public static class SyncDelta {
+        public List<Note> notes = new ArrayList<>();
+        public List<Category> categories = new ArrayList<>();
+        public List<Tag> tags = new ArrayList<>();
+        public List<Integer> deletedNoteIds = new ArrayList<>();
+        public String serverTime;
+    }
+
+    // полная загрузка получает commitWatermark и вызывает его, когда
+    // заметки записаны в базу. без вызова отметка не сохранится.
+    // failed - загрузка оборвалась, следующий вызов beginFullLoad начнет ее заново
+    public interface FullLoad {
+        void load(Runnable commitWatermark, Runnable failed);
+    }
+
+    private final Context context;
+    private final ApiService apiService;
+    private final LocalStore store;
+    // колбэки, ждущие уже отправленный запрос дельты
+    private final List<ApiService.ApiCallback<SyncDelta>> waiting = new ArrayList<>();
+    // полная загрузка уже идет, повторные вызовы до ее конца ничего не делают
+    private boolean fullLoading;
+
+    public SyncEngine(Context context, ApiService apiService, LocalStore store) {
+        this.context = context;
+        this.apiService = apiService;
+        this.store = store;
+    }
+
+    public boolean hasWatermark() {
+        return getWatermark() != null;
+    }
+
+    // отметка берется до полной загрузки: все, что изменится во время
+    // загрузки, придет в следующей дельте повторно, но не потеряется.
+    // сохраняется она только после записи заметок в базу
+    public void beginFullLoad(FullLoad load) {
+        if (fullLoading) {
+            return;
+        }
+        fullLoading = true;
+        apiService.sync(null, true, new ApiService.ApiCallback<SyncDelta>() {
+            @Override
+            public void onSuccess(SyncDelta delta) {
+                load.load(() -> {
+                    fullLoading = false;
+                    saveWatermark(delta.serverTime);
+                }, () -> fullLoading = false);
+            }
+
+            @Override
+            public void onError(String error) {
+                // без отметки загрузка все равно повторится, качать заметки сейчас незачем
+                fullLoading = false;
+            }
+        });
+    }
+
+    public void syncDelta(ApiService.ApiCallback<SyncDelta> callback) {
+        String watermark = getWatermark();
+        if (watermark == null) {
+            callback.onError("нет отметки синхронизации");
+            return;
+        }
+
+        waiting.add(callback);
+        if (waiting.size() > 1) {
+            return;
+        }
+        apiService.sync(watermark, false, new ApiService.ApiCallback<SyncDelta>() {
+            @Override
+            public void onSuccess(SyncDelta delta) {
+                // дельта и отметка вместе: при сбое до коммита дельта придет снова
+                store.applyDelta(delta, () -> {
+                    saveWatermark(delta.serverTime);
+                    for (ApiService.ApiCallback<SyncDelta> waiter : drainWaiting()) {
+                        waiter.onSuccess(delta);
+                    }
+                });
+            }
+
+            @Override
+            public void onError(String error) {
+                for (ApiService.ApiCallback<SyncDelta> waiter : drainWaiting()) {
+                    waiter.onError(error);
+                }
+            }
+        });
+    }
+
+    private List<ApiService.ApiCallback<SyncDelta>> drainWaiting() {
+        List<ApiService.ApiCallback<SyncDelta>> callbacks = new ArrayList<>(waiting);
+        waiting.clear();
+        return callbacks;
+    }
+
+    // отметка принадлежит пользователю, под чьим токеном была получена
+    private String getWatermark() {
+        SharedPreferences prefs = prefs();
+        String watermark = prefs.getString(KEY_WATERMARK, null);
+        if (watermark == null || !currentOwner().equals(prefs.getString(KEY_OWNER, ""))) {
+            return null;
+        }
+        if (System.currentTimeMillis() - prefs.getLong(KEY_SAVED_AT, 0) > MAX_WATERMARK_AGE_MS) {
+            return null;
+        }
+        return watermark;
+    }
+
+    private void saveWatermark(String serverTime) {
+        if (serverTime == null) {
+            return;
+        }
+        prefs().edit()
+            .putString(KEY_WATERMARK, serverTime)
+            .putLong(KEY_SAVED_AT, System.currentTimeMillis())
+            .putString(KEY_OWNER, currentOwner())
+            .apply();
+    }
+
+    private String currentOwner() {
+        return ResponseCache.key(apiService.getToken(), "/sync");
+    }
+
+    private SharedPreferences prefs() {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    public static void mergeCategories(List<Category> categories, SyncDelta delta) {
+        for (Category updated : delta.categories) {
+            boolean replaced = false;
+            for (int i = 0; i < categories.size(); i++) {
+                if (categories.get(i).getId() == updated.getId()) {
+                    categories.set(i, updated);
+                    replaced = true;
+                    break;
+                }
+            }
+            if (!replaced) {
+                categories.add(updated);
+            }
+        }
+    }
+}
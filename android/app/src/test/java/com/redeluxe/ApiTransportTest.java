@@ -0,0 +1,348 @@
+package com.redeluxe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+// транспорт ApiService против своего сервера на ServerSocket: сервер видит байты
+// так, как они идут по сети, и считает принятые соединения
+@RunWith(RobolectricTestRunner.class)
+public class ApiTransportTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int NOTE_COUNT = 10000;
+
+    private StandInServer server;
+    private ApiService apiService;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new StandInServer();
+        ApiService.setBaseUrl("http://127.0.0.1:" + server.getPort() + "/api");
+        apiService = ApiService.getInstance(RuntimeEnvironment.getApplication());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        ApiService.resetForTests();
+        server.close();
+    }
+
+    @Test
+    public void notesLoadIsGzippedAndReusesOneConnection() {
+        byte[] notesJson = notesJson(NOTE_COUNT);
+        server.notesJson = notesJson;
+
+        for (int i = 0; i < 3; i++) {
+            AtomicReference<List<Note>> result = new AtomicReference<>();
+            apiService.getNotes(ApiService.CacheMode.NONE, callback(result));
+            assertEquals(NOTE_COUNT, Await.value(result).size());
+        }
+
+        List<Request> requests = server.requests();
+        assertEquals(3, requests.size());
+        for (Request request : requests) {
+            assertTrue(request.header("accept-encoding").contains("gzip"));
+        }
+        long json = notesJson.length * 3L;
+        long wire = server.responseBodyBytes.get();
+        // повторяющийся json сжимается в разы
+        assertTrue("GET /notes x3: json " + json + " байт, по сети " + wire + " байт", wire * 4 < json);
+        assertEquals("соединений на три запроса", 1, server.connections.get());
+    }
+
+    @Test
+    public void largeBodiesAreGzippedSmallOnesAreNot() throws IOException {
+        StringBuilder content = new StringBuilder();
+        while (content.length() < 20000) {
+            content.append("строка длинной заметки ").append(content.length()).append('\n');
+        }
+        AtomicReference<Note> large = new AtomicReference<>();
+        apiService.createNote(new Note("большая", content.toString(), "#00ffff"), callback(large));
+        assertEquals(content.toString(), Await.value(large).getContent());
+
+        AtomicReference<Note> small = new AtomicReference<>();
+        apiService.createNote(new Note("маленькая", "текст", "#00ffff"), callback(small));
+        assertEquals("текст", Await.value(small).getContent());
+
+        List<Request> requests = server.requests();
+        assertEquals(2, requests.size());
+        Request gzipped = requests.get(0);
+        assertEquals("gzip", gzipped.header("content-encoding"));
+        byte[] decoded = gunzip(gzipped.body);
+        assertTrue("POST /notes: json " + decoded.length + " байт, по сети " + gzipped.body.length + " байт",
+            gzipped.body.length * 4 < decoded.length);
+        assertTrue(new String(decoded, UTF_8).contains("строка длинной заметки"));
+
+        Request plain = requests.get(1);
+        assertNull(plain.header("content-encoding"));
+        assertTrue(new String(plain.body, UTF_8).contains("маленькая"));
+        assertEquals(1, server.connections.get());
+    }
+
+    private static <T> ApiService.ApiCallback<T> callback(AtomicReference<T> result) {
+        return new ApiService.ApiCallback<T>() {
+            @Override
+            public void onSuccess(T value) {
+                result.set(value);
+            }
+
+            @Override
+            public void onError(String error) {
+                throw new AssertionError(error);
+            }
+        };
+    }
+
+    private static byte[] notesJson(int count) {
+        return ModelCodec.encode(writer -> {
+            writer.beginObject();
+            writer.name("notes").beginArray();
+            for (int id = 1; id <= count; id++) {
+                Note note = new Note("заметка " + id, "текст заметки номер " + id, "#00ffff");
+                note.setId(id);
+                note.setUpdatedAt("2026-01-01T00:00:00Z");
+                ModelCodec.writeNote(writer, note);
+            }
+            writer.endArray();
+            writer.endObject();
+        }).getBytes(UTF_8);
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(data);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        return readAll(new GZIPInputStream(new ByteArrayInputStream(data)));
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static class Request {
+        final String method;
+        final String path;
+        final Map<String, String> headers;
+        // тело как пришло по сети, до распаковки
+        final byte[] body;
+
+        Request(String method, String path, Map<String, String> headers, byte[] body) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        String header(String name) {
+            return headers.get(name);
+        }
+    }
+
+    // http/1.1 с keep-alive: на соединении обслуживаются запросы, пока клиент его не закроет
+    private static class StandInServer implements Closeable {
+        final AtomicInteger connections = new AtomicInteger();
+        final AtomicLong responseBodyBytes = new AtomicLong();
+        volatile byte[] notesJson = "{\"notes\":[]}".getBytes(UTF_8);
+        private final ServerSocket socket;
+        private final List<Request> requests = Collections.synchronizedList(new ArrayList<Request>());
+        private final List<Socket> accepted = Collections.synchronizedList(new ArrayList<Socket>());
+
+        StandInServer() throws IOException {
+            socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            Thread acceptor = new Thread(this::acceptLoop, "stand-in-accept");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int getPort() {
+            return socket.getLocalPort();
+        }
+
+        List<Request> requests() {
+            synchronized (requests) {
+                return new ArrayList<>(requests);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+            synchronized (accepted) {
+                for (Socket client : accepted) {
+                    client.close();
+                }
+            }
+        }
+
+        private void acceptLoop() {
+            while (!socket.isClosed()) {
+                try {
+                    Socket client = socket.accept();
+                    connections.incrementAndGet();
+                    accepted.add(client);
+                    Thread worker = new Thread(() -> serve(client), "stand-in-connection");
+                    worker.setDaemon(true);
+                    worker.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void serve(Socket client) {
+            try {
+                InputStream in = new BufferedInputStream(client.getInputStream());
+                OutputStream out = client.getOutputStream();
+                Request request;
+                while ((request = readRequest(in)) != null) {
+                    requests.add(request);
+                    respond(out, request);
+                }
+            } catch (IOException e) {
+                // клиент закрыл соединение
+            }
+        }
+
+        private void respond(OutputStream out, Request request) throws IOException {
+            String acceptEncoding = request.header("accept-encoding");
+            boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+            int status;
+            byte[] body;
+            if (request.method.equals("GET") && request.path.equals("/api/notes")) {
+                status = 200;
+                body = notesJson;
+            } else if (request.method.equals("POST") && request.path.equals("/api/notes")) {
+                // созданная заметка возвращается такой, как пришла
+                status = 201;
+                body = "gzip".equals(request.header("content-encoding")) ? gunzip(request.body) : request.body;
+            } else {
+                status = 404;
+                body = "{\"error\":\"нет такого маршрута\"}".getBytes(UTF_8);
+            }
+            if (gzip) {
+                body = gzip(body);
+            }
+            StringBuilder head = new StringBuilder();
+            head.append("HTTP/1.1 ").append(status).append(status == 404 ? " Not Found" : " OK").append("\r\n");
+            head.append("Content-Type: application/json; charset=utf-8\r\n");
+            head.append("Content-Length: ").append(body.length).append("\r\n");
+            if (gzip) {
+                head.append("Content-Encoding: gzip\r\n");
+            }
+            head.append("Connection: keep-alive\r\n\r\n");
+            out.write(head.toString().getBytes(UTF_8));
+            out.write(body);
+            out.flush();
+            responseBodyBytes.addAndGet(body.length);
+        }
+
+        // null - клиент закрыл соединение между запросами
+        private static Request readRequest(InputStream in) throws IOException {
+            String requestLine = readLine(in);
+            if (requestLine == null) {
+                return null;
+            }
+            String[] parts = requestLine.split(" ");
+            Map<String, String> headers = new HashMap<>();
+            String line;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+            }
+            byte[] body;
+            if (headers.containsKey("content-length")) {
+                body = readFully(in, Integer.parseInt(headers.get("content-length")));
+            } else if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+                body = readChunked(in);
+            } else {
+                body = new byte[0];
+            }
+            return new Request(parts[0], parts[1], headers, body);
+        }
+
+        private static byte[] readChunked(InputStream in) throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            while (true) {
+                String size = readLine(in);
+                if (size == null) {
+                    throw new EOFException();
+                }
+                int length = Integer.parseInt(size.split(";")[0].trim(), 16);
+                if (length == 0) {
+                    readLine(in);
+                    return body.toByteArray();
+                }
+                body.write(readFully(in, length));
+                readLine(in);
+            }
+        }
+
+        private static byte[] readFully(InputStream in, int length) throws IOException {
+            byte[] data = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                int read = in.read(data, offset, length - offset);
+                if (read == -1) {
+                    throw new EOFException();
+                }
+                offset += read;
+            }
+            return data;
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '\n') {
+                    byte[] bytes = line.toByteArray();
+                    int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                    return new String(bytes, 0, length, UTF_8);
+                }
+                line.write(c);
+            }
+            return line.size() > 0 ? line.toString("UTF-8") : null;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.redeluxe;
+
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicReference;
+import org.robolectric.shadows.ShadowLooper;
+
+// ожидание колбэков в тестах: фоновые потоки настоящие, а main looper
+// в robolectric крутится только по вызову, поэтому его гоняем в цикле
+final class Await {
+    private static final long TIMEOUT_MS = 10000;
+
+    interface Condition {
+        boolean done();
+    }
+
+    private Await() {
+    }
+
+    static <T> T value(AtomicReference<T> box) {
+        until(() -> box.get() != null);
+        return box.get();
+    }
+
+    static void until(Condition condition) {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.done()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("не дождались колбэка");
+            }
+            ShadowLooper.idleMainLooper();
+            try {
+                Thread.sleep(2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail("прервано");
+            }
+        }
+    }
+}
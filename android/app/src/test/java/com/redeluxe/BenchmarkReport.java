@@ -0,0 +1,41 @@
+package com.redeluxe;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// таблица результатов бенчмарка, пишется файлом в каталог отчетов сборки
+final class BenchmarkReport {
+    private final String name;
+    private final List<String> lines = new ArrayList<>();
+
+    BenchmarkReport(String name) {
+        this.name = name;
+    }
+
+    void row(String format, Object... args) {
+        lines.add(String.format(Locale.ROOT, format, args));
+    }
+
+    void write() throws IOException {
+        File dir = new File(System.getProperty("benchmark.reportDir", "build/reports/benchmarks"));
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("не удалось создать " + dir);
+        }
+        Writer out = new OutputStreamWriter(new FileOutputStream(new File(dir, name + ".txt")), Charset.forName("UTF-8"));
+        try {
+            for (String line : lines) {
+                out.write(line);
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.redeluxe;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import android.graphics.RectF;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+// кэши узла для отрисовки пересчитываются только после замены исходной строки
+@RunWith(RobolectricTestRunner.class)
+public class CanvasNodeCacheTest {
+
+    @Test
+    public void parsedColorFollowsColorField() {
+        CanvasActivity.CanvasNode node = new CanvasActivity.CanvasNode();
+        node.color = "#ff0000";
+        assertEquals(0xFFFF0000, node.parsedColor());
+        assertEquals(0xFFFF0000, node.parsedColor());
+
+        node.color = "#00ff00";
+        assertEquals(0xFF00FF00, node.parsedColor());
+
+        // строка с тем же текстом, но другая: значение то же
+        node.color = new String("#00ff00");
+        assertEquals(0xFF00FF00, node.parsedColor());
+
+        // испорченный цвет рисуется цветом по умолчанию
+        node.color = "не цвет";
+        assertEquals(0xFF00FFFF, node.parsedColor());
+        node.color = "#0000ff";
+        assertEquals(0xFF0000FF, node.parsedColor());
+    }
+
+    @Test
+    public void contentLinesAreCachedUntilContentChanges() {
+        CanvasActivity.CanvasNode node = new CanvasActivity.CanvasNode();
+        node.content = "первая\nвторая";
+        String[] lines = node.contentLines();
+        assertArrayEquals(new String[] {"первая", "вторая"}, lines);
+        assertSame(lines, node.contentLines());
+
+        node.content = "строка длиннее двадцати двух символов\n2\n3\n4\n5\n6";
+        String[] updated = node.contentLines();
+        assertNotSame(lines, updated);
+        assertArrayEquals(new String[] {"строка длиннее двадцат...", "2", "3", "4"}, updated);
+        assertSame(updated, node.contentLines());
+
+        node.content = "";
+        assertArrayEquals(new String[] {""}, node.contentLines());
+    }
+
+    @Test
+    public void boundsReuseOneRectAndFollowMoves() {
+        CanvasActivity.CanvasNode node = new CanvasActivity.CanvasNode();
+        node.x = 10;
+        node.y = 20;
+        node.width = 200;
+        node.height = 100;
+        RectF bounds = node.bounds();
+        assertEquals(new RectF(10, 20, 210, 120), bounds);
+
+        node.x = 50;
+        assertSame(bounds, node.bounds());
+        assertEquals(new RectF(50, 20, 250, 120), bounds);
+
+        // копия для записи на воркере не делит кэши с оригиналом
+        CanvasActivity.CanvasNode copy = node.copy();
+        assertNotSame(bounds, copy.bounds());
+        assertEquals(bounds, copy.bounds());
+    }
+}
@@ -0,0 +1,186 @@
+package com.redeluxe;
+
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.RectF;
+import android.view.MotionEvent;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.GraphicsMode;
+
+// счетчик выделенных потоком байт у hotspot: после прогрева кадр панорамирования
+// и перетаскивания не должен выделять память. кадр CanvasView - это MOVE через
+// onTouchEvent и onDraw на canvas поверх bitmap; native-графика, чтобы Path и Canvas
+// были настоящими, а не записывающими тенями robolectric
+@RunWith(RobolectricTestRunner.class)
+@GraphicsMode(GraphicsMode.Mode.NATIVE)
+public class FrameAllocationTest {
+    private static final int NODE_COUNT = 5000;
+    // узлы доски сеткой 200x150 с шагом 250x180, каждый связан с предыдущим
+    private static final int COLUMNS = 50;
+    private static final float STEP_X = 250;
+    private static final float STEP_Y = 180;
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+    private static final int MOVE_COUNT = 64;
+    private static final int WARMUP_FRAMES = 2000;
+    private static final int FRAMES = 2000;
+    // сам замер может выделить пару объектов, на кадр это меньше байта
+    private static final long TOLERANCE_BYTES = FRAMES;
+
+    @Test
+    public void spatialQueryAllocatesNothingInSteadyState() {
+        SpatialIndex<SpatialIndexTest.Box> index = SpatialIndexTest.newIndex();
+        Random random = new Random(3);
+        for (int i = 0; i < NODE_COUNT; i++) {
+            index.insert(SpatialIndexTest.randomBox(random, i, 30000));
+        }
+        List<SpatialIndexTest.Box> visible = new ArrayList<>();
+        Frame frame = frameNumber -> {
+            float panX = (frameNumber % 500) * 37;
+            float panY = (frameNumber % 300) * 53;
+            visible.clear();
+            index.query(panX, panY, panX + 1080, panY + 1920, visible);
+            index.hit(panX + 540, panY + 960);
+        };
+        assertNoAllocation(frame);
+    }
+
+    @Test
+    public void nodeDrawDataAllocatesNothingInSteadyState() {
+        List<CanvasActivity.CanvasNode> nodes = new ArrayList<>();
+        Random random = new Random(4);
+        for (int i = 0; i < NODE_COUNT; i++) {
+            CanvasActivity.CanvasNode node = new CanvasActivity.CanvasNode();
+            node.x = random.nextFloat() * 30000;
+            node.y = random.nextFloat() * 30000;
+            node.width = 200;
+            node.height = 150;
+            node.title = "узел " + i;
+            node.content = "первая строка\nвторая строка узла " + i + "\nтретья";
+            node.color = i % 2 == 0 ? "#ff00ff" : "#00ffff";
+            nodes.add(node);
+        }
+        SpatialIndex<CanvasActivity.CanvasNode> index = new SpatialIndex<>((node, out) -> out.set(node.bounds()));
+        index.rebuild(nodes);
+        List<CanvasActivity.CanvasNode> visible = new ArrayList<>();
+        long[] sink = new long[1];
+        Frame frame = frameNumber -> {
+            float panX = (frameNumber % 500) * 37;
+            float panY = (frameNumber % 300) * 53;
+            visible.clear();
+            index.query(panX, panY, panX + 1080, panY + 1920, visible);
+            for (int i = 0; i < visible.size(); i++) {
+                CanvasActivity.CanvasNode node = visible.get(i);
+                RectF bounds = node.bounds();
+                sink[0] += node.parsedColor() + node.contentLines().length + (long) bounds.width();
+            }
+        };
+        assertNoAllocation(frame);
+        assertTrue(sink[0] != 0);
+    }
+
+    @Test
+    public void canvasViewPanFrameAllocatesNothing() {
+        CanvasActivity.CanvasView view = newCanvasView(1f);
+        Canvas canvas = new Canvas(Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+        // касание в промежутке между узлами двигает доску
+        MotionEvent[] moves = gesture(view, STEP_X - 25, STEP_Y - 15);
+        assertNoAllocation(frameNumber -> {
+            view.onTouchEvent(moves[frameNumber % MOVE_COUNT]);
+            view.onDraw(canvas);
+        });
+    }
+
+    @Test
+    public void canvasViewZoomedOutFrameAllocatesNothing() {
+        // при таком масштабе узлы рисуются пятнами, а короткие связи пропускаются
+        CanvasActivity.CanvasView view = newCanvasView(0.02f);
+        Canvas canvas = new Canvas(Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+        MotionEvent[] moves = gesture(view, WIDTH - 100, HEIGHT - 100);
+        assertNoAllocation(frameNumber -> {
+            view.onTouchEvent(moves[frameNumber % MOVE_COUNT]);
+            view.onDraw(canvas);
+        });
+    }
+
+    @Test
+    public void canvasViewDragFrameAllocatesNothing() {
+        CanvasActivity.CanvasView view = newCanvasView(1f);
+        Canvas canvas = new Canvas(Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+        // касание в центре узла тащит его, а с ним пересобираются пути двух его связей
+        MotionEvent[] moves = gesture(view, 2 * STEP_X + 100, 3 * STEP_Y + 75);
+        assertNoAllocation(frameNumber -> {
+            view.onTouchEvent(moves[frameNumber % MOVE_COUNT]);
+            view.onDraw(canvas);
+        });
+    }
+
+    private static CanvasActivity.CanvasView newCanvasView(float zoom) {
+        CanvasActivity.CanvasView view = new CanvasActivity.CanvasView(RuntimeEnvironment.getApplication(), null);
+        CanvasActivity.CanvasDocument document = new CanvasActivity.CanvasDocument();
+        document.zoom = zoom;
+        document.hasZoom = true;
+        document.hasPanX = true;
+        document.hasPanY = true;
+        for (int i = 0; i < NODE_COUNT; i++) {
+            CanvasActivity.CanvasNode node = new CanvasActivity.CanvasNode();
+            node.id = i + 1;
+            node.type = i % 3 == 0 ? "text" : "note";
+            node.x = (i % COLUMNS) * STEP_X;
+            node.y = (i / COLUMNS) * STEP_Y;
+            node.width = 200;
+            node.height = 150;
+            node.title = "узел " + i;
+            node.content = "первая строка\nвторая строка узла " + i + "\nтретья";
+            node.color = i % 2 == 0 ? "#ff00ff" : "#00ffff";
+            document.nodes.add(node);
+            if (i > 0) {
+                document.connections.add(new CanvasActivity.CanvasConnection(
+                    document.nodes.get(i - 1), node, "connection"));
+            }
+        }
+        view.loadDocument(document);
+        view.layout(0, 0, WIDTH, HEIGHT);
+        return view;
+    }
+
+    // DOWN в точке экрана отправляется сразу, MOVE собираются заранее: палец ходит
+    // туда и обратно, за MOVE_COUNT событий возвращаясь в начало
+    private static MotionEvent[] gesture(CanvasActivity.CanvasView view, float x, float y) {
+        view.onTouchEvent(MotionEvent.obtain(0, 0, MotionEvent.ACTION_DOWN, x, y, 0));
+        MotionEvent[] moves = new MotionEvent[MOVE_COUNT];
+        for (int i = 0; i < MOVE_COUNT; i++) {
+            float offset = (i < MOVE_COUNT / 2 ? i : MOVE_COUNT - i) * 6;
+            moves[i] = MotionEvent.obtain(0, 16L * (i + 1), MotionEvent.ACTION_MOVE, x + offset, y + offset / 2, 0);
+        }
+        return moves;
+    }
+
+    private interface Frame {
+        void draw(int frameNumber);
+    }
+
+    private static void assertNoAllocation(Frame frame) {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            frame.draw(i);
+        }
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < FRAMES; i++) {
+            frame.draw(i);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        assertTrue("кадры выделили " + allocated + " байт", allocated <= TOLERANCE_BYTES);
+    }
+}
@@ -0,0 +1,148 @@
+package com.redeluxe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+// постраничное чтение главного списка из локальной базы: список листается
+// по ключу сортировки в sqlite, сервер отдает заметки целиком
+@RunWith(RobolectricTestRunner.class)
+public class LocalStorePagingTest {
+    private static final int NOTE_COUNT = 1000;
+    private static final int CHUNK_SIZE = 64;
+
+    @Test
+    public void pagesCoverEveryNoteOnceInListOrder() {
+        LocalStore store = LocalStore.getInstance(RuntimeEnvironment.getApplication());
+        List<Note> notes = makeNotes(NOTE_COUNT, "");
+        replace(store, notes);
+
+        assertEquals(expectedIds(notes, false), readAllPages(store, "all"));
+        assertEquals(expectedIds(notes, true), readAllPages(store, "pinned"));
+
+        // чтение во время полной загрузки не ждет ее и видит прежний список целиком
+        List<Note> next = makeNotes(NOTE_COUNT / 2, "новая ");
+        LocalStore.NotesReplace replace = store.beginReplaceNotes();
+        replace.append(next.subList(0, CHUNK_SIZE));
+        AtomicReference<List<Note>> read = new AtomicReference<>();
+        store.readAllNotes(read::set);
+        assertEquals(NOTE_COUNT, Await.value(read).size());
+        assertEquals(expectedIds(notes, false), readAllPages(store, "all"));
+
+        // оборванная загрузка ничего не меняет
+        replace.abort();
+        assertEquals(expectedIds(notes, false), readAllPages(store, "all"));
+
+        replace(store, next);
+        assertEquals(expectedIds(next, false), readAllPages(store, "all"));
+    }
+
+    @Test
+    public void firstChunkIsShownBeforeTheLoadCommits() {
+        LocalStore store = LocalStore.getInstance(RuntimeEnvironment.getApplication());
+        replace(store, new ArrayList<>());
+        AtomicInteger changes = new AtomicInteger();
+        PagedNoteSource source = new PagedNoteSource(store,
+            NoteOutbox.getInstance(RuntimeEnvironment.getApplication()), changes::incrementAndGet);
+        source.reload("all");
+        Await.until(() -> changes.get() > 0 && source.isEndReached());
+        assertEquals(0, source.size());
+
+        // база пуста: первая порция видна сразу, до конца загрузки
+        List<Note> notes = makeNotes(NOTE_COUNT, "");
+        List<Note> first = new ArrayList<>(notes.subList(0, CHUNK_SIZE));
+        LocalStore.NotesReplace replace = store.beginReplaceNotes();
+        replace.append(first);
+        source.showFirstChunk(first);
+        assertEquals(CHUNK_SIZE, source.size());
+        assertEquals(first.get(0).getId(), source.get(0).getId());
+
+        for (int i = CHUNK_SIZE; i < notes.size(); i += CHUNK_SIZE) {
+            replace.append(notes.subList(i, Math.min(i + CHUNK_SIZE, notes.size())));
+        }
+        AtomicBoolean committed = new AtomicBoolean();
+        replace.commit(() -> committed.set(true));
+        Await.until(committed::get);
+
+        // после коммита список читается из базы, порция следующей загрузки его не подменяет
+        source.reload("all");
+        Await.until(() -> source.size() > 0);
+        source.showFirstChunk(makeNotes(3, "чужая "));
+        assertEquals((int) expectedIds(notes, false).get(0), source.get(0).getId());
+    }
+
+    private static void replace(LocalStore store, List<Note> notes) {
+        LocalStore.NotesReplace replace = store.beginReplaceNotes();
+        for (int i = 0; i < notes.size(); i += CHUNK_SIZE) {
+            replace.append(notes.subList(i, Math.min(i + CHUNK_SIZE, notes.size())));
+        }
+        AtomicBoolean committed = new AtomicBoolean();
+        replace.commit(() -> committed.set(true));
+        Await.until(committed::get);
+    }
+
+    private static List<Integer> readAllPages(LocalStore store, String filter) {
+        List<Integer> ids = new ArrayList<>();
+        String cursor = null;
+        do {
+            AtomicReference<PagedNoteSource.Page> result = new AtomicReference<>();
+            store.readNotesPage(filter, cursor, PagedNoteSource.PAGE_SIZE, result::set);
+            PagedNoteSource.Page page = Await.value(result);
+            assertNotNull(page.notes);
+            if (page.nextCursor != null) {
+                assertEquals(PagedNoteSource.PAGE_SIZE, page.notes.size());
+            }
+            for (Note note : page.notes) {
+                ids.add(note.getId());
+            }
+            cursor = page.nextCursor;
+        } while (cursor != null);
+        return ids;
+    }
+
+    // у многих заметок одинаковое время изменения: порядок внутри решает id
+    private static List<Note> makeNotes(int count, String prefix) {
+        List<Note> notes = new ArrayList<>(count);
+        for (int id = 1; id <= count; id++) {
+            Note note = new Note(prefix + "заметка " + id, "текст " + id, "#00ffff");
+            note.setId(id);
+            note.setPinned(id % 7 == 0);
+            note.setCategoryId(id % 2 == 0 ? id % 5 : null);
+            note.setUpdatedAt(String.format(Locale.ROOT, "2026-01-01T00:%02d:00Z", (id / 3) % 60));
+            notes.add(note);
+        }
+        return notes;
+    }
+
+    private static List<Integer> expectedIds(List<Note> notes, boolean pinnedOnly) {
+        List<Note> sorted = new ArrayList<>();
+        for (Note note : notes) {
+            if (!pinnedOnly || note.isPinned()) {
+                sorted.add(note);
+            }
+        }
+        Collections.sort(sorted, (a, b) -> {
+            if (a.isPinned() != b.isPinned()) {
+                return a.isPinned() ? -1 : 1;
+            }
+            int byTime = b.getUpdatedAt().compareTo(a.getUpdatedAt());
+            return byTime != 0 ? byTime : Integer.compare(b.getId(), a.getId());
+        });
+        List<Integer> ids = new ArrayList<>();
+        for (Note note : sorted) {
+            ids.add(note.getId());
+        }
+        return ids;
+    }
+}
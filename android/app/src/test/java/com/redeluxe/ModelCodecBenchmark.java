@@ -0,0 +1,183 @@
+package com.redeluxe;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+// разбор ответов ModelCodec против прежнего разбора через org.json. ответы собраны
+// из фикстур ModelCodecTest, размножением заметок и узлов до размеров большого аккаунта.
+// org.json-версии повторяют удаленные parseNote и loadCanvasFromJson.
+// время пишется таблицей в отчет, запускается только с -Pbenchmarks
+@RunWith(RobolectricTestRunner.class)
+public class ModelCodecBenchmark {
+    private static final int[] NOTE_COUNTS = {100, 1000, 10000};
+    private static final int[] NODE_COUNTS = {100, 1000, 5000};
+    private static final long MIN_MEASURE_NS = 500_000_000L;
+
+    private interface Decode {
+        int run(String json) throws Exception;
+    }
+
+    @Test
+    public void modelCodecAgainstOrgJson() throws Exception {
+        BenchmarkReport report = new BenchmarkReport("model-codec");
+        report.row("%-8s %8s %10s %12s %12s %8s", "ответ", "объектов", "КБ", "org.json", "ModelCodec", "x");
+
+        String notesFixture = ModelCodecTest.fixture("notes.json");
+        for (int count : NOTE_COUNTS) {
+            String json = notesPayload(notesFixture, count);
+            measure(report, "notes", count, json,
+                body -> parseNotesOrgJson(body).size(),
+                body -> ModelCodec.decodeList(body, "notes", ModelCodec::readNote).size());
+        }
+
+        String canvasFixture = ModelCodecTest.fixture("canvas.json");
+        for (int count : NODE_COUNTS) {
+            String json = canvasPayload(canvasFixture, count);
+            measure(report, "canvas", count, json,
+                body -> parseCanvasOrgJson(body),
+                body -> {
+                    CanvasActivity.CanvasDocument document = ModelCodec.decode(body, ModelCodec::readCanvasDocument);
+                    return document.nodes.size() + document.connections.size();
+                });
+        }
+        report.write();
+    }
+
+    private static void measure(BenchmarkReport report, String name, int count, String json,
+                                Decode orgJson, Decode codec) throws Exception {
+        // прогрев обоих путей, затем замер
+        time(orgJson, json);
+        time(codec, json);
+        double orgJsonNs = time(orgJson, json);
+        double codecNs = time(codec, json);
+        report.row("%-8s %8d %10d %9.2f мс %9.2f мс %8.2f", name, count, json.length() / 1024,
+            orgJsonNs / 1e6, codecNs / 1e6, orgJsonNs / codecNs);
+    }
+
+    // среднее время одного разбора, разборы повторяются не меньше MIN_MEASURE_NS
+    private static double time(Decode decode, String json) throws Exception {
+        int runs = 0;
+        long checksum = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            checksum += decode.run(json);
+            runs++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < MIN_MEASURE_NS);
+        if (checksum == 0) {
+            throw new IOException("пустой разбор");
+        }
+        return (double) elapsed / runs;
+    }
+
+    // заметки фикстуры повторяются с новыми id
+    private static String notesPayload(String fixture, int count) throws JSONException {
+        JSONObject source = new JSONObject(fixture);
+        JSONArray templates = source.getJSONArray("notes");
+        JSONArray notes = new JSONArray();
+        for (int i = 0; i < count; i++) {
+            JSONObject note = new JSONObject(templates.getJSONObject(i % templates.length()).toString());
+            note.put("id", i + 1);
+            notes.put(note);
+        }
+        source.put("notes", notes);
+        source.put("total", count);
+        return source.toString();
+    }
+
+    // узлы фикстуры повторяются со сдвигом, каждый следующий связан с предыдущим
+    private static String canvasPayload(String fixture, int count) throws JSONException {
+        JSONObject source = new JSONObject(fixture);
+        JSONArray templates = source.getJSONArray("nodes");
+        JSONArray nodes = new JSONArray();
+        JSONArray connections = new JSONArray();
+        for (int i = 0; i < count; i++) {
+            JSONObject node = new JSONObject(templates.getJSONObject(i % templates.length()).toString());
+            node.put("id", i + 1);
+            node.put("x", (i % 50) * 250);
+            node.put("y", (i / 50) * 180);
+            nodes.put(node);
+            if (i > 0) {
+                JSONObject connection = new JSONObject();
+                connection.put("id", i);
+                connection.put("from_node_id", i);
+                connection.put("to_node_id", i + 1);
+                connection.put("type", "connection");
+                connections.put(connection);
+            }
+        }
+        source.put("nodes", nodes);
+        source.put("connections", connections);
+        return source.toString();
+    }
+
+    private static List<Note> parseNotesOrgJson(String body) throws JSONException {
+        JSONArray array = new JSONObject(body).getJSONArray("notes");
+        List<Note> notes = new ArrayList<>();
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject json = array.getJSONObject(i);
+            Note note = new Note();
+            note.setId(json.getInt("id"));
+            note.setTitle(json.getString("title"));
+            note.setContent(json.getString("content"));
+            note.setColor(json.getString("color"));
+            note.setPinned(json.optBoolean("is_pinned", false));
+            note.setArchived(json.optBoolean("is_archived", false));
+            note.setCreatedAt(json.getString("created_at"));
+            note.setUpdatedAt(json.getString("updated_at"));
+            if (json.has("category") && !json.isNull("category")) {
+                JSONObject categoryJson = json.getJSONObject("category");
+                Category category = new Category();
+                category.setId(categoryJson.getInt("id"));
+                category.setName(categoryJson.getString("name"));
+                category.setColor(categoryJson.getString("color"));
+                category.setIcon(categoryJson.getString("icon"));
+                note.setCategory(category);
+            }
+            notes.add(note);
+        }
+        return notes;
+    }
+
+    private static int parseCanvasOrgJson(String body) throws JSONException {
+        JSONObject canvas = new JSONObject(body);
+        List<CanvasActivity.CanvasNode> nodes = new ArrayList<>();
+        JSONArray nodesArray = canvas.getJSONArray("nodes");
+        for (int i = 0; i < nodesArray.length(); i++) {
+            JSONObject nodeJson = nodesArray.getJSONObject(i);
+            CanvasActivity.CanvasNode node = new CanvasActivity.CanvasNode();
+            node.id = nodeJson.optInt("id", 0);
+            node.type = nodeJson.optString("type", "note");
+            node.x = (float) nodeJson.optDouble("x", 100);
+            node.y = (float) nodeJson.optDouble("y", 100);
+            node.width = (float) nodeJson.optDouble("width", 200);
+            node.height = (float) nodeJson.optDouble("height", 140);
+            node.title = nodeJson.optString("title", "");
+            node.content = nodeJson.optString("content", "");
+            node.color = nodeJson.optString("color", "#00ffff");
+            node.noteId = nodeJson.optInt("note_id", 0);
+            nodes.add(node);
+        }
+        int connections = 0;
+        JSONArray connectionsArray = canvas.getJSONArray("connections");
+        for (int i = 0; i < connectionsArray.length(); i++) {
+            JSONObject connJson = connectionsArray.getJSONObject(i);
+            int from = connJson.optInt("from_node_id", -1);
+            int to = connJson.optInt("to_node_id", -1);
+            if (from >= 0 && to >= 0 && from < nodes.size() && to < nodes.size()) {
+                new CanvasActivity.CanvasConnection(nodes.get(from), nodes.get(to),
+                    connJson.optString("type", "connection"));
+                connections++;
+            }
+        }
+        return nodes.size() + connections;
+    }
+}
@@ -0,0 +1,214 @@
+package com.redeluxe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+// кодек против ответов в том виде, что отдает сервер (test/resources/fixtures):
+// лишние поля пропускаются, null не ломает разбор, запись и повторное чтение дают то же самое
+@RunWith(RobolectricTestRunner.class)
+public class ModelCodecTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void notesDecodeFromServerResponse() throws IOException {
+        List<Note> notes = ModelCodec.decodeList(fixture("notes.json"), "notes", ModelCodec::readNote);
+        assertEquals(2, notes.size());
+
+        Note note = notes.get(0);
+        assertEquals(42, note.getId());
+        assertEquals("Список покупок 🛒", note.getTitle());
+        assertEquals("молоко\nхлеб\n\"кавычки\" и \\ слэш\tтаб", note.getContent());
+        assertEquals("#ff0080", note.getColor());
+        assertTrue(note.isPinned());
+        assertFalse(note.isArchived());
+        assertEquals(Integer.valueOf(7), note.getCategoryId());
+        assertEquals("Дом", note.getCategory().getName());
+        assertEquals("🏠", note.getCategory().getIcon());
+        assertEquals(2, note.getTags().size());
+        assertEquals("срочно", note.getTags().get(0).getName());
+        assertEquals("2026-01-05T12:30:00.123456+03:00", note.getCreatedAt());
+
+        Note empty = notes.get(1);
+        assertNull(empty.getCategoryId());
+        assertNull(empty.getCategory());
+        assertTrue(empty.isEncrypted());
+        assertTrue(empty.isArchived());
+        assertEquals("", empty.getTitle());
+        assertTrue(empty.getTags().isEmpty());
+    }
+
+    @Test
+    public void notesSurviveWriteAndRead() throws IOException {
+        List<Note> notes = ModelCodec.decodeList(fixture("notes.json"), "notes", ModelCodec::readNote);
+        String json = ModelCodec.encode(writer -> {
+            writer.beginObject();
+            writer.name("notes").beginArray();
+            for (Note note : notes) {
+                ModelCodec.writeNote(writer, note);
+            }
+            writer.endArray();
+            writer.endObject();
+        });
+        List<Note> again = ModelCodec.decodeList(json, "notes", ModelCodec::readNote);
+        assertEquals(notes.size(), again.size());
+        for (int i = 0; i < notes.size(); i++) {
+            assertNoteEquals(notes.get(i), again.get(i));
+        }
+    }
+
+    @Test
+    public void canvasDecodesAndSurvivesLocalSnapshot() throws IOException {
+        CanvasActivity.CanvasDocument document = ModelCodec.decode(fixture("canvas.json"), ModelCodec::readCanvasDocument);
+        assertTrue(document.hasZoom);
+        assertEquals(1.5f, document.zoom, 0);
+        assertEquals(-120.25f, document.panX, 0);
+        assertEquals(340.5f, document.panY, 0);
+        assertEquals(3, document.nodes.size());
+        CanvasActivity.CanvasNode first = document.nodes.get(0);
+        assertEquals(11, first.id);
+        assertEquals("note", first.type);
+        assertEquals(200.5f, first.y, 0);
+        assertEquals(220f, first.width, 0);
+        assertEquals("первая\nвторая", first.content);
+        assertEquals(42, first.noteId);
+        assertEquals(0, document.nodes.get(1).noteId);
+
+        // связь на несуществующий узел отбрасывается, остальные ссылаются на объекты узлов
+        assertEquals(2, document.connections.size());
+        assertSame(first, document.connections.get(0).from);
+        assertSame(document.nodes.get(1), document.connections.get(0).to);
+        assertEquals(21, document.connections.get(0).id);
+        assertEquals("arrow", document.connections.get(1).type);
+
+        // локальный снимок связывает узлы по позициям
+        String snapshot = ModelCodec.encode(writer -> ModelCodec.writeCanvasDocument(writer, document));
+        CanvasActivity.CanvasDocument again = ModelCodec.decode(snapshot, ModelCodec::readCanvasDocument);
+        assertEquals(document.zoom, again.zoom, 0);
+        assertEquals(document.panX, again.panX, 0);
+        assertEquals(document.panY, again.panY, 0);
+        assertEquals(document.nodes.size(), again.nodes.size());
+        for (int i = 0; i < document.nodes.size(); i++) {
+            assertCanvasNodeEquals(document.nodes.get(i), again.nodes.get(i));
+        }
+        assertEquals(document.connections.size(), again.connections.size());
+        for (int i = 0; i < document.connections.size(); i++) {
+            CanvasActivity.CanvasConnection expected = document.connections.get(i);
+            CanvasActivity.CanvasConnection actual = again.connections.get(i);
+            assertEquals(expected.id, actual.id);
+            assertEquals(expected.type, actual.type);
+            assertSame(again.nodes.get(document.nodes.indexOf(expected.from)), actual.from);
+            assertSame(again.nodes.get(document.nodes.indexOf(expected.to)), actual.to);
+        }
+    }
+
+    @Test
+    public void graphDecodesEdgesOntoNodes() throws IOException {
+        GraphActivity.GraphDocument graph = ModelCodec.decode(fixture("graph.json"), ModelCodec::readGraphDocument);
+        assertEquals(3, graph.nodes.size());
+        GraphActivity.GraphNode note = graph.nodes.get(0);
+        assertEquals("note_42", note.id);
+        assertEquals("Список покупок 🛒", note.label);
+        assertEquals(12, note.size);
+        assertEquals(10.5f, note.x, 0);
+        assertEquals(-4f, note.y, 0);
+
+        // связь на отсутствующий узел отбрасывается, вес по умолчанию 1
+        assertEquals(2, graph.edges.size());
+        assertSame(note, graph.edges.get(0).source);
+        assertSame(graph.nodes.get(1), graph.edges.get(0).target);
+        assertEquals(2, graph.edges.get(0).weight);
+        assertEquals(1, graph.edges.get(1).weight);
+    }
+
+    @Test
+    public void graphStateDecodesNestedData() throws IOException {
+        GraphActivity.GraphDocument state = ModelCodec.decode(fixture("graph_state.json"), ModelCodec::readGraphStateDocument);
+        assertTrue(state.hasData);
+        assertEquals(0.75f, state.zoom, 0);
+        assertEquals(12f, state.panX, 0);
+        assertEquals(-8f, state.panY, 0);
+        assertEquals(2, state.nodes.size());
+        assertEquals(3f, state.nodes.get(1).x, 0);
+        assertEquals(1, state.edges.size());
+        assertEquals(3, state.edges.get(0).weight);
+        assertSame(state.nodes.get(1), state.edges.get(0).target);
+
+        // битая строка data дает пустой граф, но viewport сохраняется
+        GraphActivity.GraphDocument broken = ModelCodec.decode(
+            "{\"zoom\":2,\"data\":\"{\\\"nodes\\\":[{\\\"id\\\":\\\"a\\\"}]}\"}", ModelCodec::readGraphStateDocument);
+        assertTrue(broken.hasData);
+        assertEquals(2f, broken.zoom, 0);
+        assertTrue(broken.nodes.isEmpty());
+        assertTrue(broken.edges.isEmpty());
+    }
+
+    private static void assertNoteEquals(Note expected, Note actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getTitle(), actual.getTitle());
+        assertEquals(expected.getContent(), actual.getContent());
+        assertEquals(expected.getColor(), actual.getColor());
+        assertEquals(expected.isEncrypted(), actual.isEncrypted());
+        assertEquals(expected.isPinned(), actual.isPinned());
+        assertEquals(expected.isArchived(), actual.isArchived());
+        assertEquals(expected.getCategoryId(), actual.getCategoryId());
+        assertEquals(expected.getCreatedAt(), actual.getCreatedAt());
+        assertEquals(expected.getUpdatedAt(), actual.getUpdatedAt());
+        if (expected.getCategory() == null) {
+            assertNull(actual.getCategory());
+        } else {
+            assertEquals(expected.getCategory().getId(), actual.getCategory().getId());
+            assertEquals(expected.getCategory().getName(), actual.getCategory().getName());
+            assertEquals(expected.getCategory().getColor(), actual.getCategory().getColor());
+            assertEquals(expected.getCategory().getIcon(), actual.getCategory().getIcon());
+        }
+        assertEquals(expected.getTags().size(), actual.getTags().size());
+        for (int i = 0; i < expected.getTags().size(); i++) {
+            assertEquals(expected.getTags().get(i).getId(), actual.getTags().get(i).getId());
+            assertEquals(expected.getTags().get(i).getName(), actual.getTags().get(i).getName());
+            assertEquals(expected.getTags().get(i).getColor(), actual.getTags().get(i).getColor());
+        }
+    }
+
+    private static void assertCanvasNodeEquals(CanvasActivity.CanvasNode expected, CanvasActivity.CanvasNode actual) {
+        assertEquals(expected.id, actual.id);
+        assertEquals(expected.type, actual.type);
+        assertEquals(expected.x, actual.x, 0);
+        assertEquals(expected.y, actual.y, 0);
+        assertEquals(expected.width, actual.width, 0);
+        assertEquals(expected.height, actual.height, 0);
+        assertEquals(expected.title, actual.title);
+        assertEquals(expected.content, actual.content);
+        assertEquals(expected.color, actual.color);
+        assertEquals(expected.noteId, actual.noteId);
+    }
+
+    static String fixture(String name) throws IOException {
+        InputStream in = ModelCodecTest.class.getClassLoader().getResourceAsStream("fixtures/" + name);
+        if (in == null) {
+            throw new IOException("нет файла " + name);
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.redeluxe;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+// индекс против перебора на досках в 1k, 10k и 50k узлов. плотность узлов одна и та же,
+// доска растет вширь; окно - экран телефона при масштабе 1.
+// время пишется таблицей в отчет, совпадение результатов с перебором проверяет SpatialIndexTest.
+// запускается только с -Pbenchmarks
+@RunWith(RobolectricTestRunner.class)
+public class SpatialIndexBenchmark {
+    private static final int[] SIZES = {1000, 10000, 50000};
+    private static final int QUERIES = 2000;
+    private static final int HITS = 10000;
+    private static final int MOVES = 5000;
+    private static final float SCREEN_WIDTH = 1080;
+    private static final float SCREEN_HEIGHT = 1920;
+
+    @Test
+    public void indexAgainstLinearScan() throws IOException {
+        BenchmarkReport report = new BenchmarkReport("spatial-index");
+        report.row("%8s %10s %12s %12s %12s %12s %12s %10s",
+            "узлов", "вставка", "окно", "окно пер.", "попадание", "попад. пер.", "сдвиг", "найдено");
+        for (int size : SIZES) {
+            run(size, report);
+        }
+        report.write();
+    }
+
+    private static void run(int size, BenchmarkReport report) {
+        Random random = new Random(size);
+        float side = (float) Math.sqrt(size) * 400;
+        List<SpatialIndexTest.Box> boxes = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            boxes.add(new SpatialIndexTest.Box(i, random.nextFloat() * side, random.nextFloat() * side, 200, 100));
+        }
+
+        long start = System.nanoTime();
+        SpatialIndex<SpatialIndexTest.Box> index = SpatialIndexTest.newIndex();
+        for (SpatialIndexTest.Box box : boxes) {
+            index.insert(box);
+        }
+        long insertNs = System.nanoTime() - start;
+
+        float[][] windows = new float[QUERIES][];
+        for (int i = 0; i < QUERIES; i++) {
+            float left = random.nextFloat() * side;
+            float top = random.nextFloat() * side;
+            windows[i] = new float[] {left, top, left + SCREEN_WIDTH, top + SCREEN_HEIGHT};
+        }
+        float[][] points = new float[HITS][];
+        for (int i = 0; i < HITS; i++) {
+            points[i] = new float[] {random.nextFloat() * side, random.nextFloat() * side};
+        }
+
+        List<SpatialIndexTest.Box> found = new ArrayList<>();
+        start = System.nanoTime();
+        long indexFound = 0;
+        for (float[] w : windows) {
+            found.clear();
+            index.query(w[0], w[1], w[2], w[3], found);
+            indexFound += found.size();
+        }
+        long queryNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        long scanFound = 0;
+        for (float[] w : windows) {
+            scanFound += SpatialIndexTest.scan(boxes, w[0], w[1], w[2], w[3]).size();
+        }
+        long scanQueryNs = System.nanoTime() - start;
+
+        // найденное идет в отчет, иначе jit может выбросить перебор целиком
+        start = System.nanoTime();
+        for (int i = 0; i < HITS; i++) {
+            if (index.hit(points[i][0], points[i][1]) != null) {
+                indexFound++;
+            }
+        }
+        long hitNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < HITS; i++) {
+            SpatialIndexTest.Box top = null;
+            for (SpatialIndexTest.Box box : boxes) {
+                if (box.intersects(points[i][0], points[i][1], points[i][0], points[i][1])) {
+                    top = box;
+                }
+            }
+            if (top != null) {
+                scanFound++;
+            }
+        }
+        long scanHitNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < MOVES; i++) {
+            SpatialIndexTest.Box box = boxes.get(random.nextInt(size));
+            box.moveTo(box.left + random.nextFloat() * 40 - 20, box.top + random.nextFloat() * 40 - 20, 200, 100);
+            index.update(box);
+        }
+        long moveNs = System.nanoTime() - start;
+
+        report.row("%8d %8.2f мс %9.2f мкс %9.2f мкс %9.2f мкс %9.2f мкс %9.2f мкс %10s",
+            size, insertNs / 1e6, queryNs / 1e3 / QUERIES, scanQueryNs / 1e3 / QUERIES,
+            hitNs / 1e3 / HITS, scanHitNs / 1e3 / HITS, moveNs / 1e3 / MOVES, indexFound + "/" + scanFound);
+    }
+}
@@ -0,0 +1,230 @@
+package com.redeluxe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+// индекс сверяется с перебором: те же объекты и в том же порядке добавления
+@RunWith(RobolectricTestRunner.class)
+public class SpatialIndexTest {
+
+    static class Box {
+        final int id;
+        float left, top, right, bottom;
+
+        Box(int id, float left, float top, float width, float height) {
+            this.id = id;
+            moveTo(left, top, width, height);
+        }
+
+        void moveTo(float left, float top, float width, float height) {
+            this.left = left;
+            this.top = top;
+            this.right = left + width;
+            this.bottom = top + height;
+        }
+
+        boolean intersects(float l, float t, float r, float b) {
+            return left <= r && right >= l && top <= b && bottom >= t;
+        }
+
+        @Override
+        public String toString() {
+            return "box " + id;
+        }
+    }
+
+    static SpatialIndex<Box> newIndex() {
+        return new SpatialIndex<>((box, out) -> out.set(box.left, box.top, box.right, box.bottom));
+    }
+
+    static List<Box> scan(List<Box> boxes, float left, float top, float right, float bottom) {
+        List<Box> found = new ArrayList<>();
+        for (Box box : boxes) {
+            if (box.intersects(left, top, right, bottom)) {
+                found.add(box);
+            }
+        }
+        return found;
+    }
+
+    static List<Box> query(SpatialIndex<Box> index, float left, float top, float right, float bottom) {
+        List<Box> found = new ArrayList<>();
+        index.query(left, top, right, bottom, found);
+        return found;
+    }
+
+    static Box randomBox(Random random, int id, float extent) {
+        return new Box(id, random.nextFloat() * extent, random.nextFloat() * extent,
+            20 + random.nextFloat() * 300, 20 + random.nextFloat() * 200);
+    }
+
+    @Test
+    public void queryReturnsIntersectingInInsertionOrder() {
+        Random random = new Random(1);
+        SpatialIndex<Box> index = newIndex();
+        List<Box> boxes = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            Box box = randomBox(random, i, 20000);
+            boxes.add(box);
+            index.insert(box);
+        }
+        assertEquals(boxes.size(), index.size());
+
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 200; i++) {
+                float left = random.nextFloat() * 20000 - 1000;
+                float top = random.nextFloat() * 20000 - 1000;
+                float size = random.nextFloat() * 4000;
+                assertEquals(scan(boxes, left, top, left + size, top + size),
+                    query(index, left, top, left + size, top + size));
+            }
+            // перемещение не меняет порядок отрисовки
+            for (int i = 0; i < 300; i++) {
+                Box box = boxes.get(random.nextInt(boxes.size()));
+                box.moveTo(random.nextFloat() * 20000, random.nextFloat() * 20000, 120, 80);
+                index.update(box);
+            }
+        }
+    }
+
+    // попадание совпадает с последним по порядку объектом из перебора
+    @Test
+    public void hitMatchesLinearScan() {
+        Random random = new Random(5);
+        SpatialIndex<Box> index = newIndex();
+        List<Box> boxes = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            Box box = randomBox(random, i, 20000);
+            boxes.add(box);
+            index.insert(box);
+        }
+        for (int i = 0; i < 2000; i++) {
+            float x = random.nextFloat() * 20000;
+            float y = random.nextFloat() * 20000;
+            Box top = null;
+            for (Box box : boxes) {
+                if (box.intersects(x, y, x, y)) {
+                    top = box;
+                }
+            }
+            assertSame(top, index.hit(x, y));
+        }
+    }
+
+    @Test
+    public void rebuildKeepsListOrder() {
+        Random random = new Random(2);
+        List<Box> boxes = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            boxes.add(randomBox(random, i, 5000));
+        }
+        SpatialIndex<Box> index = newIndex();
+        index.rebuild(boxes);
+        assertEquals(boxes, query(index, -1000, -1000, 10000, 10000));
+    }
+
+    // сортировка найденного идет слиянием на переиспользуемых массивах: проверяем
+    // размеры вокруг степеней двойки и рост буферов, в том числе на убывании
+    @Test
+    public void sortFoundKeepsInsertionOrderAcrossBufferGrowth() {
+        SpatialIndex<Box> index = newIndex();
+        List<Box> boxes = new ArrayList<>();
+        // узлы добавляются справа налево: обход дерева находит их не по порядку
+        for (int i = 0; i < 700; i++) {
+            Box box = new Box(i, (699 - i) * 30, (i % 7) * 500, 20, 20);
+            boxes.add(box);
+            index.insert(box);
+        }
+        int[] widths = {1, 2, 3, 63, 64, 65, 127, 128, 129, 300, 700, 5, 64};
+        for (int width : widths) {
+            float right = width * 30 - 1;
+            List<Box> expected = scan(boxes, 0, -1, right, 10000);
+            assertEquals(expected, query(index, 0, -1, right, 10000));
+            // повторный запрос не видит остатков прошлого
+            assertEquals(expected, query(index, 0, -1, right, 10000));
+        }
+    }
+
+    @Test
+    public void hitReturnsTopmost() {
+        SpatialIndex<Box> index = newIndex();
+        Box bottom = new Box(0, 0, 0, 200, 200);
+        Box middle = new Box(1, 50, 50, 200, 200);
+        Box top = new Box(2, 100, 100, 200, 200);
+        index.insert(bottom);
+        index.insert(middle);
+        index.insert(top);
+
+        assertSame(top, index.hit(150, 150));
+        assertSame(middle, index.hit(60, 60));
+        assertSame(bottom, index.hit(10, 10));
+        assertNull(index.hit(-10, -10));
+
+        // нижний узел сдвинут, но остается под остальными
+        bottom.moveTo(100, 100, 200, 200);
+        index.update(bottom);
+        assertSame(top, index.hit(150, 150));
+
+        index.remove(top);
+        assertSame(middle, index.hit(150, 150));
+        index.remove(middle);
+        assertSame(bottom, index.hit(150, 150));
+    }
+
+    @Test
+    public void objectsOutsideRootOverflowUntilRebuild() {
+        SpatialIndex<Box> index = newIndex();
+        List<Box> boxes = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Box box = new Box(i, i * 10, i * 10, 50, 50);
+            boxes.add(box);
+            index.insert(box);
+        }
+        assertEquals(0, index.overflowSize());
+
+        // далеко за корнем: объекты копятся в отдельном списке, потом дерево перестраивается
+        int maxOverflow = 0;
+        for (int i = 0; i < 100; i++) {
+            Box box = new Box(10 + i, 1000000 + i * 100, 1000000, 50, 50);
+            boxes.add(box);
+            index.insert(box);
+            maxOverflow = Math.max(maxOverflow, index.overflowSize());
+            assertTrue(index.overflowSize() <= Math.max(32, index.size() / 8));
+        }
+        assertTrue(maxOverflow > 0);
+        assertTrue(index.overflowSize() < maxOverflow);
+        assertEquals(boxes, query(index, -1, -1, 2000000, 2000000));
+        assertEquals(scan(boxes, 999000, 999000, 1005000, 1005000), query(index, 999000, 999000, 1005000, 1005000));
+    }
+
+    @Test
+    public void emptyCellsArePrunedAfterMoveAndRemove() {
+        SpatialIndex<Box> index = newIndex();
+        Box anchor = new Box(0, 0, 0, 4000, 4000);
+        index.insert(anchor);
+        int anchorCells = index.cellCount();
+
+        // маленький узел лежит глубоко, перетаскивание не оставляет за ним ячеек
+        Box dragged = new Box(1, 10, 10, 8, 8);
+        index.insert(dragged);
+        int depthCells = index.cellCount();
+        assertTrue(depthCells > anchorCells);
+        for (int step = 0; step < 400; step++) {
+            dragged.moveTo(10 + step * 9, 10 + step * 7, 8, 8);
+            index.update(dragged);
+            assertTrue(index.cellCount() <= depthCells + 1);
+        }
+        index.remove(dragged);
+        assertEquals(anchorCells, index.cellCount());
+        assertEquals(1, index.size());
+    }
+}
@@ -1,8 +1,12 @@
 package main
 
 import (
+	"bytes"
+	"compress/gzip"
 	"crypto/rand"
+	"crypto/sha1"
 	"encoding/base64"
+	"encoding/hex"
 	"encoding/json"
 	"fmt"
 	"io"
@@ -80,6 +84,8 @@ type Note struct {
 	IsFavorite  bool          `json:"is_favorite" gorm:"default:false"`
 	IsMarkdown  bool          `json:"is_markdown" gorm:"default:false"`
 	Position    int           `json:"position" gorm:"default:0"`
+	// uuid, с которым заметку создала офлайн-очередь клиента, повтор пачки ее не дублирует
+	ClientUUID  *string       `json:"-" gorm:"uniqueIndex"`
 	CategoryID  *uint         `json:"category_id"`
 	Category    *Category     `json:"category,omitempty" gorm:"foreignKey:CategoryID"`
 	UserID      uint          `json:"user_id"`
@@ -191,8 +197,21 @@ type StatsResponse struct {
 }
 
 type SyncRequest struct {
-	LastSync time.Time `json:"last_sync"`
-	DeviceID string    `json:"device_id"`
+	LastSync      time.Time `json:"last_sync"`
+	DeviceID      string    `json:"device_id"`
+	WatermarkOnly bool      `json:"watermark_only"`
+}
+
+type NoteBatchOp struct {
+	Op         string          `json:"op"`
+	ID         uint            `json:"id"`
+	ClientID   int             `json:"client_id"`
+	ClientUUID string          `json:"client_uuid"`
+	Note       json.RawMessage `json:"note"`
+}
+
+type NoteBatchRequest struct {
+	Ops []NoteBatchOp `json:"ops"`
 }
 
 type Link struct {
@@ -419,6 +438,127 @@ func authMiddleware() gin.HandlerFunc {
 	}
 }
 
+// распаковка сжатых тел запросов от мобильного клиента
+func gzipRequestMiddleware() gin.HandlerFunc {
+	return func(c *gin.Context) {
+		if strings.EqualFold(c.GetHeader("Content-Encoding"), "gzip") {
+			reader, err := gzip.NewReader(c.Request.Body)
+			if err != nil {
+				c.JSON(http.StatusBadRequest, gin.H{"error": "неверное сжатие"})
+				c.Abort()
+				return
+			}
+			defer reader.Close()
+			c.Request.Body = reader
+			c.Request.Header.Del("Content-Encoding")
+			c.Request.ContentLength = -1
+		}
+
+		c.Next()
+	}
+}
+
+type gzipResponseWriter struct {
+	gin.ResponseWriter
+	gz *gzip.Writer
+}
+
+// сжатие начинается с первой записи, пустые ответы (304, 204) уходят как есть
+func (w *gzipResponseWriter) Write(data []byte) (int, error) {
+	if w.gz == nil {
+		w.Header().Del("Content-Length")
+		w.Header().Set("Content-Encoding", "gzip")
+		w.gz = gzip.NewWriter(w.ResponseWriter)
+	}
+	return w.gz.Write(data)
+}
+
+func (w *gzipResponseWriter) WriteString(s string) (int, error) {
+	return w.Write([]byte(s))
+}
+
+func (w *gzipResponseWriter) WriteHeader(code int) {
+	w.Header().Del("Content-Length")
+	w.ResponseWriter.WriteHeader(code)
+}
+
+// сжатие ответов для клиентов с Accept-Encoding: gzip
+func gzipResponseMiddleware() gin.HandlerFunc {
+	return func(c *gin.Context) {
+		if !strings.Contains(c.GetHeader("Accept-Encoding"), "gzip") {
+			c.Next()
+			return
+		}
+
+		c.Header("Vary", "Accept-Encoding")
+		writer := &gzipResponseWriter{ResponseWriter: c.Writer}
+		c.Writer = writer
+		c.Next()
+
+		if writer.gz != nil {
+			writer.gz.Close()
+		}
+	}
+}
+
+type etagResponseWriter struct {
+	gin.ResponseWriter
+	status int
+	body   bytes.Buffer
+}
+
+func (w *etagResponseWriter) Write(data []byte) (int, error) {
+	return w.body.Write(data)
+}
+
+func (w *etagResponseWriter) WriteString(s string) (int, error) {
+	return w.body.WriteString(s)
+}
+
+func (w *etagResponseWriter) WriteHeader(code int) {
+	w.status = code
+}
+
+// валидаторы для GET: ETag считается по телу ответа, при совпадении
+// с If-None-Match клиент получает пустой 304 и берет тело из своего кэша.
+// ответ целиком копится в памяти, поэтому ставится только на json-маршруты,
+// которые клиент кэширует, а не на выгрузки и файлы
+func etagMiddleware() gin.HandlerFunc {
+	return func(c *gin.Context) {
+		writer := &etagResponseWriter{ResponseWriter: c.Writer, status: http.StatusOK}
+		c.Writer = writer
+		c.Next()
+		c.Writer = writer.ResponseWriter
+
+		if writer.status != http.StatusOK {
+			writer.ResponseWriter.WriteHeader(writer.status)
+			writer.ResponseWriter.Write(writer.body.Bytes())
+			return
+		}
+
+		sum := sha1.Sum(writer.body.Bytes())
+		etag := `W/"` + hex.EncodeToString(sum[:]) + `"`
+		c.Header("ETag", etag)
+		c.Header("Cache-Control", "private, no-cache")
+
+		for _, candidate := range strings.Split(c.GetHeader("If-None-Match"), ",") {
+			if strings.TrimSpace(candidate) == etag {
+				writer.ResponseWriter.WriteHeader(http.StatusNotModified)
+				writer.ResponseWriter.WriteHeaderNow()
+				return
+			}
+		}
+
+		writer.ResponseWriter.WriteHeader(http.StatusOK)
+		writer.ResponseWriter.Write(writer.body.Bytes())
+	}
+}
+
+// пустой ответ, клиент прогревает им соединение при старте
+func ping(c *gin.Context) {
+	c.Status(http.StatusNoContent)
+}
+
 func register(c *gin.Context) {
 	var req AuthRequest
 	if err := c.ShouldBindJSON(&req); err != nil {
@@ -515,7 +655,7 @@ func getNotes(c *gin.Context) {
 	}
 
 	var notes []Note
-	query.Preload("Category").Preload("Tags").Order("is_pinned desc, updated_at desc").Find(&notes)
+	query.Preload("Category").Preload("Tags").Order("is_pinned desc, updated_at desc, id desc").Find(&notes)
 
 	c.JSON(http.StatusOK, gin.H{"notes": notes})
 }
@@ -630,6 +770,102 @@ func deleteNote(c *gin.Context) {
 	c.JSON(http.StatusOK, gin.H{"message": "заметка удалена"})
 }
 
+// пакет изменений заметок из офлайн-очереди клиента, статус по каждой операции
+func batchNotes(c *gin.Context) {
+	userID := c.MustGet("user_id").(uint)
+
+	var req NoteBatchRequest
+	if err := c.ShouldBindJSON(&req); err != nil {
+		c.JSON(http.StatusBadRequest, gin.H{"error": "неверные данные"})
+		return
+	}
+
+	results := make([]gin.H, 0, len(req.Ops))
+	for _, op := range req.Ops {
+		result := gin.H{"op": op.Op, "id": op.ID, "client_id": op.ClientID}
+
+		switch op.Op {
+		case "create":
+			// ответ на прошлую попытку мог не дойти до клиента: отдаем уже созданную заметку
+			if op.ClientUUID != "" {
+				var existing Note
+				if err := db.Preload("Category").Preload("Tags").
+					Where("client_uuid = ? AND user_id = ?", op.ClientUUID, userID).First(&existing).Error; err == nil {
+					result["status"] = http.StatusCreated
+					result["id"] = existing.ID
+					result["note"] = existing
+					break
+				}
+			}
+			var note Note
+			if err := json.Unmarshal(op.Note, &note); err != nil {
+				result["status"] = http.StatusBadRequest
+				break
+			}
+			note.ID = 0
+			note.UserID = userID
+			if op.ClientUUID != "" {
+				clientUUID := op.ClientUUID
+				note.ClientUUID = &clientUUID
+			}
+			if note.Color == "" {
+				note.Color = "#00ffff"
+			}
+			// 5xx клиент оставляет в очереди и повторяет, остальные коды окончательны
+			if err := db.Create(&note).Error; err != nil {
+				result["status"] = http.StatusInternalServerError
+				break
+			}
+			logNoteHistory(note.ID, userID, "created", note.Title, note.Content)
+
+			db.Preload("Category").Preload("Tags").First(&note, note.ID)
+			result["status"] = http.StatusCreated
+			result["id"] = note.ID
+			result["note"] = note
+		case "update":
+			var note Note
+			if err := db.Where("id = ? AND user_id = ?", op.ID, userID).First(&note).Error; err != nil {
+				result["status"] = http.StatusNotFound
+				break
+			}
+			var updateData map[string]interface{}
+			if err := json.Unmarshal(op.Note, &updateData); err != nil {
+				result["status"] = http.StatusBadRequest
+				break
+			}
+			delete(updateData, "id")
+			delete(updateData, "user_id")
+			if err := db.Model(&note).Updates(updateData).Error; err != nil {
+				result["status"] = http.StatusInternalServerError
+				break
+			}
+
+			db.Preload("Category").Preload("Tags").First(&note, note.ID)
+			logNoteHistory(note.ID, userID, "updated", note.Title, note.Content)
+			result["status"] = http.StatusOK
+			result["note"] = note
+		case "delete":
+			var note Note
+			if err := db.Where("id = ? AND user_id = ?", op.ID, userID).First(&note).Error; err != nil {
+				result["status"] = http.StatusNotFound
+				break
+			}
+			if err := db.Where("id = ? AND user_id = ?", note.ID, userID).Delete(&Note{}).Error; err != nil {
+				result["status"] = http.StatusInternalServerError
+				break
+			}
+			logNoteHistory(note.ID, userID, "deleted", note.Title, note.Content)
+			result["status"] = http.StatusOK
+		default:
+			result["status"] = http.StatusBadRequest
+		}
+
+		results = append(results, result)
+	}
+
+	c.JSON(http.StatusOK, gin.H{"results": results})
+}
+
 func getCategories(c *gin.Context) {
 	userID := c.MustGet("user_id").(uint)
 
@@ -1173,20 +1409,32 @@ func syncData(c *gin.Context) {
 		return
 	}
 
+	// время фиксируется до выборки: изменения, сделанные во время запроса,
+	// попадут в следующую дельту
+	serverTime := time.Now()
+
 	// получаем изменения после lastSync
-	var notes []Note
-	var categories []Category
-	var tags []Tag
+	notes := []Note{}
+	categories := []Category{}
+	tags := []Tag{}
+	deletedNoteIDs := []uint{}
 
-	db.Where("user_id = ? AND updated_at > ?", userID, syncReq.LastSync).Preload("Category").Preload("Tags").Find(&notes)
-	db.Where("user_id = ? AND updated_at > ?", userID, syncReq.LastSync).Find(&categories)
-	db.Where("user_id = ? AND created_at > ?", userID, syncReq.LastSync).Find(&tags)
+	// клиенту нужна только отметка времени перед полной загрузкой
+	if !syncReq.WatermarkOnly {
+		db.Where("user_id = ? AND updated_at > ?", userID, syncReq.LastSync).Preload("Category").Preload("Tags").Find(&notes)
+		db.Where("user_id = ? AND updated_at > ?", userID, syncReq.LastSync).Find(&categories)
+		db.Where("user_id = ? AND created_at > ?", userID, syncReq.LastSync).Find(&tags)
+
+		// заметки удаляются физически, поэтому удаления берутся из истории
+		db.Model(&NoteHistory{}).Where("user_id = ? AND action = ? AND created_at > ?", userID, "deleted", syncReq.LastSync).Pluck("note_id", &deletedNoteIDs)
+	}
 
 	syncData := map[string]interface{}{
-		"notes":       notes,
-		"categories":  categories,
-		"tags":        tags,
-		"server_time": time.Now(),
+		"notes":            notes,
+		"categories":       categories,
+		"tags":             tags,
+		"deleted_note_ids": deletedNoteIDs,
+		"server_time":      serverTime,
 	}
 
 	c.JSON(http.StatusOK, syncData)
@@ -1622,36 +1870,52 @@ func saveCanvasState(c *gin.Context) {
 	}
 
 	// сохраняем узлы
-	nodeIdMap := make(map[string]uint) // для связей
-	if len(stateData.Nodes) > 0 {
-		for i, node := range stateData.Nodes {
-			node.CanvasID = canvas.ID
-			node.UserID = userID
-			if err := tx.Create(&node).Error; err != nil {
-				tx.Rollback()
-				c.JSON(http.StatusInternalServerError, gin.H{"error": "ошибка сохранения узла"})
-				return
-			}
-			// сохраняем соответствие старый индекс -> новый ID
-			nodeIdMap[fmt.Sprintf("%d", i)] = node.ID
+	nodeIds := make([]uint, 0, len(stateData.Nodes)) // индекс узла в запросе -> новый ID
+	for _, node := range stateData.Nodes {
+		node.ID = 0
+		node.CanvasID = canvas.ID
+		node.UserID = userID
+		if err := tx.Create(&node).Error; err != nil {
+			tx.Rollback()
+			c.JSON(http.StatusInternalServerError, gin.H{"error": "ошибка сохранения узла"})
+			return
 		}
+		nodeIds = append(nodeIds, node.ID)
 	}
 
-	// сохраняем связи
-	if len(stateData.Connections) > 0 {
-		for _, conn := range stateData.Connections {
-			conn.CanvasID = canvas.ID
-			conn.UserID = userID
-			if err := tx.Create(&conn).Error; err != nil {
-				tx.Rollback()
-				c.JSON(http.StatusInternalServerError, gin.H{"error": "ошибка сохранения связи"})
-				return
-			}
+	// связи в запросе ссылаются на индексы узлов, в базе - на их ID
+	connectionIds := make([]uint, 0, len(stateData.Connections))
+	for _, conn := range stateData.Connections {
+		if conn.FromNodeID >= uint(len(nodeIds)) || conn.ToNodeID >= uint(len(nodeIds)) {
+			tx.Rollback()
+			c.JSON(http.StatusBadRequest, gin.H{"error": "связь ссылается на несуществующий узел"})
+			return
 		}
+		conn.ID = 0
+		conn.FromNodeID = nodeIds[conn.FromNodeID]
+		conn.ToNodeID = nodeIds[conn.ToNodeID]
+		conn.CanvasID = canvas.ID
+		conn.UserID = userID
+		if err := tx.Omit("FromNode", "ToNode").Create(&conn).Error; err != nil {
+			tx.Rollback()
+			c.JSON(http.StatusInternalServerError, gin.H{"error": "ошибка сохранения связи"})
+			return
+		}
+		connectionIds = append(connectionIds, conn.ID)
 	}
 
 	tx.Commit()
-	c.JSON(http.StatusOK, gin.H{"message": "состояние сохранено"})
+	// клиент запоминает ID и дальше сохраняет изменения по одному узлу
+	c.JSON(http.StatusOK, gin.H{
+		"message":        "состояние сохранено",
+		"node_ids":       nodeIds,
+		"connection_ids": connectionIds,
+	})
+}
+
+// изменение отдельного узла или связи поднимает доску в списке
+func touchCanvas(tx *gorm.DB, canvasID uint) error {
+	return tx.Model(&Canvas{}).Where("id = ?", canvasID).Update("updated_at", time.Now()).Error
 }
 
 func createCanvasNode(c *gin.Context) {
@@ -1671,18 +1935,31 @@ func createCanvasNode(c *gin.Context) {
 		return
 	}
 
+	node.ID = 0
 	node.CanvasID = canvas.ID
 	node.UserID = userID
-	db.Create(&node)
+	if err := db.Create(&node).Error; err != nil {
+		c.JSON(http.StatusInternalServerError, gin.H{"error": "ошибка сохранения узла"})
+		return
+	}
+	touchCanvas(db, canvas.ID)
 	c.JSON(http.StatusCreated, node)
 }
 
+// поля узла, которые клиент может менять по одному
+var canvasNodeFields = map[string]bool{
+	"type": true, "x": true, "y": true, "width": true, "height": true,
+	"rotation": true, "scale": true, "z_index": true,
+	"title": true, "content": true, "color": true, "note_id": true,
+}
+
 func updateCanvasNode(c *gin.Context) {
 	userID := c.MustGet("user_id").(uint)
+	canvasID := c.Param("id")
 	nodeID := c.Param("nodeId")
 
 	var node CanvasNode
-	if err := db.Where("id = ? AND user_id = ?", nodeID, userID).First(&node).Error; err != nil {
+	if err := db.Where("id = ? AND canvas_id = ? AND user_id = ?", nodeID, canvasID, userID).First(&node).Error; err != nil {
 		c.JSON(http.StatusNotFound, gin.H{"error": "узел не найден"})
 		return
 	}
@@ -1692,30 +1969,99 @@ func updateCanvasNode(c *gin.Context) {
 		c.JSON(http.StatusBadRequest, gin.H{"error": "неверные данные"})
 		return
 	}
+	for field := range updateData {
+		if !canvasNodeFields[field] {
+			delete(updateData, field)
+		}
+	}
 
-	db.Model(&node).Updates(updateData)
+	if len(updateData) > 0 {
+		if err := db.Model(&node).Updates(updateData).Error; err != nil {
+			c.JSON(http.StatusInternalServerError, gin.H{"error": "ошибка сохранения узла"})
+			return
+		}
+		touchCanvas(db, node.CanvasID)
+	}
 	c.JSON(http.StatusOK, node)
 }
 
+// вместе с узлом удаляются его связи
 func deleteCanvasNode(c *gin.Context) {
 	userID := c.MustGet("user_id").(uint)
+	canvasID := c.Param("id")
 	nodeID := c.Param("nodeId")
 
-	result := db.Where("id = ? AND user_id = ?", nodeID, userID).Delete(&CanvasNode{})
-	if result.RowsAffected == 0 {
+	var node CanvasNode
+	if err := db.Where("id = ? AND canvas_id = ? AND user_id = ?", nodeID, canvasID, userID).First(&node).Error; err != nil {
 		c.JSON(http.StatusNotFound, gin.H{"error": "узел не найден"})
 		return
 	}
 
+	tx := db.Begin()
+	if err := tx.Where("canvas_id = ? AND (from_node_id = ? OR to_node_id = ?)", node.CanvasID, node.ID, node.ID).
+		Delete(&CanvasConnection{}).Error; err != nil {
+		tx.Rollback()
+		c.JSON(http.StatusInternalServerError, gin.H{"error": "ошибка удаления связей"})
+		return
+	}
+	if err := tx.Delete(&node).Error; err != nil {
+		tx.Rollback()
+		c.JSON(http.StatusInternalServerError, gin.H{"error": "ошибка удаления узла"})
+		return
+	}
+	touchCanvas(tx, node.CanvasID)
+	tx.Commit()
+
 	c.JSON(http.StatusOK, gin.H{"message": "узел удален"})
 }
 
+func createCanvasConnection(c *gin.Context) {
+	userID := c.MustGet("user_id").(uint)
+	canvasID := c.Param("id")
+
+	var conn CanvasConnection
+	if err := c.ShouldBindJSON(&conn); err != nil {
+		c.JSON(http.StatusBadRequest, gin.H{"error": "неверные данные"})
+		return
+	}
+
+	var canvas Canvas
+	if err := db.Where("id = ? AND user_id = ?", canvasID, userID).First(&canvas).Error; err != nil {
+		c.JSON(http.StatusNotFound, gin.H{"error": "canvas не найден"})
+		return
+	}
+
+	// оба конца связи должны быть узлами этой доски
+	var count int64
+	db.Model(&CanvasNode{}).Where("canvas_id = ? AND id IN ?", canvas.ID, []uint{conn.FromNodeID, conn.ToNodeID}).Count(&count)
+	if count != 2 {
+		c.JSON(http.StatusBadRequest, gin.H{"error": "связь ссылается на несуществующий узел"})
+		return
+	}
+
+	conn.ID = 0
+	conn.CanvasID = canvas.ID
+	conn.UserID = userID
+	if conn.Type == "" {
+		conn.Type = "connection"
+	}
+	if err := db.Omit("FromNode", "ToNode").Create(&conn).Error; err != nil {
+		c.JSON(http.StatusInternalServerError, gin.H{"error": "ошибка сохранения связи"})
+		return
+	}
+	touchCanvas(db, canvas.ID)
+	c.JSON(http.StatusCreated, gin.H{"id": conn.ID, "from_node_id": conn.FromNodeID, "to_node_id": conn.ToNodeID, "type": conn.Type})
+}
+
 func getCanvas(c *gin.Context) {
 	userID := c.MustGet("user_id").(uint)
 	canvasID := c.Param("id")
 
 	var canvas Canvas
-	if err := db.Where("id = ? AND user_id = ?", canvasID, userID).Preload("Nodes.Note").First(&canvas).Error; err != nil {
+	// узлы по порядку создания: старые связи ссылаются на позиции узлов
+	if err := db.Where("id = ? AND user_id = ?", canvasID, userID).
+		Preload("Nodes", func(tx *gorm.DB) *gorm.DB { return tx.Order("id") }).
+		Preload("Nodes.Note").First(&canvas).Error; err != nil {
 		c.JSON(http.StatusNotFound, gin.H{"error": "canvas не найден"})
 		return
 	}
@@ -1977,12 +2323,16 @@ func main() {
 		c.Next()
 	})
 
+	// gzip для тел запросов и ответов
+	r.Use(gzipRequestMiddleware())
+	r.Use(gzipResponseMiddleware())
+
 	// cors для мобильного приложения
 	r.Use(cors.New(cors.Config{
 		AllowOrigins:     []string{"*"},
 		AllowMethods:     []string{"GET", "POST", "PUT", "DELETE", "OPTIONS"},
 		AllowHeaders:     []string{"*"},
-		ExposeHeaders:    []string{"Content-Length"},
+		ExposeHeaders:    []string{"Content-Length", "ETag"},
 		AllowCredentials: true,
 		MaxAge:           12 * time.Hour,
 	}))
@@ -1990,20 +2340,23 @@ func main() {
 	// авторизация
 	r.POST("/api/register", register)
 	r.POST("/api/login", login)
+	r.GET("/api/ping", ping)
 
 	// api с авторизацией
 	api := r.Group("/api").Use(authMiddleware())
+	etag := etagMiddleware()
 	{
 		// заметки
-		api.GET("/notes", getNotes)
+		api.GET("/notes", etag, getNotes)
 		api.POST("/notes", createNote)
 		api.PUT("/notes/:id", updateNote)
 		api.DELETE("/notes/:id", deleteNote)
+		api.POST("/notes/batch", batchNotes)
 		api.GET("/notes/search", searchNotes)
 		api.GET("/notes/export", exportNotes)
 
 		// категории
-		api.GET("/categories", getCategories)
+		api.GET("/categories", etag, getCategories)
 		api.POST("/categories", createCategory)
 		api.PUT("/categories/:id", updateCategory)
 		api.DELETE("/categories/:id", deleteCategory)
@@ -2054,8 +2407,8 @@ func main() {
 		// graph view - граф связей
 		api.GET("/graph", getGraph)
 		api.POST("/graph/save-state", saveGraphState)
-		api.GET("/graph/states", getGraphStates)
-		api.GET("/graph/states/:id", getGraphState)
+		api.GET("/graph/states", etag, getGraphStates)
+		api.GET("/graph/states/:id", etag, getGraphState)
 		api.DELETE("/graph/states/:id", deleteGraphState)
 
 		// связи между заметками
@@ -2063,16 +2416,17 @@ func main() {
 		api.GET("/backlinks/:id", getBacklinks)
 
 		// canvas - визуальные заметки
-		api.GET("/canvases", getCanvases)
+		api.GET("/canvases", etag, getCanvases)
 		api.POST("/canvases", createCanvas)
 		api.PUT("/canvases/:id", updateCanvas)
-		api.GET("/canvases/:id", getCanvas)
+		api.GET("/canvases/:id", etag, getCanvas)
 		api.DELETE("/canvases/:id", deleteCanvas)
 		api.POST("/canvases/:id/save-state", saveCanvasState)
 		api.POST("/canvases/:id/autosave", autoSaveCanvasState)
 		api.POST("/canvases/:id/nodes", createCanvasNode)
 		api.PUT("/canvases/:id/nodes/:nodeId", updateCanvasNode)
 		api.DELETE("/canvases/:id/nodes/:nodeId", deleteCanvasNode)
+		api.POST("/canvases/:id/connections", createCanvasConnection)
 
 		// ежедневные заметки
 		api.GET("/daily-note", getDailyNote)